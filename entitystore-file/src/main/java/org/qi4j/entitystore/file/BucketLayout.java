@@ -0,0 +1,661 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Extendible hashing of entity files over bucket directories.
+ * <p>
+ * Each bucket directory holds the identities whose hash ends with the bits of the bucket, and is named after
+ * its depth and bits, like "d3-5". An in-memory table indexed by the last bits of the hash points to the bucket
+ * of every identity, so an entity file is always found in a single directory. When a bucket holds more files
+ * than the configured bucket size, it is split in two buckets of one more bit in the background, while the
+ * store stays available. The files are moved over to the new buckets in small chunks, and until a split is
+ * done an identity is looked up in the new bucket first and in the old bucket second.
+ * </p>
+ * <p>
+ * Slice directories from the SLICES layout are drained into the buckets the same way, which converts an
+ * existing store online. The first buckets are sized for the files in the slices, and full buckets are split
+ * while the conversion runs.
+ * </p>
+ * <p>
+ * Identities that share a hash cannot be told apart by any number of bits, so buckets are not split beyond a
+ * small depth, and may hold more files than the bucket size from there on.
+ * </p>
+ * <p>
+ * All changes to files must be made while holding the monitor given to the constructor, and scans must hold
+ * the {@link #scanLock()} to see every file exactly once. A state is written over the file that holds it, wherever
+ * that is, so that only splits and conversions move files, and they hold the write lock of the scan lock.
+ * </p>
+ */
+abstract class BucketLayout
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( BucketLayout.class );
+
+    private static final String JSON = ".json";
+    private static final int MAX_DEPTH = 16;
+    private static final int CHUNK_SIZE = 500;
+    private static final int DRAIN_ATTEMPTS = 5;
+
+    private final File dataDirectory;
+    private final int legacySlices;
+    private final int bucketSize;
+    private final Object monitor;
+    private final ReadWriteLock scanLock = new ReentrantReadWriteLock();
+
+    private ExecutorService executor;
+
+    // Replaced as a whole on every change, so that lookups need no locking
+    private volatile Bucket[] table;
+    private volatile boolean legacy;
+
+    BucketLayout( File dataDirectory, int legacySlices, int bucketSize, Object monitor )
+    {
+        this.dataDirectory = dataDirectory;
+        this.legacySlices = legacySlices;
+        this.bucketSize = bucketSize;
+        this.monitor = monitor;
+    }
+
+    /**
+     * Called when a file has been moved to another bucket. This is called while holding the monitor.
+     *
+     * @param from the old location of the file
+     * @param to   the new location of the file
+     */
+    protected abstract void moved( File from, File to );
+
+    /**
+     * Called when a file of an identity has been deleted. This is called while holding the monitor.
+     *
+     * @param file the deleted file
+     */
+    protected abstract void removed( File file );
+
+    /**
+     * Read the bucket directories, and resume the splits and conversions that were interrupted.
+     *
+     * @param executor the executor that splits buckets in the background
+     *
+     * @throws IOException if the bucket directories are not consistent
+     */
+    @SuppressWarnings( { "ResultOfMethodCallIgnored" } )
+    public void open( ExecutorService executor )
+        throws IOException
+    {
+        this.executor = executor;
+
+        Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+        final List<File> legacyDirectories = new ArrayList<File>();
+        File[] directories = dataDirectory.listFiles( new FileFilter()
+        {
+            public boolean accept( File file )
+            {
+                return file.isDirectory();
+            }
+        } );
+        for( File directory : directories )
+        {
+            String name = directory.getName();
+            if( name.startsWith( "d" ) && name.indexOf( '-' ) > 0 )
+            {
+                int depth = Integer.parseInt( name.substring( 1, name.indexOf( '-' ) ) );
+                int bits = Integer.parseInt( name.substring( name.indexOf( '-' ) + 1 ) );
+                buckets.put( name, new Bucket( depth, bits, directory ) );
+            }
+            else
+            {
+                legacyDirectories.add( directory );
+            }
+        }
+
+        // A bucket that has children was being split
+        final List<Bucket> splitting = new ArrayList<Bucket>();
+        for( Bucket bucket : new ArrayList<Bucket>( buckets.values() ) )
+        {
+            Bucket zero = buckets.get( name( bucket.depth + 1, bucket.bits ) );
+            Bucket one = buckets.get( name( bucket.depth + 1, bucket.bits | ( 1 << bucket.depth ) ) );
+            if( zero != null || one != null )
+            {
+                if( zero == null )
+                {
+                    zero = newBucket( bucket.depth + 1, bucket.bits );
+                    buckets.put( name( zero.depth, zero.bits ), zero );
+                }
+                if( one == null )
+                {
+                    one = newBucket( bucket.depth + 1, bucket.bits | ( 1 << bucket.depth ) );
+                    buckets.put( name( one.depth, one.bits ), one );
+                }
+                zero.parent = bucket;
+                one.parent = bucket;
+                splitting.add( bucket );
+            }
+        }
+        if( buckets.isEmpty() )
+        {
+            // Enough buckets for the slice files, so that a conversion does not drain them all into one bucket
+            long files = 0;
+            for( File directory : legacyDirectories )
+            {
+                String[] names = directory.list();
+                files += names == null ? 0 : names.length;
+            }
+            int initialDepth = 0;
+            while( initialDepth < MAX_DEPTH && files > ( (long) bucketSize << initialDepth ) )
+            {
+                initialDepth++;
+            }
+            for( int bits = 0; bits < 1 << initialDepth; bits++ )
+            {
+                buckets.put( name( initialDepth, bits ), newBucket( initialDepth, bits ) );
+            }
+        }
+
+        int depth = 0;
+        for( Bucket bucket : buckets.values() )
+        {
+            if( !splitting.contains( bucket ) )
+            {
+                depth = Math.max( depth, bucket.depth );
+            }
+        }
+        Bucket[] newTable = new Bucket[ 1 << depth ];
+        for( Bucket bucket : buckets.values() )
+        {
+            if( splitting.contains( bucket ) )
+            {
+                continue;
+            }
+            String[] files = bucket.directory.list();
+            bucket.count = files == null ? 0 : files.length;
+            for( int i = bucket.bits; i < newTable.length; i += 1 << bucket.depth )
+            {
+                newTable[ i ] = bucket;
+            }
+        }
+        for( Bucket bucket : newTable )
+        {
+            if( bucket == null )
+            {
+                throw new IOException( "Bucket directories in " + dataDirectory + " do not cover all identities" );
+            }
+        }
+        table = newTable;
+        legacy = !legacyDirectories.isEmpty();
+
+        // Also splits the buckets that were full when the store was passivated
+        executor.submit( new Runnable()
+        {
+            public void run()
+            {
+                for( Bucket bucket : splitting )
+                {
+                    try
+                    {
+                        finishSplit( bucket );
+                    }
+                    catch( IOException e )
+                    {
+                        LOGGER.warn( "Could not finish split of bucket " + bucket.directory, e );
+                    }
+                }
+                convert( legacyDirectories, 0, true );
+            }
+        } );
+    }
+
+    /**
+     * Drain the slice directories one at a time, each in its own task, so that the splits of the buckets they fill
+     * run in between. A slice directory that cannot be drained is left for the next activation.
+     */
+    private void convert( final List<File> legacyDirectories, final int index, final boolean complete )
+    {
+        if( index == legacyDirectories.size() )
+        {
+            if( complete && !legacyDirectories.isEmpty() )
+            {
+                legacy = false;
+                LOGGER.info( "Converted slices in {} to buckets", dataDirectory );
+            }
+            synchronized( monitor )
+            {
+                for( Bucket bucket : buckets() )
+                {
+                    splitIfFull( bucket );
+                }
+            }
+            return;
+        }
+        try
+        {
+            executor.submit( new Runnable()
+            {
+                public void run()
+                {
+                    File directory = legacyDirectories.get( index );
+                    boolean drained = true;
+                    try
+                    {
+                        drain( directory );
+                    }
+                    catch( IOException e )
+                    {
+                        LOGGER.warn( "Could not move entity files in " + directory + " to their buckets", e );
+                        drained = false;
+                    }
+                    convert( legacyDirectories, index + 1, complete && drained );
+                }
+            } );
+        }
+        catch( RejectedExecutionException e )
+        {
+            // The store is being passivated, the conversion is resumed on the next activation
+        }
+    }
+
+    /**
+     * @return the lock that keeps files from being moved while held
+     */
+    public Lock scanLock()
+    {
+        return scanLock.readLock();
+    }
+
+    /**
+     * @return all directories that contain entity files
+     */
+    public File[] directories()
+    {
+        Set<File> directories = new LinkedHashSet<File>();
+        for( Bucket bucket : buckets() )
+        {
+            directories.add( bucket.directory );
+            Bucket parent = bucket.parent;
+            if( parent != null )
+            {
+                directories.add( parent.directory );
+            }
+        }
+        if( legacy )
+        {
+            File[] slices = dataDirectory.listFiles( new FileFilter()
+            {
+                public boolean accept( File file )
+                {
+                    return file.isDirectory() && !file.getName().startsWith( "d" );
+                }
+            } );
+            for( File slice : slices )
+            {
+                directories.add( slice );
+            }
+        }
+        return directories.toArray( new File[ directories.size() ] );
+    }
+
+    /**
+     * @param identity the entity identity
+     *
+     * @return the file where the state of an identity ends up once it is moved to its bucket
+     */
+    private File primary( String identity )
+    {
+        return new File( bucket( identity ).directory, identity + JSON );
+    }
+
+    /**
+     * A state is written to the file returned while holding the monitor, since files are not moved meanwhile.
+     *
+     * @param identity the entity identity
+     *
+     * @return the file that holds the state of an identity, or the file where it would be written if there is none
+     */
+    public File locate( String identity )
+    {
+        Bucket bucket = bucket( identity );
+        File file = new File( bucket.directory, identity + JSON );
+        if( file.exists() )
+        {
+            return file;
+        }
+        for( File fallback : fallbacks( bucket, identity ) )
+        {
+            if( fallback.exists() )
+            {
+                return fallback;
+            }
+        }
+        // It may have been moved to the primary location meanwhile, the caller checks again
+        return file;
+    }
+
+    /**
+     * Called when the state of an identity has been written to the file returned by {@link #locate(String)}. This
+     * must be called while holding the monitor.
+     *
+     * @param identity the entity identity
+     * @param created  true if there was no file for the identity before, so that it was written to its primary file
+     */
+    public void stored( String identity, boolean created )
+    {
+        if( created )
+        {
+            Bucket bucket = bucket( identity );
+            bucket.count++;
+            splitIfFull( bucket );
+        }
+    }
+
+    /**
+     * Delete all files of an identity. This must be called while holding the monitor.
+     *
+     * @param identity the entity identity
+     */
+    @SuppressWarnings( { "ResultOfMethodCallIgnored" } )
+    public void delete( String identity )
+    {
+        Bucket bucket = bucket( identity );
+        File file = new File( bucket.directory, identity + JSON );
+        if( file.delete() )
+        {
+            bucket.count--;
+            removed( file );
+        }
+        for( File fallback : fallbacks( bucket, identity ) )
+        {
+            if( fallback.delete() )
+            {
+                removed( fallback );
+            }
+        }
+    }
+
+    private List<File> fallbacks( Bucket bucket, String identity )
+    {
+        List<File> fallbacks = new ArrayList<File>( 2 );
+        Bucket parent = bucket.parent;
+        if( parent != null )
+        {
+            fallbacks.add( new File( parent.directory, identity + JSON ) );
+        }
+        if( legacy )
+        {
+            File slice = new File( dataDirectory, "" + ( Math.abs( identity.hashCode() ) % legacySlices ) );
+            fallbacks.add( new File( slice, identity + JSON ) );
+        }
+        return fallbacks;
+    }
+
+    private Bucket bucket( String identity )
+    {
+        Bucket[] current = table;
+        return current[ hash( identity ) & ( current.length - 1 ) ];
+    }
+
+    private Set<Bucket> buckets()
+    {
+        Set<Bucket> buckets = new LinkedHashSet<Bucket>();
+        for( Bucket bucket : table )
+        {
+            buckets.add( bucket );
+        }
+        return buckets;
+    }
+
+    // Must be called while holding the monitor, or from the executor
+    private void splitIfFull( final Bucket bucket )
+    {
+        if( bucket.count > bucketSize && bucket.depth < MAX_DEPTH && !bucket.splitScheduled )
+        {
+            bucket.splitScheduled = true;
+            try
+            {
+                executor.submit( new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            split( bucket );
+                        }
+                        catch( IOException e )
+                        {
+                            LOGGER.warn( "Could not split bucket " + bucket.directory, e );
+                        }
+                    }
+                } );
+            }
+            catch( RejectedExecutionException e )
+            {
+                // The store is being passivated
+                bucket.splitScheduled = false;
+            }
+        }
+    }
+
+    private void split( Bucket bucket )
+        throws IOException
+    {
+        synchronized( monitor )
+        {
+            if( bucket.parent != null )
+            {
+                // Retry once the split that created this bucket is done
+                bucket.splitScheduled = false;
+                return;
+            }
+            Bucket zero = newBucket( bucket.depth + 1, bucket.bits );
+            Bucket one = newBucket( bucket.depth + 1, bucket.bits | ( 1 << bucket.depth ) );
+            zero.parent = bucket;
+            one.parent = bucket;
+
+            Bucket[] current = table;
+            Bucket[] newTable = new Bucket[ bucket.depth == depthOf( current ) ? current.length * 2 : current.length ];
+            for( int i = 0; i < newTable.length; i++ )
+            {
+                Bucket entry = current[ i & ( current.length - 1 ) ];
+                if( entry == bucket )
+                {
+                    entry = ( i & ( 1 << bucket.depth ) ) == 0 ? zero : one;
+                }
+                newTable[ i ] = entry;
+            }
+            table = newTable;
+        }
+        LOGGER.debug( "Splitting bucket {} with {} files", bucket.directory, bucket.count );
+        finishSplit( bucket );
+    }
+
+    private void finishSplit( Bucket bucket )
+        throws IOException
+    {
+        drain( bucket.directory );
+        synchronized( monitor )
+        {
+            Bucket[] current = table;
+            Bucket[] newTable = new Bucket[ current.length ];
+            for( int i = 0; i < current.length; i++ )
+            {
+                if( current[ i ].parent == bucket )
+                {
+                    current[ i ].parent = null;
+                }
+                newTable[ i ] = current[ i ];
+            }
+            table = newTable;
+        }
+        synchronized( monitor )
+        {
+            for( Bucket child : buckets() )
+            {
+                splitIfFull( child );
+            }
+        }
+    }
+
+    /**
+     * Move all entity files in a directory to their primary location, and delete the directory once the moves are
+     * on disk. Files that cannot be moved are retried a few times, and then the directory is given up.
+     */
+    @SuppressWarnings( { "ResultOfMethodCallIgnored" } )
+    private void drain( File directory )
+        throws IOException
+    {
+        Set<File> targets = new LinkedHashSet<File>();
+        String[] names = directory.list();
+        int attempts = 0;
+        while( names != null && names.length > 0 )
+        {
+            if( ++attempts > DRAIN_ATTEMPTS )
+            {
+                throw new IOException( "Could not move " + names.length + " files out of " + directory
+                                       + ", such as " + names[ 0 ] );
+            }
+            for( int start = 0; start < names.length; start += CHUNK_SIZE )
+            {
+                scanLock.writeLock().lock();
+                try
+                {
+                    synchronized( monitor )
+                    {
+                        for( int i = start; i < Math.min( start + CHUNK_SIZE, names.length ); i++ )
+                        {
+                            File from = new File( directory, names[ i ] );
+                            if( !names[ i ].endsWith( JSON ) )
+                            {
+                                // Temporary file of an interrupted write
+                                from.delete();
+                                continue;
+                            }
+                            String identity = names[ i ].substring( 0, names[ i ].length() - JSON.length() );
+                            File to = primary( identity );
+                            if( to.exists() )
+                            {
+                                // Already written to its new location
+                                from.delete();
+                            }
+                            else if( from.renameTo( to ) )
+                            {
+                                Bucket bucket = bucket( identity );
+                                bucket.count++;
+                                targets.add( to.getParentFile() );
+                                moved( from, to );
+                                splitIfFull( bucket );
+                            }
+                        }
+                    }
+                }
+                finally
+                {
+                    scanLock.writeLock().unlock();
+                }
+            }
+            names = directory.list();
+        }
+
+        // Otherwise a crash could keep the deletion of the directory and lose the moves
+        for( File target : targets )
+        {
+            DirectorySync.force( target );
+        }
+        DirectorySync.force( dataDirectory );
+
+        scanLock.writeLock().lock();
+        try
+        {
+            synchronized( monitor )
+            {
+                if( !directory.delete() )
+                {
+                    throw new IOException( "Could not delete drained directory " + directory );
+                }
+            }
+        }
+        finally
+        {
+            scanLock.writeLock().unlock();
+        }
+    }
+
+    @SuppressWarnings( { "ResultOfMethodCallIgnored" } )
+    private Bucket newBucket( int depth, int bits )
+    {
+        File directory = new File( dataDirectory, name( depth, bits ) );
+        directory.mkdirs();
+        return new Bucket( depth, bits, directory );
+    }
+
+    private static int depthOf( Bucket[] table )
+    {
+        return Integer.numberOfTrailingZeros( table.length );
+    }
+
+    private static String name( int depth, int bits )
+    {
+        return "d" + depth + "-" + bits;
+    }
+
+    private static int hash( String identity )
+    {
+        // Spread the bits of the String hash, since the table is indexed by the lowest bits
+        int h = identity.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static class Bucket
+    {
+        private final int depth;
+        private final int bits;
+        private final File directory;
+
+        // Guarded by the monitor
+        private int count;
+        private boolean splitScheduled;
+
+        // Set while this bucket is being split off from its parent
+        private volatile Bucket parent;
+
+        private Bucket( int depth, int bits, File directory )
+        {
+            this.depth = depth;
+            this.bits = bits;
+            this.directory = directory;
+        }
+    }
+}
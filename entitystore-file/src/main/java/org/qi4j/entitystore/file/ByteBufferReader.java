@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reader that decodes UTF-8 straight from a ByteBuffer into the buffer of the caller, without building a String
+ * of the whole content first. The ByteBuffer may be a region of a memory mapped file.
+ */
+class ByteBufferReader
+    extends Reader
+{
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private final ByteBuffer bytes;
+    private final CharsetDecoder decoder;
+
+    // Holds a surrogate pair that did not fit in the buffer of the caller
+    private final CharBuffer pending = CharBuffer.allocate( 2 );
+
+    private boolean endOfInput;
+    private boolean flushed;
+
+    ByteBufferReader( ByteBuffer bytes )
+    {
+        this.bytes = bytes;
+        decoder = UTF8.newDecoder()
+            .onMalformedInput( CodingErrorAction.REPLACE )
+            .onUnmappableCharacter( CodingErrorAction.REPLACE );
+        pending.flip();
+    }
+
+    @Override
+    public int read( char[] buffer, int offset, int length )
+        throws IOException
+    {
+        if( length == 0 )
+        {
+            return 0;
+        }
+
+        int read = 0;
+        while( pending.hasRemaining() && read < length )
+        {
+            buffer[ offset + read++ ] = pending.get();
+        }
+        if( read < length )
+        {
+            CharBuffer out = CharBuffer.wrap( buffer, offset + read, length - read );
+            decode( out );
+            read = out.position() - offset;
+        }
+        if( read == 0 && !flushed )
+        {
+            // Only room for one char, but the next character is a surrogate pair
+            pending.clear();
+            decode( pending );
+            pending.flip();
+            if( pending.hasRemaining() )
+            {
+                buffer[ offset ] = pending.get();
+                read = 1;
+            }
+        }
+        return read == 0 ? -1 : read;
+    }
+
+    @Override
+    public boolean ready()
+    {
+        return pending.hasRemaining() || !flushed;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+
+    private void decode( CharBuffer out )
+        throws IOException
+    {
+        if( !endOfInput )
+        {
+            CoderResult result = decoder.decode( bytes, out, true );
+            if( result.isError() )
+            {
+                result.throwException();
+            }
+            if( result.isUnderflow() )
+            {
+                endOfInput = true;
+            }
+        }
+        if( endOfInput && !flushed && decoder.flush( out ).isUnderflow() )
+        {
+            flushed = true;
+        }
+    }
+}
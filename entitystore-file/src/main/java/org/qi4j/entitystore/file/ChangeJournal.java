@@ -0,0 +1,355 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Journal of the identities changed by each batch, for incremental backups.
+ * <p>
+ * Each batch gets the next change sequence number, and is appended to the active journal file as the sequence
+ * number, the identities, and a checksum. When the active file grows too large a new one is started, named after
+ * the first sequence number in it, so that old files can be skipped and discarded as a whole.
+ * </p>
+ * <p>
+ * Only the identities are journaled, an incremental backup reads the current state of each identity. Appends are
+ * not forced to disk by the journal itself, that is up to the caller.
+ * </p>
+ */
+class ChangeJournal
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( ChangeJournal.class );
+
+    private static final String SUFFIX = ".journal";
+    private static final long MAX_FILE_SIZE = 16 * 1024 * 1024;
+
+    // Sequence number, identity count and checksum
+    private static final int BATCH_OVERHEAD = 8 + 4 + 8;
+
+    private final File directory;
+
+    // Guarded by this
+    private long sequence;
+    private File activeFile;
+    private RandomAccessFile active;
+
+    // Set when a journal file was created since the directory was last forced
+    private boolean directoryChanged;
+
+    ChangeJournal( File directory )
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Open the journal, and truncate a batch that was not completely written.
+     *
+     * @throws IOException if the journal could not be opened
+     */
+    @SuppressWarnings( { "ResultOfMethodCallIgnored" } )
+    public synchronized void open()
+        throws IOException
+    {
+        if( !directory.exists() )
+        {
+            directory.mkdirs();
+        }
+        File[] files = journals();
+        if( files.length == 0 )
+        {
+            start( 1 );
+            return;
+        }
+
+        activeFile = files[ files.length - 1 ];
+        sequence = firstSequenceOf( activeFile ) - 1;
+        long length = activeFile.length();
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( activeFile ) ) );
+        long valid = 0;
+        try
+        {
+            Batch batch;
+            while( ( batch = readBatch( in, length - valid ) ) != null && batch.sequence == sequence + 1 )
+            {
+                sequence = batch.sequence;
+                valid += batch.size;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        active = new RandomAccessFile( activeFile, "rw" );
+        if( active.length() > valid )
+        {
+            LOGGER.warn( "Truncating incomplete change journal {} at {}", activeFile, valid );
+            active.setLength( valid );
+        }
+        active.seek( valid );
+    }
+
+    /**
+     * Append a batch to the journal.
+     *
+     * @param identities the identities changed by the batch
+     *
+     * @return the change sequence number of the batch
+     *
+     * @throws IOException if the batch could not be appended
+     */
+    public synchronized long append( Collection<String> identities )
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 * ( identities.size() + 1 ) );
+        DataOutputStream out = new DataOutputStream( bytes );
+        out.writeLong( sequence + 1 );
+        out.writeInt( identities.size() );
+        for( String identity : identities )
+        {
+            out.writeUTF( identity );
+        }
+        CRC32 crc = new CRC32();
+        crc.update( bytes.toByteArray() );
+        out.writeLong( crc.getValue() );
+        out.flush();
+
+        active.write( bytes.toByteArray() );
+        sequence++;
+
+        if( active.length() >= MAX_FILE_SIZE )
+        {
+            active.getFD().sync();
+            active.close();
+            start( sequence + 1 );
+        }
+        return sequence;
+    }
+
+    /**
+     * Force the appended batches to disk.
+     *
+     * @throws IOException if the journal could not be forced
+     */
+    public synchronized void force()
+        throws IOException
+    {
+        active.getFD().sync();
+        if( directoryChanged )
+        {
+            DirectorySync.force( directory );
+            directoryChanged = false;
+        }
+    }
+
+    public synchronized long sequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * Find the identities changed after a given sequence number.
+     *
+     * @param after the sequence number to start after
+     *
+     * @return the identities, in the order they were last changed
+     *
+     * @throws IOException if the journal could not be read, or was discarded after the given sequence number
+     */
+    public Collection<String> changedSince( long after )
+        throws IOException
+    {
+        File[] files;
+        long last;
+        synchronized( this )
+        {
+            files = journals();
+            last = sequence;
+        }
+        if( files.length > 0 && firstSequenceOf( files[ 0 ] ) > after + 1 )
+        {
+            throw new IOException( "Changes after " + after + " have been discarded" );
+        }
+
+        Set<String> identities = new LinkedHashSet<String>();
+        for( int i = 0; i < files.length; i++ )
+        {
+            if( i + 1 < files.length && firstSequenceOf( files[ i + 1 ] ) <= after + 1 )
+            {
+                // Every batch in this file is older
+                continue;
+            }
+            // Batches up to the last one were written before the length is taken
+            long remaining = files[ i ].length();
+            DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( files[ i ] ) ) );
+            try
+            {
+                Batch batch;
+                while( ( batch = readBatch( in, remaining ) ) != null && batch.sequence <= last )
+                {
+                    remaining -= batch.size;
+                    if( batch.sequence > after )
+                    {
+                        for( String identity : batch.identities )
+                        {
+                            // Move to the end, so that the order is that of the last change
+                            identities.remove( identity );
+                            identities.add( identity );
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        return identities;
+    }
+
+    /**
+     * Delete the journal files that only contain batches up to the given sequence number.
+     *
+     * @param upTo the last sequence number that is no longer needed
+     */
+    public synchronized void discard( long upTo )
+    {
+        File[] files = journals();
+        for( int i = 0; i + 1 < files.length; i++ )
+        {
+            if( firstSequenceOf( files[ i + 1 ] ) > upTo + 1 )
+            {
+                break;
+            }
+            if( !files[ i ].delete() )
+            {
+                LOGGER.warn( "Could not delete change journal {}", files[ i ] );
+            }
+        }
+    }
+
+    public synchronized void close()
+        throws IOException
+    {
+        active.getFD().sync();
+        active.close();
+    }
+
+    private void start( long firstSequence )
+        throws IOException
+    {
+        activeFile = new File( directory, String.format( "%016d", firstSequence ) + SUFFIX );
+        active = new RandomAccessFile( activeFile, "rw" );
+        active.seek( active.length() );
+        directoryChanged = true;
+    }
+
+    private File[] journals()
+    {
+        File[] files = directory.listFiles( new FilenameFilter()
+        {
+            public boolean accept( File dir, String name )
+            {
+                return name.endsWith( SUFFIX );
+            }
+        } );
+        if( files == null )
+        {
+            return new File[ 0 ];
+        }
+        Arrays.sort( files );
+        return files;
+    }
+
+    /**
+     * @param in        the journal, positioned at the start of a batch
+     * @param remaining the number of bytes left in the journal
+     *
+     * @return the batch, or null if it is incomplete or corrupt
+     */
+    private static Batch readBatch( DataInputStream in, long remaining )
+        throws IOException
+    {
+        try
+        {
+            long sequence = in.readLong();
+            int count = in.readInt();
+            // Each identity takes at least its two length bytes, so a count the rest of the file cannot hold is garbage
+            if( count < 0 || count > ( remaining - BATCH_OVERHEAD ) / 2 )
+            {
+                return null;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 * ( Math.min( count, 1024 ) + 1 ) );
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.writeLong( sequence );
+            out.writeInt( count );
+            String[] identities = new String[ count ];
+            for( int i = 0; i < count; i++ )
+            {
+                identities[ i ] = in.readUTF();
+                out.writeUTF( identities[ i ] );
+            }
+            out.flush();
+            CRC32 crc = new CRC32();
+            crc.update( bytes.toByteArray() );
+            if( in.readLong() != crc.getValue() )
+            {
+                return null;
+            }
+            return new Batch( sequence, Arrays.asList( identities ), bytes.size() + 8 );
+        }
+        catch( EOFException e )
+        {
+            return null;
+        }
+    }
+
+    private static long firstSequenceOf( File file )
+    {
+        String name = file.getName();
+        return Long.parseLong( name.substring( 0, name.length() - SUFFIX.length() ) );
+    }
+
+    private static class Batch
+    {
+        private final long sequence;
+        private final Collection<String> identities;
+        private final long size;
+
+        private Batch( long sequence, Collection<String> identities, long size )
+        {
+            this.sequence = sequence;
+            this.identities = identities;
+            this.size = size;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.qi4j.entitystore.file;
 
 import org.qi4j.api.common.Optional;
+import org.qi4j.api.common.UseDefaults;
 import org.qi4j.api.configuration.ConfigurationComposite;
 import org.qi4j.api.property.Property;
 import org.qi4j.library.constraints.annotation.Range;
@@ -49,4 +50,140 @@ public interface FileEntityStoreConfiguration
      */
     @Optional @Range(min=1, max=10000)
     Property<Integer> slices();
+
+    /** Defines how the entity states are laid out on disk.
+     * <p>
+     * With {@link Layout#SLICES} (the default) every entity is kept in its own JSON file in one of the slice
+     * directories. With {@link Layout#SEGMENTS} the entity states are appended to a small number of segment files,
+     * and an index of them is kept in memory and rebuilt from the segments on activation. Old states in the
+     * segments are reclaimed by a background compaction.
+     * </p>
+     * <p>
+     * With {@link Layout#BUCKETS} every entity is kept in its own JSON file, like with SLICES, but the number of
+     * directories grows with the number of entities. A bucket directory is split in two in the background when it
+     * holds more than {@link #bucketSize()} files, while the store stays available.
+     * </p>
+     * <p>
+     * Switching an existing store from SLICES to SEGMENTS converts the slice files to segments on the next
+     * activation. Switching from SLICES to BUCKETS moves the slice files to the buckets in the background, while
+     * the store stays available. There is no conversion in the other direction, use backup and restore for that.
+     * </p>
+     * @return the layout of the file entity store.
+     */
+    @Optional
+    Property<Layout> layout();
+
+    /** Defines the size in megabytes at which a new segment is started, if the SEGMENTS layout is used.
+     * <p>
+     * Default is 64 megabytes.
+     * </p>
+     * @return the maximum size of a segment in megabytes.
+     */
+    @Optional @Range(min=1, max=1024)
+    Property<Integer> segmentSize();
+
+    /** Defines the percentage of old states a segment must contain before it is compacted, if the SEGMENTS
+     * layout is used.
+     * <p>
+     * Default is 50 percent.
+     * </p>
+     * @return the percentage of old states that triggers compaction of a segment.
+     */
+    @Optional @Range(min=1, max=100)
+    Property<Integer> compactionThreshold();
+
+    /** Defines how many files a bucket directory may hold before it is split, if the BUCKETS layout is used.
+     * <p>
+     * Default is 10,000 files.
+     * </p>
+     * @return the number of files above which a bucket directory is split.
+     */
+    @Optional @Range(min=100, max=1000000)
+    Property<Integer> bucketSize();
+
+    /** Defines the size in megabytes of the cache of serialized entity states.
+     * <p>
+     * The cache keeps the most recently read entity states in memory, so that they can be read again without
+     * going to disk. By default there is no cache. This setting is ignored for the SEGMENTS layout, which reads
+     * the entity states from memory mapped segments.
+     * </p>
+     * @return the size of the entity state cache in megabytes.
+     */
+    @Optional @Range(min=0, max=65536)
+    Property<Integer> cacheSize();
+
+    /** Defines how many threads read the slice directories when all entity states are scanned, for instance
+     * by a reindex or a backup.
+     * <p>
+     * With the default of 1 thread the slices are read one file at a time by the thread doing the scan. With more
+     * threads, each slice directory is read by one of the threads, which helps on disks and file systems that
+     * handle many concurrent reads well. This setting is ignored for the SEGMENTS layout.
+     * </p>
+     * @return the number of threads scanning the slice directories.
+     */
+    @Optional @Range(min=1, max=256)
+    Property<Integer> scanThreads();
+
+    /** Defines how many entity states are handed over at a time from the scanning threads.
+     * <p>
+     * Default is 100 entity states.
+     * </p>
+     * @return the number of entity states in a scan batch.
+     */
+    @Optional @Range(min=1, max=100000)
+    Property<Integer> scanBatchSize();
+
+    /** Defines whether a scan of all entity states returns them in a stable order.
+     * <p>
+     * By default the entity states are delivered in the order they are read, which is fastest when several
+     * scan threads are used. If set, slices and the files in them are delivered in name order.
+     * </p>
+     * @return true if scans should deliver the entity states in a stable order.
+     */
+    @UseDefaults
+    Property<Boolean> scanOrdered();
+
+    /** Defines whether entity states are compressed on disk.
+     * <p>
+     * The states are compressed with a dictionary that is trained from a sample of the existing entities when the
+     * store is activated, and is kept in the data directory. Until the store holds enough entities to train from,
+     * the states are compressed without a dictionary. Uncompressed states are read as before, so compression can
+     * be turned on and off for an existing store. This setting is ignored for the SEGMENTS layout.
+     * </p>
+     * @return true if entity states should be compressed.
+     */
+    @UseDefaults
+    Property<Boolean> compressed();
+
+    /** Defines the maximum time in milliseconds that committed changes may wait before they are written to disk.
+     * <p>
+     * If set, changes are acknowledged as soon as they are staged in memory, and are written to disk by a background
+     * writer, which only writes the last state of an entity that was changed several times. Staged changes are lost
+     * if the process dies before they are written. By default every change is written to disk before it is
+     * acknowledged.
+     * </p>
+     * @return the maximum write-behind lag in milliseconds, or null to write changes before acknowledging them.
+     */
+    @Optional @Range(min=1, max=3600000)
+    Property<Integer> writeBehindLag();
+
+    /** Defines the maximum size in megabytes of the changes staged by write-behind.
+     * <p>
+     * When the staged changes reach this size, they are written to disk at once, and further commits wait until
+     * there is room again. The default is 16 megabytes.
+     * </p>
+     * @return the maximum size of the staged changes in megabytes.
+     */
+    @Optional @Range(min=1, max=65536)
+    Property<Integer> writeBehindSize();
+
+    enum Layout
+    {
+        /** One file per entity, spread over the slice directories */
+        SLICES,
+        /** Append-only segment files with an in-memory index */
+        SEGMENTS,
+        /** One file per entity, in bucket directories that are split as they grow */
+        BUCKETS
+    }
 }
@@ -16,6 +16,9 @@
  */
 package org.qi4j.entitystore.file;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.qi4j.api.common.Optional;
 import org.qi4j.api.configuration.Configuration;
 import org.qi4j.api.entity.EntityDescriptor;
@@ -29,24 +32,99 @@ import org.qi4j.spi.entitystore.BackupRestore;
 import org.qi4j.spi.entitystore.EntityNotFoundException;
 import org.qi4j.spi.entitystore.EntityStoreException;
 import org.qi4j.spi.entitystore.helpers.MapEntityStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 /**
- * JDBM implementation of MapEntityStore
+ * File system implementation of MapEntityStore.
+ * <p>
+ * Depending on the configured {@link FileEntityStoreConfiguration.Layout}, entity states are either stored as one
+ * file per entity in a number of slice directories, or appended to segment files managed by a {@link SegmentLog}.
+ * </p>
  */
 public class FileEntityStoreMixin
-    implements Activatable, MapEntityStore, BackupRestore
+    implements Activatable, MapEntityStore, BackupRestore, IncrementalBackupRestore, FileEntityStoreStatistics
 {
     @Optional
     @Service
     FileConfiguration fileConfiguration;
 
+    private static final Logger LOGGER = LoggerFactory.getLogger( FileEntityStoreMixin.class );
+
+    // Converting slices to segments keeps at most this many bytes of states in memory at once
+    private static final long CONVERSION_BATCH_BYTES = 16 * 1024 * 1024;
+
+    // The end of the item that stands for a removed entity in an incremental backup
+    private static final String REMOVED = ",\"removed\":true}";
+
+    // Skips the temporary files of interrupted writes
+    private static final FilenameFilter JSON_FILES = new FilenameFilter()
+    {
+        public boolean accept( File dir, String name )
+        {
+            return name.endsWith( ".json" );
+        }
+    };
+
     @This
     private Configuration<FileEntityStoreConfiguration> config;
 
     private File dataDirectory;
     private int slices;
+    // Write-behind flushes and checkpoints, which commits wait for
+    private ScheduledThreadPoolExecutor executor;
+    // Bucket splits, compactions and dictionary training, which may run for a long time
+    private ScheduledThreadPoolExecutor maintenanceExecutor;
+
+    // Null if the slices are scanned by the calling thread
+    private ExecutorService scanExecutor;
+    private int scanBatchSize;
+
+    // Only used with the SLICES layout, files replaced and directories changed since the last checkpoint are guarded
+    // by manifests
+    private ManifestLog manifests;
+    private final Set<File> dirtyFiles = new HashSet<File>();
+    private final Set<File> dirtyDirectories = new HashSet<File>();
+
+    // Identities changed by each batch, for incremental backups
+    private ChangeJournal journal;
+
+    // Null unless changes are written behind
+    private WriteBehindBuffer writeBehind;
+
+    // Null if there is no cache
+    private StateCache cache;
+
+    // Reads compressed states even if new states are not compressed
+    private StateCompression compression;
+    private boolean compress;
+
+    // Not used with the SEGMENTS layout, which keeps all identities in memory anyway
+    private IdentityFilter identities;
+
+    // Only used with the BUCKETS layout
+    private BucketLayout bucketLayout;
+
+    // Only used with the SEGMENTS layout
+    private SegmentLog segmentLog;
 
     @SuppressWarnings( { "ResultOfMethodCallIgnored" } )
     public void activate()
@@ -91,6 +169,314 @@ public class FileEntityStoreMixin
             }
             writeIntegerToFile( slicesFile, slices );
         }
+
+        compression = new StateCompression( dataDirectory );
+        compress = config.configuration().compressed().get()
+                   && config.configuration().layout().get() != FileEntityStoreConfiguration.Layout.SEGMENTS;
+
+        executor = new ScheduledThreadPoolExecutor( 1 );
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy( false );
+        maintenanceExecutor = new ScheduledThreadPoolExecutor( 1 );
+        maintenanceExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy( false );
+
+        FileEntityStoreConfiguration.Layout layout = config.configuration().layout().get();
+        manifests = new ManifestLog( new File( rootDirectory, "manifests" ) );
+        journal = new ChangeJournal( new File( rootDirectory, "journal" ) );
+        journal.open();
+        if( layout == FileEntityStoreConfiguration.Layout.BUCKETS )
+        {
+            Integer bucketSize = config.configuration().bucketSize().get();
+            bucketLayout = new BucketLayout( dataDirectory, slices, bucketSize == null ? 10000 : bucketSize, manifests )
+            {
+                @Override
+                protected void moved( File from, File to )
+                {
+                    if( dirtyFiles.remove( from ) )
+                    {
+                        dirtyFiles.add( to );
+                        dirtyDirectories.add( to.getParentFile() );
+                    }
+                }
+
+                @Override
+                protected void removed( File file )
+                {
+                    dirtyDirectories.add( file.getParentFile() );
+                }
+            };
+            bucketLayout.open( maintenanceExecutor );
+        }
+
+        // Finish the batches that were interrupted by a crash
+        List<Map<String, byte[]>> interrupted = manifests.recover();
+        if( layout == FileEntityStoreConfiguration.Layout.SEGMENTS )
+        {
+            // Written before the store was switched to segments, and newer than the converted files
+            openSegments( rootDirectory );
+            for( Map<String, byte[]> batch : interrupted )
+            {
+                write( batch );
+            }
+            manifests.release( manifests.sequence() );
+        }
+        else
+        {
+            identities = openIdentities();
+            for( Map<String, byte[]> batch : interrupted )
+            {
+                apply( batch );
+            }
+            checkpoint();
+        }
+
+        Integer scanThreads = config.configuration().scanThreads().get();
+        if( scanThreads != null && scanThreads > 1 )
+        {
+            scanExecutor = Executors.newFixedThreadPool( scanThreads );
+        }
+        Integer batchSize = config.configuration().scanBatchSize().get();
+        scanBatchSize = batchSize == null ? 100 : batchSize;
+
+        if( compress )
+        {
+            if( !compression.isTrained() )
+            {
+                trainCompression();
+            }
+            // Trains the first dictionary of a store that started empty, and follows the states as they change
+            maintenanceExecutor.scheduleWithFixedDelay( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        if( compression.trainIfDue() )
+                        {
+                            LOGGER.info( "Trained compression dictionary from the states written in {}", dataDirectory );
+                        }
+                    }
+                    catch( IOException e )
+                    {
+                        LOGGER.warn( "Could not train compression dictionary", e );
+                    }
+                }
+            }, 60, 60, TimeUnit.SECONDS );
+        }
+
+        Integer cacheSize = config.configuration().cacheSize().get();
+        if( cacheSize != null && cacheSize > 0 && layout != FileEntityStoreConfiguration.Layout.SEGMENTS )
+        {
+            cache = new StateCache( cacheSize * 1024L * 1024L );
+        }
+
+        Integer writeBehindLag = config.configuration().writeBehindLag().get();
+        if( writeBehindLag != null )
+        {
+            Integer writeBehindSize = config.configuration().writeBehindSize().get();
+            long maxBytes = ( writeBehindSize == null ? 16 : writeBehindSize ) * 1024L * 1024L;
+            writeBehind = new WriteBehindBuffer( maxBytes, executor )
+            {
+                @Override
+                protected void write( Map<String, byte[]> batch )
+                    throws IOException
+                {
+                    FileEntityStoreMixin.this.write( batch );
+                }
+            };
+            // A change waits at most one delay for the next flush, and one delay for a flush that is running
+            long delay = Math.max( 1, writeBehindLag / 2 );
+            executor.scheduleWithFixedDelay( writeBehind.flushTask(), delay, delay, TimeUnit.MILLISECONDS );
+        }
+
+        if( layout == FileEntityStoreConfiguration.Layout.SEGMENTS )
+        {
+            scheduleCompaction();
+        }
+        else
+        {
+            executor.scheduleWithFixedDelay( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        checkpoint();
+                    }
+                    catch( IOException e )
+                    {
+                        LOGGER.warn( "Could not checkpoint manifests", e );
+                    }
+                }
+            }, 5, 5, TimeUnit.SECONDS );
+        }
+    }
+
+    /**
+     * Load the identity filter that was saved on passivation, or build it from the entity files if the store was
+     * not passivated cleanly. The saved filter is deleted once loaded, since it is not kept current on disk.
+     */
+    @SuppressWarnings( { "ResultOfMethodCallIgnored" } )
+    private IdentityFilter openIdentities()
+        throws IOException
+    {
+        File identitiesFile = new File( dataDirectory, "identities" );
+        if( identitiesFile.exists() )
+        {
+            IdentityFilter filter = IdentityFilter.load( identitiesFile );
+            identitiesFile.delete();
+            if( filter != null )
+            {
+                return filter;
+            }
+            LOGGER.warn( "Discarding corrupt identity filter {}", identitiesFile );
+        }
+
+        List<String> names = new ArrayList<String>();
+        Lock lock = bucketLayout == null ? null : bucketLayout.scanLock();
+        if( lock != null )
+        {
+            lock.lock();
+        }
+        try
+        {
+            File[] directories = bucketLayout == null ? dataDirectory.listFiles() : bucketLayout.directories();
+            for( File directory : directories )
+            {
+                String[] files = directory.list( JSON_FILES );
+                if( files != null )
+                {
+                    names.addAll( Arrays.asList( files ) );
+                }
+            }
+        }
+        finally
+        {
+            if( lock != null )
+            {
+                lock.unlock();
+            }
+        }
+
+        IdentityFilter filter = new IdentityFilter( 2 * names.size() );
+        for( String name : names )
+        {
+            filter.add( name.substring( 0, name.length() - ".json".length() ) );
+        }
+        return filter;
+    }
+
+    /**
+     * Train the compression dictionary from a sample of the existing entity states, if there are enough of them.
+     */
+    private void trainCompression()
+        throws IOException
+    {
+        List<byte[]> samples = new ArrayList<byte[]>();
+        StateScan scan = scan();
+        try
+        {
+            List<byte[]> batch;
+            while( samples.size() < 1000 && ( batch = scan.next() ) != null )
+            {
+                samples.addAll( batch );
+            }
+        }
+        finally
+        {
+            scan.close();
+        }
+        if( samples.size() >= StateCompression.MIN_SAMPLES )
+        {
+            compression.train( samples );
+            LOGGER.info( "Trained compression dictionary from {} entities", samples.size() );
+        }
+    }
+
+    private void openSegments( File rootDirectory )
+        throws IOException
+    {
+        Integer segmentSize = config.configuration().segmentSize().get();
+        if( segmentSize == null )
+        {
+            segmentSize = 64;
+        }
+        segmentLog = new SegmentLog( new File( rootDirectory, "segments" ), segmentSize * 1024L * 1024L );
+        segmentLog.open();
+        convertSlicesToSegments();
+    }
+
+    private void scheduleCompaction()
+    {
+        Integer threshold = config.configuration().compactionThreshold().get();
+        final int compactionThreshold = threshold == null ? 50 : threshold;
+        maintenanceExecutor.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    segmentLog.compact( compactionThreshold );
+                }
+                catch( IOException e )
+                {
+                    LOGGER.warn( "Could not compact segments", e );
+                }
+            }
+        }, 60, 60, TimeUnit.SECONDS );
+    }
+
+    /**
+     * Move the entities of a store that was previously using the SLICES layout into the segments, a bounded batch
+     * at a time.
+     */
+    private void convertSlicesToSegments()
+        throws IOException
+    {
+        int converted = 0;
+        Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+        List<File> batchFiles = new ArrayList<File>();
+        long batchBytes = 0;
+        for( File sliceDirectory : dataDirectory.listFiles() )
+        {
+            String[] names = sliceDirectory.list( JSON_FILES );
+            if( names == null )
+            {
+                continue;
+            }
+            for( String name : names )
+            {
+                File file = new File( sliceDirectory, name );
+                byte[] state = fetch( file );
+                batch.put( name.substring( 0, name.length() - ".json".length() ), state );
+                batchFiles.add( file );
+                batchBytes += state.length;
+                if( batch.size() >= 1000 || batchBytes >= CONVERSION_BATCH_BYTES )
+                {
+                    converted += moveToSegments( batch, batchFiles );
+                    batchBytes = 0;
+                }
+            }
+        }
+        converted += moveToSegments( batch, batchFiles );
+        if( converted > 0 )
+        {
+            LOGGER.info( "Converted {} entities from slices to segments", converted );
+        }
+    }
+
+    @SuppressWarnings( { "ResultOfMethodCallIgnored" } )
+    private int moveToSegments( Map<String, byte[]> batch, List<File> batchFiles )
+        throws IOException
+    {
+        int moved = batch.size();
+        segmentLog.write( batch );
+        for( File file : batchFiles )
+        {
+            file.delete();
+        }
+        batch.clear();
+        batchFiles.clear();
+        return moved;
     }
 
     private void writeIntegerToFile( File file, int value )
@@ -145,6 +531,55 @@ public class FileEntityStoreMixin
     public void passivate()
         throws Exception
     {
+        if( writeBehind != null )
+        {
+            // Before the executor is shut down, so that committers waiting for room are not left without flushes
+            writeBehind.flush();
+        }
+        // Splits and conversions that have not started are resumed on the next activation
+        maintenanceExecutor.shutdown();
+        maintenanceExecutor.getQueue().clear();
+        executor.shutdown();
+        awaitTermination( executor, "flushes and checkpoints" );
+        awaitTermination( maintenanceExecutor, "bucket splits and compactions" );
+        if( writeBehind != null )
+        {
+            // Changes staged meanwhile, stage() flushes by itself once the executor is gone
+            writeBehind.flush();
+            writeBehind = null;
+        }
+        if( scanExecutor != null )
+        {
+            scanExecutor.shutdownNow();
+            scanExecutor = null;
+        }
+        if( segmentLog != null )
+        {
+            segmentLog.close();
+            segmentLog = null;
+        }
+        else
+        {
+            checkpoint();
+            identities.save( new File( dataDirectory, "identities" ) );
+            identities = null;
+        }
+        journal.close();
+        journal = null;
+        bucketLayout = null;
+        cache = null;
+    }
+
+    /**
+     * Wait for the running tasks of an executor that was shut down, since they change the files of the store.
+     */
+    private static void awaitTermination( ExecutorService executor, String tasks )
+        throws InterruptedException
+    {
+        while( !executor.awaitTermination( 10, TimeUnit.SECONDS ) )
+        {
+            LOGGER.warn( "Still waiting for {} to finish", tasks );
+        }
     }
 
     public Reader get( EntityReference entityReference )
@@ -152,15 +587,75 @@ public class FileEntityStoreMixin
     {
         try
         {
-            File f = getDataFile( entityReference );
+            if( writeBehind != null )
+            {
+                byte[] stagedState = writeBehind.lookup( entityReference.identity() );
+                if( stagedState == WriteBehindBuffer.REMOVED )
+                {
+                    throw new EntityNotFoundException( entityReference );
+                }
+                if( stagedState != null )
+                {
+                    return new ByteBufferReader( ByteBuffer.wrap( stagedState ) );
+                }
+            }
 
-            if( !f.exists() )
+            byte[] serializedState;
+            if( segmentLog != null )
             {
-                throw new EntityNotFoundException( entityReference );
+                ByteBuffer mappedState = segmentLog.buffer( entityReference.identity() );
+                if( mappedState == null )
+                {
+                    throw new EntityNotFoundException( entityReference );
+                }
+                return new ByteBufferReader( mappedState );
             }
+            else
+            {
+                String identity = entityReference.identity();
+                if( !identities.mightContain( identity ) )
+                {
+                    throw new EntityNotFoundException( entityReference );
+                }
+
+                long stamp = 0;
+                if( cache != null )
+                {
+                    byte[] cachedState = cache.get( identity );
+                    if( cachedState != null )
+                    {
+                        return new ByteBufferReader( ByteBuffer.wrap( cachedState ) );
+                    }
+                    stamp = cache.stamp( identity );
+                }
+
+                File f = getDataFile( entityReference );
+
+                if( !f.exists() )
+                {
+                    throw new EntityNotFoundException( entityReference );
+                }
+
+                try
+                {
+                    serializedState = fetch( f );
+                }
+                catch( FileNotFoundException e )
+                {
+                    if( bucketLayout == null )
+                    {
+                        throw e;
+                    }
+                    // Moved to another bucket since it was located
+                    serializedState = fetch( getDataFile( entityReference ) );
+                }
 
-            byte[] serializedState = fetch( f );
-            return new StringReader( new String( serializedState, "UTF-8" ) );
+                if( cache != null )
+                {
+                    cache.put( identity, serializedState, stamp );
+                }
+            }
+            return new ByteBufferReader( ByteBuffer.wrap( serializedState ) );
         }
         catch( IOException e )
         {
@@ -168,22 +663,11 @@ public class FileEntityStoreMixin
         }
     }
 
-    private byte[] readDataFromStream( BufferedInputStream in, byte[] buf )
-        throws IOException
-    {
-        int size = in.read( buf );
-        ByteArrayOutputStream baos = new ByteArrayOutputStream( 2000 );
-        while( size > 0 )
-        {
-            baos.write( buf, 0, size );
-            size = in.read( buf );
-        }
-        return baos.toByteArray();
-    }
-
     public void applyChanges( MapChanges changes )
         throws IOException
     {
+        // New states by identity, null for removed entities
+        final Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
         try
         {
             changes.visitMap( new MapChanger()
@@ -198,9 +682,7 @@ public class FileEntityStoreMixin
                             throws IOException
                         {
                             super.close();
-                            byte[] stateArray = this.toString().getBytes( "UTF-8" );
-                            File dataFile = getDataFile( ref );
-                            store( dataFile, stateArray );
+                            batch.put( ref.identity(), this.toString().getBytes( "UTF-8" ) );
                         }
                     };
                 }
@@ -215,23 +697,21 @@ public class FileEntityStoreMixin
                             throws IOException
                         {
                             super.close();
-                            byte[] stateArray = this.toString().getBytes( "UTF-8" );
-                            File dataFile = getDataFile( ref );
-                            store( dataFile, stateArray );
+                            batch.put( ref.identity(), this.toString().getBytes( "UTF-8" ) );
                         }
                     };
                 }
 
-                @SuppressWarnings( { "ResultOfMethodCallIgnored" } )
                 public void removeEntity( EntityReference ref, EntityDescriptor descriptor )
                     throws EntityNotFoundException
                 {
-                    File dataFile = getDataFile( ref );
-                    if( !dataFile.exists() )
+                    String identity = ref.identity();
+                    boolean exists = batch.containsKey( identity ) ? batch.get( identity ) != null : contains( identity );
+                    if( !exists )
                     {
                         throw new EntityNotFoundException( ref );
                     }
-                    dataFile.delete();
+                    batch.put( identity, null );
                 }
             } );
         }
@@ -248,9 +728,249 @@ public class FileEntityStoreMixin
                 throw exception;
             }
         }
+
+        commit( batch );
     }
 
-    public Input<String, IOException> backup()
+    /**
+     * Write a batch of changes, or stage it if changes are written behind.
+     */
+    private void commit( Map<String, byte[]> batch )
+        throws IOException
+    {
+        if( writeBehind != null )
+        {
+            writeBehind.stage( batch );
+        }
+        else
+        {
+            write( batch );
+        }
+    }
+
+    /**
+     * @return the current state of an entity, or null if there is no such entity
+     */
+    private byte[] readState( String identity )
+        throws IOException
+    {
+        if( segmentLog != null )
+        {
+            return segmentLog.read( identity );
+        }
+        if( !identities.mightContain( identity ) )
+        {
+            return null;
+        }
+        try
+        {
+            return fetch( getDataFile( identity ) );
+        }
+        catch( FileNotFoundException e )
+        {
+            if( bucketLayout == null )
+            {
+                return null;
+            }
+        }
+        try
+        {
+            // Moved to another bucket since it was located
+            return fetch( getDataFile( identity ) );
+        }
+        catch( FileNotFoundException e )
+        {
+            return null;
+        }
+    }
+
+    private boolean contains( String identity )
+    {
+        if( writeBehind != null )
+        {
+            byte[] stagedState = writeBehind.lookup( identity );
+            if( stagedState != null )
+            {
+                return stagedState != WriteBehindBuffer.REMOVED;
+            }
+        }
+        if( segmentLog != null )
+        {
+            return segmentLog.contains( identity );
+        }
+        return identities.mightContain( identity ) && getDataFile( identity ).exists();
+    }
+
+    private void write( Map<String, byte[]> batch )
+        throws IOException
+    {
+        if( batch.isEmpty() )
+        {
+            return;
+        }
+        if( segmentLog != null )
+        {
+            // Journal first, so that a change is never on disk without being in the journal
+            synchronized( journal )
+            {
+                journal.append( batch.keySet() );
+                journal.force();
+                segmentLog.write( batch );
+            }
+            return;
+        }
+        // Group commit: the manifest makes the whole batch durable with a single sync
+        synchronized( manifests )
+        {
+            long number = manifests.write( batch );
+            try
+            {
+                apply( batch );
+            }
+            catch( IOException e )
+            {
+                // Some files of the batch may not have been replaced, so the manifest is replayed on activation
+                manifests.retain( number );
+                throw e;
+            }
+        }
+    }
+
+    @SuppressWarnings( { "ResultOfMethodCallIgnored" } )
+    private void apply( Map<String, byte[]> batch )
+        throws IOException
+    {
+        synchronized( manifests )
+        {
+            // Forced by the next checkpoint, before the manifest is released
+            journal.append( batch.keySet() );
+
+            for( Map.Entry<String, byte[]> entry : batch.entrySet() )
+            {
+                String identity = entry.getKey();
+                if( entry.getValue() == null )
+                {
+                    if( bucketLayout != null )
+                    {
+                        bucketLayout.delete( identity );
+                    }
+                    else
+                    {
+                        File dataFile = getDataFile( identity );
+                        if( dataFile.delete() )
+                        {
+                            dirtyDirectories.add( dataFile.getParentFile() );
+                        }
+                    }
+                }
+                else if( bucketLayout != null )
+                {
+                    identities.add( identity );
+                    File dataFile = bucketLayout.locate( identity );
+                    boolean created = !dataFile.exists();
+                    store( dataFile, entry.getValue() );
+                    dirtyFiles.add( dataFile );
+                    dirtyDirectories.add( dataFile.getParentFile() );
+                    bucketLayout.stored( identity, created );
+                }
+                else
+                {
+                    identities.add( identity );
+                    File dataFile = getDataFile( identity );
+                    store( dataFile, entry.getValue() );
+                    dirtyFiles.add( dataFile );
+                    dirtyDirectories.add( dataFile.getParentFile() );
+                }
+
+                // After the file has been replaced, so that a concurrent read cannot cache the old state
+                if( cache != null )
+                {
+                    cache.invalidate( identity );
+                }
+            }
+        }
+    }
+
+    /**
+     * Force the files replaced since the last checkpoint to disk, then the directories whose entries were renamed
+     * or deleted, and delete the manifests that guarded them.
+     */
+    private void checkpoint()
+        throws IOException
+    {
+        Set<File> files;
+        Set<File> directories;
+        long sequence;
+        synchronized( manifests )
+        {
+            files = new HashSet<File>( dirtyFiles );
+            dirtyFiles.clear();
+            directories = new HashSet<File>( dirtyDirectories );
+            dirtyDirectories.clear();
+            sequence = manifests.sequence();
+        }
+        try
+        {
+            for( File file : files )
+            {
+                if( file.exists() )
+                {
+                    RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" );
+                    try
+                    {
+                        randomAccessFile.getFD().sync();
+                    }
+                    finally
+                    {
+                        randomAccessFile.close();
+                    }
+                }
+            }
+            if( !directories.isEmpty() )
+            {
+                for( File directory : directories )
+                {
+                    if( directory.exists() )
+                    {
+                        DirectorySync.force( directory );
+                    }
+                }
+                // Slice directories are created on first use
+                DirectorySync.force( dataDirectory );
+            }
+        }
+        catch( IOException e )
+        {
+            synchronized( manifests )
+            {
+                dirtyFiles.addAll( files );
+                dirtyDirectories.addAll( directories );
+            }
+            throw e;
+        }
+        journal.force();
+        manifests.release( sequence );
+    }
+
+    /**
+     * Write the staged changes, so that they are seen by scans and incremental backups.
+     */
+    private void flushStaged()
+        throws IOException
+    {
+        WriteBehindBuffer buffer = writeBehind;
+        if( buffer != null )
+        {
+            buffer.flush();
+        }
+    }
+
+    public long changeSequence()
+    {
+        return journal.sequence();
+    }
+
+    public Input<String, IOException> backupChanges( final long sequence )
     {
         return new Input<String, IOException>()
         {
@@ -258,17 +978,23 @@ public class FileEntityStoreMixin
             public <ReceiverThrowableType extends Throwable> void transferTo( Output<? super String, ReceiverThrowableType> output )
                 throws IOException, ReceiverThrowableType
             {
+                flushStaged();
+                final Collection<String> changed = journal.changedSince( sequence );
                 output.receiveFrom( new Sender<String, IOException>()
                 {
                     @Override
                     public <ReceiverThrowableType extends Throwable> void sendTo( Receiver<? super String, ReceiverThrowableType> receiver )
                         throws ReceiverThrowableType, IOException
                     {
-                        for( File sliceDirectory : dataDirectory.listFiles() )
+                        for( String identity : changed )
                         {
-                            for( File file : sliceDirectory.listFiles() )
+                            byte[] stateArray = readState( identity );
+                            if( stateArray == null )
+                            {
+                                receiver.receive( removedItem( identity ) );
+                            }
+                            else
                             {
-                                byte[] stateArray = fetch( file );
                                 receiver.receive( new String( stateArray, "UTF-8" ) );
                             }
                         }
@@ -278,6 +1004,105 @@ public class FileEntityStoreMixin
         };
     }
 
+    public Output<String, IOException> restoreChanges()
+    {
+        return new Output<String, IOException>()
+        {
+            @Override
+            public <SenderThrowableType extends Throwable> void receiveFrom( Sender<? extends String, SenderThrowableType> sender )
+                throws IOException, SenderThrowableType
+            {
+                final Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+                sender.sendTo( new Receiver<String, IOException>()
+                {
+                    public void receive( String item )
+                        throws IOException
+                    {
+                        String id = identityOf( item );
+                        boolean removed = item.equals( removedItem( id ) );
+
+                        // Keep the order of the increment, a later change of the same entity replaces the earlier
+                        batch.remove( id );
+                        batch.put( id, removed ? null : item.getBytes( "UTF-8" ) );
+
+                        // Write one batch
+                        if( batch.size() >= 1000 )
+                        {
+                            commit( batch );
+                            batch.clear();
+                        }
+                    }
+                } );
+                commit( batch );
+            }
+        };
+    }
+
+    public void discardChanges( long sequence )
+    {
+        journal.discard( sequence );
+    }
+
+    public long cacheHits()
+    {
+        StateCache current = cache;
+        return current == null ? 0 : current.hits();
+    }
+
+    public long cacheMisses()
+    {
+        StateCache current = cache;
+        return current == null ? 0 : current.misses();
+    }
+
+    public long cacheEvictions()
+    {
+        StateCache current = cache;
+        return current == null ? 0 : current.evictions();
+    }
+
+    public long cacheResidentBytes()
+    {
+        StateCache current = cache;
+        return current == null ? 0 : current.residentBytes();
+    }
+
+    public Input<String, IOException> backup()
+    {
+        return new Input<String, IOException>()
+        {
+            @Override
+            public <ReceiverThrowableType extends Throwable> void transferTo( Output<? super String, ReceiverThrowableType> output )
+                throws IOException, ReceiverThrowableType
+            {
+                output.receiveFrom( new Sender<String, IOException>()
+                {
+                    @Override
+                    public <ReceiverThrowableType extends Throwable> void sendTo( Receiver<? super String, ReceiverThrowableType> receiver )
+                        throws ReceiverThrowableType, IOException
+                    {
+                        StateScan scan = scan();
+                        try
+                        {
+                            List<byte[]> batch;
+                            while( ( batch = scan.next() ) != null )
+                            {
+                                for( byte[] stateArray : batch )
+                                {
+                                    receiver.receive( new String( stateArray, "UTF-8" ) );
+                                }
+                            }
+                        }
+                        finally
+                        {
+                            scan.close();
+                        }
+                    }
+                } );
+            }
+        };
+    }
+
     public Output<String, IOException> restore()
     {
         return new Output<String, IOException>()
@@ -286,17 +1111,23 @@ public class FileEntityStoreMixin
             public <SenderThrowableType extends Throwable> void receiveFrom( Sender<? extends String, SenderThrowableType> sender )
                 throws IOException, SenderThrowableType
             {
+                final Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
                 sender.sendTo( new Receiver<String, IOException>()
                 {
                     public void receive( String item )
                         throws IOException
                     {
-                        String id = item.substring( "{\"identity\":\"".length() );
-                        id = id.substring( 0, id.indexOf( '"' ) );
-                        byte[] stateArray = item.getBytes( "UTF-8" );
-                        store( getDataFile( id ), stateArray );
+                        batch.put( identityOf( item ), item.getBytes( "UTF-8" ) );
+
+                        // Write one batch
+                        if( batch.size() >= 1000 )
+                        {
+                            commit( batch );
+                            batch.clear();
+                        }
                     }
                 } );
+                commit( batch );
             }
         };
     }
@@ -315,22 +1146,137 @@ public class FileEntityStoreMixin
                     public <ReceiverThrowableType extends Throwable> void sendTo( Receiver<? super Reader, ReceiverThrowableType> receiver )
                         throws ReceiverThrowableType, IOException
                     {
-                        for( File sliceDirectory : dataDirectory.listFiles() )
+                        StateScan scan = scan();
+                        try
                         {
-                            for( File file : sliceDirectory.listFiles() )
+                            List<byte[]> batch;
+                            while( ( batch = scan.next() ) != null )
                             {
-                                byte[] serializedState = fetch( file );
-                                receiver.receive( new StringReader( new String( serializedState, "UTF-8" ) ) );
+                                for( byte[] serializedState : batch )
+                                {
+                                    receiver.receive( new ByteBufferReader( ByteBuffer.wrap( serializedState ) ) );
+                                }
                             }
                         }
+                        finally
+                        {
+                            scan.close();
+                        }
                     }
                 } );
             }
         };
     }
 
+    /**
+     * @return the identity of a backup item, which is always the first key
+     */
+    private static String identityOf( String item )
+        throws IOException
+    {
+        try
+        {
+            JSONTokener tokener = new JSONTokener( item );
+            tokener.nextClean();
+            tokener.nextValue();
+            tokener.nextClean();
+            return (String) tokener.nextValue();
+        }
+        catch( JSONException e )
+        {
+            IOException exception = new IOException( "Backup item without identity" );
+            exception.initCause( e );
+            throw exception;
+        }
+    }
+
+    /**
+     * @return the item that stands for a removed entity in an incremental backup
+     */
+    private static String removedItem( String identity )
+    {
+        return "{\"identity\":" + JSONObject.quote( identity ) + REMOVED;
+    }
+
+    private StateScan scan()
+        throws IOException
+    {
+        flushStaged();
+
+        if( segmentLog != null )
+        {
+            final Iterator<String> identities = segmentLog.identities().iterator();
+            return new StateScan()
+            {
+                public List<byte[]> next()
+                    throws IOException
+                {
+                    List<byte[]> batch = new ArrayList<byte[]>( scanBatchSize );
+                    while( batch.size() < scanBatchSize && identities.hasNext() )
+                    {
+                        byte[] state = segmentLog.read( identities.next() );
+                        if( state != null )
+                        {
+                            batch.add( state );
+                        }
+                    }
+                    return batch.isEmpty() ? null : batch;
+                }
+
+                public void close()
+                {
+                }
+            };
+        }
+
+        Boolean ordered = config.configuration().scanOrdered().get();
+        if( bucketLayout != null )
+        {
+            // Keep files from being moved between buckets until the scan is closed
+            final Lock scanLock = bucketLayout.scanLock();
+            scanLock.lock();
+            return new SliceScan( bucketLayout.directories(), JSON_FILES, scanBatchSize, ordered, scanExecutor )
+            {
+                @Override
+                protected byte[] read( File file )
+                    throws IOException
+                {
+                    return fetch( file );
+                }
+
+                @Override
+                public void close()
+                {
+                    super.close();
+                    scanLock.unlock();
+                }
+            };
+        }
+
+        File[] sliceDirectories = dataDirectory.listFiles( new FileFilter()
+        {
+            public boolean accept( File file )
+            {
+                return file.isDirectory();
+            }
+        } );
+        return new SliceScan( sliceDirectories, JSON_FILES, scanBatchSize, ordered, scanExecutor )
+        {
+            @Override
+            protected byte[] read( File file )
+                throws IOException
+            {
+                return fetch( file );
+            }
+        };
+    }
+
     private File getDataFile( String identity )
     {
+        if( bucketLayout != null )
+        {
+            return bucketLayout.locate( identity );
+        }
         String slice = "" + ( Math.abs( identity.hashCode() ) % slices );
         File sliceDirectory = new File( dataDirectory, slice );
         if( !sliceDirectory.exists() )
@@ -348,38 +1294,30 @@ public class FileEntityStoreMixin
     private byte[] fetch( File dataFile )
         throws IOException
     {
-        byte[] buf = new byte[ 1000 ];
-        BufferedInputStream in = null;
-        FileInputStream fis = null;
+        FileInputStream fis = new FileInputStream( dataFile );
         try
         {
-            fis = new FileInputStream( dataFile );
-            in = new BufferedInputStream( fis );
-            return readDataFromStream( in, buf );
+            // Read straight into an array of the right size
+            FileChannel channel = fis.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate( (int) channel.size() );
+            while( buffer.hasRemaining() && channel.read( buffer ) >= 0 )
+            {
+            }
+            if( buffer.hasRemaining() )
+            {
+                throw new EOFException( "Unexpected end of " + dataFile );
+            }
+            return compression.decompress( buffer.array() );
         }
         finally
         {
-            if( in != null )
+            try
             {
-                try
-                {
-                    in.close();
-                }
-                catch( IOException e )
-                {
-                    // Ignore ??
-                }
+                fis.close();
             }
-            if( fis != null )
+            catch( IOException e )
             {
-                try
-                {
-                    fis.close();
-                }
-                catch( IOException e )
-                {
-                    // ignore??
-                }
+                // ignore??
             }
         }
     }
@@ -387,47 +1325,35 @@ public class FileEntityStoreMixin
     private void store( File dataFile, byte[] stateArray )
         throws IOException
     {
-        FileOutputStream fos = null;
-        BufferedOutputStream bos = null;
-
-        // Write to tempfile first
-        File tempFile = File.createTempFile( "data",".json" );
-        tempFile.deleteOnExit();
+        if( compress )
+        {
+            stateArray = compression.compress( stateArray );
+        }
 
+        // Write to tempfile first, in the same directory so that it can be renamed
+        File tempFile = new File( dataFile.getParentFile(), dataFile.getName() + ".tmp" );
+        FileOutputStream fos = new FileOutputStream( tempFile, false );
         try
         {
-            fos = new FileOutputStream( tempFile, false );
-            bos = new BufferedOutputStream( fos );
-            bos.write( stateArray );
+            fos.write( stateArray );
         }
         finally
         {
-            if( bos != null )
+            fos.close();
+        }
+
+        // Replace old file. Renaming over it is atomic where the platform allows it, so that readers see either the
+        // old or the new state. Elsewhere the old file is deleted first
+        if( !tempFile.renameTo( dataFile ) )
+        {
+            if( dataFile.exists() && !dataFile.delete() )
             {
-                try
-                {
-                    bos.close();
-                }
-                catch( IOException e )
-                {
-                    // ignore??
-                }
+                throw new IOException( "Could not delete " + dataFile );
             }
-            if( fos != null )
+            if( !tempFile.renameTo( dataFile ) )
             {
-                try
-                {
-                    fos.close();
-                }
-                catch( IOException e )
-                {
-                    // ignore??
-                }
+                throw new IOException( "Could not rename " + tempFile + " to " + dataFile );
             }
         }
-
-        // Replace old file
-        dataFile.delete();
-        tempFile.renameTo( dataFile );
     }
 }
\ No newline at end of file
@@ -37,6 +37,8 @@ public interface FileEntityStoreService
             EntityStateVersions,
         StateStore,
             BackupRestore,
+            IncrementalBackupRestore,
+            FileEntityStoreStatistics,
             ServiceComposite,
             Activatable,
             LockingAbstractComposite,
@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+/**
+ * Statistics of the FileEntityStoreService.
+ */
+public interface FileEntityStoreStatistics
+{
+    /**
+     * @return the number of reads that were served from the state cache
+     */
+    long cacheHits();
+
+    /**
+     * @return the number of reads that had to go to disk, while the state cache was enabled
+     */
+    long cacheMisses();
+
+    /**
+     * @return the number of states dropped from the state cache to keep it within its size
+     */
+    long cacheEvictions();
+
+    /**
+     * @return the number of bytes of serialized states held by the state cache
+     */
+    long cacheResidentBytes();
+}
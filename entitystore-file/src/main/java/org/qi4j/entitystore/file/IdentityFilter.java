@@ -0,0 +1,262 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Bloom filter of the identities that have been stored, so that lookups of identities that were never stored
+ * can be answered without touching the disk.
+ * <p>
+ * Identities cannot be removed from the filter, so removed entities are still reported as possibly present, and
+ * are looked up on disk as before. When the filter fills up, another filter of four times the capacity is added,
+ * which keeps the rate of false positives bounded as the store grows.
+ * </p>
+ */
+class IdentityFilter
+{
+    private static final int MAGIC = 0x51346266;
+
+    // About 1% false positives with 10 bits per identity
+    private static final int BITS_PER_IDENTITY = 10;
+    private static final int HASHES = 7;
+
+    private volatile Filter[] filters;
+
+    IdentityFilter( int capacity )
+    {
+        filters = new Filter[]{ new Filter( Math.max( capacity, 16384 ) ) };
+    }
+
+    private IdentityFilter( Filter[] filters )
+    {
+        this.filters = filters;
+    }
+
+    public void add( String identity )
+    {
+        long hash = hash( identity );
+        Filter[] current = filters;
+        for( Filter filter : current )
+        {
+            if( filter.contains( hash ) )
+            {
+                return;
+            }
+        }
+        Filter last = current[ current.length - 1 ];
+        if( last.count.get() >= last.capacity )
+        {
+            last = grow( current );
+        }
+        last.add( hash );
+    }
+
+    public boolean mightContain( String identity )
+    {
+        long hash = hash( identity );
+        for( Filter filter : filters )
+        {
+            if( filter.contains( hash ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized Filter grow( Filter[] full )
+    {
+        Filter[] current = filters;
+        if( current == full )
+        {
+            Filter[] grown = new Filter[ current.length + 1 ];
+            System.arraycopy( current, 0, grown, 0, current.length );
+            grown[ current.length ] = new Filter( (int) Math.min( Integer.MAX_VALUE / BITS_PER_IDENTITY,
+                                                                  4L * full[ full.length - 1 ].capacity ) );
+            filters = grown;
+            current = grown;
+        }
+        return current[ current.length - 1 ];
+    }
+
+    /**
+     * Write the filter to a file.
+     *
+     * @param file the file to write to
+     *
+     * @throws IOException if the file could not be written
+     */
+    public void save( File file )
+        throws IOException
+    {
+        CheckedOutputStream checked = new CheckedOutputStream( new FileOutputStream( file ), new CRC32() );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( checked ) );
+        try
+        {
+            Filter[] current = filters;
+            out.writeInt( MAGIC );
+            out.writeInt( current.length );
+            for( Filter filter : current )
+            {
+                out.writeInt( filter.capacity );
+                out.writeInt( filter.count.get() );
+                for( int i = 0; i < filter.words.length(); i++ )
+                {
+                    out.writeLong( filter.words.get( i ) );
+                }
+            }
+            out.flush();
+            out.writeLong( checked.getChecksum().getValue() );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a filter written by {@link #save(File)}.
+     *
+     * @param file the file to read from
+     *
+     * @return the filter, or null if the file is not a complete filter
+     *
+     * @throws IOException if the file could not be read
+     */
+    public static IdentityFilter load( File file )
+        throws IOException
+    {
+        byte[] content = new byte[ (int) file.length() ];
+        DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+        try
+        {
+            in.readFully( content );
+        }
+        finally
+        {
+            in.close();
+        }
+        if( content.length < 16 )
+        {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update( content, 0, content.length - 8 );
+        DataInputStream data = new DataInputStream( new ByteArrayInputStream( content ) );
+        data.skipBytes( content.length - 8 );
+        if( data.readLong() != crc.getValue() )
+        {
+            return null;
+        }
+
+        data = new DataInputStream( new ByteArrayInputStream( content, 0, content.length - 8 ) );
+        if( data.readInt() != MAGIC )
+        {
+            return null;
+        }
+        Filter[] filters = new Filter[ data.readInt() ];
+        for( int i = 0; i < filters.length; i++ )
+        {
+            Filter filter = new Filter( data.readInt() );
+            filter.count.set( data.readInt() );
+            for( int j = 0; j < filter.words.length(); j++ )
+            {
+                filter.words.set( j, data.readLong() );
+            }
+            filters[ i ] = filter;
+        }
+        return new IdentityFilter( filters );
+    }
+
+    private static long hash( String identity )
+    {
+        // FNV-1a over the characters, followed by the finalizer of MurmurHash3 to spread the bits
+        long h = 0xcbf29ce484222325L;
+        for( int i = 0; i < identity.length(); i++ )
+        {
+            h ^= identity.charAt( i );
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static class Filter
+    {
+        private final int capacity;
+        private final long bits;
+        private final AtomicLongArray words;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private Filter( int capacity )
+        {
+            this.capacity = capacity;
+            this.words = new AtomicLongArray( (int) ( ( (long) capacity * BITS_PER_IDENTITY + 63 ) / 64 ) );
+            this.bits = words.length() * 64L;
+        }
+
+        private void add( long hash )
+        {
+            int h1 = (int) hash;
+            int h2 = (int) ( hash >>> 32 );
+            for( int i = 0; i < HASHES; i++ )
+            {
+                long bit = ( ( h1 + i * h2 ) & 0x7fffffffL ) % bits;
+                int word = (int) ( bit >>> 6 );
+                long mask = 1L << bit;
+                long value;
+                do
+                {
+                    value = words.get( word );
+                }
+                while( ( value & mask ) == 0 && !words.compareAndSet( word, value, value | mask ) );
+            }
+            count.incrementAndGet();
+        }
+
+        private boolean contains( long hash )
+        {
+            int h1 = (int) hash;
+            int h2 = (int) ( hash >>> 32 );
+            for( int i = 0; i < HASHES; i++ )
+            {
+                long bit = ( ( h1 + i * h2 ) & 0x7fffffffL ) % bits;
+                if( ( words.get( (int) ( bit >>> 6 ) ) & ( 1L << bit ) ) == 0 )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import org.qi4j.io.Input;
+import org.qi4j.io.Output;
+
+import java.io.IOException;
+
+/**
+ * Incremental backups, in addition to the full backups of BackupRestore.
+ * <p>
+ * The store keeps a journal of the identities changed by each commit, numbered by a change sequence. An
+ * incremental backup contains the current state of every entity changed after a given sequence number, and a
+ * removal item like <code>{"identity":"someid","removed":true}</code> for every entity that was removed since.
+ * </p>
+ * <p>
+ * To take a series of backups, get the {@link #changeSequence()} before each backup, and pass it to the next
+ * incremental backup. Changes made while a backup runs may be included in both backups, which is harmless since
+ * the increments are restored in the order they were taken.
+ * </p>
+ * <p>
+ * An incremental backup after a sequence whose changes have been discarded fails.
+ * </p>
+ */
+public interface IncrementalBackupRestore
+{
+    /**
+     * @return the sequence number of the last change in the journal
+     */
+    long changeSequence();
+
+    /**
+     * @param sequence the change sequence at the time of the previous backup
+     *
+     * @return the entities changed or removed after the given sequence
+     */
+    Input<String, IOException> backupChanges( long sequence );
+
+    /**
+     * @return an output that applies an incremental backup on top of the current entities
+     */
+    Output<String, IOException> restoreChanges();
+
+    /**
+     * Discard the journal up to the given sequence, once no incremental backup will be taken from before it.
+     *
+     * @param sequence the change sequence of the oldest backup that still needs increments
+     *
+     * @throws IOException if the journal could not be truncated
+     */
+    void discardChanges( long sequence )
+        throws IOException;
+}
@@ -0,0 +1,269 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead manifests for the SLICES layout.
+ * <p>
+ * Before the files of a batch of changes are replaced, the whole batch is written to one manifest file, which is
+ * forced to disk along with the directory entry that creates it. The manifests are kept until the replaced files
+ * and their directories have been forced to disk by a checkpoint, and the complete manifests that are left after a
+ * crash are replayed on activation. A manifest that was not completely written is discarded, together with the
+ * batch it contains.
+ * </p>
+ */
+class ManifestLog
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( ManifestLog.class );
+
+    private static final int MAGIC = 0x51346d66;
+    private static final String SUFFIX = ".manifest";
+
+    private final File directory;
+    private long sequence;
+    // The first manifest whose batch could not be applied, kept with the ones after it until the next activation
+    private long retained = Long.MAX_VALUE;
+
+    ManifestLog( File directory )
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Read the complete manifests left in the directory, and delete the incomplete ones.
+     *
+     * @return the batches of the complete manifests, in the order they were written
+     *
+     * @throws IOException if the manifests could not be read
+     */
+    @SuppressWarnings( { "ResultOfMethodCallIgnored" } )
+    public synchronized List<Map<String, byte[]>> recover()
+        throws IOException
+    {
+        if( !directory.exists() )
+        {
+            directory.mkdirs();
+        }
+        List<Map<String, byte[]>> batches = new ArrayList<Map<String, byte[]>>();
+        File[] files = manifests();
+        for( File file : files )
+        {
+            sequence = Math.max( sequence, sequenceOf( file ) );
+            Map<String, byte[]> batch = read( file );
+            if( batch == null )
+            {
+                LOGGER.warn( "Discarding incomplete manifest {}", file );
+                file.delete();
+            }
+            else
+            {
+                batches.add( batch );
+            }
+        }
+        return batches;
+    }
+
+    /**
+     * Write a batch of changes to a new manifest, and force it to disk.
+     *
+     * @param batch the new states by identity, where a null state removes the identity
+     *
+     * @return the sequence number of the manifest
+     *
+     * @throws IOException if the manifest could not be written
+     */
+    public synchronized long write( Map<String, byte[]> batch )
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( 1000 * ( batch.size() + 1 ) );
+        DataOutputStream out = new DataOutputStream( bytes );
+        out.writeInt( MAGIC );
+        out.writeInt( batch.size() );
+        for( Map.Entry<String, byte[]> entry : batch.entrySet() )
+        {
+            out.writeUTF( entry.getKey() );
+            byte[] state = entry.getValue();
+            if( state == null )
+            {
+                out.writeInt( -1 );
+            }
+            else
+            {
+                out.writeInt( state.length );
+                out.write( state );
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update( bytes.toByteArray() );
+        out.writeLong( crc.getValue() );
+        out.flush();
+
+        long number = ++sequence;
+        FileOutputStream fos = new FileOutputStream( new File( directory, String.format( "%016d", number ) + SUFFIX ) );
+        try
+        {
+            bytes.writeTo( fos );
+            fos.getFD().sync();
+        }
+        finally
+        {
+            fos.close();
+        }
+        DirectorySync.force( directory );
+        return number;
+    }
+
+    /**
+     * Delete the manifests up to and including the given sequence number, once the changes in them are on disk.
+     * The deletions are forced to disk, so that an older manifest cannot come back after a crash and be replayed
+     * over newer changes.
+     *
+     * @param number the sequence number of the last manifest to delete
+     *
+     * @throws IOException if the deletions could not be forced to disk
+     */
+    public synchronized void release( long number )
+        throws IOException
+    {
+        number = Math.min( number, retained - 1 );
+        boolean deleted = false;
+        for( File file : manifests() )
+        {
+            if( sequenceOf( file ) <= number )
+            {
+                if( file.delete() )
+                {
+                    deleted = true;
+                }
+                else
+                {
+                    LOGGER.warn( "Could not delete manifest {}", file );
+                }
+            }
+        }
+        if( deleted )
+        {
+            DirectorySync.force( directory );
+        }
+    }
+
+    /**
+     * Keep a manifest whose batch could not be completely applied, so that it is replayed on the next activation.
+     * The manifests after it are kept as well, since they must be replayed after it.
+     *
+     * @param number the sequence number of the manifest
+     */
+    public synchronized void retain( long number )
+    {
+        retained = Math.min( retained, number );
+    }
+
+    public synchronized long sequence()
+    {
+        return sequence;
+    }
+
+    private File[] manifests()
+    {
+        File[] files = directory.listFiles( new FilenameFilter()
+        {
+            public boolean accept( File dir, String name )
+            {
+                return name.endsWith( SUFFIX );
+            }
+        } );
+        if( files == null )
+        {
+            return new File[ 0 ];
+        }
+        Arrays.sort( files );
+        return files;
+    }
+
+    private Map<String, byte[]> read( File file )
+        throws IOException
+    {
+        byte[] content = new byte[ (int) file.length() ];
+        DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+        try
+        {
+            in.readFully( content );
+        }
+        finally
+        {
+            in.close();
+        }
+        if( content.length < 16 )
+        {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update( content, 0, content.length - 8 );
+        DataInputStream data = new DataInputStream( new ByteArrayInputStream( content ) );
+        data.skipBytes( content.length - 8 );
+        if( data.readLong() != crc.getValue() )
+        {
+            return null;
+        }
+
+        data = new DataInputStream( new ByteArrayInputStream( content, 0, content.length - 8 ) );
+        if( data.readInt() != MAGIC )
+        {
+            return null;
+        }
+        int count = data.readInt();
+        Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+        for( int i = 0; i < count; i++ )
+        {
+            String identity = data.readUTF();
+            int length = data.readInt();
+            byte[] state = null;
+            if( length >= 0 )
+            {
+                state = new byte[ length ];
+                data.readFully( state );
+            }
+            batch.put( identity, state );
+        }
+        return batch;
+    }
+
+    private static long sequenceOf( File file )
+    {
+        String name = file.getName();
+        return Long.parseLong( name.substring( 0, name.length() - SUFFIX.length() ) );
+    }
+}
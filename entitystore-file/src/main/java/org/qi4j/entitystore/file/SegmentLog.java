@@ -0,0 +1,720 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of entity states, split over a number of segment files.
+ * <p>
+ * Every batch of changes is appended to the active segment, followed by a commit record, and forced to disk
+ * once. The location of the latest state of each identity is kept in an in-memory index, which is rebuilt by
+ * replaying the segments on {@link #open()}. Records after the last commit record of the active segment are
+ * discarded on replay, so a batch is either completely visible or not at all. Sealed segments were complete when the
+ * next one was started, so a bad record in one of them fails the replay instead of discarding the batches after it.
+ * </p>
+ * <p>
+ * Updates and removals leave dead records behind in the older segments. {@link #compact(int)} copies the live
+ * records of sealed segments with too much dead data into the active segment, and then deletes them.
+ * </p>
+ */
+class SegmentLog
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( SegmentLog.class );
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte COMMIT = 3;
+
+    // type, identity length, state length, checksum
+    private static final int HEADER_SIZE = 1 + 4 + 4 + 4;
+
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+
+    private static final int COMPACTION_CHUNK_SIZE = 1024 * 1024;
+
+    private final File directory;
+    private final long maxSegmentSize;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Guarded by lock
+    private final Map<String, Location> index = new HashMap<String, Location>();
+    private final SortedMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment active;
+
+    SegmentLog( File directory, long maxSegmentSize )
+    {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    @SuppressWarnings( { "ResultOfMethodCallIgnored" } )
+    public void open()
+        throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if( !directory.exists() )
+            {
+                directory.mkdirs();
+            }
+            File[] files = directory.listFiles( new FilenameFilter()
+            {
+                public boolean accept( File dir, String name )
+                {
+                    return name.startsWith( PREFIX ) && name.endsWith( SUFFIX );
+                }
+            } );
+            for( File file : files )
+            {
+                Segment segment = new Segment( segmentNumber( file ), file );
+                segments.put( segment.number, segment );
+            }
+            try
+            {
+                for( Segment segment : segments.values() )
+                {
+                    replay( segment, segment.number == segments.lastKey() );
+                }
+            }
+            catch( IOException e )
+            {
+                close();
+                throw e;
+            }
+            if( segments.isEmpty() )
+            {
+                active = newSegment( 1 );
+            }
+            else
+            {
+                active = segments.get( segments.lastKey() );
+            }
+            LOGGER.debug( "Opened {} segments with {} entities in {}",
+                          new Object[]{ segments.size(), index.size(), directory } );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void close()
+        throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            for( Segment segment : segments.values() )
+            {
+                segment.close();
+            }
+            segments.clear();
+            index.clear();
+            active = null;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read the latest state of an identity.
+     *
+     * @param identity the entity identity
+     *
+     * @return the serialized state, or null if the identity is not in the log
+     *
+     * @throws IOException if the segment could not be read
+     */
+    public byte[] read( String identity )
+        throws IOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            Location location = index.get( identity );
+            if( location == null )
+            {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate( location.length );
+            readFully( segments.get( location.segment ).channel, buffer, location.offset );
+            return buffer.array();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the latest state of an identity as a region of the memory mapped segment, without copying it. A state in
+     * the active segment is read into a new buffer instead, since that segment is still growing and would have to be
+     * mapped again for almost every read of a recently written state.
+     *
+     * @param identity the entity identity
+     *
+     * @return a read-only buffer with the serialized state, or null if the identity is not in the log
+     *
+     * @throws IOException if the segment could not be mapped
+     */
+    public ByteBuffer buffer( String identity )
+        throws IOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            Location location = index.get( identity );
+            if( location == null )
+            {
+                return null;
+            }
+            Segment segment = segments.get( location.segment );
+            if( segment == active )
+            {
+                ByteBuffer buffer = ByteBuffer.allocate( location.length );
+                readFully( segment.channel, buffer, location.offset );
+                buffer.flip();
+                return buffer.asReadOnlyBuffer();
+            }
+            ByteBuffer buffer = segment.map().duplicate();
+            buffer.limit( (int) ( location.offset + location.length ) );
+            buffer.position( (int) location.offset );
+            return buffer.slice();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains( String identity )
+    {
+        lock.readLock().lock();
+        try
+        {
+            return index.containsKey( identity );
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a snapshot of all identities in the log, in the order they are stored on disk
+     */
+    public List<String> identities()
+    {
+        final Map<String, Location> snapshot;
+        lock.readLock().lock();
+        try
+        {
+            snapshot = new HashMap<String, Location>( index );
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+        List<String> identities = new ArrayList<String>( snapshot.keySet() );
+        Collections.sort( identities, new Comparator<String>()
+        {
+            public int compare( String first, String second )
+            {
+                return snapshot.get( first ).compareTo( snapshot.get( second ) );
+            }
+        } );
+        return identities;
+    }
+
+    /**
+     * Atomically append a batch of changes to the log.
+     *
+     * @param changes the new states by identity, where a null state removes the identity
+     *
+     * @throws IOException if the batch could not be written
+     */
+    public void write( Map<String, byte[]> changes )
+        throws IOException
+    {
+        if( changes.isEmpty() )
+        {
+            return;
+        }
+        lock.writeLock().lock();
+        try
+        {
+            append( changes );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copy the live records of sealed segments with at least the given percentage of dead data to the active
+     * segment, and delete the old segments. Only one compaction should run at a time.
+     *
+     * @param deadPercentage the percentage of dead data above which a segment is compacted
+     *
+     * @return the number of bytes reclaimed
+     *
+     * @throws IOException if the segments could not be compacted
+     */
+    public synchronized long compact( int deadPercentage )
+        throws IOException
+    {
+        List<Segment> candidates = new ArrayList<Segment>();
+        lock.readLock().lock();
+        try
+        {
+            for( Segment segment : segments.values() )
+            {
+                if( segment != active && segment.size > 0
+                    && ( segment.size - segment.liveBytes ) * 100 >= segment.size * deadPercentage )
+                {
+                    candidates.add( segment );
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        long reclaimed = 0;
+        for( Segment segment : candidates )
+        {
+            reclaimed += compact( segment );
+        }
+        if( reclaimed > 0 )
+        {
+            LOGGER.debug( "Compacted {} segments in {}, reclaimed {} bytes",
+                          new Object[]{ candidates.size(), directory, reclaimed } );
+        }
+        return reclaimed;
+    }
+
+    private long compact( Segment segment )
+        throws IOException
+    {
+        // Sealed segments are never written to again, so they can be scanned without holding the lock
+        Map<String, byte[]> states = new LinkedHashMap<String, byte[]>();
+        Map<String, Long> offsets = new HashMap<String, Long>();
+        int chunkSize = 0;
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        while( position + HEADER_SIZE <= segment.size )
+        {
+            header.clear();
+            readFully( segment.channel, header, position );
+            header.flip();
+            byte type = header.get();
+            int identityLength = header.getInt();
+            int stateLength = header.getInt();
+            header.getInt();
+            if( type != COMMIT )
+            {
+                ByteBuffer body = ByteBuffer.allocate( identityLength + stateLength );
+                readFully( segment.channel, body, position + HEADER_SIZE );
+                String identity = new String( body.array(), 0, identityLength, "UTF-8" );
+                if( type == PUT )
+                {
+                    byte[] state = new byte[ stateLength ];
+                    System.arraycopy( body.array(), identityLength, state, 0, stateLength );
+                    states.put( identity, state );
+                    offsets.put( identity, position + HEADER_SIZE + identityLength );
+                    chunkSize += stateLength;
+                }
+                else
+                {
+                    states.put( identity, null );
+                    offsets.remove( identity );
+                }
+            }
+            position += HEADER_SIZE + identityLength + stateLength;
+
+            if( chunkSize >= COMPACTION_CHUNK_SIZE )
+            {
+                copyLive( segment, states, offsets );
+                chunkSize = 0;
+            }
+        }
+        copyLive( segment, states, offsets );
+
+        lock.writeLock().lock();
+        try
+        {
+            segments.remove( segment.number );
+            segment.close();
+            if( segment.file.delete() )
+            {
+                DirectorySync.force( directory );
+            }
+            else
+            {
+                LOGGER.warn( "Could not delete compacted segment {}", segment.file );
+            }
+            return segment.size;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void copyLive( Segment segment, Map<String, byte[]> states, Map<String, Long> offsets )
+        throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            boolean oldest = segment.number == segments.firstKey();
+            Map<String, byte[]> live = new LinkedHashMap<String, byte[]>();
+            for( Map.Entry<String, byte[]> entry : states.entrySet() )
+            {
+                String identity = entry.getKey();
+                Location location = index.get( identity );
+                if( entry.getValue() != null )
+                {
+                    // Copy the state only if it is still the latest one
+                    if( location != null && location.segment == segment.number
+                        && location.offset == offsets.get( identity ) )
+                    {
+                        live.put( identity, entry.getValue() );
+                    }
+                }
+                else if( !oldest && location == null )
+                {
+                    // Keep the removal, since an older segment may still hold a state for it
+                    live.put( identity, null );
+                }
+            }
+            append( live );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+        states.clear();
+        offsets.clear();
+    }
+
+    // Must be called with the write lock held
+    private void append( Map<String, byte[]> changes )
+        throws IOException
+    {
+        if( changes.isEmpty() )
+        {
+            return;
+        }
+        if( active.size >= maxSegmentSize )
+        {
+            active = newSegment( active.number + 1 );
+        }
+
+        int batchSize = HEADER_SIZE;
+        List<byte[]> identities = new ArrayList<byte[]>( changes.size() );
+        for( Map.Entry<String, byte[]> entry : changes.entrySet() )
+        {
+            byte[] identity = entry.getKey().getBytes( "UTF-8" );
+            identities.add( identity );
+            batchSize += HEADER_SIZE + identity.length + ( entry.getValue() == null ? 0 : entry.getValue().length );
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate( batchSize );
+        List<Location> locations = new ArrayList<Location>( changes.size() );
+        int i = 0;
+        for( Map.Entry<String, byte[]> entry : changes.entrySet() )
+        {
+            byte[] identity = identities.get( i++ );
+            byte[] state = entry.getValue();
+            int recordStart = buffer.position();
+            putRecord( buffer, state == null ? DELETE : PUT, identity, state );
+            locations.add( state == null ? null : new Location( active.number,
+                                                                active.size + recordStart + HEADER_SIZE + identity.length,
+                                                                state.length,
+                                                                buffer.position() - recordStart ) );
+        }
+        putRecord( buffer, COMMIT, new byte[ 0 ], null );
+        buffer.flip();
+
+        long start = active.size;
+        try
+        {
+            while( buffer.hasRemaining() )
+            {
+                active.channel.write( buffer, start + buffer.position() );
+            }
+            active.channel.force( false );
+        }
+        catch( IOException e )
+        {
+            // Drop the partially written batch
+            active.channel.truncate( start );
+            throw e;
+        }
+        active.size += batchSize;
+
+        i = 0;
+        for( String identity : changes.keySet() )
+        {
+            Location location = locations.get( i++ );
+            if( location == null )
+            {
+                release( index.remove( identity ) );
+            }
+            else
+            {
+                release( index.put( identity, location ) );
+                active.liveBytes += location.recordSize;
+            }
+        }
+    }
+
+    private void putRecord( ByteBuffer buffer, byte type, byte[] identity, byte[] state )
+    {
+        int stateLength = state == null ? 0 : state.length;
+        CRC32 crc = new CRC32();
+        crc.update( type );
+        crc.update( identity );
+        if( state != null )
+        {
+            crc.update( state );
+        }
+        buffer.put( type );
+        buffer.putInt( identity.length );
+        buffer.putInt( stateLength );
+        buffer.putInt( (int) crc.getValue() );
+        buffer.put( identity );
+        if( state != null )
+        {
+            buffer.put( state );
+        }
+    }
+
+    private void release( Location location )
+    {
+        if( location != null )
+        {
+            Segment segment = segments.get( location.segment );
+            if( segment != null )
+            {
+                segment.liveBytes -= location.recordSize;
+            }
+        }
+    }
+
+    private void replay( Segment segment, boolean last )
+        throws IOException
+    {
+        Map<String, Location> pending = new LinkedHashMap<String, Location>();
+        long committed = 0;
+        long position = 0;
+        long length = segment.channel.size();
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        while( position + HEADER_SIZE <= length )
+        {
+            header.clear();
+            readFully( segment.channel, header, position );
+            header.flip();
+            byte type = header.get();
+            int identityLength = header.getInt();
+            int stateLength = header.getInt();
+            int checksum = header.getInt();
+            if( type < PUT || type > COMMIT || identityLength < 0 || stateLength < 0
+                || position + HEADER_SIZE + identityLength + stateLength > length )
+            {
+                break;
+            }
+            int recordSize = HEADER_SIZE + identityLength + stateLength;
+
+            if( type == COMMIT )
+            {
+                for( Map.Entry<String, Location> entry : pending.entrySet() )
+                {
+                    if( entry.getValue() == null )
+                    {
+                        release( index.remove( entry.getKey() ) );
+                    }
+                    else
+                    {
+                        release( index.put( entry.getKey(), entry.getValue() ) );
+                        segment.liveBytes += entry.getValue().recordSize;
+                    }
+                }
+                pending.clear();
+                committed = position + recordSize;
+            }
+            else
+            {
+                ByteBuffer body = ByteBuffer.allocate( identityLength + stateLength );
+                readFully( segment.channel, body, position + HEADER_SIZE );
+                CRC32 crc = new CRC32();
+                crc.update( type );
+                crc.update( body.array() );
+                if( (int) crc.getValue() != checksum )
+                {
+                    break;
+                }
+                String identity = new String( body.array(), 0, identityLength, "UTF-8" );
+                pending.put( identity, type == DELETE ? null : new Location( segment.number,
+                                                                             position + HEADER_SIZE + identityLength,
+                                                                             stateLength,
+                                                                             recordSize ) );
+            }
+            position += recordSize;
+        }
+
+        if( committed < length && !last )
+        {
+            throw new IOException( "Corrupt record at offset " + committed + " of sealed segment " + segment.file
+                                   + ", " + ( length - committed ) + " bytes after it could not be read" );
+        }
+        if( committed < length )
+        {
+            LOGGER.warn( "Discarding {} bytes of incomplete or corrupt records at the end of {}",
+                         length - committed, segment.file );
+            segment.channel.truncate( committed );
+        }
+        segment.size = committed;
+    }
+
+    private Segment newSegment( int number )
+        throws IOException
+    {
+        File file = new File( directory, PREFIX + String.format( "%08d", number ) + SUFFIX );
+        Segment segment = new Segment( number, file );
+        segments.put( number, segment );
+        // Forcing the records later does not make the new file itself durable
+        DirectorySync.force( directory );
+        return segment;
+    }
+
+    private static int segmentNumber( File file )
+    {
+        String name = file.getName();
+        return Integer.parseInt( name.substring( PREFIX.length(), name.length() - SUFFIX.length() ) );
+    }
+
+    private static void readFully( FileChannel channel, ByteBuffer buffer, long position )
+        throws IOException
+    {
+        while( buffer.hasRemaining() )
+        {
+            int read = channel.read( buffer, position + buffer.position() );
+            if( read < 0 )
+            {
+                throw new EOFException( "Unexpected end of segment at " + ( position + buffer.position() ) );
+            }
+        }
+    }
+
+    private static class Segment
+    {
+        private final int number;
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+        private long size;
+        private long liveBytes;
+
+        // Only mapped once the segment is sealed, so that it covers the whole segment for good
+        private MappedByteBuffer mapped;
+
+        private Segment( int number, File file )
+            throws IOException
+        {
+            this.number = number;
+            this.file = file;
+            randomAccessFile = new RandomAccessFile( file, "rw" );
+            channel = randomAccessFile.getChannel();
+            size = channel.size();
+        }
+
+        private synchronized ByteBuffer map()
+            throws IOException
+        {
+            if( mapped == null )
+            {
+                mapped = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+            }
+            return mapped;
+        }
+
+        private void close()
+            throws IOException
+        {
+            mapped = null;
+            channel.close();
+            randomAccessFile.close();
+        }
+    }
+
+    private static class Location
+        implements Comparable<Location>
+    {
+        private final int segment;
+        private final long offset;
+        private final int length;
+        private final int recordSize;
+
+        private Location( int segment, long offset, int length, int recordSize )
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+
+        public int compareTo( Location other )
+        {
+            if( segment != other.segment )
+            {
+                return segment < other.segment ? -1 : 1;
+            }
+            return offset < other.offset ? -1 : ( offset == other.offset ? 0 : 1 );
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Scan over the files in the slice directories.
+ * <p>
+ * Without an executor, the slices are read one file at a time by the thread calling {@link #next()}. With an
+ * executor, the slices are read concurrently, and the batches are handed over through bounded queues so that a
+ * slow receiver holds back the readers instead of filling up the memory. In unordered mode the batches are
+ * delivered as soon as they are read. In ordered mode the slices and the files in them are delivered in name
+ * order, which gives the same result on every scan of an unchanged store.
+ * </p>
+ */
+abstract class SliceScan
+    implements StateScan
+{
+    private static final Batch LAST = new Batch( null, null );
+
+    private static final int UNORDERED_QUEUE_SIZE = 16;
+    private static final int ORDERED_QUEUE_SIZE = 2;
+
+    private final File[] slices;
+    private final FilenameFilter filter;
+    private final int batchSize;
+    private final boolean ordered;
+
+    // Sequential scan
+    private int slice;
+    private File[] files;
+    private int file;
+
+    // Parallel scan
+    private List<BlockingQueue<Batch>> queues;
+    private List<Future<?>> tasks;
+    private int finished;
+
+    SliceScan( File[] slices, FilenameFilter filter, int batchSize, boolean ordered, ExecutorService executor )
+    {
+        this.slices = slices;
+        this.filter = filter;
+        this.batchSize = batchSize;
+        this.ordered = ordered;
+        if( ordered )
+        {
+            Arrays.sort( slices );
+        }
+        if( executor != null )
+        {
+            start( executor );
+        }
+    }
+
+    /**
+     * Read the serialized state in a file. This is called concurrently by the scanning threads.
+     *
+     * @param file the file to read
+     *
+     * @return the serialized state
+     *
+     * @throws IOException if the file could not be read
+     */
+    protected abstract byte[] read( File file )
+        throws IOException;
+
+    public List<byte[]> next()
+        throws IOException
+    {
+        if( queues == null )
+        {
+            return nextSequential();
+        }
+
+        while( finished < ( ordered ? queues.size() : slices.length ) )
+        {
+            Batch batch;
+            try
+            {
+                batch = queues.get( ordered ? finished : 0 ).take();
+            }
+            catch( InterruptedException e )
+            {
+                throw new InterruptedIOException( "Interrupted while scanning slices" );
+            }
+            if( batch.error != null )
+            {
+                throw batch.error;
+            }
+            if( batch == LAST )
+            {
+                finished++;
+                continue;
+            }
+            return batch.states;
+        }
+        return null;
+    }
+
+    public void close()
+    {
+        if( tasks != null )
+        {
+            for( Future<?> task : tasks )
+            {
+                task.cancel( true );
+            }
+        }
+    }
+
+    private List<byte[]> nextSequential()
+        throws IOException
+    {
+        List<byte[]> batch = new ArrayList<byte[]>( batchSize );
+        while( batch.size() < batchSize )
+        {
+            if( files == null || file == files.length )
+            {
+                if( slice == slices.length )
+                {
+                    break;
+                }
+                files = list( slices[ slice++ ] );
+                file = 0;
+                continue;
+            }
+            byte[] state = readIfExists( files[ file++ ] );
+            if( state != null )
+            {
+                batch.add( state );
+            }
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
+    private void start( ExecutorService executor )
+    {
+        queues = new ArrayList<BlockingQueue<Batch>>();
+        tasks = new ArrayList<Future<?>>();
+        if( !ordered )
+        {
+            queues.add( new ArrayBlockingQueue<Batch>( UNORDERED_QUEUE_SIZE ) );
+        }
+        for( final File sliceDirectory : slices )
+        {
+            final BlockingQueue<Batch> queue;
+            if( ordered )
+            {
+                queue = new ArrayBlockingQueue<Batch>( ORDERED_QUEUE_SIZE );
+                queues.add( queue );
+            }
+            else
+            {
+                queue = queues.get( 0 );
+            }
+            tasks.add( executor.submit( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        scan( sliceDirectory, queue );
+                    }
+                    catch( InterruptedException e )
+                    {
+                        // Scan was closed
+                    }
+                }
+            } ) );
+        }
+    }
+
+    private void scan( File sliceDirectory, BlockingQueue<Batch> queue )
+        throws InterruptedException
+    {
+        try
+        {
+            List<byte[]> batch = new ArrayList<byte[]>( batchSize );
+            for( File file : list( sliceDirectory ) )
+            {
+                if( Thread.currentThread().isInterrupted() )
+                {
+                    return;
+                }
+                byte[] state = readIfExists( file );
+                if( state != null )
+                {
+                    batch.add( state );
+                }
+                if( batch.size() == batchSize )
+                {
+                    queue.put( new Batch( batch, null ) );
+                    batch = new ArrayList<byte[]>( batchSize );
+                }
+            }
+            if( !batch.isEmpty() )
+            {
+                queue.put( new Batch( batch, null ) );
+            }
+            queue.put( LAST );
+        }
+        catch( IOException e )
+        {
+            queue.put( new Batch( null, e ) );
+        }
+    }
+
+    private File[] list( File sliceDirectory )
+    {
+        File[] files = sliceDirectory.listFiles( filter );
+        if( files == null )
+        {
+            return new File[ 0 ];
+        }
+        if( ordered )
+        {
+            Arrays.sort( files );
+        }
+        return files;
+    }
+
+    private byte[] readIfExists( File file )
+        throws IOException
+    {
+        try
+        {
+            return read( file );
+        }
+        catch( FileNotFoundException e )
+        {
+            // Removed since the directory was listed
+            return null;
+        }
+    }
+
+    private static class Batch
+    {
+        private final List<byte[]> states;
+        private final IOException error;
+
+        private Batch( List<byte[]> states, IOException error )
+        {
+            this.states = states;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of serialized entity states, bounded by the total number of bytes it holds.
+ * <p>
+ * The identities are spread over a number of stripes, each with its own lock and least recently used order, so
+ * that concurrent readers of different entities seldom wait for each other.
+ * </p>
+ * <p>
+ * To keep a reader from caching a state that was replaced while it was reading the file, the reader takes a
+ * {@link #stamp(String)} before reading, and the state is only cached if no identity of the stripe has been
+ * invalidated since.
+ * </p>
+ */
+class StateCache
+{
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[ STRIPES ];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    StateCache( long maxBytes )
+    {
+        for( int i = 0; i < STRIPES; i++ )
+        {
+            stripes[ i ] = new Stripe( maxBytes / STRIPES );
+        }
+    }
+
+    public byte[] get( String identity )
+    {
+        Stripe stripe = stripe( identity );
+        byte[] state;
+        synchronized( stripe )
+        {
+            state = stripe.states.get( identity );
+        }
+        if( state == null )
+        {
+            misses.incrementAndGet();
+        }
+        else
+        {
+            hits.incrementAndGet();
+        }
+        return state;
+    }
+
+    public long stamp( String identity )
+    {
+        Stripe stripe = stripe( identity );
+        synchronized( stripe )
+        {
+            return stripe.generation;
+        }
+    }
+
+    public void put( String identity, byte[] state, long stamp )
+    {
+        Stripe stripe = stripe( identity );
+        synchronized( stripe )
+        {
+            if( stripe.generation != stamp || state.length > stripe.maxBytes )
+            {
+                return;
+            }
+            byte[] old = stripe.states.put( identity, state );
+            if( old != null )
+            {
+                stripe.bytes -= old.length;
+            }
+            stripe.bytes += state.length;
+
+            Iterator<byte[]> eldest = stripe.states.values().iterator();
+            while( stripe.bytes > stripe.maxBytes )
+            {
+                stripe.bytes -= eldest.next().length;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public void invalidate( String identity )
+    {
+        Stripe stripe = stripe( identity );
+        synchronized( stripe )
+        {
+            stripe.generation++;
+            byte[] old = stripe.states.remove( identity );
+            if( old != null )
+            {
+                stripe.bytes -= old.length;
+            }
+        }
+    }
+
+    public long hits()
+    {
+        return hits.get();
+    }
+
+    public long misses()
+    {
+        return misses.get();
+    }
+
+    public long evictions()
+    {
+        return evictions.get();
+    }
+
+    public long residentBytes()
+    {
+        long bytes = 0;
+        for( Stripe stripe : stripes )
+        {
+            synchronized( stripe )
+            {
+                bytes += stripe.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    private Stripe stripe( String identity )
+    {
+        int h = identity.hashCode();
+        h ^= h >>> 16;
+        return stripes[ ( h & 0x7fffffff ) % STRIPES ];
+    }
+
+    private static class Stripe
+    {
+        private final long maxBytes;
+
+        // Guarded by this stripe
+        private final Map<String, byte[]> states = new LinkedHashMap<String, byte[]>( 16, 0.75f, true );
+        private long bytes;
+        private long generation;
+
+        private Stripe( long maxBytes )
+        {
+            this.maxBytes = maxBytes;
+        }
+    }
+}
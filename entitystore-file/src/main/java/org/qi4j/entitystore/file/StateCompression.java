@@ -0,0 +1,413 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of entity states with a preset dictionary.
+ * <p>
+ * Entity states are small and repeat the same keys and type names, which plain deflate cannot take advantage of
+ * within a single state. The dictionary is trained from a sample of existing states, by picking the JSON strings
+ * that account for the most bytes, and is given to deflate as preset dictionary. A sample of the states compressed
+ * since the last training is kept, so that a store that started empty gets a dictionary once enough states have been
+ * written, and so that the dictionary follows the states as they change.
+ * </p>
+ * <p>
+ * A compressed state starts with a zero byte, which no JSON document starts with, followed by the number of the
+ * dictionary and the length of the state. Dictionaries are never deleted, since states compressed with them may
+ * still be on disk, and uncompressed states are passed through as they are.
+ * </p>
+ */
+class StateCompression
+{
+    private static final String PREFIX = "dictionary-";
+    private static final int HEADER = 9;
+
+    // The deflate window, longer dictionaries are not used
+    private static final int MAX_DICTIONARY = 32 * 1024;
+
+    // Fewer states than this do not show which strings repeat
+    static final int MIN_SAMPLES = 100;
+    private static final int MAX_SAMPLES = 1000;
+
+    // States compressed with a dictionary before it is trained again
+    private static final long RETRAIN_INTERVAL = 100000;
+
+    private final File directory;
+    private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<Integer, byte[]>();
+    private volatile int current;
+
+    // Reservoir sample of the states compressed since the last training, guarded by itself
+    private final List<byte[]> samples = new ArrayList<byte[]>();
+    private final Random random = new Random();
+    private long compressed;
+
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>()
+    {
+        @Override
+        protected Deflater initialValue()
+        {
+            return new Deflater( Deflater.BEST_COMPRESSION );
+        }
+    };
+
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>()
+    {
+        @Override
+        protected Inflater initialValue()
+        {
+            return new Inflater();
+        }
+    };
+
+    StateCompression( File directory )
+        throws IOException
+    {
+        this.directory = directory;
+        File[] files = directory.listFiles( new FilenameFilter()
+        {
+            public boolean accept( File dir, String name )
+            {
+                return name.startsWith( PREFIX );
+            }
+        } );
+        if( files != null )
+        {
+            for( File file : files )
+            {
+                int number = Integer.parseInt( file.getName().substring( PREFIX.length() ) );
+                dictionaries.put( number, readFile( file ) );
+                current = Math.max( current, number );
+            }
+        }
+    }
+
+    /**
+     * @return true if states are compressed with a trained dictionary
+     */
+    public boolean isTrained()
+    {
+        return current != 0;
+    }
+
+    /**
+     * Train a new dictionary from the states compressed since the last training, if there are enough of them. The
+     * first dictionary is trained after {@link #MIN_SAMPLES} states, the next ones at longer intervals.
+     *
+     * @return true if a new dictionary was trained
+     *
+     * @throws IOException if the dictionary could not be written
+     */
+    public boolean trainIfDue()
+        throws IOException
+    {
+        List<byte[]> sampled;
+        synchronized( samples )
+        {
+            if( compressed < ( current == 0 ? MIN_SAMPLES : RETRAIN_INTERVAL ) || samples.size() < MIN_SAMPLES )
+            {
+                return false;
+            }
+            sampled = new ArrayList<byte[]>( samples );
+            samples.clear();
+            compressed = 0;
+        }
+        int before = current;
+        train( sampled );
+        return current != before;
+    }
+
+    /**
+     * Train a new dictionary from a sample of states, and use it for the states compressed from now on.
+     *
+     * @param samples the uncompressed states to train from
+     *
+     * @throws IOException if the dictionary could not be written
+     */
+    public synchronized void train( List<byte[]> samples )
+        throws IOException
+    {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for( byte[] sample : samples )
+        {
+            // Latin-1 maps bytes to chars one to one, so the strings can be turned back into the same bytes
+            String text = new String( sample, "ISO-8859-1" );
+            int start = -1;
+            for( int i = 0; i < text.length(); i++ )
+            {
+                char c = text.charAt( i );
+                if( c == '\\' )
+                {
+                    i++;
+                }
+                else if( c == '"' )
+                {
+                    if( start < 0 )
+                    {
+                        start = i;
+                    }
+                    else
+                    {
+                        // Keys are taken together with their colon
+                        int end = i + 1 < text.length() && text.charAt( i + 1 ) == ':' ? i + 2 : i + 1;
+                        String token = text.substring( start, end );
+                        Integer count = counts.get( token );
+                        counts.put( token, count == null ? 1 : count + 1 );
+                        start = -1;
+                    }
+                }
+            }
+        }
+
+        List<String> tokens = new ArrayList<String>();
+        for( Map.Entry<String, Integer> entry : counts.entrySet() )
+        {
+            if( entry.getValue() > 1 )
+            {
+                tokens.add( entry.getKey() );
+            }
+        }
+        Comparator<String> bySavings = new Comparator<String>()
+        {
+            public int compare( String first, String second )
+            {
+                long firstSavings = (long) counts.get( first ) * first.length();
+                long secondSavings = (long) counts.get( second ) * second.length();
+                return firstSavings < secondSavings ? 1 : ( firstSavings > secondSavings ? -1 : 0 );
+            }
+        };
+        Collections.sort( tokens, bySavings );
+
+        // Deflate finds matches at short distances more cheaply, so the most valuable strings go last
+        List<String> selected = new ArrayList<String>();
+        int size = 0;
+        for( String token : tokens )
+        {
+            if( size + token.length() > MAX_DICTIONARY )
+            {
+                break;
+            }
+            selected.add( token );
+            size += token.length();
+        }
+        Collections.reverse( selected );
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream( size );
+        for( String token : selected )
+        {
+            dictionary.write( token.getBytes( "ISO-8859-1" ) );
+        }
+        if( dictionary.size() == 0 )
+        {
+            return;
+        }
+
+        int number = current + 1;
+        FileOutputStream out = new FileOutputStream( new File( directory, PREFIX + number ) );
+        try
+        {
+            dictionary.writeTo( out );
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        dictionaries.put( number, dictionary.toByteArray() );
+        current = number;
+    }
+
+    /**
+     * Compress a state with the current dictionary.
+     *
+     * @param state the uncompressed state
+     *
+     * @return the compressed state, or the state itself if it does not get any smaller
+     */
+    public byte[] compress( byte[] state )
+    {
+        sample( state );
+
+        int number = current;
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if( number != 0 )
+        {
+            deflater.setDictionary( dictionaries.get( number ) );
+        }
+        deflater.setInput( state );
+        deflater.finish();
+
+        byte[] compressed = new byte[ state.length ];
+        int length = HEADER;
+        while( !deflater.finished() && length < compressed.length )
+        {
+            length += deflater.deflate( compressed, length, compressed.length - length );
+        }
+        if( !deflater.finished() )
+        {
+            return state;
+        }
+
+        compressed[ 0 ] = 0;
+        writeInt( compressed, 1, number );
+        writeInt( compressed, 5, state.length );
+        byte[] result = new byte[ length ];
+        System.arraycopy( compressed, 0, result, 0, length );
+        return result;
+    }
+
+    private void sample( byte[] state )
+    {
+        synchronized( samples )
+        {
+            compressed++;
+            if( samples.size() < MAX_SAMPLES )
+            {
+                samples.add( state );
+            }
+            else
+            {
+                // Every state compressed since the last training is equally likely to be in the sample
+                long slot = (long) ( random.nextDouble() * compressed );
+                if( slot < MAX_SAMPLES )
+                {
+                    samples.set( (int) slot, state );
+                }
+            }
+        }
+    }
+
+    /**
+     * Decompress a state, if it is compressed.
+     *
+     * @param data the state as read from disk
+     *
+     * @return the uncompressed state
+     *
+     * @throws IOException if the state is compressed but could not be decompressed
+     */
+    public byte[] decompress( byte[] data )
+        throws IOException
+    {
+        if( data.length == 0 || data[ 0 ] != 0 )
+        {
+            return data;
+        }
+        if( data.length < HEADER )
+        {
+            throw new IOException( "Truncated compressed state" );
+        }
+
+        int number = readInt( data, 1 );
+        int stateLength = readInt( data, 5 );
+        if( stateLength < 0 )
+        {
+            throw new IOException( "Corrupt compressed state, negative length " + stateLength );
+        }
+        byte[] state = new byte[ stateLength ];
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput( data, HEADER, data.length - HEADER );
+        try
+        {
+            int length = 0;
+            while( length < state.length )
+            {
+                int inflated = inflater.inflate( state, length, state.length - length );
+                if( inflated == 0 )
+                {
+                    if( inflater.needsDictionary() )
+                    {
+                        byte[] dictionary = dictionaries.get( number );
+                        if( dictionary == null )
+                        {
+                            throw new IOException( "Missing compression dictionary " + number );
+                        }
+                        inflater.setDictionary( dictionary );
+                    }
+                    else if( inflater.finished() || inflater.needsInput() )
+                    {
+                        throw new IOException( "Truncated compressed state" );
+                    }
+                }
+                length += inflated;
+            }
+        }
+        catch( DataFormatException e )
+        {
+            IOException exception = new IOException( "Corrupt compressed state" );
+            exception.initCause( e );
+            throw exception;
+        }
+        return state;
+    }
+
+    private static byte[] readFile( File file )
+        throws IOException
+    {
+        byte[] content = new byte[ (int) file.length() ];
+        FileInputStream in = new FileInputStream( file );
+        try
+        {
+            int read = 0;
+            while( read < content.length )
+            {
+                int count = in.read( content, read, content.length - read );
+                if( count < 0 )
+                {
+                    throw new IOException( "Unexpected end of " + file );
+                }
+                read += count;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return content;
+    }
+
+    private static void writeInt( byte[] bytes, int offset, int value )
+    {
+        bytes[ offset ] = (byte) ( value >>> 24 );
+        bytes[ offset + 1 ] = (byte) ( value >>> 16 );
+        bytes[ offset + 2 ] = (byte) ( value >>> 8 );
+        bytes[ offset + 3 ] = (byte) value;
+    }
+
+    private static int readInt( byte[] bytes, int offset )
+    {
+        return ( ( bytes[ offset ] & 0xff ) << 24 ) | ( ( bytes[ offset + 1 ] & 0xff ) << 16 )
+               | ( ( bytes[ offset + 2 ] & 0xff ) << 8 ) | ( bytes[ offset + 3 ] & 0xff );
+    }
+}
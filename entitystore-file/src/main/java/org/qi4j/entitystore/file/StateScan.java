@@ -0,0 +1,38 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Scan over all entity states in the store, delivered in batches.
+ */
+interface StateScan
+{
+    /**
+     * @return the next batch of serialized states, or null if there are no more states
+     *
+     * @throws IOException if the states could not be read
+     */
+    List<byte[]> next()
+        throws IOException;
+
+    /**
+     * Stop the scan, and release the resources it holds.
+     */
+    void close();
+}
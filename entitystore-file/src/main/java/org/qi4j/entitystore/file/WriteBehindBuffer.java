@@ -0,0 +1,308 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Staging of committed changes that are written to disk in the background.
+ * <p>
+ * Staged changes are served to readers until they have been written. Repeated changes to the same identity are
+ * coalesced, so that only the last state is written. When the staged states reach the maximum number of bytes,
+ * a flush is started and committers wait until it has made room.
+ * </p>
+ * <p>
+ * A flush that fails puts its changes back, unless they have been changed again since, and they are retried by
+ * the next flush. Until a flush succeeds again, staging fails with the last failure, so that committers learn that
+ * their changes are not being written instead of letting them fall behind without bound.
+ * </p>
+ */
+abstract class WriteBehindBuffer
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( WriteBehindBuffer.class );
+
+    /**
+     * Returned by {@link #lookup(String)} for a staged removal.
+     */
+    static final byte[] REMOVED = new byte[ 0 ];
+
+    // Rough cost of an entry besides its state
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final long maxBytes;
+    private final Executor executor;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+
+    // Guarded by the lock, the bytes include the changes being flushed
+    private Map<String, byte[]> pending = new LinkedHashMap<String, byte[]>();
+    private Map<String, byte[]> flushing = Collections.emptyMap();
+    private long bytes;
+
+    // The failure of the last flush, or null if it succeeded
+    private IOException failure;
+
+    private final Runnable flushTask = new Runnable()
+    {
+        public void run()
+        {
+            try
+            {
+                flush();
+            }
+            catch( IOException e )
+            {
+                LOGGER.warn( "Could not write staged changes, will retry", e );
+            }
+            catch( RuntimeException e )
+            {
+                // Thrown on, a scheduled flush would not be run again
+                LOGGER.warn( "Could not write staged changes, will retry", e );
+            }
+        }
+    };
+
+    WriteBehindBuffer( long maxBytes, Executor executor )
+    {
+        this.maxBytes = maxBytes;
+        this.executor = executor;
+    }
+
+    /**
+     * Write a batch of changes to disk.
+     *
+     * @param batch the new states by identity, where a null state removes the identity
+     *
+     * @throws IOException if the changes could not be written
+     */
+    protected abstract void write( Map<String, byte[]> batch )
+        throws IOException;
+
+    /**
+     * Stage a batch of changes, waiting for room if the buffer is full. If the executor no longer runs flushes, the
+     * room is made by flushing in the calling thread.
+     *
+     * @param batch the new states by identity, where a null state removes the identity
+     *
+     * @throws InterruptedIOException if interrupted while waiting for room
+     * @throws IOException            if the last flush failed
+     */
+    public void stage( Map<String, byte[]> batch )
+        throws IOException
+    {
+        long batchBytes = 0;
+        for( byte[] state : batch.values() )
+        {
+            batchBytes += sizeOf( state );
+        }
+
+        lock.lock();
+        try
+        {
+            checkFailure();
+            // A batch larger than the buffer is let in once the buffer is empty
+            while( bytes > 0 && bytes + batchBytes > maxBytes )
+            {
+                try
+                {
+                    executor.execute( flushTask );
+                    flushed.await();
+                }
+                catch( RejectedExecutionException e )
+                {
+                    // Flushes take the lock, so it must not be held meanwhile
+                    lock.unlock();
+                    try
+                    {
+                        flush();
+                    }
+                    finally
+                    {
+                        lock.lock();
+                    }
+                }
+                checkFailure();
+            }
+            for( Map.Entry<String, byte[]> entry : batch.entrySet() )
+            {
+                byte[] state = entry.getValue() == null ? REMOVED : entry.getValue();
+                byte[] replaced = pending.put( entry.getKey(), state );
+                if( replaced != null )
+                {
+                    bytes -= sizeOf( replaced );
+                }
+                bytes += sizeOf( state );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            throw new InterruptedIOException( "Interrupted while waiting for staged changes to be written" );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param identity the identity to look up
+     *
+     * @return the staged state, {@link #REMOVED} for a staged removal, or null if nothing is staged
+     */
+    public byte[] lookup( String identity )
+    {
+        lock.lock();
+        try
+        {
+            byte[] state = pending.get( identity );
+            return state == null ? flushing.get( identity ) : state;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write all staged changes to disk.
+     *
+     * @throws IOException if the changes could not be written
+     */
+    public synchronized void flush()
+        throws IOException
+    {
+        Map<String, byte[]> batch;
+        lock.lock();
+        try
+        {
+            if( pending.isEmpty() )
+            {
+                return;
+            }
+            flushing = pending;
+            pending = new LinkedHashMap<String, byte[]>();
+            batch = new LinkedHashMap<String, byte[]>( flushing );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        long flushedBytes = 0;
+        for( Map.Entry<String, byte[]> entry : batch.entrySet() )
+        {
+            flushedBytes += sizeOf( entry.getValue() );
+            if( entry.getValue() == REMOVED )
+            {
+                entry.setValue( null );
+            }
+        }
+
+        boolean written = false;
+        IOException writeFailure = null;
+        try
+        {
+            write( batch );
+            written = true;
+        }
+        catch( IOException e )
+        {
+            writeFailure = e;
+            throw e;
+        }
+        catch( RuntimeException e )
+        {
+            writeFailure = new IOException( "Could not write staged changes" );
+            writeFailure.initCause( e );
+            throw e;
+        }
+        finally
+        {
+            lock.lock();
+            try
+            {
+                if( written )
+                {
+                    failure = null;
+                    bytes -= flushedBytes;
+                }
+                else
+                {
+                    if( writeFailure != null )
+                    {
+                        failure = writeFailure;
+                    }
+
+                    // Put back what has not been changed again since, in front of the newer changes
+                    Map<String, byte[]> retry = new LinkedHashMap<String, byte[]>( flushing );
+                    for( Map.Entry<String, byte[]> entry : pending.entrySet() )
+                    {
+                        byte[] replaced = retry.put( entry.getKey(), entry.getValue() );
+                        if( replaced != null )
+                        {
+                            bytes -= sizeOf( replaced );
+                        }
+                    }
+                    pending = retry;
+                }
+                flushing = Collections.emptyMap();
+                flushed.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Must be called with the lock held
+    private void checkFailure()
+        throws IOException
+    {
+        if( failure != null )
+        {
+            IOException exception = new IOException( "Staged changes could not be written" );
+            exception.initCause( failure );
+            throw exception;
+        }
+    }
+
+    /**
+     * @return a task that flushes the staged changes, for scheduling
+     */
+    public Runnable flushTask()
+    {
+        return flushTask;
+    }
+
+    private static long sizeOf( byte[] state )
+    {
+        return ENTRY_OVERHEAD + ( state == null ? 0 : state.length );
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import org.junit.Test;
+import org.qi4j.api.common.Visibility;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.entitystore.memory.MemoryEntityStoreService;
+import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
+import org.qi4j.test.entity.AbstractEntityStoreTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the entity store tests against the BUCKETS layout, with small buckets so that they are split.
+ */
+public class FileEntityStoreBucketsTest
+    extends AbstractEntityStoreTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        super.assemble( module );
+        module.services( FileEntityStoreService.class, UuidIdentityGeneratorService.class );
+
+        ModuleAssembly config = module.layer().module( "config" );
+        config.entities( FileEntityStoreConfiguration.class ).visibleIn( Visibility.layer );
+        config.forMixin( FileEntityStoreConfiguration.class ).declareDefaults()
+            .directory().set( new File( "build/qi4j/bucketstore" ).getAbsolutePath() );
+        config.forMixin( FileEntityStoreConfiguration.class ).declareDefaults()
+            .layout().set( FileEntityStoreConfiguration.Layout.BUCKETS );
+        config.forMixin( FileEntityStoreConfiguration.class ).declareDefaults()
+            .bucketSize().set( 4 );
+        config.services( MemoryEntityStoreService.class );
+    }
+
+    @Test
+    public void givenFullBucketsWhenStoringThenTheyAreSplit()
+        throws IOException
+    {
+        File directory = emptyDirectory( "build/qi4j/buckets-split" );
+        BucketLayout layout = newLayout( directory, 10 );
+        layout.open( new CallerRunsExecutor() );
+
+        List<String> identities = identities( 200 );
+        for( String identity : identities )
+        {
+            write( layout, identity );
+        }
+
+        assertTrue( directory.list().length > 20 );
+        for( File bucket : layout.directories() )
+        {
+            assertTrue( bucket.getName().startsWith( "d" ) );
+            assertTrue( bucket + " is overfull", bucket.list().length <= 10 );
+        }
+        assertFilesOf( layout, identities );
+    }
+
+    @Test
+    public void givenSlicesWhenOpeningThenFilesAreMovedToSizedBuckets()
+        throws IOException
+    {
+        File directory = emptyDirectory( "build/qi4j/buckets-conversion" );
+        List<String> identities = identities( 200 );
+        for( String identity : identities )
+        {
+            File slice = new File( directory, "" + ( Math.abs( identity.hashCode() ) % 10 ) );
+            assertTrue( slice.isDirectory() || slice.mkdirs() );
+            writeFile( new File( slice, identity + ".json" ), identity );
+        }
+
+        BucketLayout layout = newLayout( directory, 10 );
+        layout.open( new CallerRunsExecutor() );
+
+        for( int slice = 0; slice < 10; slice++ )
+        {
+            assertFalse( new File( directory, "" + slice ).exists() );
+        }
+        for( File bucket : layout.directories() )
+        {
+            assertTrue( bucket + " is overfull", bucket.list().length <= 10 );
+        }
+        assertFilesOf( layout, identities );
+    }
+
+    @Test
+    public void givenIdentitiesWithSameHashWhenStoringThenBucketIsOverfullAtLimitedDepth()
+        throws IOException
+    {
+        File directory = emptyDirectory( "build/qi4j/buckets-collisions" );
+        BucketLayout layout = newLayout( directory, 10 );
+        layout.open( new CallerRunsExecutor() );
+
+        // "Aa" and "BB" have the same hash, and so have all strings made of them
+        List<String> identities = new ArrayList<String>();
+        for( int i = 0; i < 32; i++ )
+        {
+            StringBuilder identity = new StringBuilder();
+            for( int bit = 0; bit < 5; bit++ )
+            {
+                identity.append( ( i & ( 1 << bit ) ) == 0 ? "Aa" : "BB" );
+            }
+            identities.add( identity.toString() );
+        }
+        for( String identity : identities )
+        {
+            write( layout, identity );
+        }
+
+        assertTrue( directory.list().length < 100 );
+        assertEquals( identities.size(), layout.locate( identities.get( 0 ) ).getParentFile().list().length );
+        assertFilesOf( layout, identities );
+    }
+
+    private static BucketLayout newLayout( File directory, int bucketSize )
+    {
+        return new BucketLayout( directory, 10, bucketSize, new Object() )
+        {
+            @Override
+            protected void moved( File from, File to )
+            {
+            }
+
+            @Override
+            protected void removed( File file )
+            {
+            }
+        };
+    }
+
+    private static List<String> identities( int count )
+    {
+        List<String> identities = new ArrayList<String>();
+        for( int i = 0; i < count; i++ )
+        {
+            identities.add( "entity-" + i );
+        }
+        return identities;
+    }
+
+    private static void write( BucketLayout layout, String identity )
+        throws IOException
+    {
+        File file = layout.locate( identity );
+        boolean created = !file.exists();
+        writeFile( file, identity );
+        layout.stored( identity, created );
+    }
+
+    private static void writeFile( File file, String content )
+        throws IOException
+    {
+        FileOutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( content.getBytes( "UTF-8" ) );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static void assertFilesOf( BucketLayout layout, List<String> identities )
+    {
+        int files = 0;
+        for( File bucket : layout.directories() )
+        {
+            files += bucket.list().length;
+        }
+        assertEquals( identities.size(), files );
+        for( String identity : identities )
+        {
+            File file = layout.locate( identity );
+            assertTrue( identity, file.exists() );
+            assertEquals( identity.length(), file.length() );
+        }
+    }
+
+    private static File emptyDirectory( String name )
+    {
+        File directory = new File( name ).getAbsoluteFile();
+        delete( directory );
+        assertTrue( directory.mkdirs() );
+        return directory;
+    }
+
+    private static void delete( File file )
+    {
+        File[] files = file.listFiles();
+        if( files != null )
+        {
+            for( File child : files )
+            {
+                delete( child );
+            }
+        }
+        assertTrue( !file.exists() || file.delete() );
+    }
+
+    /**
+     * Runs the splits and conversions in the calling thread, so that they are done when the call returns.
+     */
+    private static class CallerRunsExecutor
+        extends AbstractExecutorService
+    {
+        public void execute( Runnable command )
+        {
+            command.run();
+        }
+
+        public void shutdown()
+        {
+        }
+
+        public List<Runnable> shutdownNow()
+        {
+            return Collections.emptyList();
+        }
+
+        public boolean isShutdown()
+        {
+            return false;
+        }
+
+        public boolean isTerminated()
+        {
+            return false;
+        }
+
+        public boolean awaitTermination( long timeout, TimeUnit unit )
+        {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import org.qi4j.api.common.Visibility;
+import org.qi4j.bootstrap.AssemblyException;
+import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.entitystore.memory.MemoryEntityStoreService;
+import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
+import org.qi4j.test.entity.AbstractEntityStoreTest;
+
+import java.io.File;
+
+/**
+ * Runs the entity store tests against the SEGMENTS layout.
+ */
+public class FileEntityStoreSegmentsTest
+    extends AbstractEntityStoreTest
+{
+    public void assemble( ModuleAssembly module )
+        throws AssemblyException
+    {
+        super.assemble( module );
+        module.services( FileEntityStoreService.class, UuidIdentityGeneratorService.class );
+
+        ModuleAssembly config = module.layer().module( "config" );
+        config.entities( FileEntityStoreConfiguration.class ).visibleIn( Visibility.layer );
+        config.forMixin( FileEntityStoreConfiguration.class ).declareDefaults()
+            .directory().set( new File( "build/qi4j/segmentstore" ).getAbsolutePath() );
+        config.forMixin( FileEntityStoreConfiguration.class ).declareDefaults()
+            .layout().set( FileEntityStoreConfiguration.Layout.SEGMENTS );
+        config.services( MemoryEntityStoreService.class );
+    }
+}
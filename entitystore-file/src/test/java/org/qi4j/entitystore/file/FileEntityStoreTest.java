@@ -16,6 +16,7 @@
  */
 package org.qi4j.entitystore.file;
 
+import org.junit.Test;
 import org.qi4j.api.common.Visibility;
 import org.qi4j.bootstrap.AssemblyException;
 import org.qi4j.bootstrap.ModuleAssembly;
@@ -24,6 +25,18 @@ import org.qi4j.library.fileconfig.FileConfiguration;
 import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
 import org.qi4j.test.entity.AbstractEntityStoreTest;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
 /**
  * JAVADOC
  */
@@ -40,4 +53,190 @@ public class FileEntityStoreTest
         config.entities( FileEntityStoreConfiguration.class ).visibleIn( Visibility.layer );
         config.services( MemoryEntityStoreService.class );
     }
+
+    @Test
+    public void givenTornManifestWhenRecoveringThenOnlyCompleteBatchesAreReplayed()
+        throws IOException
+    {
+        File directory = emptyDirectory( "build/qi4j/manifests" );
+        ManifestLog manifests = new ManifestLog( directory );
+        manifests.recover();
+        Map<String, byte[]> first = new LinkedHashMap<String, byte[]>();
+        first.put( "a", "state a".getBytes( "UTF-8" ) );
+        first.put( "b", null );
+        manifests.write( first );
+        Map<String, byte[]> second = new LinkedHashMap<String, byte[]>();
+        second.put( "c", "state c".getBytes( "UTF-8" ) );
+        long torn = manifests.write( second );
+        truncate( new File( directory, String.format( "%016d", torn ) + ".manifest" ), 3 );
+
+        ManifestLog recovered = new ManifestLog( directory );
+        List<Map<String, byte[]>> batches = recovered.recover();
+        assertEquals( 1, batches.size() );
+        assertEquals( first.keySet(), batches.get( 0 ).keySet() );
+        assertArrayEquals( first.get( "a" ), batches.get( 0 ).get( "a" ) );
+        assertNull( batches.get( 0 ).get( "b" ) );
+        assertEquals( 1, directory.list().length );
+
+        recovered.release( recovered.sequence() );
+        assertEquals( 0, directory.list().length );
+        assertTrue( recovered.write( second ) > torn );
+    }
+
+    @Test
+    public void givenTornJournalBatchWhenOpeningThenItIsTruncated()
+        throws IOException
+    {
+        File directory = emptyDirectory( "build/qi4j/journal" );
+        ChangeJournal journal = new ChangeJournal( directory );
+        journal.open();
+        assertEquals( 1, journal.append( Arrays.asList( "a", "b" ) ) );
+        assertEquals( 2, journal.append( Arrays.asList( "c" ) ) );
+        journal.close();
+        truncate( directory.listFiles()[ 0 ], 5 );
+
+        journal = new ChangeJournal( directory );
+        journal.open();
+        try
+        {
+            assertEquals( 1, journal.sequence() );
+            assertEquals( Arrays.asList( "a", "b" ), new ArrayList<String>( journal.changedSince( 0 ) ) );
+            assertEquals( 2, journal.append( Arrays.asList( "d" ) ) );
+            assertEquals( Arrays.asList( "d" ), new ArrayList<String>( journal.changedSince( 1 ) ) );
+        }
+        finally
+        {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void givenCorruptJournalBatchCountWhenOpeningThenItIsTruncated()
+        throws IOException
+    {
+        File directory = emptyDirectory( "build/qi4j/journal-count" );
+        ChangeJournal journal = new ChangeJournal( directory );
+        journal.open();
+        assertEquals( 1, journal.append( Arrays.asList( "a", "b" ) ) );
+        assertEquals( 2, journal.append( Arrays.asList( "c" ) ) );
+        journal.close();
+
+        // The count of the second batch, after the first batch and the sequence number of the second
+        RandomAccessFile raf = new RandomAccessFile( directory.listFiles()[ 0 ], "rw" );
+        try
+        {
+            raf.seek( 8 + 4 + 3 + 3 + 8 + 8 );
+            raf.writeInt( Integer.MAX_VALUE );
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        journal = new ChangeJournal( directory );
+        journal.open();
+        try
+        {
+            assertEquals( 1, journal.sequence() );
+            assertEquals( Arrays.asList( "a", "b" ), new ArrayList<String>( journal.changedSince( 0 ) ) );
+        }
+        finally
+        {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void givenTornTailOfActiveSegmentWhenOpeningThenOnlyItIsDiscarded()
+        throws IOException
+    {
+        File directory = emptyDirectory( "build/qi4j/segments-torn" );
+        File[] files = writeTwoSegments( directory );
+        truncate( files[ 1 ], 3 );
+
+        SegmentLog log = new SegmentLog( directory, 100 );
+        log.open();
+        try
+        {
+            assertArrayEquals( "first state".getBytes( "UTF-8" ), log.read( "a" ) );
+            assertNull( log.read( "b" ) );
+        }
+        finally
+        {
+            log.close();
+        }
+    }
+
+    @Test
+    public void givenCorruptSealedSegmentWhenOpeningThenItFails()
+        throws IOException
+    {
+        File directory = emptyDirectory( "build/qi4j/segments-corrupt" );
+        File[] files = writeTwoSegments( directory );
+        truncate( files[ 0 ], 3 );
+
+        SegmentLog log = new SegmentLog( directory, 100 );
+        try
+        {
+            log.open();
+            fail( "Opened with a corrupt sealed segment" );
+        }
+        catch( IOException e )
+        {
+            // Expected, the batches after the bad record are not dropped
+        }
+        assertEquals( 2, directory.list().length );
+    }
+
+    /**
+     * @return the segment files, the first one sealed with the state of "a", the active one with the state of "b"
+     */
+    private static File[] writeTwoSegments( File directory )
+        throws IOException
+    {
+        SegmentLog log = new SegmentLog( directory, 10 );
+        log.open();
+        try
+        {
+            log.write( Collections.singletonMap( "a", "first state".getBytes( "UTF-8" ) ) );
+            log.write( Collections.singletonMap( "b", "second state".getBytes( "UTF-8" ) ) );
+        }
+        finally
+        {
+            log.close();
+        }
+        File[] files = directory.listFiles();
+        assertEquals( 2, files.length );
+        Arrays.sort( files );
+        return files;
+    }
+
+    private static File emptyDirectory( String name )
+    {
+        File directory = new File( name ).getAbsoluteFile();
+        File[] files = directory.listFiles();
+        if( files != null )
+        {
+            for( File file : files )
+            {
+                assertTrue( file.delete() );
+            }
+        }
+        assertTrue( directory.isDirectory() || directory.mkdirs() );
+        return directory;
+    }
+
+    private static void truncate( File file, int bytes )
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try
+        {
+            raf.setLength( raf.length() - bytes );
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class IdentityFilterTest
+{
+    // Past the smallest filter, so that the filter grows
+    private static final int IDENTITIES = 100000;
+
+    @Test
+    public void givenAddedIdentitiesWhenGrowingThenAllAreFoundAndFewOthers()
+    {
+        IdentityFilter filter = new IdentityFilter( 0 );
+        for( int i = 0; i < IDENTITIES; i++ )
+        {
+            filter.add( identity( i ) );
+        }
+
+        for( int i = 0; i < IDENTITIES; i++ )
+        {
+            assertTrue( filter.mightContain( identity( i ) ) );
+        }
+        int falsePositives = 0;
+        for( int i = IDENTITIES; i < 2 * IDENTITIES; i++ )
+        {
+            if( filter.mightContain( identity( i ) ) )
+            {
+                falsePositives++;
+            }
+        }
+        assertTrue( "False positives: " + falsePositives, falsePositives < IDENTITIES * 3 / 100 );
+    }
+
+    @Test
+    public void givenSavedFilterWhenLoadingThenItGivesTheSameAnswers()
+        throws IOException
+    {
+        IdentityFilter filter = new IdentityFilter( 0 );
+        for( int i = 0; i < IDENTITIES; i++ )
+        {
+            filter.add( identity( i ) );
+        }
+        File file = file( "build/qi4j/identityfilter/saved" );
+        filter.save( file );
+
+        IdentityFilter loaded = IdentityFilter.load( file );
+        assertNotNull( loaded );
+        for( int i = 0; i < 2 * IDENTITIES; i++ )
+        {
+            assertEquals( filter.mightContain( identity( i ) ), loaded.mightContain( identity( i ) ) );
+        }
+
+        // Still growing from where it was
+        loaded.add( "added after loading" );
+        assertTrue( loaded.mightContain( "added after loading" ) );
+    }
+
+    @Test
+    public void givenCorruptOrTornFileWhenLoadingThenNoFilterIsLoaded()
+        throws IOException
+    {
+        IdentityFilter filter = new IdentityFilter( 0 );
+        filter.add( "a" );
+        File file = file( "build/qi4j/identityfilter/corrupt" );
+        filter.save( file );
+
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try
+        {
+            raf.seek( 20 );
+            int b = raf.read();
+            raf.seek( 20 );
+            raf.write( b ^ 1 );
+        }
+        finally
+        {
+            raf.close();
+        }
+        assertNull( IdentityFilter.load( file ) );
+
+        filter.save( file );
+        raf = new RandomAccessFile( file, "rw" );
+        try
+        {
+            raf.setLength( raf.length() - 3 );
+        }
+        finally
+        {
+            raf.close();
+        }
+        assertNull( IdentityFilter.load( file ) );
+
+        raf = new RandomAccessFile( file, "rw" );
+        try
+        {
+            raf.setLength( 0 );
+        }
+        finally
+        {
+            raf.close();
+        }
+        assertNull( IdentityFilter.load( file ) );
+    }
+
+    private static String identity( int i )
+    {
+        return UUID.nameUUIDFromBytes( ( "" + i ).getBytes() ).toString();
+    }
+
+    private static File file( String name )
+    {
+        File file = new File( name );
+        file.getParentFile().mkdirs();
+        file.delete();
+        return file;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SliceScanTest
+{
+    private static final int SLICES = 4;
+    private static final int FILES_PER_SLICE = 50;
+    private static final int BATCH_SIZE = 7;
+
+    private static final FilenameFilter JSON_FILES = new FilenameFilter()
+    {
+        public boolean accept( File dir, String name )
+        {
+            return name.endsWith( ".json" );
+        }
+    };
+
+    private final ExecutorService executor = Executors.newFixedThreadPool( SLICES );
+
+    // Counted here, as the readers start before the fields of a scan are set
+    private final AtomicInteger reads = new AtomicInteger();
+
+    @After
+    public void shutdownExecutor()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void givenOrderedScanWhenScanningInParallelThenStatesComeInNameOrder()
+        throws Exception
+    {
+        File[] slices = writeSlices( "build/qi4j/slicescan-ordered" );
+
+        List<String> expected = scanAll( new TestScan( slices, true, null ) );
+        assertEquals( SLICES * FILES_PER_SLICE, expected.size() );
+        for( int i = 1; i < expected.size(); i++ )
+        {
+            assertTrue( expected.get( i - 1 ).compareTo( expected.get( i ) ) < 0 );
+        }
+
+        // Every scan of an unchanged store gives the same result
+        assertEquals( expected, scanAll( new TestScan( slices, true, executor ) ) );
+        assertEquals( expected, scanAll( new TestScan( slices, true, executor ) ) );
+    }
+
+    @Test
+    public void givenUnorderedScanWhenScanningInParallelThenEachStateComesOnce()
+        throws Exception
+    {
+        File[] slices = writeSlices( "build/qi4j/slicescan-unordered" );
+
+        List<String> sequential = scanAll( new TestScan( slices, false, null ) );
+        List<String> parallel = scanAll( new TestScan( slices, false, executor ) );
+        assertEquals( SLICES * FILES_PER_SLICE, parallel.size() );
+        assertEquals( new HashSet<String>( sequential ), new HashSet<String>( parallel ) );
+        assertEquals( parallel.size(), new HashSet<String>( parallel ).size() );
+    }
+
+    @Test
+    public void givenParallelScanWhenClosingEarlyThenReadersStop()
+        throws Exception
+    {
+        File[] slices = writeSlices( "build/qi4j/slicescan-closed" );
+
+        for( boolean ordered : new boolean[]{ true, false } )
+        {
+            reads.set( 0 );
+            TestScan scan = new TestScan( slices, ordered, executor );
+            assertEquals( BATCH_SIZE, scan.next().size() );
+            scan.close();
+
+            // The readers block on the bounded queues until they are cancelled
+            Thread.sleep( 200 );
+            int read = reads.get();
+            Thread.sleep( 200 );
+            assertEquals( read, reads.get() );
+            assertTrue( "Read " + read, read < SLICES * FILES_PER_SLICE );
+        }
+    }
+
+    @Test
+    public void givenUnreadableFileWhenScanningInParallelThenTheErrorIsThrown()
+        throws Exception
+    {
+        File[] slices = writeSlices( "build/qi4j/slicescan-error" );
+
+        TestScan scan = new TestScan( slices, false, executor )
+        {
+            @Override
+            protected byte[] read( File file )
+                throws IOException
+            {
+                if( file.getName().equals( fileName( 2, FILES_PER_SLICE / 2 ) ) )
+                {
+                    throw new IOException( "Unreadable" );
+                }
+                return super.read( file );
+            }
+        };
+        try
+        {
+            scanAll( scan );
+            fail( "The scan ignored the unreadable file" );
+        }
+        catch( IOException e )
+        {
+            assertEquals( "Unreadable", e.getMessage() );
+        }
+    }
+
+    private static List<String> scanAll( StateScan scan )
+        throws IOException
+    {
+        List<String> states = new ArrayList<String>();
+        try
+        {
+            List<byte[]> batch;
+            while( ( batch = scan.next() ) != null )
+            {
+                assertTrue( batch.size() <= BATCH_SIZE );
+                for( byte[] state : batch )
+                {
+                    states.add( new String( state, "UTF-8" ) );
+                }
+            }
+        }
+        finally
+        {
+            scan.close();
+        }
+        return states;
+    }
+
+    /**
+     * Write the slices and their files in reverse name order, with a file the scan skips in each slice.
+     */
+    private static File[] writeSlices( String name )
+        throws IOException
+    {
+        File[] slices = new File[ SLICES ];
+        for( int i = 0; i < SLICES; i++ )
+        {
+            int slice = SLICES - 1 - i;
+            slices[ i ] = emptyDirectory( new File( name, "" + slice ) );
+            for( int file = FILES_PER_SLICE - 1; file >= 0; file-- )
+            {
+                write( new File( slices[ i ], fileName( slice, file ) ), slice + "/" + fileName( slice, file ) );
+            }
+            write( new File( slices[ i ], "skipped.tmp" ), "skipped" );
+        }
+        return slices;
+    }
+
+    private static File emptyDirectory( File directory )
+    {
+        File[] files = directory.listFiles();
+        if( files != null )
+        {
+            for( File file : files )
+            {
+                file.delete();
+            }
+        }
+        directory.mkdirs();
+        return directory;
+    }
+
+    private static String fileName( int slice, int i )
+    {
+        return String.format( "%d-%04d.json", slice, i );
+    }
+
+    private static void write( File file, String content )
+        throws IOException
+    {
+        FileOutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( content.getBytes( "UTF-8" ) );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private class TestScan
+        extends SliceScan
+    {
+        private TestScan( File[] slices, boolean ordered, ExecutorService executor )
+        {
+            super( slices, JSON_FILES, BATCH_SIZE, ordered, executor );
+        }
+
+        @Override
+        protected byte[] read( File file )
+            throws IOException
+        {
+            reads.incrementAndGet();
+            byte[] data = new byte[ (int) file.length() ];
+            DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+            try
+            {
+                in.readFully( data );
+            }
+            finally
+            {
+                in.close();
+            }
+            return data;
+        }
+    }
+}
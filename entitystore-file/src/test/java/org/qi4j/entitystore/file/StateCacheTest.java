@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StateCacheTest
+{
+    // Split over the stripes, so each holds 100 bytes
+    private static final long MAX_BYTES = 16 * 100;
+
+    private static final int STATE_SIZE = 10;
+
+    @Test
+    public void givenCachedStateWhenGettingThenItIsHitAndOthersMiss()
+    {
+        StateCache cache = new StateCache( MAX_BYTES );
+        byte[] state = new byte[ STATE_SIZE ];
+        cache.put( "a", state, cache.stamp( "a" ) );
+
+        assertSame( state, cache.get( "a" ) );
+        assertNull( cache.get( "b" ) );
+        assertEquals( 1, cache.hits() );
+        assertEquals( 1, cache.misses() );
+        assertEquals( STATE_SIZE, cache.residentBytes() );
+    }
+
+    @Test
+    public void givenMoreStatesThanFitWhenPuttingThenBytesStayBoundedAndRecentlyReadStatesStay()
+    {
+        StateCache cache = new StateCache( MAX_BYTES );
+        byte[] kept = new byte[ STATE_SIZE ];
+        cache.put( "kept", kept, cache.stamp( "kept" ) );
+        for( int i = 0; i < 1000; i++ )
+        {
+            String identity = "entity-" + i;
+            cache.put( identity, new byte[ STATE_SIZE ], cache.stamp( identity ) );
+            assertSame( kept, cache.get( "kept" ) );
+            assertTrue( cache.residentBytes() <= MAX_BYTES );
+        }
+        assertTrue( cache.evictions() > 0 );
+        assertEquals( 1001 - cache.evictions(), cache.residentBytes() / STATE_SIZE );
+    }
+
+    @Test
+    public void givenStateLargerThanItsStripeWhenPuttingThenItIsNotCached()
+    {
+        StateCache cache = new StateCache( MAX_BYTES );
+        cache.put( "a", new byte[ 101 ], cache.stamp( "a" ) );
+
+        assertNull( cache.get( "a" ) );
+        assertEquals( 0, cache.residentBytes() );
+        assertEquals( 0, cache.evictions() );
+    }
+
+    @Test
+    public void givenStateReplacedWhileReadingWhenPuttingThenItIsNotCached()
+    {
+        StateCache cache = new StateCache( MAX_BYTES );
+
+        // A reader missed the cache and read the file, then a writer replaced it
+        long stamp = cache.stamp( "a" );
+        cache.invalidate( "a" );
+        cache.put( "a", new byte[ STATE_SIZE ], stamp );
+
+        assertNull( cache.get( "a" ) );
+        assertEquals( 0, cache.residentBytes() );
+
+        // Read after the replacement
+        byte[] current = new byte[ STATE_SIZE ];
+        cache.put( "a", current, cache.stamp( "a" ) );
+        assertSame( current, cache.get( "a" ) );
+
+        cache.invalidate( "a" );
+        assertNull( cache.get( "a" ) );
+        assertEquals( 0, cache.residentBytes() );
+    }
+}
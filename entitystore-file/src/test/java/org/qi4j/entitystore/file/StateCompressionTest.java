@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StateCompressionTest
+{
+    @Test
+    public void givenNoDictionaryWhenCompressingThenStatesRoundTrip()
+        throws IOException
+    {
+        StateCompression compression = new StateCompression( emptyDirectory( "build/qi4j/compression-plain" ) );
+        assertFalse( compression.isTrained() );
+
+        byte[] state = state( 1 );
+        byte[] compressed = compression.compress( state );
+        assertEquals( 0, compressed[ 0 ] );
+        assertTrue( compressed.length < state.length );
+        assertArrayEquals( state, compression.decompress( compressed ) );
+
+        // Too short to get any smaller, and passed through as it is
+        byte[] tiny = "{}".getBytes( "UTF-8" );
+        assertSame( tiny, compression.compress( tiny ) );
+        assertSame( tiny, compression.decompress( tiny ) );
+    }
+
+    @Test
+    public void givenEnoughWrittenStatesWhenTrainingThenStatesGetSmallerAndOldOnesStillRoundTrip()
+        throws IOException
+    {
+        File directory = emptyDirectory( "build/qi4j/compression-trained" );
+        StateCompression compression = new StateCompression( directory );
+        List<byte[]> untrained = new ArrayList<byte[]>();
+        for( int i = 0; i < StateCompression.MIN_SAMPLES - 1; i++ )
+        {
+            untrained.add( compression.compress( state( i ) ) );
+        }
+        assertFalse( compression.trainIfDue() );
+        untrained.add( compression.compress( state( StateCompression.MIN_SAMPLES - 1 ) ) );
+        assertTrue( compression.trainIfDue() );
+        assertTrue( compression.isTrained() );
+
+        // Not trained again until many more states have been written
+        assertFalse( compression.trainIfDue() );
+
+        byte[] state = state( StateCompression.MIN_SAMPLES );
+        byte[] trained = compression.compress( state );
+        assertTrue( trained.length + " bytes with the dictionary, " + untrained.get( 0 ).length + " without",
+                    trained.length < untrained.get( 0 ).length );
+        assertArrayEquals( state, compression.decompress( trained ) );
+        for( int i = 0; i < untrained.size(); i++ )
+        {
+            assertArrayEquals( state( i ), compression.decompress( untrained.get( i ) ) );
+        }
+
+        // Another dictionary keeps the states of the ones before readable, also after reopening
+        List<byte[]> samples = new ArrayList<byte[]>();
+        for( int i = 0; i < StateCompression.MIN_SAMPLES; i++ )
+        {
+            samples.add( state( i ) );
+        }
+        compression.train( samples );
+        byte[] retrained = compression.compress( state );
+        StateCompression reopened = new StateCompression( directory );
+        assertTrue( reopened.isTrained() );
+        assertArrayEquals( state, reopened.decompress( trained ) );
+        assertArrayEquals( state, reopened.decompress( retrained ) );
+        assertArrayEquals( state( 0 ), reopened.decompress( untrained.get( 0 ) ) );
+    }
+
+    @Test
+    public void givenMissingDictionaryWhenDecompressingThenItFails()
+        throws IOException
+    {
+        File directory = emptyDirectory( "build/qi4j/compression-missing" );
+        StateCompression compression = new StateCompression( directory );
+        List<byte[]> samples = new ArrayList<byte[]>();
+        for( int i = 0; i < StateCompression.MIN_SAMPLES; i++ )
+        {
+            samples.add( state( i ) );
+        }
+        compression.train( samples );
+        byte[] compressed = compression.compress( state( 0 ) );
+
+        for( File file : directory.listFiles() )
+        {
+            assertTrue( file.delete() );
+        }
+        try
+        {
+            new StateCompression( directory ).decompress( compressed );
+            fail( "Decompressed without the dictionary" );
+        }
+        catch( IOException e )
+        {
+            // Expected
+        }
+    }
+
+    private static byte[] state( int i )
+        throws IOException
+    {
+        return ( "{\"identity\":\"" + i + "\",\"version\":\"" + ( i * 7 ) + "\",\"modified\":" + ( 1300000000000L + i )
+                 + ",\"type\":\"org.qi4j.test.entity.AbstractEntityStoreTest$TestEntity\","
+                 + "\"properties\":{\"name\":\"Test " + i + "\",\"description\":\"Entity number " + i + "\","
+                 + "\"enumProperty\":\"VALUE1\"},\"associations\":{\"association\":null},"
+                 + "\"manyassociations\":{\"manyAssociation\":[]}}" ).getBytes( "UTF-8" );
+    }
+
+    private static File emptyDirectory( String name )
+    {
+        File directory = new File( name );
+        File[] files = directory.listFiles();
+        if( files != null )
+        {
+            for( File file : files )
+            {
+                file.delete();
+            }
+        }
+        directory.mkdirs();
+        return directory;
+    }
+}
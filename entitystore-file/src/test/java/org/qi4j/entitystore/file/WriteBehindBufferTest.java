@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.file;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindBufferTest
+{
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void shutdownExecutor()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void givenStagedChangesWhenFlushingThenTheLastStatesAreWrittenAndServedUntilThen()
+        throws IOException
+    {
+        TestBuffer buffer = new TestBuffer( 1024 * 1024 );
+        buffer.stage( batch( "a", "a1", "b", "b1" ) );
+        buffer.stage( batch( "a", "a2", "b", null ) );
+
+        assertArrayEquals( bytes( "a2" ), buffer.lookup( "a" ) );
+        assertSame( WriteBehindBuffer.REMOVED, buffer.lookup( "b" ) );
+        assertNull( buffer.lookup( "c" ) );
+        assertTrue( buffer.written.isEmpty() );
+
+        buffer.flush();
+        assertEquals( 1, buffer.written.size() );
+        assertArrayEquals( bytes( "a2" ), buffer.written.get( 0 ).get( "a" ) );
+        assertTrue( buffer.written.get( 0 ).containsKey( "b" ) );
+        assertNull( buffer.written.get( 0 ).get( "b" ) );
+        assertNull( buffer.lookup( "a" ) );
+        assertNull( buffer.lookup( "b" ) );
+
+        // Nothing left to write
+        buffer.flush();
+        assertEquals( 1, buffer.written.size() );
+    }
+
+    @Test
+    public void givenFullBufferWhenStagingThenItWaitsForAFlush()
+        throws IOException
+    {
+        // Room for one entry
+        TestBuffer buffer = new TestBuffer( 100 );
+        buffer.stage( batch( "a", "a1" ) );
+        buffer.stage( batch( "b", "b1" ) );
+        assertEquals( 1, buffer.written.size() );
+        assertArrayEquals( bytes( "a1" ), buffer.written.get( 0 ).get( "a" ) );
+        assertArrayEquals( bytes( "b1" ), buffer.lookup( "b" ) );
+
+        // Flushed in the staging thread once the executor stops
+        executor.shutdown();
+        buffer.stage( batch( "c", "c1" ) );
+        assertEquals( 2, buffer.written.size() );
+        assertArrayEquals( bytes( "b1" ), buffer.written.get( 1 ).get( "b" ) );
+    }
+
+    @Test
+    public void givenFailingFlushWhenStagingThenItFailsUntilAFlushSucceedsWithTheLatestStates()
+        throws IOException
+    {
+        TestBuffer buffer = new TestBuffer( 1024 * 1024 )
+        {
+            private boolean failed;
+
+            @Override
+            protected void write( Map<String, byte[]> batch )
+                throws IOException
+            {
+                if( !failed )
+                {
+                    failed = true;
+                    // Changed again while the flush was writing
+                    stage( batch( "a", "a2" ) );
+                    throw new IOException( "Disk full" );
+                }
+                super.write( batch );
+            }
+        };
+        buffer.stage( batch( "a", "a1", "b", "b1" ) );
+        try
+        {
+            buffer.flush();
+            fail( "The flush did not fail" );
+        }
+        catch( IOException e )
+        {
+            assertEquals( "Disk full", e.getMessage() );
+        }
+
+        // Still served, and committers learn that their changes are not written
+        assertArrayEquals( bytes( "a2" ), buffer.lookup( "a" ) );
+        assertArrayEquals( bytes( "b1" ), buffer.lookup( "b" ) );
+        try
+        {
+            buffer.stage( batch( "c", "c1" ) );
+            fail( "Staged after a failed flush" );
+        }
+        catch( IOException e )
+        {
+            assertEquals( "Disk full", e.getCause().getMessage() );
+        }
+
+        buffer.flush();
+        assertEquals( 1, buffer.written.size() );
+        assertEquals( 2, buffer.written.get( 0 ).size() );
+        assertArrayEquals( bytes( "a2" ), buffer.written.get( 0 ).get( "a" ) );
+        assertArrayEquals( bytes( "b1" ), buffer.written.get( 0 ).get( "b" ) );
+        buffer.stage( batch( "c", "c1" ) );
+        assertArrayEquals( bytes( "c1" ), buffer.lookup( "c" ) );
+    }
+
+    private static Map<String, byte[]> batch( String... identitiesAndStates )
+        throws IOException
+    {
+        Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+        for( int i = 0; i < identitiesAndStates.length; i += 2 )
+        {
+            batch.put( identitiesAndStates[ i ],
+                       identitiesAndStates[ i + 1 ] == null ? null : bytes( identitiesAndStates[ i + 1 ] ) );
+        }
+        return batch;
+    }
+
+    private static byte[] bytes( String state )
+        throws IOException
+    {
+        return state.getBytes( "UTF-8" );
+    }
+
+    private class TestBuffer
+        extends WriteBehindBuffer
+    {
+        private final List<Map<String, byte[]>> written =
+            Collections.synchronizedList( new ArrayList<Map<String, byte[]>>() );
+
+        private TestBuffer( long maxBytes )
+        {
+            super( maxBytes, executor );
+        }
+
+        @Override
+        protected void write( Map<String, byte[]> batch )
+            throws IOException
+        {
+            written.add( new LinkedHashMap<String, byte[]>( batch ) );
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.jdbm;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+
+/**
+ * Forces directories to disk.
+ * <p>
+ * Creating, renaming and deleting a file changes the directory that holds it, and forcing the file itself does not
+ * make that change durable. Until the directory is forced, a crash can bring back the old entry.
+ * </p>
+ * <p>
+ * Java 6 has no way to open a directory, so the channel is opened through the Java 7 file API when the runtime has
+ * it, and directories are not forced otherwise.
+ * </p>
+ */
+final class DirectorySync
+{
+   // FileChannel.open(Path, OpenOption...) and File.toPath(), null if the runtime does not have them
+   private static final Method OPEN;
+   private static final Method TO_PATH;
+   private static final Object READ_OPTIONS;
+
+   static
+   {
+      Method open = null;
+      Method toPath = null;
+      Object readOptions = null;
+      // Directories cannot be opened on Windows, where the file system makes directory changes durable by itself
+      if (File.separatorChar == '/')
+      {
+         try
+         {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> optionClass = Class.forName("java.nio.file.OpenOption");
+            Class<?> standardOptionClass = Class.forName("java.nio.file.StandardOpenOption");
+            readOptions = Array.newInstance(optionClass, 1);
+            Array.set(readOptions, 0, standardOptionClass.getField("READ").get(null));
+            open = FileChannel.class.getMethod("open", pathClass, readOptions.getClass());
+            toPath = File.class.getMethod("toPath");
+         } catch (Exception e)
+         {
+            open = null;
+            toPath = null;
+         }
+      }
+      OPEN = open;
+      TO_PATH = toPath;
+      READ_OPTIONS = readOptions;
+   }
+
+   private DirectorySync()
+   {
+   }
+
+   /**
+    * Force the entries of a directory to disk.
+    *
+    * @param directory the directory
+    *
+    * @throws IOException if the directory could not be forced
+    */
+   public static void force(File directory)
+           throws IOException
+   {
+      if (OPEN == null)
+      {
+         return;
+      }
+      FileChannel channel;
+      try
+      {
+         channel = (FileChannel) OPEN.invoke(null, TO_PATH.invoke(directory), READ_OPTIONS);
+      } catch (InvocationTargetException e)
+      {
+         if (e.getCause() instanceof IOException)
+         {
+            throw (IOException) e.getCause();
+         }
+         IOException exception = new IOException("Could not open directory " + directory);
+         exception.initCause(e.getCause());
+         throw exception;
+      } catch (IllegalAccessException e)
+      {
+         throw new IllegalStateException(e);
+      }
+      try
+      {
+         channel.force(true);
+      } finally
+      {
+         channel.close();
+      }
+   }
+}
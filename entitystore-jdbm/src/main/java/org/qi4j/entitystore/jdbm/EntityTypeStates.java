@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.jdbm;
+
+import org.qi4j.io.Input;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Scans of the entities of given types, through an index by entity type, so that reading the entities of a type
+ * does not involve reading every entity in the store.
+ */
+public interface EntityTypeStates
+{
+   /**
+    * The index is read in chunks, so an entity that changes during the scan is delivered as it is when its chunk
+    * is read.
+    *
+    * @param typeNames the class names of the entity types
+    * @return the states of the entities of the given types, type by type
+    */
+   Input<Reader, IOException> entityStatesOfTypes(String... typeNames);
+}
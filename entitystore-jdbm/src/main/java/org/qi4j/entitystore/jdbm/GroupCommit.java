@@ -0,0 +1,209 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.jdbm;
+
+import org.qi4j.spi.entitystore.helpers.MapEntityStore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Group commit of change sets, so that concurrent committers share one transaction.
+ * <p/>
+ * Committers queue their change sets and wait. A single committer thread takes everything that has been queued,
+ * up to the maximum group size, and commits it as one group. While a group is being committed the next one is
+ * queued, so the more committers there are, the larger the groups and the fewer the transactions. If a group
+ * fails, its change sets are committed one by one, so that only the committers of failing change sets get an error.
+ * {@link #commit(List)} must therefore leave the store as it was before the group when it fails.
+ */
+abstract class GroupCommit
+{
+   // Queued by stop, after which nothing is committed
+   private static final Pending STOP = new Pending(null);
+
+   private final int maxGroupSize;
+   private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+   private final Thread committer;
+   private boolean stopped;
+
+   GroupCommit(String name, int maxGroupSize)
+   {
+      this.maxGroupSize = maxGroupSize;
+      committer = new Thread(new Runnable()
+      {
+         public void run()
+         {
+            commitQueued();
+         }
+      }, name);
+      committer.setDaemon(true);
+   }
+
+   /**
+    * Commit a group of change sets in one transaction, or none of them.
+    *
+    * @param group the change sets, in the order they were queued
+    * @throws IOException if the group could not be committed
+    */
+   protected abstract void commit(List<MapEntityStore.MapChanges> group)
+           throws IOException;
+
+   public void start()
+   {
+      committer.start();
+   }
+
+   /**
+    * Stop the committer thread once the queued change sets have been committed.
+    */
+   public void stop()
+           throws InterruptedException
+   {
+      synchronized (this)
+      {
+         stopped = true;
+         queue.add(STOP);
+      }
+      committer.join();
+   }
+
+   /**
+    * Queue a change set, and wait until its group has been committed.
+    *
+    * @param changes the change set
+    * @throws IOException if the change set could not be committed
+    */
+   public void apply(MapEntityStore.MapChanges changes)
+           throws IOException
+   {
+      Pending pending = new Pending(changes);
+      synchronized (this)
+      {
+         if (stopped)
+         {
+            throw new IOException("Store is not active");
+         }
+         queue.add(pending);
+      }
+      try
+      {
+         pending.done.await();
+      } catch (InterruptedException e)
+      {
+         // The change set may still be committed
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while waiting for commit");
+      }
+
+      if (pending.failure instanceof IOException)
+      {
+         throw (IOException) pending.failure;
+      } else if (pending.failure instanceof RuntimeException)
+      {
+         throw (RuntimeException) pending.failure;
+      } else if (pending.failure instanceof Error)
+      {
+         throw (Error) pending.failure;
+      }
+   }
+
+   private void commitQueued()
+   {
+      List<Pending> group = new ArrayList<Pending>(maxGroupSize);
+      boolean stopping = false;
+      while (!stopping)
+      {
+         try
+         {
+            group.add(queue.take());
+         } catch (InterruptedException e)
+         {
+            continue;
+         }
+         queue.drainTo(group, maxGroupSize - 1);
+
+         // What was queued before stop is still committed
+         stopping = group.remove(STOP);
+         if (!group.isEmpty())
+         {
+            commitGroup(group);
+         }
+         group.clear();
+      }
+   }
+
+   private void commitGroup(List<Pending> group)
+   {
+      List<MapEntityStore.MapChanges> changes = new ArrayList<MapEntityStore.MapChanges>(group.size());
+      for (Pending pending : group)
+      {
+         changes.add(pending.changes);
+      }
+
+      try
+      {
+         commit(changes);
+         for (Pending pending : group)
+         {
+            pending.complete(null);
+         }
+      } catch (Throwable e)
+      {
+         if (group.size() == 1)
+         {
+            group.get(0).complete(e);
+            return;
+         }
+
+         // Find the change sets that failed the group
+         for (Pending pending : group)
+         {
+            try
+            {
+               commit(Collections.singletonList(pending.changes));
+               pending.complete(null);
+            } catch (Throwable failure)
+            {
+               pending.complete(failure);
+            }
+         }
+      }
+   }
+
+   private static class Pending
+   {
+      private final MapEntityStore.MapChanges changes;
+      private final CountDownLatch done = new CountDownLatch(1);
+      private Throwable failure;
+
+      private Pending(MapEntityStore.MapChanges changes)
+      {
+         this.changes = changes;
+      }
+
+      private void complete(Throwable failure)
+      {
+         this.failure = failure;
+         done.countDown();
+      }
+   }
+}
@@ -0,0 +1,230 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.jdbm;
+
+import jdbm.helper.ByteArrayComparator;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External merge sort of index entries, for building an index in key order.
+ * <p/>
+ * Entries are collected in memory, and each time the maximum is reached they are sorted and written to a temporary
+ * run file. The runs are then merged, so that memory use is bounded by the maximum and one entry per run. Entries
+ * with equal keys are returned in the order they were added.
+ */
+class IndexSorter
+{
+   private static final ByteArrayComparator KEY_COMPARATOR = new ByteArrayComparator();
+
+   private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>()
+   {
+      public int compare(Entry first, Entry second)
+      {
+         int result = KEY_COMPARATOR.compare(first.key, second.key);
+         if (result == 0)
+         {
+            result = first.order < second.order ? -1 : (first.order > second.order ? 1 : 0);
+         }
+         return result;
+      }
+   };
+
+   private final int maxEntries;
+   private final List<File> runFiles = new ArrayList<File>();
+   private List<Entry> buffer = new ArrayList<Entry>();
+   private long order;
+
+   private PriorityQueue<Run> runs;
+
+   IndexSorter(int maxEntries)
+   {
+      this.maxEntries = maxEntries;
+   }
+
+   public void add(byte[] key, long value)
+           throws IOException
+   {
+      buffer.add(new Entry(key, value, order++));
+      if (buffer.size() >= maxEntries)
+      {
+         spill();
+      }
+   }
+
+   /**
+    * @return the next entry in key order, or null when all entries have been returned
+    */
+   public Entry next()
+           throws IOException
+   {
+      if (runs == null)
+      {
+         merge();
+      }
+      Run run = runs.poll();
+      if (run == null)
+      {
+         return null;
+      }
+      Entry entry = run.current;
+      if (run.advance())
+      {
+         runs.add(run);
+      }
+      return entry;
+   }
+
+   /**
+    * Delete the run files.
+    */
+   public void close()
+   {
+      if (runs != null)
+      {
+         for (Run run : runs)
+         {
+            run.close();
+         }
+      }
+      for (File runFile : runFiles)
+      {
+         runFile.delete();
+      }
+   }
+
+   private void spill()
+           throws IOException
+   {
+      Collections.sort(buffer, ENTRY_COMPARATOR);
+      File runFile = File.createTempFile("restorejdbm", ".run");
+      runFiles.add(runFile);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), 65536));
+      try
+      {
+         for (Entry entry : buffer)
+         {
+            out.writeInt(entry.key.length);
+            out.write(entry.key);
+            out.writeLong(entry.value);
+            out.writeLong(entry.order);
+         }
+      } finally
+      {
+         out.close();
+      }
+      buffer = new ArrayList<Entry>();
+   }
+
+   private void merge()
+           throws IOException
+   {
+      runs = new PriorityQueue<Run>(runFiles.size() + 1, new Comparator<Run>()
+      {
+         public int compare(Run first, Run second)
+         {
+            return ENTRY_COMPARATOR.compare(first.current, second.current);
+         }
+      });
+
+      // The last entries need not be written, they are merged from memory
+      Collections.sort(buffer, ENTRY_COMPARATOR);
+      Run memoryRun = new Run(null, buffer);
+      if (memoryRun.advance())
+      {
+         runs.add(memoryRun);
+      }
+      for (File runFile : runFiles)
+      {
+         Run run = new Run(new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), 65536)), null);
+         if (run.advance())
+         {
+            runs.add(run);
+         }
+      }
+      buffer = null;
+   }
+
+   static class Entry
+   {
+      final byte[] key;
+      final long value;
+      private final long order;
+
+      private Entry(byte[] key, long value, long order)
+      {
+         this.key = key;
+         this.value = value;
+         this.order = order;
+      }
+   }
+
+   private static class Run
+   {
+      private final DataInputStream in;
+      private final List<Entry> entries;
+      private int position;
+      private Entry current;
+
+      private Run(DataInputStream in, List<Entry> entries)
+      {
+         this.in = in;
+         this.entries = entries;
+      }
+
+      private boolean advance()
+              throws IOException
+      {
+         if (entries != null)
+         {
+            current = position < entries.size() ? entries.get(position++) : null;
+         } else
+         {
+            try
+            {
+               byte[] key = new byte[in.readInt()];
+               in.readFully(key);
+               long value = in.readLong();
+               current = new Entry(key, value, in.readLong());
+            } catch (EOFException e)
+            {
+               close();
+               current = null;
+            }
+         }
+         return current != null;
+      }
+
+      private void close()
+      {
+         if (in != null)
+         {
+            try
+            {
+               in.close();
+            } catch (IOException e)
+            {
+               // Ignore
+            }
+         }
+      }
+   }
+}
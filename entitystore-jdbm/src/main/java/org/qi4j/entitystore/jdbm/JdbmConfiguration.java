@@ -28,4 +28,102 @@ public interface JdbmConfiguration
 
    @UseDefaults
    Property<Boolean> disableTransactions();
+
+   /**
+    * The number of objects, mostly index pages, kept by the JDBM object cache.
+    * <p/>
+    * Default: 1000
+    *
+    * @return number of objects in the JDBM object cache
+    */
+   @Optional
+   Property<Integer> pageCacheSize();
+
+   /**
+    * The size in megabytes of the cache of serialized entity states, in front of the JDBM object cache.
+    * <p/>
+    * Default: 4. Zero disables the cache.
+    *
+    * @return size of the entity state cache in megabytes
+    */
+   @Optional
+   Property<Integer> cacheSize();
+
+   /**
+    * The eviction policy of the entity state cache.
+    * <p/>
+    * Default: LRU
+    *
+    * @return the eviction policy
+    */
+   @Optional
+   Property<CachePolicy> cachePolicy();
+
+   /**
+    * The maximum number of concurrent change sets that are committed together in one transaction.
+    * <p/>
+    * Default: 64. One commits every change set in its own transaction.
+    *
+    * @return maximum number of change sets per transaction
+    */
+   @Optional
+   Property<Integer> commitGroupSize();
+
+   /**
+    * The number of index entries read under the lock at a time, when scanning all entities.
+    * <p/>
+    * Default: 100
+    *
+    * @return number of entities per scan chunk
+    */
+   @Optional
+   Property<Integer> scanChunkSize();
+
+   /**
+    * Whether the records of each scan chunk are fetched in record id order instead of identity order, which turns
+    * the random reads of a scan into mostly sequential ones. The entities are then delivered in no particular order.
+    *
+    * @return true to fetch the records of a scan in record id order
+    */
+   @UseDefaults
+   Property<Boolean> scanRecordOrder();
+
+   /**
+    * The number of seconds between checks whether the data file has grown enough to be compacted.
+    * <p/>
+    * Default: no checks, the data file is only compacted on request
+    *
+    * @return seconds between compaction checks
+    */
+   @Optional
+   Property<Integer> compactionInterval();
+
+   /**
+    * How much the data file may grow since it was last compacted, or since the store was activated, before it is
+    * compacted by the periodic checks.
+    * <p/>
+    * Default: 100
+    *
+    * @return the growth of the data file in percent that triggers compaction
+    */
+   @Optional
+   Property<Integer> compactionGrowth();
+
+   enum CachePolicy
+   {
+      /**
+       * Evict the least recently used states.
+       */
+      LRU,
+
+      /**
+       * Evict the least recently used states, and let the garbage collector clear states when memory runs low.
+       */
+      SOFT,
+
+      /**
+       * Keep the states that are read more than once in a protected segment, so that scans do not evict them.
+       */
+      FREQUENCY
+   }
 }
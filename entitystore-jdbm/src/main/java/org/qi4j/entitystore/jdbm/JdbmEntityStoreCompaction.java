@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.jdbm;
+
+import java.io.IOException;
+
+/**
+ * Online compaction of the JDBM data file.
+ * <p/>
+ * Deleted and updated records leave free space in the data file, which JDBM does not give back. Compaction copies
+ * the live entities to a new file while the store stays in use, catches up with the changes made during the copy,
+ * and then replaces the data file, which is the only step that blocks readers and writers.
+ */
+public interface JdbmEntityStoreCompaction
+{
+   /**
+    * Compact the data file now.
+    *
+    * @return the number of bytes by which the data file shrank
+    * @throws IOException if the data file could not be compacted, in which case it is left as it was
+    */
+   long compact()
+           throws IOException;
+
+   /**
+    * @return the size of the data file in bytes
+    */
+   long databaseSize();
+}
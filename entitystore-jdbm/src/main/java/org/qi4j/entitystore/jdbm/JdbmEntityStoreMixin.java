@@ -23,6 +23,9 @@ import jdbm.Serializer;
 import jdbm.btree.BTree;
 import jdbm.helper.*;
 import jdbm.recman.CacheRecordManager;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.qi4j.api.common.Optional;
 import org.qi4j.api.configuration.Configuration;
 import org.qi4j.api.entity.EntityDescriptor;
@@ -38,22 +41,44 @@ import org.qi4j.io.Receiver;
 import org.qi4j.io.Sender;
 import org.qi4j.library.fileconfig.FileConfiguration;
 import org.qi4j.library.locking.ReadLock;
-import org.qi4j.library.locking.WriteLock;
 import org.qi4j.spi.entitystore.BackupRestore;
 import org.qi4j.spi.entitystore.EntityNotFoundException;
 import org.qi4j.spi.entitystore.EntityStoreException;
 import org.qi4j.spi.entitystore.helpers.MapEntityStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 
 /**
  * JDBM implementation of SerializationStore
  */
 public class JdbmEntityStoreMixin
-        implements Activatable, MapEntityStore, BackupRestore
+        implements Activatable, MapEntityStore, BackupRestore, IncrementalBackupRestore, JdbmEntityStoreStatistics,
+                   JdbmEntityStoreCompaction, EntityTypeStates
 {
+   private static final Logger LOGGER = LoggerFactory.getLogger(JdbmEntityStoreMixin.class);
+
+   // The end of the item that stands for a removed entity in an incremental backup
+   private static final String REMOVED = ",\"removed\":true}";
+
    @Optional
    @Service
    FileConfiguration fileConfiguration;
@@ -68,21 +93,94 @@ public class JdbmEntityStoreMixin
    private BTree index;
    private Serializer serializer;
 
+   // Null if there is no entity state cache
+   private RecordCache cache;
+
+   // Record ids by entity type and identity, for scans of given types
+   private BTree typeIndex;
+
+   // Identities by change sequence, for incremental backups
+   private BTree changeIndex;
+   private long changeSequence;
+   private long changeSequenceRecid;
+
+   // Changes up to this sequence are no longer in the change index, because they were discarded or restored over
+   private long discardedSequence;
+   private long discardedSequenceRecid;
+
    @This
    ReadWriteLock lock;
 
+   // Scans that are running, and need the states of the entities they have not reached yet preserved
+   private final List<Snapshot> snapshots = new CopyOnWriteArrayList<Snapshot>();
+
+   // Commits the change sets of concurrent callers together
+   private GroupCommit groupCommit;
+
+   // Set if the indexes could not be reloaded after a rollback, after which nothing is changed until reactivation
+   private IOException reloadFailure;
+
+   // Null unless the growth of the data file is checked periodically
+   private ScheduledExecutorService compactionExecutor;
+   private volatile long compactedSize;
+
    // Activatable implementation
 
    @SuppressWarnings({"ResultOfMethodCallIgnored"})
    public void activate()
            throws Exception
    {
+      finishSwap();
       initialize();
+
+      Integer commitGroupSize = config.configuration().commitGroupSize().get();
+      groupCommit = new GroupCommit("jdbm-commit-" + descriptor.identity(), commitGroupSize == null ? 64 : commitGroupSize)
+      {
+         @Override
+         protected void commit(List<MapChanges> group)
+                 throws IOException
+         {
+            JdbmEntityStoreMixin.this.commit(group);
+         }
+      };
+      groupCommit.start();
+
+      compactedSize = databaseSize();
+      Integer compactionInterval = config.configuration().compactionInterval().get();
+      if (compactionInterval != null)
+      {
+         Integer growthConfig = config.configuration().compactionGrowth().get();
+         final int growth = growthConfig == null ? 100 : growthConfig;
+         compactionExecutor = Executors.newSingleThreadScheduledExecutor();
+         compactionExecutor.scheduleWithFixedDelay(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  if (databaseSize() > compactedSize * (100 + growth) / 100)
+                  {
+                     compact();
+                  }
+               } catch (IOException e)
+               {
+                  LOGGER.warn("Could not compact " + getDatabaseName(), e);
+               }
+            }
+         }, compactionInterval, compactionInterval, TimeUnit.SECONDS);
+      }
    }
 
    public void passivate()
            throws Exception
    {
+      if (compactionExecutor != null)
+      {
+         compactionExecutor.shutdownNow();
+         compactionExecutor.awaitTermination(60, TimeUnit.SECONDS);
+         compactionExecutor = null;
+      }
+      groupCommit.stop();
       recordManager.close();
    }
 
@@ -99,29 +197,63 @@ public class JdbmEntityStoreMixin
             throw new EntityNotFoundException(entityReference);
          }
 
-         byte[] serializedState = (byte[]) recordManager.fetch(stateIndex, serializer);
-
+         byte[] serializedState = cache == null ? null : cache.get(stateIndex);
          if (serializedState == null)
          {
-            throw new EntityNotFoundException(entityReference);
+            serializedState = (byte[]) recordManager.fetch(stateIndex, serializer);
+
+            if (serializedState == null)
+            {
+               throw new EntityNotFoundException(entityReference);
+            }
+
+            if (cache != null)
+            {
+               cache.put(stateIndex, serializedState);
+            }
          }
 
-         return new StringReader(new String(serializedState, "UTF-8"));
+         // Decode straight from the record buffer, without an intermediate String
+         return new ByteBufferReader(ByteBuffer.wrap(serializedState));
       } catch (IOException e)
       {
          throw new EntityStoreException(e);
       }
    }
 
-   @WriteLock
    public void applyChanges(MapChanges changes)
            throws IOException
    {
+      // Not under the write lock of the caller, the committer thread takes it for the whole group
+      groupCommit.apply(changes);
+   }
+
+   /**
+    * Apply a group of change sets in one transaction.
+    */
+   private void commit(List<MapChanges> group)
+           throws IOException
+   {
+      lock.writeLock().lock();
+      try
+      {
+         commitLocked(group);
+      } finally
+      {
+         lock.writeLock().unlock();
+      }
+   }
+
+   private void commitLocked(List<MapChanges> group)
+           throws IOException
+   {
+      checkIndexes();
+      long sequenceBefore = changeSequence;
       try
       {
-         changes.visitMap(new MapChanger()
+         MapChanger changer = new MapChanger()
          {
-            public Writer newEntity(final EntityReference ref, EntityDescriptor descriptor)
+            public Writer newEntity(final EntityReference ref, final EntityDescriptor descriptor)
                     throws IOException
             {
                return new StringWriter(1000)
@@ -133,9 +265,12 @@ public class JdbmEntityStoreMixin
                      super.close();
 
                      byte[] stateArray = toString().getBytes("UTF-8");
+                     preserve(ref.toString(), null);
                      long stateIndex = recordManager.insert(stateArray, serializer);
                      String indexKey = ref.toString();
                      index.insert(indexKey.getBytes("UTF-8"), stateIndex, false);
+                     typeIndex.insert(typeKey(descriptor.type().getName(), indexKey), stateIndex, true);
+                     journal(indexKey);
                   }
                };
             }
@@ -153,7 +288,10 @@ public class JdbmEntityStoreMixin
 
                      Long stateIndex = getStateIndex(ref.toString());
                      byte[] stateArray = toString().getBytes("UTF-8");
+                     preserve(ref.toString(), stateIndex);
+                     invalidate(stateIndex);
                      recordManager.update(stateIndex, stateArray, serializer);
+                     journal(ref.toString());
                   }
                };
             }
@@ -164,19 +302,29 @@ public class JdbmEntityStoreMixin
                try
                {
                   Long stateIndex = getStateIndex(ref.toString());
+                  preserve(ref.toString(), stateIndex);
+                  invalidate(stateIndex);
                   recordManager.delete(stateIndex);
                   index.remove(ref.toString().getBytes("UTF-8"));
+                  typeIndex.remove(typeKey(descriptor.type().getName(), ref.toString()));
+                  journal(ref.toString());
                } catch (IOException e)
                {
                   throw new EntityStoreException(e);
                }
             }
-         });
+         };
+         for (MapChanges changes : group)
+         {
+            changes.visitMap(changer);
+         }
 
+         recordManager.update(changeSequenceRecid, changeSequence);
          recordManager.commit();
       } catch (Exception e)
       {
-         recordManager.rollback();
+         changeSequence = sequenceBefore;
+         rollback();
          if (e instanceof IOException)
          {
             throw (IOException) e;
@@ -199,44 +347,73 @@ public class JdbmEntityStoreMixin
          @Override
          public <ReceiverThrowableType extends Throwable> void transferTo(Output<? super Reader, ReceiverThrowableType> output) throws IOException, ReceiverThrowableType
          {
-            lock.writeLock().lock();
-
-            try
+            output.receiveFrom(new Sender<Reader, IOException>()
             {
-               output.receiveFrom(new Sender<Reader, IOException>()
+               @Override
+               public <ReceiverThrowableType extends Throwable> void sendTo(Receiver<? super Reader, ReceiverThrowableType> receiver) throws ReceiverThrowableType, IOException
                {
-                  @Override
-                  public <ReceiverThrowableType extends Throwable> void sendTo(Receiver<? super Reader, ReceiverThrowableType> receiver) throws ReceiverThrowableType, IOException
+                  // Writers are only blocked while each chunk is read
+                  Snapshot snapshot = new Snapshot();
+                  try
                   {
-                     final TupleBrowser browser = index.browse();
-                     final Tuple tuple = new Tuple();
-
-                     while (browser.getNext(tuple))
+                     List<byte[]> states;
+                     while ((states = snapshot.next()) != null)
                      {
-                        String id = new String((byte[]) tuple.getKey(), "UTF-8");
-
-                        Long stateIndex = getStateIndex(id);
-
-                        if (stateIndex == null)
+                        for (byte[] serializedState : states)
                         {
-                           continue;
-                        } // Skip this one
-
-                        byte[] serializedState = (byte[]) recordManager.fetch(stateIndex, serializer);
-
-                        receiver.receive(new StringReader(new String(serializedState, "UTF-8")));
+                           receiver.receive(new ByteBufferReader(ByteBuffer.wrap(serializedState)));
+                        }
                      }
+                  } finally
+                  {
+                     snapshot.close();
                   }
-               });
-            } finally
-            {
-               lock.writeLock().unlock();
-            }
+               }
+            });
          }
       };
    }
 
    public Input<String, IOException> backup()
+   {
+      return new Input<String, IOException>()
+      {
+         @Override
+         public <ReceiverThrowableType extends Throwable> void transferTo(Output<? super String, ReceiverThrowableType> output) throws IOException, ReceiverThrowableType
+         {
+            output.receiveFrom(new Sender<String, IOException>()
+            {
+               @Override
+               public <ReceiverThrowableType extends Throwable> void sendTo(Receiver<? super String, ReceiverThrowableType> receiver) throws ReceiverThrowableType, IOException
+               {
+                  Snapshot snapshot = new Snapshot();
+                  try
+                  {
+                     List<byte[]> states;
+                     while ((states = snapshot.next()) != null)
+                     {
+                        for (byte[] serializedState : states)
+                        {
+                           receiver.receive(new String(serializedState, "UTF-8"));
+                        }
+                     }
+                  } finally
+                  {
+                     snapshot.close();
+                  }
+               }
+            });
+         }
+      };
+   }
+
+   @ReadLock
+   public long changeSequence()
+   {
+      return changeSequence;
+   }
+
+   public Input<String, IOException> backupChanges(final long sequence)
    {
       return new Input<String, IOException>()
       {
@@ -252,23 +429,17 @@ public class JdbmEntityStoreMixin
                   @Override
                   public <ReceiverThrowableType extends Throwable> void sendTo(Receiver<? super String, ReceiverThrowableType> receiver) throws ReceiverThrowableType, IOException
                   {
-                     final TupleBrowser browser = index.browse();
-                     final Tuple tuple = new Tuple();
-
-                     while (browser.getNext(tuple))
+                     for (String id : changedSince(sequence))
                      {
-                        String id = new String((byte[]) tuple.getKey(), "UTF-8");
-
                         Long stateIndex = getStateIndex(id);
-
                         if (stateIndex == null)
                         {
-                           continue;
-                        } // Skip this one
-
-                        byte[] serializedState = (byte[]) recordManager.fetch(stateIndex, serializer);
-
-                        receiver.receive(new String(serializedState, "UTF-8"));
+                           receiver.receive(removedItem(id));
+                        } else
+                        {
+                           byte[] serializedState = (byte[]) recordManager.fetch(stateIndex, serializer);
+                           receiver.receive(new String(serializedState, "UTF-8"));
+                        }
                      }
                   }
                });
@@ -280,6 +451,197 @@ public class JdbmEntityStoreMixin
       };
    }
 
+   /**
+    * @return the identities changed after the given sequence, in the order they were last changed
+    * @throws IOException if the changes after the given sequence are no longer in the change index
+    */
+   private Collection<String> changedSince(long sequence)
+           throws IOException
+   {
+      if (sequence < discardedSequence)
+      {
+         throw new IOException("Changes after " + sequence + " have been discarded");
+      }
+      Set<String> changed = new LinkedHashSet<String>();
+      final TupleBrowser browser = changeIndex.browse(sequence + 1);
+      final Tuple tuple = new Tuple();
+      while (browser.getNext(tuple))
+      {
+         String id = new String((byte[]) tuple.getValue(), "UTF-8");
+         changed.remove(id);
+         changed.add(id);
+      }
+      return changed;
+   }
+
+   public Output<String, IOException> restoreChanges()
+   {
+      return new Output<String, IOException>()
+      {
+         @Override
+         public <SenderThrowableType extends Throwable> void receiveFrom(Sender<? extends String, SenderThrowableType> sender) throws IOException, SenderThrowableType
+         {
+            final Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+            sender.sendTo(new Receiver<String, IOException>()
+            {
+               public void receive(String item)
+                       throws IOException
+               {
+                  String id = identityOf(item);
+                  boolean removed = item.equals(removedItem(id));
+
+                  // Keep the order of the increment, a later change of the same entity replaces the earlier
+                  batch.remove(id);
+                  batch.put(id, removed ? null : item.getBytes("UTF-8"));
+
+                  // Commit one batch
+                  if (batch.size() >= 1000)
+                  {
+                     applyBatch(batch);
+                     batch.clear();
+                  }
+               }
+            });
+            applyBatch(batch);
+         }
+      };
+   }
+
+   /**
+    * Apply new states by identity, where a null state removes the entity, in one transaction.
+    */
+   private void applyBatch(Map<String, byte[]> batch)
+           throws IOException
+   {
+      lock.writeLock().lock();
+      long sequenceBefore = changeSequence;
+      try
+      {
+         checkIndexes();
+         for (Map.Entry<String, byte[]> entry : batch.entrySet())
+         {
+            String id = entry.getKey();
+            Long stateIndex = getStateIndex(id);
+            preserve(id, stateIndex);
+            if (stateIndex != null)
+            {
+               invalidate(stateIndex);
+            }
+            if (entry.getValue() == null)
+            {
+               if (stateIndex == null)
+               {
+                  continue;
+               }
+               String type = typeOf((byte[]) recordManager.fetch(stateIndex, serializer));
+               recordManager.delete(stateIndex);
+               index.remove(id.getBytes("UTF-8"));
+               if (type != null)
+               {
+                  typeIndex.remove(typeKey(type, id));
+               }
+            } else if (stateIndex == null)
+            {
+               long newStateIndex = recordManager.insert(entry.getValue(), serializer);
+               index.insert(id.getBytes("UTF-8"), newStateIndex, false);
+               String type = typeOf(entry.getValue());
+               if (type != null)
+               {
+                  typeIndex.insert(typeKey(type, id), newStateIndex, true);
+               }
+            } else
+            {
+               recordManager.update(stateIndex, entry.getValue(), serializer);
+            }
+            journal(id);
+         }
+         recordManager.update(changeSequenceRecid, changeSequence);
+         recordManager.commit();
+      } catch (IOException e)
+      {
+         changeSequence = sequenceBefore;
+         rollback();
+         throw e;
+      } finally
+      {
+         lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Roll back the current transaction, and load the indexes again. The BTree objects keep their root and height in
+    * memory, which a rollback of the record manager does not restore, so change sets retried after a failed group
+    * would otherwise run against pages that are gone. Called with the write lock.
+    */
+   private void rollback()
+   {
+      try
+      {
+         recordManager.rollback();
+         index = BTree.load(recordManager, recordManager.getNamedObject("index"));
+         typeIndex = BTree.load(recordManager, recordManager.getNamedObject("types"));
+         changeIndex = BTree.load(recordManager, recordManager.getNamedObject("changes"));
+         changeSequence = (Long) recordManager.fetch(changeSequenceRecid);
+         discardedSequence = (Long) recordManager.fetch(discardedSequenceRecid);
+      } catch (IOException e)
+      {
+         LOGGER.error("Could not reload indexes of " + getDatabaseName() + " after a rollback", e);
+         reloadFailure = e;
+      }
+   }
+
+   /**
+    * Refuse to change the database if the indexes could not be reloaded after a rollback. Called with the write lock.
+    */
+   private void checkIndexes()
+           throws IOException
+   {
+      if (reloadFailure != null)
+      {
+         IOException exception = new IOException("Indexes of " + getDatabaseName() + " are not current, the store must be activated again");
+         exception.initCause(reloadFailure);
+         throw exception;
+      }
+   }
+
+   public synchronized void discardChanges(long sequence)
+           throws IOException
+   {
+      lock.writeLock().lock();
+      try
+      {
+         checkIndexes();
+         List<Long> discarded = new ArrayList<Long>();
+         final TupleBrowser browser = changeIndex.browse();
+         final Tuple tuple = new Tuple();
+         while (browser.getNext(tuple) && (Long) tuple.getKey() <= sequence)
+         {
+            discarded.add((Long) tuple.getKey());
+         }
+         if (sequence > discardedSequence)
+         {
+            discardedSequence = Math.min(sequence, changeSequence);
+            recordManager.update(discardedSequenceRecid, discardedSequence);
+         }
+
+         int counter = 0;
+         for (Long key : discarded)
+         {
+            changeIndex.remove(key);
+
+            // Commit one batch
+            if ((++counter % 1000) == 0)
+            {
+               recordManager.commit();
+            }
+         }
+         recordManager.commit();
+      } finally
+      {
+         lock.writeLock().unlock();
+      }
+   }
+
    public Output<String, IOException> restore()
    {
       return new Output<String, IOException>()
@@ -288,85 +650,445 @@ public class JdbmEntityStoreMixin
          public <SenderThrowableType extends Throwable> void receiveFrom(Sender<? extends String, SenderThrowableType> sender) throws IOException, SenderThrowableType
          {
             // Create temporary store
-            File tempDatabase = File.createTempFile("restorejdbm", ".data");
-            final RecordManager recordManager = RecordManagerFactory.createRecordManager(tempDatabase.getAbsolutePath(), new Properties());
-            ByteArrayComparator comparator = new ByteArrayComparator();
-            final BTree index = BTree.createInstance(recordManager, comparator, serializer, DefaultSerializer.INSTANCE, 16);
-            recordManager.setNamedObject("index", index.getRecid());
-            recordManager.commit();
+            final BulkLoad load = new BulkLoad();
 
             try
             {
+               // Store the states in the order they arrive, and sort the index entries on the side
                sender.sendTo(new Receiver<String, IOException>()
                {
-                  int counter = 0;
-
                   public void receive(String item)
                           throws IOException
                   {
-                     // Commit one batch
-                     if ((counter++ % 1000) == 0)
-                     {
-                        recordManager.commit();
-                     }
-
-                     String id = item.substring("{\"identity\":\"".length());
-                     id = id.substring(0, id.indexOf('"'));
-
-                     // Insert
-                     byte[] stateArray = item.getBytes("UTF-8");
-                     long stateIndex = recordManager.insert(stateArray, serializer);
-                     index.insert(id.getBytes("UTF-8"), stateIndex, false);
+                     load.add(identityOf(item), item.getBytes("UTF-8"));
                   }
                });
+               load.buildIndex();
             } catch (IOException e)
             {
-               recordManager.close();
-               tempDatabase.delete();
+               load.abort();
                throw e;
             } catch (Throwable senderThrowableType)
             {
-               recordManager.close();
-               tempDatabase.delete();
+               load.abort();
                throw (SenderThrowableType) senderThrowableType;
             }
 
             // Import went ok - continue
-            recordManager.commit();
-
             lock.writeLock().lock();
             try
             {
-               // Replace old database with new
-               JdbmEntityStoreMixin.this.recordManager.close();
+               // Keep the change sequence going up, the changes up to it are not in the restored database
+               load.finish(changeSequence, changeSequence);
+               replaceDatabase(load);
+            } finally
+            {
+               lock.writeLock().unlock();
+            }
+         }
+      };
+   }
+
+   public synchronized long compact()
+           throws IOException
+   {
+      long sizeBefore = databaseSize();
+
+      // Changes after this sequence are caught up with after the copy
+      long startSequence;
+      lock.readLock().lock();
+      try
+      {
+         startSequence = changeSequence;
+      } finally
+      {
+         lock.readLock().unlock();
+      }
 
-               boolean deletedOldDatabase = true;
-               File dbFile = new File(getDatabaseName() + ".db");
-               File lgFile = new File(getDatabaseName() + ".lg");
-               deletedOldDatabase &= dbFile.delete();
-               deletedOldDatabase &= lgFile.delete();
-               if (!deletedOldDatabase)
+      BulkLoad load = new BulkLoad();
+      try
+      {
+         Snapshot snapshot = new Snapshot();
+         try
+         {
+            List<byte[]> states;
+            while ((states = snapshot.next()) != null)
+            {
+               for (byte[] serializedState : states)
                {
-                  throw new IOException("Could not remove old database");
+                  load.add(identityOf(new String(serializedState, "UTF-8")), serializedState);
                }
+            }
+         } finally
+         {
+            snapshot.close();
+         }
+         load.buildIndex();
+         long copiedSequence = load.copyChanges(0);
+
+         lock.writeLock().lock();
+         try
+         {
+            for (String id : changedSince(startSequence))
+            {
+               Long stateIndex = getStateIndex(id);
+               load.put(id, stateIndex == null ? null : (byte[]) recordManager.fetch(stateIndex, serializer));
+            }
+            load.copyChanges(copiedSequence);
+            load.finish(changeSequence, discardedSequence);
+            replaceDatabase(load);
+         } finally
+         {
+            lock.writeLock().unlock();
+         }
+      } catch (IOException e)
+      {
+         load.abort();
+         throw e;
+      }
+
+      long sizeAfter = databaseSize();
+      compactedSize = sizeAfter;
+      return sizeBefore - sizeAfter;
+   }
+
+   public long databaseSize()
+   {
+      return new File(getDatabaseName() + ".db").length();
+   }
+
+   /**
+    * Replace the database with a new one. Called with the write lock.
+    * <p/>
+    * Before the old files are touched, a marker naming the new database is forced to disk. The new database file is
+    * then renamed over the old one, so that there is a complete database at every point, and {@link #finishSwap()}
+    * completes a swap that was interrupted by a crash. If the swap fails, the old database is opened again.
+    */
+   private void replaceDatabase(BulkLoad load)
+           throws IOException
+   {
+      JdbmEntityStoreMixin.this.recordManager.close();
+      try
+      {
+         File swapFile = new File(getDatabaseName() + ".swap");
+         FileOutputStream out = new FileOutputStream(swapFile);
+         try
+         {
+            out.write(load.name.getBytes("UTF-8"));
+            out.getFD().sync();
+         } finally
+         {
+            out.close();
+         }
+         DirectorySync.force(swapFile.getAbsoluteFile().getParentFile());
+
+         boolean swapped = false;
+         try
+         {
+            swap(load.name);
+            swapped = true;
+         } finally
+         {
+            // Without the marker, a failed swap is not finished with an outdated database on the next activation
+            if (!swapFile.delete() && !swapped)
+            {
+               LOGGER.error("Could not remove " + swapFile + ", remove it before the store is activated again");
+            }
+         }
+         if (!load.tempDatabase.delete())
+         {
+            LOGGER.warn("Could not remove temporary file {}", load.tempDatabase);
+         }
+      } finally
+      {
+         // Start up again, with the old database if the new one could not be swapped in
+         initialize();
+      }
+   }
+
+   /**
+    * Rename a new database over the current one, which must be closed.
+    *
+    * @param name the name of the new database
+    */
+   private void swap(String name)
+           throws IOException
+   {
+      File dbFile = new File(getDatabaseName() + ".db");
+      File lgFile = new File(getDatabaseName() + ".lg");
+      File directory = dbFile.getAbsoluteFile().getParentFile();
 
-               boolean renamedTempDatabase = true;
-               renamedTempDatabase &= new File(tempDatabase.getAbsolutePath() + ".db").renameTo(dbFile);
-               renamedTempDatabase &= new File(tempDatabase.getAbsolutePath() + ".lg").renameTo(lgFile);
+      // There is no log for the new database, since it was loaded without transactions, and the log of the old
+      // database must not be replayed on the new one
+      if (lgFile.exists() && !lgFile.delete())
+      {
+         throw new IOException("Could not remove log of old database " + lgFile);
+      }
+      DirectorySync.force(directory);
 
-               if (!renamedTempDatabase)
+      // Renaming over the old database is atomic where the platform allows it. Elsewhere the old database is removed
+      // first, and the swap marker makes the next activation finish the swap if that is interrupted
+      File newDbFile = new File(name + ".db");
+      if (!newDbFile.renameTo(dbFile))
+      {
+         if (dbFile.exists() && !dbFile.delete())
+         {
+            throw new IOException("Could not remove old database " + dbFile);
+         }
+         if (!newDbFile.renameTo(dbFile))
+         {
+            throw new IOException("Could not rename " + newDbFile + " to " + dbFile);
+         }
+      }
+      DirectorySync.force(directory);
+   }
+
+   /**
+    * Finish replacing the database, if that was interrupted by a crash after the new database was complete.
+    */
+   @SuppressWarnings({"ResultOfMethodCallIgnored"})
+   private void finishSwap()
+           throws IOException
+   {
+      File swapFile = new File(getDatabaseName() + ".swap");
+      if (!swapFile.exists())
+      {
+         return;
+      }
+      byte[] content = new byte[(int) swapFile.length()];
+      DataInputStream in = new DataInputStream(new FileInputStream(swapFile));
+      try
+      {
+         in.readFully(content);
+      } finally
+      {
+         in.close();
+      }
+      String name = new String(content, "UTF-8");
+
+      if (new File(name + ".db").exists())
+      {
+         LOGGER.info("Finishing interrupted replacement of {}", getDatabaseName());
+         swap(name);
+      }
+      if (!swapFile.delete())
+      {
+         throw new IOException("Could not remove " + swapFile);
+      }
+      new File(name).delete();
+   }
+
+   /**
+    * A new database that is loaded in bulk, to replace the current one.
+    * <p/>
+    * The states are stored in the order they are added, and the index is built in key order afterwards, so that
+    * every insert goes to the right-most page, which stays cached. Transactions are disabled, since the new database
+    * is thrown away if the load fails.
+    */
+   private class BulkLoad
+   {
+      private final File tempDatabase;
+      private final String name;
+      private final RecordManager recordManager;
+      private final IndexSorter sorter = new IndexSorter(100000);
+      private final IndexSorter typeSorter = new IndexSorter(100000);
+      private BTree newIndex;
+      private BTree newTypeIndex;
+      private BTree newChangeIndex;
+
+      private BulkLoad()
+              throws IOException
+      {
+         // In the directory of the database, so that the files can be renamed
+         tempDatabase = File.createTempFile("restorejdbm", ".data", new File(getDatabaseName()).getParentFile());
+         name = tempDatabase.getAbsolutePath();
+         Properties properties = new Properties();
+         properties.put(RecordManagerOptions.DISABLE_TRANSACTIONS, "true");
+         recordManager = RecordManagerFactory.createRecordManager(name, properties);
+      }
+
+      private void add(String id, byte[] stateArray)
+              throws IOException
+      {
+         long stateIndex = recordManager.insert(stateArray, serializer);
+         sorter.add(id.getBytes("UTF-8"), stateIndex);
+         String type = typeOf(stateArray);
+         if (type != null)
+         {
+            typeSorter.add(typeKey(type, id), stateIndex);
+         }
+      }
+
+      private void buildIndex()
+              throws IOException
+      {
+         Set<Long> discarded = new HashSet<Long>();
+         try
+         {
+            ByteArrayComparator comparator = new ByteArrayComparator();
+            newIndex = BTree.createInstance(recordManager, comparator, serializer, DefaultSerializer.INSTANCE, 16);
+            recordManager.setNamedObject("index", newIndex.getRecid());
+            byte[] previousKey = null;
+            IndexSorter.Entry entry;
+            while ((entry = sorter.next()) != null)
+            {
+               if (previousKey != null && comparator.compare(previousKey, entry.key) == 0)
+               {
+                  // The first state of an identity is kept, as when inserting without replacing
+                  recordManager.delete(entry.value);
+                  discarded.add(entry.value);
+                  continue;
+               }
+               newIndex.insert(entry.key, entry.value, false);
+               previousKey = entry.key;
+            }
+         } finally
+         {
+            sorter.close();
+         }
+
+         try
+         {
+            newTypeIndex = BTree.createInstance(recordManager, new ByteArrayComparator(), serializer, DefaultSerializer.INSTANCE, 16);
+            recordManager.setNamedObject("types", newTypeIndex.getRecid());
+            IndexSorter.Entry entry;
+            while ((entry = typeSorter.next()) != null)
+            {
+               if (!discarded.contains(entry.value))
                {
-                  throw new IOException("Could not replace database with temp database");
+                  newTypeIndex.insert(entry.key, entry.value, true);
                }
+            }
+         } finally
+         {
+            typeSorter.close();
+         }
 
-               // Start up again
-               initialize();
+         newChangeIndex = BTree.createInstance(recordManager, new LongComparator(), new LongSerializer(), new ByteArraySerializer(), 16);
+         recordManager.setNamedObject("changes", newChangeIndex.getRecid());
+      }
+
+      /**
+       * Copy the change journal of the current database, in chunks under the read lock.
+       *
+       * @return the last sequence copied
+       */
+      private long copyChanges(long after)
+              throws IOException
+      {
+         long last = after;
+         boolean done = false;
+         while (!done)
+         {
+            lock.readLock().lock();
+            try
+            {
+               final TupleBrowser browser = changeIndex.browse(last + 1);
+               final Tuple tuple = new Tuple();
+               int count = 0;
+               while (count < 1000 && browser.getNext(tuple))
+               {
+                  last = (Long) tuple.getKey();
+                  newChangeIndex.insert(last, tuple.getValue(), true);
+                  count++;
+               }
+               done = count < 1000;
             } finally
             {
-               lock.writeLock().unlock();
+               lock.readLock().unlock();
             }
          }
-      };
+         return last;
+      }
+
+      /**
+       * Apply a change made to the current database after its state was added.
+       */
+      private void put(String id, byte[] stateArray)
+              throws IOException
+      {
+         byte[] key = id.getBytes("UTF-8");
+         Long stateIndex = (Long) newIndex.find(key);
+         if (stateArray == null)
+         {
+            if (stateIndex != null)
+            {
+               String type = typeOf((byte[]) recordManager.fetch(stateIndex, serializer));
+               recordManager.delete(stateIndex);
+               newIndex.remove(key);
+               if (type != null)
+               {
+                  newTypeIndex.remove(typeKey(type, id));
+               }
+            }
+         } else if (stateIndex == null)
+         {
+            long newStateIndex = recordManager.insert(stateArray, serializer);
+            newIndex.insert(key, newStateIndex, false);
+            String type = typeOf(stateArray);
+            if (type != null)
+            {
+               newTypeIndex.insert(typeKey(type, id), newStateIndex, true);
+            }
+         } else
+         {
+            recordManager.update(stateIndex, stateArray, serializer);
+         }
+      }
+
+      private void finish(long sequence, long discarded)
+              throws IOException
+      {
+         recordManager.setNamedObject("changeSequence", recordManager.insert(sequence));
+         recordManager.setNamedObject("discardedSequence", recordManager.insert(discarded));
+         recordManager.commit();
+         recordManager.close();
+      }
+
+      private void abort()
+      {
+         try
+         {
+            recordManager.close();
+         } catch (IOException e)
+         {
+            // Ignore
+         }
+         sorter.close();
+         typeSorter.close();
+         new File(name + ".db").delete();
+         new File(name + ".lg").delete();
+         tempDatabase.delete();
+      }
+   }
+
+   /**
+    * @return the identity of a backup item, which is always the first key
+    */
+   private static String identityOf(String item)
+           throws IOException
+   {
+      try
+      {
+         JSONTokener tokener = new JSONTokener(item);
+         tokener.nextClean();
+         tokener.nextValue();
+         tokener.nextClean();
+         return (String) tokener.nextValue();
+      } catch (JSONException e)
+      {
+         IOException exception = new IOException("Backup item without identity");
+         exception.initCause(e);
+         throw exception;
+      }
+   }
+
+   /**
+    * @return the item that stands for a removed entity in an incremental backup
+    */
+   private static String removedItem(String identity)
+   {
+      return "{\"identity\":" + JSONObject.quote(identity) + REMOVED;
    }
 
    private String getDatabaseName()
@@ -416,8 +1138,19 @@ public class JdbmEntityStoreMixin
       Properties properties = getProperties();
 
       recordManager = RecordManagerFactory.createRecordManager(name, properties);
+      reloadFailure = null;
       serializer = DefaultSerializer.INSTANCE;
-      recordManager = new CacheRecordManager(recordManager, 1000, false);
+      Integer pageCacheSize = config.configuration().pageCacheSize().get();
+      recordManager = new CacheRecordManager(recordManager, pageCacheSize == null ? 1000 : pageCacheSize, false);
+
+      Integer cacheSize = config.configuration().cacheSize().get();
+      if (cacheSize == null)
+      {
+         cacheSize = 4;
+      }
+      JdbmConfiguration.CachePolicy cachePolicy = config.configuration().cachePolicy().get();
+      cache = cacheSize > 0 ? new RecordCache(cacheSize * 1024L * 1024L, cachePolicy == null ? JdbmConfiguration.CachePolicy.LRU : cachePolicy) : null;
+
       long recid = recordManager.getNamedObject("index");
       if (recid != 0)
       {
@@ -428,6 +1161,378 @@ public class JdbmEntityStoreMixin
          index = BTree.createInstance(recordManager, comparator, serializer, DefaultSerializer.INSTANCE, 16);
          recordManager.setNamedObject("index", index.getRecid());
       }
+
+      recid = recordManager.getNamedObject("types");
+      if (recid != 0)
+      {
+         typeIndex = BTree.load(recordManager, recid);
+      } else
+      {
+         typeIndex = BTree.createInstance(recordManager, new ByteArrayComparator(), serializer, DefaultSerializer.INSTANCE, 16);
+         recordManager.setNamedObject("types", typeIndex.getRecid());
+         indexTypes();
+      }
+
+      recid = recordManager.getNamedObject("changes");
+      if (recid != 0)
+      {
+         changeIndex = BTree.load(recordManager, recid);
+      } else
+      {
+         changeIndex = BTree.createInstance(recordManager, new LongComparator(), new LongSerializer(), new ByteArraySerializer(), 16);
+         recordManager.setNamedObject("changes", changeIndex.getRecid());
+      }
+      changeSequenceRecid = recordManager.getNamedObject("changeSequence");
+      if (changeSequenceRecid != 0)
+      {
+         changeSequence = (Long) recordManager.fetch(changeSequenceRecid);
+      } else
+      {
+         changeSequence = 0;
+         changeSequenceRecid = recordManager.insert(changeSequence);
+         recordManager.setNamedObject("changeSequence", changeSequenceRecid);
+      }
+      discardedSequenceRecid = recordManager.getNamedObject("discardedSequence");
+      if (discardedSequenceRecid != 0)
+      {
+         discardedSequence = (Long) recordManager.fetch(discardedSequenceRecid);
+      } else
+      {
+         discardedSequence = 0;
+         discardedSequenceRecid = recordManager.insert(discardedSequence);
+         recordManager.setNamedObject("discardedSequence", discardedSequenceRecid);
+      }
       recordManager.commit();
    }
+
+   /**
+    * Drop a record from the entity state cache, before it is changed. Called with the write lock.
+    */
+   private void invalidate(long stateIndex)
+   {
+      if (cache != null)
+      {
+         cache.invalidate(stateIndex);
+      }
+   }
+
+   public long cacheHits()
+   {
+      RecordCache current = cache;
+      return current == null ? 0 : current.hits();
+   }
+
+   public long cacheMisses()
+   {
+      RecordCache current = cache;
+      return current == null ? 0 : current.misses();
+   }
+
+   public double cacheHitRatio()
+   {
+      RecordCache current = cache;
+      if (current == null)
+      {
+         return 0;
+      }
+      long hits = current.hits();
+      long reads = hits + current.misses();
+      return reads == 0 ? 0 : (double) hits / reads;
+   }
+
+   public long cacheEvictions()
+   {
+      RecordCache current = cache;
+      return current == null ? 0 : current.evictions();
+   }
+
+   public long cacheResidentBytes()
+   {
+      RecordCache current = cache;
+      return current == null ? 0 : current.residentBytes();
+   }
+
+   /**
+    * Preserve the current state of an entity for the running scans, before it is changed. Called with the write lock.
+    */
+   private void preserve(String identity, Long stateIndex)
+           throws IOException
+   {
+      if (snapshots.isEmpty())
+      {
+         return;
+      }
+      byte[] key = identity.getBytes("UTF-8");
+      byte[] state = stateIndex == null ? null : (byte[]) recordManager.fetch(stateIndex, serializer);
+      for (Snapshot snapshot : snapshots)
+      {
+         snapshot.preserve(identity, key, state);
+      }
+   }
+
+   /**
+    * Iteration over the entity states as they were when the iteration started, without holding a lock throughout.
+    * <p/>
+    * The index is browsed in chunks, each under the read lock. While the snapshot is open, writers preserve the
+    * state an entity had when the snapshot was taken, on its first change, if the browse has not passed it yet.
+    * Entities that were removed are delivered after the browse, and entities that were created are skipped.
+    */
+   private class Snapshot
+   {
+      private final ByteArrayComparator comparator = new ByteArrayComparator();
+      private final int chunkSize;
+      private final boolean recordOrder;
+
+      // Guarded by the lock, null for the states of entities that did not exist
+      private final Map<String, byte[]> preserved = new HashMap<String, byte[]>();
+      private byte[] cursor;
+      private boolean done;
+
+      private Snapshot()
+      {
+         Integer chunkSizeConfig = config.configuration().scanChunkSize().get();
+         chunkSize = chunkSizeConfig == null ? 100 : chunkSizeConfig;
+         recordOrder = config.configuration().scanRecordOrder().get();
+
+         lock.readLock().lock();
+         try
+         {
+            snapshots.add(this);
+         } finally
+         {
+            lock.readLock().unlock();
+         }
+      }
+
+      private void preserve(String identity, byte[] key, byte[] state)
+      {
+         if ((cursor == null || comparator.compare(key, cursor) > 0) && !preserved.containsKey(identity))
+         {
+            preserved.put(identity, state);
+         }
+      }
+
+      /**
+       * @return the next chunk of states, or null when all have been delivered
+       */
+      public List<byte[]> next()
+              throws IOException
+      {
+         lock.readLock().lock();
+         try
+         {
+            if (done)
+            {
+               return null;
+            }
+
+            List<byte[]> states = new ArrayList<byte[]>(chunkSize);
+            List<Long> stateIndexes = new ArrayList<Long>(chunkSize);
+            final TupleBrowser browser = cursor == null ? index.browse() : index.browse(cursor);
+            final Tuple tuple = new Tuple();
+            int count = 0;
+            while (count < chunkSize && browser.getNext(tuple))
+            {
+               byte[] key = (byte[]) tuple.getKey();
+               if (cursor != null && comparator.compare(key, cursor) <= 0)
+               {
+                  continue;
+               } // Delivered in the previous chunk
+               cursor = key;
+               count++;
+
+               if (!preserved.isEmpty())
+               {
+                  String id = new String(key, "UTF-8");
+                  if (preserved.containsKey(id))
+                  {
+                     byte[] state = preserved.remove(id);
+                     if (state != null)
+                     {
+                        states.add(state);
+                     }
+                     continue;
+                  }
+               }
+
+               // The tuple value is the record id, no need to search the index again
+               stateIndexes.add((Long) tuple.getValue());
+            }
+
+            if (recordOrder)
+            {
+               Collections.sort(stateIndexes);
+            }
+            for (Long stateIndex : stateIndexes)
+            {
+               states.add((byte[]) recordManager.fetch(stateIndex, serializer));
+            }
+
+            if (count < chunkSize)
+            {
+               // The remaining states are of entities removed since the snapshot was taken
+               for (byte[] state : preserved.values())
+               {
+                  if (state != null)
+                  {
+                     states.add(state);
+                  }
+               }
+               preserved.clear();
+               done = true;
+            }
+            return states;
+         } finally
+         {
+            lock.readLock().unlock();
+         }
+      }
+
+      public void close()
+      {
+         snapshots.remove(this);
+      }
+   }
+
+   /**
+    * Index the types of the entities of a database that was created without the type index.
+    */
+   private void indexTypes()
+           throws IOException
+   {
+      final TupleBrowser browser = index.browse();
+      final Tuple tuple = new Tuple();
+      int counter = 0;
+      while (browser.getNext(tuple))
+      {
+         Long stateIndex = (Long) tuple.getValue();
+         String type = typeOf((byte[]) recordManager.fetch(stateIndex, serializer));
+         if (type != null)
+         {
+            typeIndex.insert(typeKey(type, new String((byte[]) tuple.getKey(), "UTF-8")), stateIndex, true);
+         }
+
+         // Commit one batch
+         if ((++counter % 1000) == 0)
+         {
+            recordManager.commit();
+         }
+      }
+   }
+
+   /**
+    * The type index is ordered by type first, and identity second.
+    */
+   private static byte[] typeKey(String type, String identity)
+           throws UnsupportedEncodingException
+   {
+      return (type + '\u0000' + identity).getBytes("UTF-8");
+   }
+
+   /**
+    * @return the type of a serialized state, or null if it has none
+    */
+   private static String typeOf(byte[] serializedState)
+           throws UnsupportedEncodingException
+   {
+      // The first "type" key is that of the entity, since the properties come after it
+      String state = new String(serializedState, "UTF-8");
+      int start = state.indexOf("\"type\":\"");
+      if (start < 0)
+      {
+         return null;
+      }
+      start += "\"type\":\"".length();
+      return state.substring(start, state.indexOf('"', start));
+   }
+
+   public Input<Reader, IOException> entityStatesOfTypes(final String... typeNames)
+   {
+      return new Input<Reader, IOException>()
+      {
+         @Override
+         public <ReceiverThrowableType extends Throwable> void transferTo(Output<? super Reader, ReceiverThrowableType> output) throws IOException, ReceiverThrowableType
+         {
+            output.receiveFrom(new Sender<Reader, IOException>()
+            {
+               @Override
+               public <ReceiverThrowableType extends Throwable> void sendTo(Receiver<? super Reader, ReceiverThrowableType> receiver) throws ReceiverThrowableType, IOException
+               {
+                  ByteArrayComparator comparator = new ByteArrayComparator();
+                  for (String typeName : typeNames)
+                  {
+                     byte[] prefix = typeKey(typeName, "");
+                     byte[] cursor = prefix;
+                     boolean done = false;
+                     while (!done)
+                     {
+                        // One chunk under the read lock, delivered after it has been released
+                        List<byte[]> states = new ArrayList<byte[]>();
+                        lock.readLock().lock();
+                        try
+                        {
+                           final TupleBrowser browser = typeIndex.browse(cursor);
+                           final Tuple tuple = new Tuple();
+                           done = true;
+                           while (browser.getNext(tuple))
+                           {
+                              byte[] key = (byte[]) tuple.getKey();
+                              if (!startsWith(key, prefix))
+                              {
+                                 break;
+                              }
+                              if (cursor != prefix && comparator.compare(key, cursor) <= 0)
+                              {
+                                 // Delivered in the previous chunk
+                                 continue;
+                              }
+                              if (states.size() == 100)
+                              {
+                                 done = false;
+                                 break;
+                              }
+                              cursor = key;
+                              states.add((byte[]) recordManager.fetch((Long) tuple.getValue(), serializer));
+                           }
+                        } finally
+                        {
+                           lock.readLock().unlock();
+                        }
+
+                        for (byte[] serializedState : states)
+                        {
+                           receiver.receive(new ByteBufferReader(ByteBuffer.wrap(serializedState)));
+                        }
+                     }
+                  }
+               }
+            });
+         }
+      };
+   }
+
+   private static boolean startsWith(byte[] key, byte[] prefix)
+   {
+      if (key.length < prefix.length)
+      {
+         return false;
+      }
+      for (int i = 0; i < prefix.length; i++)
+      {
+         if (key[i] != prefix[i])
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Journal a change, in the transaction of the change. The change sequence itself is stored on commit.
+    */
+   private void journal(String identity)
+           throws IOException
+   {
+      changeIndex.insert(++changeSequence, identity.getBytes("UTF-8"), true);
+   }
 }
\ No newline at end of file
@@ -40,6 +40,10 @@ public interface JdbmEntityStoreService
         EntityStateVersions,
         StateStore,
         BackupRestore,
+        IncrementalBackupRestore,
+        JdbmEntityStoreStatistics,
+        JdbmEntityStoreCompaction,
+        EntityTypeStates,
         ServiceComposite,
         Activatable,
         LockingAbstractComposite,
@@ -0,0 +1,229 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.jdbm;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of serialized entity states by record id, bounded by the number of bytes it holds.
+ * <p/>
+ * With the LRU policy the least recently used states are evicted first. The SOFT policy does the same, but also
+ * lets the garbage collector clear states when memory runs low. The FREQUENCY policy is a segmented LRU: new states
+ * go into a probation segment, and only states that are read again move into the protected segment, which may hold
+ * up to 80% of the bytes, so that a scan over many states once does not push out the frequently read ones.
+ */
+class RecordCache
+{
+   // Rough cost of an entry besides its state
+   private static final int ENTRY_OVERHEAD = 64;
+
+   private final JdbmConfiguration.CachePolicy policy;
+   private final Segment probation;
+   private final Segment protectedSegment;
+   private final ReferenceQueue<byte[]> cleared = new ReferenceQueue<byte[]>();
+
+   private long hits;
+   private long misses;
+   private long evictions;
+
+   RecordCache(long maxBytes, JdbmConfiguration.CachePolicy policy)
+   {
+      this.policy = policy;
+      if (policy == JdbmConfiguration.CachePolicy.FREQUENCY)
+      {
+         // The probation segment gets what the protected segment does not use
+         probation = new Segment(maxBytes);
+         protectedSegment = new Segment(maxBytes - maxBytes / 5);
+      } else
+      {
+         probation = new Segment(maxBytes);
+         protectedSegment = null;
+      }
+   }
+
+   public synchronized byte[] get(long recid)
+   {
+      purgeCleared();
+      Object value = probation.entries.get(recid);
+      if (value != null && protectedSegment != null)
+      {
+         // Read again, so promote it, and demote what no longer fits
+         probation.remove(recid);
+         protectedSegment.add(recid, value);
+         while (protectedSegment.isOverflowing())
+         {
+            Map.Entry<Long, Object> eldest = protectedSegment.removeEldest();
+            probation.add(eldest.getKey(), eldest.getValue());
+         }
+         evictOverflow();
+      } else if (value == null && protectedSegment != null)
+      {
+         value = protectedSegment.entries.get(recid);
+      }
+
+      byte[] state = stateOf(value);
+      if (state == null)
+      {
+         misses++;
+      } else
+      {
+         hits++;
+      }
+      return state;
+   }
+
+   public synchronized void put(long recid, byte[] state)
+   {
+      purgeCleared();
+      invalidate(recid);
+      Object value = policy == JdbmConfiguration.CachePolicy.SOFT ? new StateReference(recid, state, cleared) : state;
+      probation.add(recid, value);
+      evictOverflow();
+   }
+
+   public synchronized void invalidate(long recid)
+   {
+      if (probation.remove(recid) == null && protectedSegment != null)
+      {
+         protectedSegment.remove(recid);
+      }
+   }
+
+   public synchronized long hits()
+   {
+      return hits;
+   }
+
+   public synchronized long misses()
+   {
+      return misses;
+   }
+
+   public synchronized long evictions()
+   {
+      return evictions;
+   }
+
+   public synchronized long residentBytes()
+   {
+      purgeCleared();
+      return probation.bytes + (protectedSegment == null ? 0 : protectedSegment.bytes);
+   }
+
+   private void evictOverflow()
+   {
+      long protectedBytes = protectedSegment == null ? 0 : protectedSegment.bytes;
+      while (probation.bytes + protectedBytes > probation.maxBytes && !probation.entries.isEmpty())
+      {
+         probation.removeEldest();
+         evictions++;
+      }
+   }
+
+   private void purgeCleared()
+   {
+      Reference<? extends byte[]> reference;
+      while ((reference = cleared.poll()) != null)
+      {
+         StateReference stateReference = (StateReference) reference;
+         // Only if it has not been replaced since
+         if (probation.entries.get(stateReference.recid) == stateReference)
+         {
+            probation.remove(stateReference.recid);
+            evictions++;
+         }
+      }
+   }
+
+   private static byte[] stateOf(Object value)
+   {
+      if (value instanceof StateReference)
+      {
+         return ((StateReference) value).get();
+      }
+      return (byte[]) value;
+   }
+
+   private static class Segment
+   {
+      private final long maxBytes;
+      private final LinkedHashMap<Long, Object> entries = new LinkedHashMap<Long, Object>(16, 0.75f, true);
+      private long bytes;
+
+      private Segment(long maxBytes)
+      {
+         this.maxBytes = maxBytes;
+      }
+
+      private void add(long recid, Object value)
+      {
+         entries.put(recid, value);
+         bytes += sizeOf(value);
+      }
+
+      private Object remove(long recid)
+      {
+         Object value = entries.remove(recid);
+         if (value != null)
+         {
+            bytes -= sizeOf(value);
+         }
+         return value;
+      }
+
+      private Map.Entry<Long, Object> removeEldest()
+      {
+         Iterator<Map.Entry<Long, Object>> iterator = entries.entrySet().iterator();
+         Map.Entry<Long, Object> eldest = iterator.next();
+         iterator.remove();
+         bytes -= sizeOf(eldest.getValue());
+         return eldest;
+      }
+
+      private boolean isOverflowing()
+      {
+         return bytes > maxBytes && !entries.isEmpty();
+      }
+
+      private static long sizeOf(Object value)
+      {
+         if (value instanceof StateReference)
+         {
+            return ENTRY_OVERHEAD + ((StateReference) value).length;
+         }
+         return ENTRY_OVERHEAD + ((byte[]) value).length;
+      }
+   }
+
+   private static class StateReference
+           extends SoftReference<byte[]>
+   {
+      private final long recid;
+      private final int length;
+
+      private StateReference(long recid, byte[] state, ReferenceQueue<byte[]> queue)
+      {
+         super(state, queue);
+         this.recid = recid;
+         this.length = state.length;
+      }
+   }
+}
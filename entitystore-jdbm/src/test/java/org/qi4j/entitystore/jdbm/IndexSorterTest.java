@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.jdbm;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class IndexSorterTest
+{
+   // Spilled to a run file every few entries
+   private static final int MAX_ENTRIES = 7;
+
+   private static final int ENTRIES = 1000;
+
+   @Test
+   public void givenMoreEntriesThanFitInMemoryWhenSortingThenTheyComeInKeyOrderAndEqualKeysInAddedOrder()
+           throws IOException
+   {
+      IndexSorter sorter = new IndexSorter(MAX_ENTRIES);
+      Random random = new Random(42);
+      int[] added = new int[100];
+      for (int value = 0; value < ENTRIES; value++)
+      {
+         int key = random.nextInt(added.length);
+         added[key]++;
+         sorter.add(key(key), value);
+      }
+
+      try
+      {
+         int[] sorted = new int[added.length];
+         String previousKey = null;
+         long previousValue = -1;
+         IndexSorter.Entry entry;
+         while ((entry = sorter.next()) != null)
+         {
+            String key = new String(entry.key, "UTF-8");
+            if (key.equals(previousKey))
+            {
+               assertTrue("Value " + entry.value + " after " + previousValue, entry.value > previousValue);
+            } else if (previousKey != null)
+            {
+               assertTrue(key + " after " + previousKey, key.compareTo(previousKey) > 0);
+            }
+            sorted[Integer.parseInt(key.substring(4))]++;
+            previousKey = key;
+            previousValue = entry.value;
+         }
+         assertTrue(Arrays.equals(added, sorted));
+         assertNull(sorter.next());
+      } finally
+      {
+         sorter.close();
+      }
+   }
+
+   @Test
+   public void givenNoEntriesWhenSortingThenNoneComeOut()
+           throws IOException
+   {
+      IndexSorter sorter = new IndexSorter(MAX_ENTRIES);
+      try
+      {
+         assertNull(sorter.next());
+      } finally
+      {
+         sorter.close();
+      }
+   }
+
+   @Test
+   public void givenSpilledRunsWhenClosingThenRunFilesAreDeleted()
+           throws IOException
+   {
+      Set<String> before = runFiles();
+      IndexSorter sorter = new IndexSorter(MAX_ENTRIES);
+      for (int value = 0; value < ENTRIES; value++)
+      {
+         sorter.add(key(ENTRIES - value), value);
+      }
+      assertTrue(runFiles().size() > before.size());
+
+      // Closed before all entries have been read
+      assertNotNull(sorter.next());
+      sorter.close();
+      assertTrue(before.containsAll(runFiles()));
+   }
+
+   private static byte[] key(int key)
+           throws IOException
+   {
+      return String.format("key-%04d", key).getBytes("UTF-8");
+   }
+
+   private static Set<String> runFiles()
+   {
+      String[] names = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter()
+      {
+         public boolean accept(File dir, String name)
+         {
+            return name.startsWith("restorejdbm") && name.endsWith(".run");
+         }
+      });
+      return new HashSet<String>(Arrays.asList(names));
+   }
+}
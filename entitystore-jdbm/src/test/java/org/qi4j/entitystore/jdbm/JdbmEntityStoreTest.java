@@ -16,18 +16,43 @@
  */
 package org.qi4j.entitystore.jdbm;
 
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Test;
 import org.qi4j.api.common.Visibility;
+import org.qi4j.api.unitofwork.NoSuchEntityException;
+import org.qi4j.api.unitofwork.UnitOfWork;
 import org.qi4j.api.unitofwork.UnitOfWorkCompletionException;
 import org.qi4j.bootstrap.AssemblyException;
 import org.qi4j.bootstrap.ModuleAssembly;
 import org.qi4j.entitystore.memory.MemoryEntityStoreService;
+import org.qi4j.io.Input;
+import org.qi4j.io.Output;
+import org.qi4j.io.Receiver;
+import org.qi4j.io.Sender;
 import org.qi4j.library.fileconfig.FileConfiguration;
+import org.qi4j.spi.entitystore.helpers.MapEntityStore;
 import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
 import org.qi4j.test.entity.AbstractEntityStoreTest;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
 
 /**
  * JAVADOC
@@ -55,6 +80,404 @@ public class JdbmEntityStoreTest
       super.givenConcurrentUnitOfWorksWhenUoWCompletesThenCheckConcurrentModification();
    }
 
+   @Test
+   public void givenInterruptedCompactionWhenActivatingThenCompactedDatabaseIsSwappedIn()
+           throws Exception
+   {
+      JdbmEntityStoreService store = module.findService(JdbmEntityStoreService.class).get();
+      File dataDirectory = module.findService(FileConfiguration.class).get().dataDirectory();
+      String name = new File(dataDirectory, store.identity().get() + "/jdbm.data").getAbsolutePath();
+
+      UnitOfWork unitOfWork = module.newUnitOfWork();
+      String kept = createEntity(unitOfWork).identity().get();
+      unitOfWork.complete();
+
+      // The compacted database is complete, but the crash came before it replaced the current one
+      store.passivate();
+      File compacted = new File(name + "-compacted.db");
+      copy(new File(name + ".db"), compacted);
+      store.activate();
+
+      unitOfWork = module.newUnitOfWork();
+      String dropped = createEntity(unitOfWork).identity().get();
+      unitOfWork.complete();
+
+      store.passivate();
+      File swapFile = new File(name + ".swap");
+      FileOutputStream out = new FileOutputStream(swapFile);
+      try
+      {
+         out.write((name + "-compacted").getBytes("UTF-8"));
+      } finally
+      {
+         out.close();
+      }
+      store.activate();
+
+      assertFalse(swapFile.exists());
+      assertFalse(compacted.exists());
+      unitOfWork = module.newUnitOfWork();
+      try
+      {
+         unitOfWork.get(TestEntity.class, kept);
+         try
+         {
+            unitOfWork.get(TestEntity.class, dropped);
+            fail("Entity created after the compaction was found");
+         } catch (NoSuchEntityException e)
+         {
+            // Expected
+         }
+      } finally
+      {
+         unitOfWork.discard();
+      }
+   }
+
+   @Test
+   public void givenFailingChangeSetInGroupWhenCommittingThenOnlyItFails()
+           throws Exception
+   {
+      final MapEntityStore.MapChanges first = new NoChanges();
+      final MapEntityStore.MapChanges failing = new NoChanges();
+      final CountDownLatch firstStarted = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      final List<MapEntityStore.MapChanges> committed = Collections.synchronizedList(new ArrayList<MapEntityStore.MapChanges>());
+      GroupCommit groupCommit = new GroupCommit("test-commit", 64)
+      {
+         @Override
+         protected void commit(List<MapEntityStore.MapChanges> group)
+                 throws IOException
+         {
+            if (group.contains(first))
+            {
+               firstStarted.countDown();
+               try
+               {
+                  release.await();
+               } catch (InterruptedException e)
+               {
+                  throw new IOException("Interrupted");
+               }
+            }
+            if (group.contains(failing))
+            {
+               throw new IOException("Failing change set");
+            }
+            committed.addAll(group);
+         }
+      };
+      groupCommit.start();
+
+      ExecutorService committers = Executors.newCachedThreadPool();
+      try
+      {
+         List<MapEntityStore.MapChanges> changes = new ArrayList<MapEntityStore.MapChanges>();
+         List<Future<?>> results = new ArrayList<Future<?>>();
+         results.add(committers.submit(new Apply(groupCommit, first)));
+         firstStarted.await();
+
+         // Queued while the first group commits, so that they are committed as one group
+         for (int i = 0; i < 4; i++)
+         {
+            MapEntityStore.MapChanges change = i == 2 ? failing : new NoChanges();
+            changes.add(change);
+            results.add(committers.submit(new Apply(groupCommit, change)));
+         }
+         Thread.sleep(200);
+         release.countDown();
+
+         for (int i = 0; i < results.size(); i++)
+         {
+            try
+            {
+               results.get(i).get();
+               assertTrue("Change set " + i + " did not fail", i != 3);
+            } catch (ExecutionException e)
+            {
+               assertEquals("Change set " + i + " failed", 3, i);
+               assertTrue(e.getCause() instanceof IOException);
+            }
+         }
+         changes.remove(failing);
+         assertTrue(committed.contains(first));
+         assertTrue(committed.containsAll(changes));
+         assertFalse(committed.contains(failing));
+      } finally
+      {
+         committers.shutdown();
+         groupCommit.stop();
+      }
+   }
+
+   @Test
+   public void givenChangesDuringBackupWhenBackingUpThenStatesAreThoseWhenItStarted()
+           throws Exception
+   {
+      JdbmEntityStoreService store = module.findService(JdbmEntityStoreService.class).get();
+
+      // More than a scan chunk, so that the last ones are read after the changes
+      List<String> identities = createEntities(250, "Before");
+      Collections.sort(identities);
+      final String updated = identities.get(identities.size() - 1);
+      final String removed = identities.get(identities.size() - 2);
+      final String[] created = new String[1];
+      States backup = new States()
+      {
+         @Override
+         protected void received(String state)
+                 throws IOException
+         {
+            if (created[0] != null)
+            {
+               return;
+            }
+            // Committed while the backup runs, which would wait forever if the backup held the lock
+            UnitOfWork unitOfWork = module.newUnitOfWork();
+            try
+            {
+               unitOfWork.get(TestEntity.class, updated).name().set("After");
+               unitOfWork.remove(unitOfWork.get(TestEntity.class, removed));
+               TestEntity instance = createEntity(unitOfWork);
+               instance.name().set("Created");
+               created[0] = instance.identity().get();
+               unitOfWork.complete();
+            } catch (UnitOfWorkCompletionException e)
+            {
+               IOException exception = new IOException("Could not change entities during backup");
+               exception.initCause(e);
+               throw exception;
+            } finally
+            {
+               if (unitOfWork.isOpen())
+               {
+                  unitOfWork.discard();
+               }
+            }
+         }
+      };
+      store.backup().transferTo(backup);
+
+      Map<String, String> names = names(backup.states);
+      assertEquals(backup.states.size(), names.size());
+      for (String identity : identities)
+      {
+         assertEquals("Before", names.get(identity));
+      }
+      assertFalse(names.containsKey(created[0]));
+
+      // The next backup has the changes
+      States after = new States();
+      store.backup().transferTo(after);
+      names = names(after.states);
+      assertEquals("After", names.get(updated));
+      assertFalse(names.containsKey(removed));
+      assertEquals("Created", names.get(created[0]));
+   }
+
+   @Test
+   public void givenUnsortedBackupWithDuplicateWhenRestoringThenFirstStateOfEachEntityIsRestored()
+           throws Exception
+   {
+      JdbmEntityStoreService store = module.findService(JdbmEntityStoreService.class).get();
+      List<String> identities = createEntities(250, "Backed up");
+      States backup = new States();
+      store.backup().transferTo(backup);
+
+      // Out of index order, with a later state of an entity after the first one
+      Collections.reverse(backup.states);
+      String duplicated = identities.get(0);
+      for (String state : new ArrayList<String>(backup.states))
+      {
+         if (new JSONObject(state).getString("identity").equals(duplicated))
+         {
+            backup.states.add(state.replace("Backed up", "Duplicate"));
+         }
+      }
+
+      // Changes after the backup are dropped by the restore
+      UnitOfWork unitOfWork = module.newUnitOfWork();
+      try
+      {
+         unitOfWork.get(TestEntity.class, identities.get(1)).name().set("Changed");
+         unitOfWork.complete();
+      } finally
+      {
+         if (unitOfWork.isOpen())
+         {
+            unitOfWork.discard();
+         }
+      }
+      String dropped = createEntities(1, "Dropped").get(0);
+
+      backup.transferTo(store.restore());
+
+      unitOfWork = module.newUnitOfWork();
+      try
+      {
+         for (String identity : identities)
+         {
+            assertEquals("Backed up", unitOfWork.get(TestEntity.class, identity).name().get());
+         }
+         try
+         {
+            unitOfWork.get(TestEntity.class, dropped);
+            fail("Entity created after the backup was restored");
+         } catch (NoSuchEntityException e)
+         {
+            // Expected
+         }
+      } finally
+      {
+         unitOfWork.discard();
+      }
+
+      // The restored index holds each entity once
+      States restored = new States();
+      store.backup().transferTo(restored);
+      assertEquals(backup.states.size() - 1, restored.states.size());
+      assertEquals(restored.states.size(), names(restored.states).size());
+   }
+
+   private List<String> createEntities(int count, String name)
+           throws UnitOfWorkCompletionException
+   {
+      UnitOfWork unitOfWork = module.newUnitOfWork();
+      try
+      {
+         List<String> identities = new ArrayList<String>();
+         for (int i = 0; i < count; i++)
+         {
+            TestEntity instance = createEntity(unitOfWork);
+            instance.name().set(name);
+            identities.add(instance.identity().get());
+         }
+         unitOfWork.complete();
+         return identities;
+      } finally
+      {
+         if (unitOfWork.isOpen())
+         {
+            unitOfWork.discard();
+         }
+      }
+   }
+
+   /**
+    * @return the names of the entities by identity
+    */
+   private static Map<String, String> names(List<String> states)
+           throws JSONException
+   {
+      Map<String, String> names = new HashMap<String, String>();
+      for (String state : states)
+      {
+         JSONObject json = new JSONObject(state);
+         names.put(json.getString("identity"), json.getJSONObject("properties").optString("name", null));
+      }
+      return names;
+   }
+
+   private static void copy(File from, File to)
+           throws IOException
+   {
+      FileInputStream in = new FileInputStream(from);
+      try
+      {
+         FileOutputStream out = new FileOutputStream(to);
+         try
+         {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+               out.write(buffer, 0, read);
+            }
+         } finally
+         {
+            out.close();
+         }
+      } finally
+      {
+         in.close();
+      }
+   }
+
+   /**
+    * Backed up states, that can be restored again.
+    */
+   private static class States
+           implements Output<String, IOException>, Input<String, IOException>
+   {
+      final List<String> states = new ArrayList<String>();
+
+      /**
+       * Called after each state is received.
+       */
+      protected void received(String state)
+              throws IOException
+      {
+      }
+
+      public <SenderThrowableType extends Throwable> void receiveFrom(Sender<? extends String, SenderThrowableType> sender)
+              throws IOException, SenderThrowableType
+      {
+         sender.sendTo(new Receiver<String, IOException>()
+         {
+            public void receive(String item)
+                    throws IOException
+            {
+               states.add(item);
+               received(item);
+            }
+         });
+      }
+
+      public <ReceiverThrowableType extends Throwable> void transferTo(Output<? super String, ReceiverThrowableType> output)
+              throws IOException, ReceiverThrowableType
+      {
+         output.receiveFrom(new Sender<String, IOException>()
+         {
+            public <ReceiverThrowableType extends Throwable> void sendTo(Receiver<? super String, ReceiverThrowableType> receiver)
+                    throws ReceiverThrowableType, IOException
+            {
+               for (String state : states)
+               {
+                  receiver.receive(state);
+               }
+            }
+         });
+      }
+   }
+
+   private static class NoChanges
+           implements MapEntityStore.MapChanges
+   {
+      public void visitMap(MapEntityStore.MapChanger changer)
+      {
+      }
+   }
+
+   private static class Apply
+           implements Callable<Void>
+   {
+      private final GroupCommit groupCommit;
+      private final MapEntityStore.MapChanges changes;
+
+      private Apply(GroupCommit groupCommit, MapEntityStore.MapChanges changes)
+      {
+         this.groupCommit = groupCommit;
+         this.changes = changes;
+      }
+
+      public Void call()
+              throws IOException
+      {
+         groupCommit.apply(changes);
+         return null;
+      }
+   }
+
    @Override
    @After
    public void tearDown()
@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql;
+
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.spi.entitystore.EntityStoreUnitOfWork;
+
+/**
+ * Loading of many entity states with few queries.
+ * <p>
+ * The states are selected in batches with an IN list of identities, and kept until the unit of work asks for them
+ * or completes, up to a configured number of characters. Callers that know which entities a unit of work is about to
+ * load, such as query result loading, prefetch them explicitly. If it is assembled to, the store also does this by
+ * itself for the entities referenced by the associations of the entities it loads, so that navigating from an entity
+ * to its associated entities does not cost one query per entity.
+ * </p>
+ */
+public interface EntityStatePrefetch
+{
+    /**
+     * Fetch the states of the given entities, so that the given unit of work gets them without another query.
+     * Entities that do not exist are ignored.
+     *
+     * @param unitOfWork the unit of work that is about to load the entities
+     * @param references the entities to fetch
+     */
+    void prefetchEntityStates( EntityStoreUnitOfWork unitOfWork, Iterable<EntityReference> references );
+}
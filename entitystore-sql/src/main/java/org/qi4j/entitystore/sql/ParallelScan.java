@@ -0,0 +1,269 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql;
+
+import org.qi4j.entitystore.sql.internal.DatabaseSQLService;
+import org.qi4j.library.sql.common.SQLUtil;
+import org.qi4j.spi.entitystore.EntityStoreException;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scan of the entity states of all shards, by chunks of the entity PK range of each shard if the scan parallelism is
+ * above 1, or by whole shards otherwise.
+ * <p>
+ * The chunks are read by as many threads as the scan parallelism, each on its own connection, so that a scan never
+ * holds more connections than that. The threads read the states into a bounded queue that the caller takes them from,
+ * so that the database is read while the caller handles the states, and a slow caller holds the threads back instead
+ * of filling the memory. A caller that needs a connection meanwhile gets it only if the scan parallelism is lower than
+ * the number of connections the data source hands out. The states of the chunks are interleaved in no particular
+ * order.
+ * </p>
+ */
+class ParallelScan
+{
+
+    private static final int QUEUE_SIZE = 1000;
+
+    // Put by each thread when its chunk has been read
+    private static final Object CHUNK_DONE = new Object();
+
+    private final DatabaseSQLService database;
+
+    private final BlockingQueue<Object> states = new ArrayBlockingQueue<Object>( QUEUE_SIZE );
+
+    private final ExecutorService executor;
+
+    private volatile boolean closed;
+
+    private int running;
+
+    ParallelScan( DatabaseSQLService database, final String name )
+        throws SQLException
+    {
+        this.database = database;
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for( int shard = 0; shard < database.getShardCount(); ++shard )
+        {
+            if( database.getScanParallelism() == 1 )
+            {
+                chunks.add( new Chunk( shard, 0, 0 ) );
+                continue;
+            }
+
+            long[] range;
+            Connection connection = this.connect( shard );
+            try
+            {
+                range = database.getEntityPKRange( connection );
+            }
+            finally
+            {
+                SQLUtil.rollbackQuietly( connection );
+                SQLUtil.closeQuietly( connection );
+            }
+            if( range != null )
+            {
+                // Rounded up, so that the last chunk ends after the highest PK
+                long size = ( range[ 1 ] - range[ 0 ] + database.getScanParallelism() - 1 ) / database.getScanParallelism();
+                for( long from = range[ 0 ]; from < range[ 1 ]; from += size )
+                {
+                    chunks.add( new Chunk( shard, from, Math.min( from + size, range[ 1 ] ) ) );
+                }
+            }
+        }
+
+        this.running = chunks.size();
+        final AtomicInteger threads = new AtomicInteger();
+        ThreadFactory factory = new ThreadFactory()
+        {
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, name + "-" + threads.getAndIncrement() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        };
+        this.executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( database.getScanParallelism(), chunks.size() ) ),
+                                                      factory );
+        for( final Chunk chunk : chunks )
+        {
+            this.executor.execute( new Runnable()
+            {
+                public void run()
+                {
+                    scan( chunk );
+                }
+            } );
+        }
+        // The threads end once the chunks have been read
+        this.executor.shutdown();
+    }
+
+    /**
+     * @return the next state, or null when all chunks have been read
+     */
+    public String next()
+        throws SQLException
+    {
+        try
+        {
+            while( running > 0 )
+            {
+                Object state = states.take();
+                if( state == CHUNK_DONE )
+                {
+                    running--;
+                }
+                else if( state instanceof SQLException )
+                {
+                    throw (SQLException) state;
+                }
+                else
+                {
+                    return (String) state;
+                }
+            }
+            return null;
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new EntityStoreException( "Interrupted while scanning entities", e );
+        }
+    }
+
+    /**
+     * Stop the threads that are still reading, and drop the chunks that were not read yet.
+     */
+    public void close()
+    {
+        closed = true;
+        executor.shutdownNow();
+        states.clear();
+    }
+
+    private void scan( Chunk chunk )
+    {
+        Connection connection = null;
+        boolean autoCommit = false;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try
+        {
+            connection = this.connect( chunk.shard );
+            autoCommit = SQLEntityStoreMixin.beginReadTransaction( connection );
+            if( chunk.from == chunk.to )
+            {
+                ps = database.prepareGetAllEntitiesStatement( connection );
+                database.populateGetAllEntitiesStatement( ps );
+            }
+            else
+            {
+                ps = database.prepareGetEntitiesInPKRangeStatement( connection );
+                database.populateGetEntitiesInPKRangeStatement( ps, chunk.from, chunk.to );
+            }
+            rs = ps.executeQuery();
+            while( rs.next() )
+            {
+                // The state is read at once, it may not outlive the result set
+                if( !put( SQLEntityStoreMixin.readFully( database.getEntityValue( rs ).getReader() ) ) )
+                {
+                    return;
+                }
+            }
+            put( CHUNK_DONE );
+        }
+        catch( SQLException sqle )
+        {
+            put( sqle );
+        }
+        catch( IOException ioe )
+        {
+            put( new SQLException( "Unable to read entity state from shard " + chunk.shard, ioe ) );
+        }
+        catch( RuntimeException re )
+        {
+            // Or the caller would wait for this chunk forever
+            put( new SQLException( "Unable to scan shard " + chunk.shard, re ) );
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( rs );
+            SQLUtil.closeQuietly( ps );
+            SQLEntityStoreMixin.endReadTransaction( connection, autoCommit );
+            SQLUtil.closeQuietly( connection );
+        }
+    }
+
+    private Connection connect( int shard )
+        throws SQLException
+    {
+        // Without shards, the scan may see the state of a read replica
+        return database.getShardCount() == 1 ? database.getReadConnection() : database.getConnection( shard );
+    }
+
+    /**
+     * @return false if the scan has been closed
+     */
+    private boolean put( Object state )
+    {
+        try
+        {
+            while( !closed )
+            {
+                if( states.offer( state, 100, TimeUnit.MILLISECONDS ) )
+                {
+                    return true;
+                }
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * A range of entity PKs of a shard, or the whole shard if the range is empty.
+     */
+    private static class Chunk
+    {
+        private final int shard;
+
+        private final long from;
+
+        private final long to;
+
+        private Chunk( int shard, long from, long to )
+        {
+            this.shard = shard;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+}
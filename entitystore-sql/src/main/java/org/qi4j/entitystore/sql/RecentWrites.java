@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The identities of the entities committed during the last staleness window, which read replicas may not have yet.
+ */
+class RecentWrites
+{
+
+    private final long window;
+
+    private final ConcurrentHashMap<String, Long> writes = new ConcurrentHashMap<String, Long>();
+
+    private volatile long lastPurge = System.currentTimeMillis();
+
+    RecentWrites( long window )
+    {
+        this.window = window;
+    }
+
+    public void written( Iterable<String> identities )
+    {
+        long now = System.currentTimeMillis();
+        for( String identity : identities )
+        {
+            writes.put( identity, now );
+        }
+        if( now - lastPurge > window )
+        {
+            purge( now );
+        }
+    }
+
+    public boolean contains( String identity )
+    {
+        Long written = writes.get( identity );
+        return written != null && System.currentTimeMillis() - written < window;
+    }
+
+    private synchronized void purge( long now )
+    {
+        if( now - lastPurge <= window )
+        {
+            // Purged meanwhile
+            return;
+        }
+        lastPurge = now;
+        for( Map.Entry<String, Long> entry : writes.entrySet() )
+        {
+            // Unless written again meanwhile
+            if( now - entry.getValue() >= window )
+            {
+                writes.remove( entry.getKey(), entry.getValue() );
+            }
+        }
+    }
+
+}
@@ -34,6 +34,7 @@ import org.qi4j.api.usecase.Usecase;
 import org.qi4j.api.usecase.UsecaseBuilder;
 import org.qi4j.entitystore.sql.internal.DatabaseSQLService;
 import org.qi4j.entitystore.sql.internal.DatabaseSQLService.EntityValueResult;
+import org.qi4j.entitystore.sql.internal.SQLs;
 import org.qi4j.io.Input;
 import org.qi4j.io.Output;
 import org.qi4j.io.Receiver;
@@ -57,6 +58,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Most of this code is copy-paste from {@link org.qi4j.spi.entitystore.helpers.MapEntityStoreMixin}. TODO refactor stuff that has to do with general
@@ -65,11 +68,15 @@ import java.util.*;
  *
  */
 public class SQLEntityStoreMixin
-    implements EntityStore, EntityStoreSPI, StateStore, Activatable
+    implements EntityStore, EntityStoreSPI, StateStore, EntityStatePrefetch, ShardedEntityStore,
+               SQLEntityStoreStatistics, Activatable
 {
 
     private static final Logger LOGGER = LoggerFactory.getLogger( SQLEntityStoreMixin.class );
 
+    // Shard argument for loading from a read replica, also the unknown shard of the values loaded from one
+    private static final int READ_REPLICA = -1;
+
     @Service
     private DatabaseSQLService database;
 
@@ -87,12 +94,23 @@ public class SQLEntityStoreMixin
 
     private Integer count;
 
+    // Null if there are no read replicas
+    private RecentWrites recentWrites;
+
+    // Fetched ahead for each unit of work, dropped when its changes are applied or cancelled, or when a discarded
+    // unit of work is collected
+    private final Map<EntityStoreUnitOfWork, Prefetch> prefetches = Collections.synchronizedMap( new WeakHashMap<EntityStoreUnitOfWork, Prefetch>() );
+
+    // Commits hold the read lock, the rebalance holds the write lock while it moves entities between shards
+    private final ReadWriteLock shardsLock = new ReentrantReadWriteLock();
+
     public void activate()
         throws Exception
     {
         uuid = UUID.randomUUID().toString() + "-";
         count = 0;
         database.startDatabase();
+        recentWrites = database.hasReadReplicas() ? new RecentWrites( database.getReadStaleness() ) : null;
     }
 
     public void passivate()
@@ -108,58 +126,61 @@ public class SQLEntityStoreMixin
 
             public void commit()
             {
-                Connection connection = null;
-                PreparedStatement insertPS = null;
-                PreparedStatement updatePS = null;
-                PreparedStatement removePS = null;
+                // Entities that were loaded from a shard they do not belong to are written there
+                Prefetch prefetch = prefetches.get( unitofwork );
+
+                // Shards that have no changes are left alone
+                Map<Integer, List<EntityState>> statesByShard = new TreeMap<Integer, List<EntityState>>();
+                for( EntityState state : states )
+                {
+                    Integer shard = prefetch == null ? null : prefetch.shardOf( state.identity() );
+                    if( shard == null )
+                    {
+                        shard = database.getShard( state.identity().identity() );
+                    }
+                    List<EntityState> shardStates = statesByShard.get( shard );
+                    if( shardStates == null )
+                    {
+                        shardStates = new ArrayList<EntityState>();
+                        statesByShard.put( shard, shardStates );
+                    }
+                    shardStates.add( state );
+                }
+
+                // Changes are written to all shards before any is committed, so that most failures, such as
+                // concurrent modifications, leave all shards as they were
+                List<Connection> connections = new ArrayList<Connection>();
+                int committed = 0;
+                shardsLock.readLock().lock();
                 try
                 {
-                    connection = database.getConnection();
-                    insertPS = database.prepareInsertEntityStatement( connection );
-                    updatePS = database.prepareUpdateEntityStatement( connection );
-                    removePS = database.prepareRemoveEntityStatement( connection );
-                    for( EntityState state : states )
+                    for( Map.Entry<Integer, List<EntityState>> entry : statesByShard.entrySet() )
                     {
-                        EntityStatus status = state.status();
-                        DefaultEntityState defState = ( (SQLEntityState) state ).getDefaultEntityState();
-                        Long entityPK = ( (SQLEntityState) state ).getEntityPK();
-                        if( EntityStatus.REMOVED.equals( status ) )
-                        {
-                            database.populateRemoveEntityStatement( removePS, entityPK, state.identity() );
-                            removePS.addBatch();
-                        }
-                        else
-                        {
-                            StringWriter writer = new StringWriter();
-                            writeEntityState( defState, writer, unitofwork.identity() );
-                            writer.flush();
-                            if( EntityStatus.UPDATED.equals( status ) )
-                            {
-                                Long entityOptimisticLock = ( (SQLEntityState) state ).getEntityOptimisticLock();
-                                database.populateUpdateEntityStatement( updatePS, entityPK, entityOptimisticLock,
-                                                                        defState.identity(), writer.toString(),
-                                                                        unitofwork.currentTime() );
-                                updatePS.addBatch();
-                            }
-                            else if( EntityStatus.NEW.equals( status ) )
-                            {
-                                database.populateInsertEntityStatement( insertPS, entityPK, defState.identity(),
-                                                                        writer.toString(), unitofwork.currentTime() );
-                                insertPS.addBatch();
-                            }
-                        }
+                        Connection connection = database.getConnection( entry.getKey() );
+                        connections.add( connection );
+                        writeChanges( connection, unitofwork, entry.getValue() );
                     }
 
-                    removePS.executeBatch();
-                    insertPS.executeBatch();
-                    updatePS.executeBatch();
+                    for( Connection connection : connections )
+                    {
+                        connection.commit();
+                        committed++;
+                    }
 
-                    connection.commit();
+                    if( recentWrites != null )
+                    {
+                        List<String> identities = new ArrayList<String>();
+                        for( EntityState state : states )
+                        {
+                            identities.add( state.identity().identity() );
+                        }
+                        recentWrites.written( identities );
+                    }
 
                 }
                 catch( SQLException sqle )
                 {
-                    SQLUtil.rollbackQuietly( connection );
+                    rollbackQuietly( connections );
                     if( LOGGER.isDebugEnabled() )
                     {
                         StringWriter sb = new StringWriter();
@@ -173,36 +194,200 @@ public class SQLEntityStoreMixin
                         }
                         LOGGER.debug( sb.toString() );
                     }
-                    throw new EntityStoreException( sqle );
+                    throw commitFailure( committed, connections.size(), sqle );
+                }
+                catch( ConcurrentEntityStateModificationException cesme )
+                {
+                    // Found while writing, before any shard was committed
+                    rollbackQuietly( connections );
+                    throw cesme;
                 }
                 catch( RuntimeException re )
                 {
-                    SQLUtil.rollbackQuietly( connection );
-                    throw new EntityStoreException( re );
+                    rollbackQuietly( connections );
+                    throw commitFailure( committed, connections.size(), re );
                 }
                 finally
                 {
-                    SQLUtil.closeQuietly( insertPS );
-                    SQLUtil.closeQuietly( updatePS );
-                    SQLUtil.closeQuietly( removePS );
-                    SQLUtil.closeQuietly( connection );
+                    shardsLock.readLock().unlock();
+                    prefetches.remove( unitofwork );
+                    for( Connection connection : connections )
+                    {
+                        SQLUtil.closeQuietly( connection );
+                    }
                 }
             }
 
             public void cancel()
             {
+                prefetches.remove( unitofwork );
             }
 
         };
     }
 
+    /**
+     * Write the changes to the entities of one shard, without committing them.
+     */
+    private void writeChanges( Connection connection, EntityStoreUnitOfWork unitofwork, List<EntityState> states )
+        throws SQLException
+    {
+        PreparedStatement insertPS = null;
+        PreparedStatement updatePS = null;
+        PreparedStatement removePS = null;
+        // In the order of the batched statements
+        List<EntityReference> updated = new ArrayList<EntityReference>();
+        List<EntityReference> removed = new ArrayList<EntityReference>();
+        try
+        {
+            insertPS = database.prepareInsertEntityStatement( connection );
+            updatePS = database.prepareUpdateEntityStatement( connection );
+            removePS = database.prepareRemoveEntityStatement( connection );
+            for( EntityState state : states )
+            {
+                EntityStatus status = state.status();
+                DefaultEntityState defState = ( (SQLEntityState) state ).getDefaultEntityState();
+                Long entityPK = ( (SQLEntityState) state ).getEntityPK();
+                if( EntityStatus.REMOVED.equals( status ) )
+                {
+                    database.populateRemoveEntityStatement( removePS, entityPK, state.identity() );
+                    removePS.addBatch();
+                    removed.add( state.identity() );
+                }
+                else
+                {
+                    StringWriter writer = new StringWriter();
+                    writeEntityState( defState, writer, unitofwork.identity() );
+                    writer.flush();
+                    if( EntityStatus.UPDATED.equals( status ) )
+                    {
+                        Long entityOptimisticLock = ( (SQLEntityState) state ).getEntityOptimisticLock();
+                        database.populateUpdateEntityStatement( updatePS, entityPK, entityOptimisticLock,
+                                                                defState.identity(), writer.toString(),
+                                                                unitofwork.currentTime() );
+                        updatePS.addBatch();
+                        updated.add( state.identity() );
+                    }
+                    else if( EntityStatus.NEW.equals( status ) )
+                    {
+                        database.populateInsertEntityStatement( insertPS, entityPK, defState.identity(),
+                                                                writer.toString(), unitofwork.currentTime() );
+                        insertPS.addBatch();
+                    }
+                }
+            }
+
+            checkModified( removePS.executeBatch(), removed );
+            insertPS.executeBatch();
+            checkModified( updatePS.executeBatch(), updated );
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( insertPS );
+            SQLUtil.closeQuietly( updatePS );
+            SQLUtil.closeQuietly( removePS );
+        }
+    }
+
+    /**
+     * An update or remove that matched no row found the entity changed or removed since it was loaded, as the
+     * optimistic lock or the primary key did not match. Drivers that report
+     * {@link java.sql.Statement#SUCCESS_NO_INFO} leave it unknown, and those entities are taken as written.
+     *
+     * @param counts the update counts of the batch
+     * @param refs   the entities of the batched statements, in order
+     *
+     * @throws ConcurrentEntityStateModificationException if some entities were not written
+     */
+    private static void checkModified( int[] counts, List<EntityReference> refs )
+    {
+        List<EntityReference> modified = new ArrayList<EntityReference>();
+        for( int i = 0; i < counts.length; i++ )
+        {
+            if( counts[ i ] == 0 )
+            {
+                modified.add( refs.get( i ) );
+            }
+        }
+        if( !modified.isEmpty() )
+        {
+            throw new ConcurrentEntityStateModificationException( modified );
+        }
+    }
+
+    /**
+     * If some shards were committed before the failure, their changes stay, and the exception says so.
+     */
+    private static EntityStoreException commitFailure( int committed, int shards, Exception cause )
+    {
+        if( committed == 0 )
+        {
+            return new EntityStoreException( cause );
+        }
+        return new EntityStoreException( "Commit failed after the changes to " + committed + " of " + shards
+                                         + " shards were committed, those changes were not rolled back", cause );
+    }
+
+    private static void rollbackQuietly( List<Connection> connections )
+    {
+        for( Connection connection : connections )
+        {
+            SQLUtil.rollbackQuietly( connection );
+        }
+    }
+
     public EntityState getEntityState( EntityStoreUnitOfWork unitOfWork, EntityReference entityRef )
     {
-        EntityValueResult valueResult = getValue( entityRef );
-        return new DefaultSQLEntityState( readEntityState( (DefaultEntityStoreUnitOfWork) unitOfWork,
-                                                           valueResult.getReader() ),
-                                          valueResult.getEntityPK(),
-                                          valueResult.getEntityOptimisticLock() );
+        Prefetch prefetch = prefetchOf( unitOfWork );
+        EntityValueResult valueResult = prefetch.take( entityRef );
+        if( valueResult == null )
+        {
+            // Along with the entities referenced by those loaded before, that have not been loaded yet
+            List<EntityReference> refs = database.isPrefetchingReferences()
+                                         ? prefetch.nextBatch( entityRef )
+                                         : Collections.singletonList( entityRef );
+            if( refs.size() == 1 )
+            {
+                valueResult = getValue( entityRef );
+            }
+            else
+            {
+                Map<EntityReference, EntityValueResult> values = getValues( refs );
+                valueResult = values.remove( entityRef );
+                if( valueResult == null )
+                {
+                    throw new EntityNotFoundException( entityRef );
+                }
+                prefetch.put( values );
+            }
+        }
+
+        DefaultEntityState state = readEntityState( (DefaultEntityStoreUnitOfWork) unitOfWork, valueResult.getReader() );
+        prefetch.loaded( state, database.isPrefetchingReferences() );
+        int shard = valueResult.getShard();
+        if( shard != READ_REPLICA && shard != database.getShard( entityRef.identity() ) )
+        {
+            // Not moved to the shard it belongs to yet
+            prefetch.loadedFrom( entityRef, shard );
+        }
+        return new DefaultSQLEntityState( state, valueResult.getEntityPK(), valueResult.getEntityOptimisticLock() );
+    }
+
+    public void prefetchEntityStates( EntityStoreUnitOfWork unitOfWork, Iterable<EntityReference> references )
+    {
+        Prefetch prefetch = prefetchOf( unitOfWork );
+        List<EntityReference> refs = new ArrayList<EntityReference>();
+        for( EntityReference reference : references )
+        {
+            if( !prefetch.contains( reference ) )
+            {
+                refs.add( reference );
+            }
+        }
+        if( !refs.isEmpty() )
+        {
+            prefetch.put( getValues( refs ) );
+        }
     }
 
     public EntityState newEntityState( EntityStoreUnitOfWork unitOfWork, EntityReference entityRef, EntityDescriptor entityDescriptor )
@@ -219,66 +404,591 @@ public class SQLEntityStoreMixin
         return new DefaultEntityStoreUnitOfWork( entityStoreSPI, newUnitOfWorkId(), module, usecase, currentTime );
     }
 
-    public Input<EntityState, EntityStoreException> entityStates( final Module module )
+    public Input<EntityState, EntityStoreException> entityStates( final Module module )
+    {
+        return new Input<EntityState, EntityStoreException>()
+        {
+           @Override
+           public <ReceiverThrowableType extends Throwable> void transferTo(Output<? super EntityState, ReceiverThrowableType> output) throws EntityStoreException, ReceiverThrowableType
+           {
+                output.receiveFrom( new Sender<EntityState, EntityStoreException>()
+                {
+                   @Override
+                   public <ReceiverThrowableType extends Throwable> void sendTo(Receiver<? super EntityState, ReceiverThrowableType> receiver) throws ReceiverThrowableType, EntityStoreException
+                   {
+                        Connection connection = null;
+                        PreparedStatement ps = null;
+                        ResultSet rs = null;
+                        UsecaseBuilder builder = UsecaseBuilder.buildUsecase( "qi4j.entitystore.sql.visit" );
+                        Usecase usecase = builder.with( CacheOptions.NEVER ).newUsecase();
+                        final DefaultEntityStoreUnitOfWork uow = new DefaultEntityStoreUnitOfWork( entityStoreSPI, newUnitOfWorkId(),
+                                                                                                   module, usecase, System.currentTimeMillis() );
+                        if( database.getShardCount() > 1 || database.getScanParallelism() > 1 )
+                        {
+                            ParallelScan scan = null;
+                            try
+                            {
+                                scan = new ParallelScan( database, "qi4j-sql-scan-" + uow.identity() );
+                                String state;
+                                while( ( state = scan.next() ) != null )
+                                {
+                                    receiver.receive( readEntityState( uow, new StringReader( state ) ) );
+                                }
+                            }
+                            catch( SQLException sqle )
+                            {
+                                throw new EntityStoreException( sqle );
+                            }
+                            finally
+                            {
+                                if( scan != null )
+                                {
+                                    scan.close();
+                                }
+                            }
+                            return;
+                        }
+
+                        boolean autoCommit = false;
+
+                        try
+                        {
+                            // A scan may see the state of a read replica
+                            connection = database.getReadConnection();
+                            autoCommit = beginReadTransaction( connection );
+                            ps = database.prepareGetAllEntitiesStatement( connection );
+                            database.populateGetAllEntitiesStatement( ps );
+                            rs = ps.executeQuery();
+                            while( rs.next() )
+                            {
+                                receiver.receive( readEntityState( uow, database.getEntityValue( rs ).getReader() ) );
+                            }
+                        }
+                        catch( SQLException sqle )
+                        {
+                            throw new EntityStoreException( sqle );
+                        }
+                        finally
+                        {
+                            SQLUtil.closeQuietly( rs );
+                            SQLUtil.closeQuietly( ps );
+                            endReadTransaction( connection, autoCommit );
+                            SQLUtil.closeQuietly( connection );
+                        }
+
+                    }
+                });
+            }
+        };
+    }
+
+    public int rebalanceShards()
+    {
+        int moved = 0;
+        for( int shard = 0; shard < database.getShardCount(); ++shard )
+        {
+            try
+            {
+                Map<EntityReference, Long> misplaced = misplacedEntities( shard );
+                List<EntityReference> refs = new ArrayList<EntityReference>( misplaced.keySet() );
+                int shardMoved = 0;
+                for( int start = 0; start < refs.size(); start += SQLs.SELECT_ENTITIES_BATCH_SIZE )
+                {
+                    // Commits wait while a batch is moved, so that none is written to a copy that is then removed
+                    shardsLock.writeLock().lock();
+                    try
+                    {
+                        shardMoved += moveEntities(
+                            shard, refs.subList( start, Math.min( start + SQLs.SELECT_ENTITIES_BATCH_SIZE, refs.size() ) ),
+                            misplaced );
+                    }
+                    finally
+                    {
+                        shardsLock.writeLock().unlock();
+                    }
+                }
+                LOGGER.debug( "Moved {} entities from shard {}", shardMoved, shard );
+                moved += shardMoved;
+            }
+            catch( SQLException sqle )
+            {
+                throw new EntityStoreException( "Unable to rebalance shard " + shard, sqle );
+            }
+            catch( IOException ioe )
+            {
+                throw new EntityStoreException( "Unable to rebalance shard " + shard, ioe );
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * @return the entities stored on the shard that belong to another one, with the time they were last modified
+     */
+    private Map<EntityReference, Long> misplacedEntities( int shard )
+        throws SQLException
+    {
+        Map<EntityReference, Long> misplaced = new LinkedHashMap<EntityReference, Long>();
+        Connection connection = null;
+        boolean autoCommit = false;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try
+        {
+            connection = database.getConnection( shard );
+            autoCommit = beginReadTransaction( connection );
+            ps = database.prepareGetAllEntitiesStatement( connection );
+            database.populateGetAllEntitiesStatement( ps );
+            rs = ps.executeQuery();
+            while( rs.next() )
+            {
+                String identity = rs.getString( SQLs.ENTITY_IDENTITY_COLUMN_NAME );
+                if( database.getShard( identity ) != shard )
+                {
+                    misplaced.put( EntityReference.parseEntityReference( identity ),
+                                   rs.getLong( SQLs.ENTITY_LAST_MODIFIED_COLUMN_NAME ) );
+                }
+            }
+            return misplaced;
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( rs );
+            SQLUtil.closeQuietly( ps );
+            endReadTransaction( connection, autoCommit );
+            SQLUtil.closeQuietly( connection );
+        }
+    }
+
+    /**
+     * Copy the entities to the shards they belong to, and then remove them from the given one. Entities that were
+     * copied before, by a rebalance that failed, are not copied again.
+     *
+     * @return the number of entities that were moved
+     */
+    private int moveEntities( int source, List<EntityReference> refs, Map<EntityReference, Long> lastModified )
+        throws SQLException, IOException
+    {
+        // Removed meanwhile if missing
+        Map<EntityReference, EntityValueResult> values = loadValues( refs, source );
+
+        Map<Integer, List<EntityReference>> refsByShard = new TreeMap<Integer, List<EntityReference>>();
+        for( EntityReference ref : values.keySet() )
+        {
+            Integer shard = database.getShard( ref.identity() );
+            List<EntityReference> shardRefs = refsByShard.get( shard );
+            if( shardRefs == null )
+            {
+                shardRefs = new ArrayList<EntityReference>();
+                refsByShard.put( shard, shardRefs );
+            }
+            shardRefs.add( ref );
+        }
+
+        for( Map.Entry<Integer, List<EntityReference>> entry : refsByShard.entrySet() )
+        {
+            Set<EntityReference> copied = loadValues( entry.getValue(), entry.getKey() ).keySet();
+            Connection connection = null;
+            PreparedStatement ps = null;
+            try
+            {
+                connection = database.getConnection( entry.getKey() );
+                ps = database.prepareInsertEntityStatement( connection );
+                for( EntityReference ref : entry.getValue() )
+                {
+                    if( !copied.contains( ref ) )
+                    {
+                        EntityValueResult value = values.get( ref );
+                        database.populateInsertEntityStatement( ps, value.getEntityPK(), ref,
+                                                                readFully( value.getReader() ),
+                                                                lastModified.get( ref ) );
+                        ps.addBatch();
+                    }
+                }
+                ps.executeBatch();
+                connection.commit();
+            }
+            catch( SQLException sqle )
+            {
+                SQLUtil.rollbackQuietly( connection );
+                throw sqle;
+            }
+            finally
+            {
+                SQLUtil.closeQuietly( ps );
+                SQLUtil.closeQuietly( connection );
+            }
+        }
+
+        Connection connection = null;
+        PreparedStatement ps = null;
+        try
+        {
+            connection = database.getConnection( source );
+            ps = database.prepareRemoveEntityStatement( connection );
+            for( Map.Entry<EntityReference, EntityValueResult> entry : values.entrySet() )
+            {
+                database.populateRemoveEntityStatement( ps, entry.getValue().getEntityPK(), entry.getKey() );
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            connection.commit();
+        }
+        catch( SQLException sqle )
+        {
+            SQLUtil.rollbackQuietly( connection );
+            throw sqle;
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( ps );
+            SQLUtil.closeQuietly( connection );
+        }
+        return values.size();
+    }
+
+    public long statementCacheHits()
+    {
+        return database.getStatementCacheHits();
+    }
+
+    public long statementCacheMisses()
+    {
+        return database.getStatementCacheMisses();
+    }
+
+    public double statementCacheHitRatio()
+    {
+        long hits = database.getStatementCacheHits();
+        long prepares = hits + database.getStatementCacheMisses();
+        return prepares == 0 ? 0 : (double) hits / prepares;
+    }
+
+    public int statementCacheSize()
+    {
+        return database.getStatementCacheSize();
+    }
+
+    @SuppressWarnings( "ValueOfIncrementOrDecrementUsed" )
+    protected String newUnitOfWorkId()
+    {
+        return uuid + Integer.toHexString( count++ );
+    }
+
+    /**
+     * Read an entity state in one pass over the JSON tokens, without building a JSONObject of the whole state. States
+     * that need migration, or that are not in the order {@link #writeEntityState} writes them, are read into a
+     * JSONObject instead.
+     */
+    protected DefaultEntityState readEntityState( DefaultEntityStoreUnitOfWork unitOfWork, Reader entityState )
+        throws EntityStoreException
+    {
+        try
+        {
+            Module module = unitOfWork.module();
+            JSONTokener tokener = new JSONTokener( entityState );
+            beginObject( tokener );
+
+            EntityStatus status = EntityStatus.LOADED;
+            String identity = null;
+            String currentAppVersion = null;
+            String version = null;
+            Long modified = null;
+            EntityDescriptor entityDescriptor = null;
+            Map<QualifiedName, Object> properties = null;
+            Map<QualifiedName, EntityReference> associations = null;
+            Map<QualifiedName, List<EntityReference>> manyAssociations = null;
+
+            // Set when the rest of the state is read into a tree
+            JSONObject jsonObject = null;
+
+            String key;
+            while( ( key = nextKey( tokener ) ) != null )
+            {
+                if( jsonObject == null )
+                {
+                    if( "identity".equals( key ) )
+                    {
+                        identity = (String) tokener.nextValue();
+                        continue;
+                    }
+                    else if( MapEntityStore.JSONKeys.application_version.name().equals( key ) )
+                    {
+                        currentAppVersion = tokener.nextValue().toString();
+                        if( currentAppVersion.equals( application.version() ) )
+                        {
+                            continue;
+                        }
+                    }
+                    else if( currentAppVersion != null )
+                    {
+                        if( "type".equals( key ) )
+                        {
+                            String type = (String) tokener.nextValue();
+                            entityDescriptor = module.entityDescriptor( type );
+                            if( entityDescriptor == null )
+                            {
+                                throw new EntityTypeNotFoundException( type );
+                            }
+                            continue;
+                        }
+                        else if( "version".equals( key ) )
+                        {
+                            version = tokener.nextValue().toString();
+                            continue;
+                        }
+                        else if( "modified".equals( key ) )
+                        {
+                            modified = ( (Number) tokener.nextValue() ).longValue();
+                            continue;
+                        }
+                        else if( entityDescriptor != null && "properties".equals( key ) )
+                        {
+                            properties = readProperties( tokener, module, entityDescriptor );
+                            continue;
+                        }
+                        else if( entityDescriptor != null && "associations".equals( key ) )
+                        {
+                            associations = readAssociations( tokener, entityDescriptor );
+                            continue;
+                        }
+                        else if( entityDescriptor != null && "manyassociations".equals( key ) )
+                        {
+                            manyAssociations = readManyAssociations( tokener, entityDescriptor );
+                            continue;
+                        }
+                        else if( !"properties".equals( key ) && !"associations".equals( key )
+                                 && !"manyassociations".equals( key ) )
+                        {
+                            // Not part of the state
+                            tokener.nextValue();
+                            continue;
+                        }
+                    }
+
+                    // Read the rest into a tree, along with what has been read so far
+                    jsonObject = new JSONObject();
+                    jsonObject.putOpt( "identity", identity );
+                    jsonObject.putOpt( MapEntityStore.JSONKeys.application_version.name(), currentAppVersion );
+                    jsonObject.putOpt( "type", entityDescriptor == null ? null : entityDescriptor.type().getName() );
+                    jsonObject.putOpt( "version", version );
+                    jsonObject.putOpt( "modified", modified );
+                    if( key.equals( MapEntityStore.JSONKeys.application_version.name() ) )
+                    {
+                        continue;
+                    }
+                }
+                jsonObject.put( key, tokener.nextValue() );
+            }
+
+            if( jsonObject != null )
+            {
+                return readEntityState( unitOfWork, jsonObject );
+            }
+
+            if( identity == null || version == null || modified == null || entityDescriptor == null )
+            {
+                throw new JSONException( "Incomplete entity state " + identity );
+            }
+
+            // Default what is missing
+            if( properties == null || properties.size() < entityDescriptor.state().properties().size() )
+            {
+                if( properties == null )
+                {
+                    properties = new HashMap<QualifiedName, Object>();
+                }
+                for( PropertyDescriptor propertyDescriptor : entityDescriptor.state().properties() )
+                {
+                    if( !properties.containsKey( propertyDescriptor.qualifiedName() ) )
+                    {
+                        properties.put( propertyDescriptor.qualifiedName(), propertyDescriptor.initialValue( module ) );
+                        status = EntityStatus.UPDATED;
+                    }
+                }
+            }
+            if( associations == null || associations.size() < entityDescriptor.state().associations().size() )
+            {
+                if( associations == null )
+                {
+                    associations = new HashMap<QualifiedName, EntityReference>();
+                }
+                for( AssociationDescriptor associationType : entityDescriptor.state().associations() )
+                {
+                    if( !associations.containsKey( associationType.qualifiedName() ) )
+                    {
+                        associations.put( associationType.qualifiedName(), null );
+                        status = EntityStatus.UPDATED;
+                    }
+                }
+            }
+            if( manyAssociations == null )
+            {
+                manyAssociations = new HashMap<QualifiedName, List<EntityReference>>();
+            }
+            for( AssociationDescriptor manyAssociationType : entityDescriptor.state().manyAssociations() )
+            {
+                if( !manyAssociations.containsKey( manyAssociationType.qualifiedName() ) )
+                {
+                    manyAssociations.put( manyAssociationType.qualifiedName(), new ArrayList<EntityReference>() );
+                }
+            }
+
+            return new DefaultEntityState( unitOfWork, version, modified,
+                                           EntityReference.parseEntityReference( identity ), status, entityDescriptor,
+                                           properties, associations, manyAssociations );
+        }
+        catch( JSONException e )
+        {
+            throw new EntityStoreException( e );
+        }
+    }
+
+    private Map<QualifiedName, Object> readProperties( JSONTokener tokener, Module module, EntityDescriptor entityDescriptor )
+        throws JSONException
+    {
+        beginObject( tokener );
+        Map<QualifiedName, Object> properties = new HashMap<QualifiedName, Object>();
+        JSONDeserializer deserializer = new JSONDeserializer( module );
+        String key;
+        while( ( key = nextKey( tokener ) ) != null )
+        {
+            Object jsonValue = tokener.nextValue();
+            for( PropertyDescriptor propertyDescriptor : entityDescriptor.state().properties() )
+            {
+                if( propertyDescriptor.qualifiedName().name().equals( key ) )
+                {
+                    if( jsonValue == JSONObject.NULL )
+                    {
+                        properties.put( propertyDescriptor.qualifiedName(), null );
+                    }
+                    else
+                    {
+                        Object value = deserializer.deserialize( jsonValue, propertyDescriptor.valueType() );
+                        properties.put( propertyDescriptor.qualifiedName(), value );
+                    }
+                    break;
+                }
+            }
+        }
+        return properties;
+    }
+
+    private Map<QualifiedName, EntityReference> readAssociations( JSONTokener tokener, EntityDescriptor entityDescriptor )
+        throws JSONException
+    {
+        beginObject( tokener );
+        Map<QualifiedName, EntityReference> associations = new HashMap<QualifiedName, EntityReference>();
+        String key;
+        while( ( key = nextKey( tokener ) ) != null )
+        {
+            Object jsonValue = tokener.nextValue();
+            for( AssociationDescriptor associationType : entityDescriptor.state().associations() )
+            {
+                if( associationType.qualifiedName().name().equals( key ) )
+                {
+                    EntityReference value = jsonValue == JSONObject.NULL ? null : EntityReference.parseEntityReference(
+                        (String) jsonValue );
+                    associations.put( associationType.qualifiedName(), value );
+                    break;
+                }
+            }
+        }
+        return associations;
+    }
+
+    private Map<QualifiedName, List<EntityReference>> readManyAssociations( JSONTokener tokener, EntityDescriptor entityDescriptor )
+        throws JSONException
+    {
+        beginObject( tokener );
+        Map<QualifiedName, List<EntityReference>> manyAssociations = new HashMap<QualifiedName, List<EntityReference>>();
+        String key;
+        while( ( key = nextKey( tokener ) ) != null )
+        {
+            AssociationDescriptor manyAssociation = null;
+            for( AssociationDescriptor manyAssociationType : entityDescriptor.state().manyAssociations() )
+            {
+                if( manyAssociationType.qualifiedName().name().equals( key ) )
+                {
+                    manyAssociation = manyAssociationType;
+                    break;
+                }
+            }
+            if( manyAssociation == null )
+            {
+                tokener.nextValue();
+                continue;
+            }
+
+            if( tokener.nextClean() != '[' )
+            {
+                throw tokener.syntaxError( "A JSONArray text must start with '['" );
+            }
+            List<EntityReference> references = new ArrayList<EntityReference>();
+            while( true )
+            {
+                char c = tokener.nextClean();
+                if( c == ',' )
+                {
+                    c = tokener.nextClean();
+                }
+                if( c == ']' )
+                {
+                    break;
+                }
+                tokener.back();
+                Object jsonValue = tokener.nextValue();
+                references.add( jsonValue == JSONObject.NULL ? null : EntityReference.parseEntityReference(
+                    jsonValue.toString() ) );
+            }
+            manyAssociations.put( manyAssociation.qualifiedName(), references );
+        }
+        return manyAssociations;
+    }
+
+    private static void beginObject( JSONTokener tokener )
+        throws JSONException
     {
-        return new Input<EntityState, EntityStoreException>()
+        if( tokener.nextClean() != '{' )
         {
-           @Override
-           public <ReceiverThrowableType extends Throwable> void transferTo(Output<? super EntityState, ReceiverThrowableType> output) throws EntityStoreException, ReceiverThrowableType
-           {
-                output.receiveFrom( new Sender<EntityState, EntityStoreException>()
-                {
-                   @Override
-                   public <ReceiverThrowableType extends Throwable> void sendTo(Receiver<? super EntityState, ReceiverThrowableType> receiver) throws ReceiverThrowableType, EntityStoreException
-                   {
-                        Connection connection = null;
-                        PreparedStatement ps = null;
-                        ResultSet rs = null;
-                        UsecaseBuilder builder = UsecaseBuilder.buildUsecase( "qi4j.entitystore.sql.visit" );
-                        Usecase usecase = builder.with( CacheOptions.NEVER ).newUsecase();
-                        final DefaultEntityStoreUnitOfWork uow = new DefaultEntityStoreUnitOfWork( entityStoreSPI, newUnitOfWorkId(),
-                                                                                                   module, usecase, System.currentTimeMillis() );
-                        try
-                        {
-                            connection = database.getConnection();
-                            ps = database.prepareGetAllEntitiesStatement( connection );
-                            database.populateGetAllEntitiesStatement( ps );
-                            rs = ps.executeQuery();
-                            while( rs.next() )
-                            {
-                                receiver.receive( readEntityState( uow, database.getEntityValue( rs ).getReader() ) );
-                            }
-                        }
-                        catch( SQLException sqle )
-                        {
-                            throw new EntityStoreException( sqle );
-                        }
-                        finally
-                        {
-                            SQLUtil.closeQuietly( rs );
-                            SQLUtil.closeQuietly( ps );
-                            SQLUtil.closeQuietly( connection );
-                        }
-
-                    }
-                });
-            }
-        };
+            throw tokener.syntaxError( "A JSONObject text must begin with '{'" );
+        }
     }
 
-    @SuppressWarnings( "ValueOfIncrementOrDecrementUsed" )
-    protected String newUnitOfWorkId()
+    /**
+     * @return the next key of the object being read, with the tokener before its value, or null at the end of the
+     *         object
+     */
+    private static String nextKey( JSONTokener tokener )
+        throws JSONException
     {
-        return uuid + Integer.toHexString( count++ );
+        char c = tokener.nextClean();
+        if( c == ',' )
+        {
+            c = tokener.nextClean();
+        }
+        if( c == '}' )
+        {
+            return null;
+        }
+        if( c != '"' )
+        {
+            throw tokener.syntaxError( "Expected a key" );
+        }
+        String key = tokener.nextString( '"' );
+        if( tokener.nextClean() != ':' )
+        {
+            throw tokener.syntaxError( "Expected a ':' after a key" );
+        }
+        return key;
     }
 
-    protected DefaultEntityState readEntityState( DefaultEntityStoreUnitOfWork unitOfWork, Reader entityState )
+    protected DefaultEntityState readEntityState( DefaultEntityStoreUnitOfWork unitOfWork, JSONObject jsonObject )
         throws EntityStoreException
     {
         try
         {
             Module module = unitOfWork.module();
-            JSONObject jsonObject = new JSONObject( new JSONTokener( entityState ) );
             EntityStatus status = EntityStatus.LOADED;
 
             String version = jsonObject.getString( "version" );
@@ -415,37 +1125,280 @@ public class SQLEntityStoreMixin
     }
 
     protected EntityValueResult getValue( EntityReference ref )
+    {
+        if( recentWrites != null && !recentWrites.contains( ref.identity() ) )
+        {
+            try
+            {
+                EntityValueResult result = loadValue( ref, READ_REPLICA );
+                if( result != null )
+                {
+                    return result;
+                }
+                // Not replicated yet, or removed
+            }
+            catch( SQLException sqle )
+            {
+                LOGGER.warn( "Unable to get Entity " + ref + " from a read replica, getting it from the primary", sqle );
+            }
+        }
+
+        EntityValueResult result;
+        try
+        {
+            int owner = database.getShard( ref.identity() );
+            result = loadValue( ref, owner );
+            for( int shard = 0; result == null && shard < database.getShardCount(); ++shard )
+            {
+                // Not moved to the shard it belongs to yet
+                if( shard != owner )
+                {
+                    result = loadValue( ref, shard );
+                }
+            }
+        }
+        catch( SQLException sqle )
+        {
+            throw new EntityStoreException( "Unable to get Entity " + ref, sqle );
+        }
+        if( result == null )
+        {
+            throw new EntityNotFoundException( ref );
+        }
+        return result;
+    }
+
+    /**
+     * @param shard the shard to load from, or {@link #READ_REPLICA}
+     * @return the value of the entity, or null if it was not found
+     */
+    private EntityValueResult loadValue( EntityReference ref, int shard )
+        throws SQLException
     {
         Connection connection = null;
         PreparedStatement ps = null;
         ResultSet rs = null;
         try
         {
-            connection = database.getConnection();
+            connection = shard == READ_REPLICA ? database.getReadConnection() : database.getConnection( shard );
             ps = database.prepareGetEntityStatement( connection );
             database.populateGetEntityStatement( ps, ref );
             rs = ps.executeQuery();
             if( !rs.next() )
             {
-                throw new EntityNotFoundException( ref );
+                return null;
             }
 
             EntityValueResult result = database.getEntityValue( rs );
 
-            return result;
+            return new EntityValueResult( result.getEntityPK(), result.getEntityOptimisticLock(), result.getReader(),
+                                          shard );
         }
-        catch( SQLException sqle )
+        finally
         {
-            throw new EntityStoreException( "Unable to get Entity " + ref, sqle );
+            SQLUtil.closeQuietly( rs );
+            SQLUtil.closeQuietly( ps );
+            SQLUtil.closeQuietly( connection );
+        }
+    }
+
+    /**
+     * Get the values of many entities, with one query per {@link SQLs#SELECT_ENTITIES_BATCH_SIZE} entities.
+     *
+     * @return the values of the entities that exist
+     */
+    protected Map<EntityReference, EntityValueResult> getValues( List<EntityReference> refs )
+    {
+        Map<EntityReference, EntityValueResult> values = new HashMap<EntityReference, EntityValueResult>();
+        List<EntityReference> primaryRefs = refs;
+        if( recentWrites != null )
+        {
+            List<EntityReference> replicaRefs = new ArrayList<EntityReference>();
+            primaryRefs = new ArrayList<EntityReference>();
+            for( EntityReference ref : refs )
+            {
+                ( recentWrites.contains( ref.identity() ) ? primaryRefs : replicaRefs ).add( ref );
+            }
+            if( !replicaRefs.isEmpty() )
+            {
+                try
+                {
+                    values.putAll( loadValues( replicaRefs, READ_REPLICA ) );
+                }
+                catch( SQLException sqle )
+                {
+                    LOGGER.warn( "Unable to get Entities from a read replica, getting them from the primary", sqle );
+                }
+
+                // Not replicated yet, or removed
+                for( EntityReference ref : replicaRefs )
+                {
+                    if( !values.containsKey( ref ) )
+                    {
+                        primaryRefs.add( ref );
+                    }
+                }
+            }
+        }
+
+        if( !primaryRefs.isEmpty() )
+        {
+            try
+            {
+                List<List<EntityReference>> refsByShard = new ArrayList<List<EntityReference>>();
+                for( int shard = 0; shard < database.getShardCount(); ++shard )
+                {
+                    refsByShard.add( new ArrayList<EntityReference>() );
+                }
+                for( EntityReference ref : primaryRefs )
+                {
+                    refsByShard.get( database.getShard( ref.identity() ) ).add( ref );
+                }
+                for( int shard = 0; shard < refsByShard.size(); ++shard )
+                {
+                    if( !refsByShard.get( shard ).isEmpty() )
+                    {
+                        values.putAll( loadValues( refsByShard.get( shard ), shard ) );
+                    }
+                }
+
+                if( refsByShard.size() > 1 && values.size() < refs.size() )
+                {
+                    // Those not moved to the shard they belong to yet, or removed
+                    for( int shard = 0; shard < refsByShard.size(); ++shard )
+                    {
+                        List<EntityReference> missing = new ArrayList<EntityReference>();
+                        for( EntityReference ref : primaryRefs )
+                        {
+                            if( !values.containsKey( ref ) && database.getShard( ref.identity() ) != shard )
+                            {
+                                missing.add( ref );
+                            }
+                        }
+                        if( !missing.isEmpty() )
+                        {
+                            values.putAll( loadValues( missing, shard ) );
+                        }
+                    }
+                }
+            }
+            catch( SQLException sqle )
+            {
+                throw new EntityStoreException( "Unable to get Entities " + refs, sqle );
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @param shard the shard to load from, or {@link #READ_REPLICA}
+     */
+    private Map<EntityReference, EntityValueResult> loadValues( List<EntityReference> refs, int shard )
+        throws SQLException
+    {
+        Map<EntityReference, EntityValueResult> values = new HashMap<EntityReference, EntityValueResult>();
+        Connection connection = null;
+        PreparedStatement ps = null;
+        try
+        {
+            connection = shard == READ_REPLICA ? database.getReadConnection() : database.getConnection( shard );
+            ps = database.prepareGetEntitiesStatement( connection );
+            for( int start = 0; start < refs.size(); start += SQLs.SELECT_ENTITIES_BATCH_SIZE )
+            {
+                database.populateGetEntitiesStatement(
+                    ps, refs.subList( start, Math.min( start + SQLs.SELECT_ENTITIES_BATCH_SIZE, refs.size() ) ) );
+                ResultSet rs = null;
+                try
+                {
+                    rs = ps.executeQuery();
+                    while( rs.next() )
+                    {
+                        // The state is read at once, it may not outlive the result set
+                        EntityValueResult result = database.getEntityValue( rs );
+                        values.put( EntityReference.parseEntityReference( rs.getString( SQLs.ENTITY_IDENTITY_COLUMN_NAME ) ),
+                                    new EntityValueResult( result.getEntityPK(), result.getEntityOptimisticLock(),
+                                                           new StateReader( readFully( result.getReader() ) ),
+                                                           shard ) );
+                    }
+                }
+                finally
+                {
+                    SQLUtil.closeQuietly( rs );
+                }
+            }
+            return values;
+        }
+        catch( IOException ioe )
+        {
+            throw new EntityStoreException( "Unable to get Entities " + refs, ioe );
         }
         finally
         {
-            SQLUtil.closeQuietly( rs );
             SQLUtil.closeQuietly( ps );
             SQLUtil.closeQuietly( connection );
         }
     }
 
+    private Prefetch prefetchOf( EntityStoreUnitOfWork unitOfWork )
+    {
+        synchronized( prefetches )
+        {
+            Prefetch prefetch = prefetches.get( unitOfWork );
+            if( prefetch == null )
+            {
+                prefetch = new Prefetch( database.getMaxPrefetchedChars() );
+                prefetches.put( unitOfWork, prefetch );
+            }
+            return prefetch;
+        }
+    }
+
+    /**
+     * Drivers only stream the rows of a scan through a cursor in a transaction.
+     *
+     * @return whether the connection was in auto commit mode
+     */
+    static boolean beginReadTransaction( Connection connection )
+        throws SQLException
+    {
+        boolean autoCommit = connection.getAutoCommit();
+        if( autoCommit )
+        {
+            connection.setAutoCommit( false );
+        }
+        return autoCommit;
+    }
+
+    static void endReadTransaction( Connection connection, boolean autoCommit )
+    {
+        SQLUtil.rollbackQuietly( connection );
+        if( autoCommit )
+        {
+            try
+            {
+                connection.setAutoCommit( true );
+            }
+            catch( SQLException sqle )
+            {
+                LOGGER.debug( "Unable to restore auto commit", sqle );
+            }
+        }
+    }
+
+    static String readFully( Reader reader )
+        throws IOException
+    {
+        StringWriter writer = new StringWriter();
+        char[] buffer = new char[ 4096 ];
+        int length;
+        while( ( length = reader.read( buffer ) ) != -1 )
+        {
+            writer.write( buffer, 0, length );
+        }
+        reader.close();
+        return writer.toString();
+    }
+
     protected void writeEntityState( DefaultEntityState state, Writer writer, String version )
         throws EntityStoreException
     {
@@ -501,4 +1454,144 @@ public class SQLEntityStoreMixin
         }
     }
 
+    /**
+     * A loaded state, which knows its length.
+     */
+    private static final class StateReader
+        extends StringReader
+    {
+        private final int length;
+
+        private StateReader( String state )
+        {
+            super( state );
+            this.length = state.length();
+        }
+    }
+
+    /**
+     * The states fetched ahead for one unit of work, and the entities it is likely to load next. Also the shards
+     * that loaded entities were found on, if not the ones they belong to.
+     */
+    private static class Prefetch
+    {
+        private final Map<EntityReference, EntityValueResult> fetched = new HashMap<EntityReference, EntityValueResult>();
+
+        // Referenced by the loaded entities, in the order they were found
+        private final Set<EntityReference> referenced = new LinkedHashSet<EntityReference>();
+
+        private final Set<EntityReference> loaded = new HashSet<EntityReference>();
+
+        private final Map<EntityReference, Integer> shards = new HashMap<EntityReference, Integer>();
+
+        private final int maxRetainedChars;
+
+        // Characters of the fetched states
+        private int retainedChars;
+
+        private Prefetch( int maxRetainedChars )
+        {
+            this.maxRetainedChars = maxRetainedChars;
+        }
+
+        private synchronized EntityValueResult take( EntityReference ref )
+        {
+            EntityValueResult value = fetched.remove( ref );
+            if( value != null )
+            {
+                retainedChars -= lengthOf( value );
+            }
+            return value;
+        }
+
+        private synchronized boolean contains( EntityReference ref )
+        {
+            return fetched.containsKey( ref ) || loaded.contains( ref );
+        }
+
+        private synchronized void put( Map<EntityReference, EntityValueResult> values )
+        {
+            for( Map.Entry<EntityReference, EntityValueResult> entry : values.entrySet() )
+            {
+                // Those beyond the limit are loaded again when asked for
+                int length = lengthOf( entry.getValue() );
+                if( !loaded.contains( entry.getKey() ) && !fetched.containsKey( entry.getKey() )
+                    && retainedChars + length <= maxRetainedChars )
+                {
+                    fetched.put( entry.getKey(), entry.getValue() );
+                    retainedChars += length;
+                    referenced.remove( entry.getKey() );
+                }
+            }
+        }
+
+        private static int lengthOf( EntityValueResult value )
+        {
+            Reader reader = value.getReader();
+            return reader instanceof StateReader ? ( (StateReader) reader ).length : 0;
+        }
+
+        /**
+         * @return the given entity, followed by entities referenced by the loaded ones, if the given one is
+         *         one of them
+         */
+        private synchronized List<EntityReference> nextBatch( EntityReference ref )
+        {
+            List<EntityReference> refs = new ArrayList<EntityReference>();
+            refs.add( ref );
+            if( referenced.remove( ref ) )
+            {
+                Iterator<EntityReference> iterator = referenced.iterator();
+                while( refs.size() < SQLs.SELECT_ENTITIES_BATCH_SIZE && iterator.hasNext() )
+                {
+                    refs.add( iterator.next() );
+                    iterator.remove();
+                }
+            }
+            return refs;
+        }
+
+        private synchronized void loaded( DefaultEntityState state, boolean prefetchReferences )
+        {
+            loaded.add( state.identity() );
+            referenced.remove( state.identity() );
+            if( !prefetchReferences )
+            {
+                return;
+            }
+            for( EntityReference ref : state.associations().values() )
+            {
+                reference( ref );
+            }
+            for( List<EntityReference> refs : state.manyAssociations().values() )
+            {
+                for( EntityReference ref : refs )
+                {
+                    reference( ref );
+                }
+            }
+        }
+
+        private synchronized void loadedFrom( EntityReference ref, int shard )
+        {
+            shards.put( ref, shard );
+        }
+
+        /**
+         * @return the shard the entity was loaded from, or null if it was loaded from the one it belongs to
+         */
+        private synchronized Integer shardOf( EntityReference ref )
+        {
+            return shards.get( ref );
+        }
+
+        private void reference( EntityReference ref )
+        {
+            if( ref != null && !loaded.contains( ref ) && !fetched.containsKey( ref ) )
+            {
+                referenced.add( ref );
+            }
+        }
+    }
+
 }
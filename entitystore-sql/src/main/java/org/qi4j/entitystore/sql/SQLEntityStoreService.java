@@ -25,6 +25,7 @@ import org.qi4j.spi.entitystore.StateChangeNotificationConcern;
 @Concerns( { StateChangeNotificationConcern.class, ConcurrentModificationCheckConcern.class } )
 @Mixins( { SQLEntityStoreMixin.class } )
 public interface SQLEntityStoreService
-    extends EntityStore, EntityStateVersions, ServiceComposite, Activatable
+    extends EntityStore, EntityStateVersions, EntityStatePrefetch, ShardedEntityStore,
+    SQLEntityStoreStatistics, ServiceComposite, Activatable
 {
 }
@@ -0,0 +1,38 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql;
+
+/**
+ * Statistics of the SQLEntityStoreService.
+ */
+public interface SQLEntityStoreStatistics
+{
+    /**
+     * @return the number of statements that were found prepared on their connection
+     */
+    long statementCacheHits();
+
+    /**
+     * @return the number of statements that had to be prepared, while the statement cache was enabled
+     */
+    long statementCacheMisses();
+
+    /**
+     * @return the fraction of statements that were already prepared, or 0 if none were prepared
+     */
+    double statementCacheHitRatio();
+
+    /**
+     * @return the number of statements kept prepared on the connections of the statement cache
+     */
+    int statementCacheSize();
+}
@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql;
+
+/**
+ * Maintenance of an entity store whose entities are spread over several databases.
+ * <p>
+ * Entities are mapped to shards by a consistent hash of their identity. When shards are added, some entities belong
+ * to the new shards but are still stored where they were. They are found there until they are moved, and changes to
+ * them are written where they were found, but each load of such an entity costs a query on every shard before it.
+ * </p>
+ */
+public interface ShardedEntityStore
+{
+    /**
+     * Move the entities that are not stored on the shard they belong to. Each entity is copied to its shard before it
+     * is removed from the other one, so if the rebalance fails it can be run again.
+     * <p>
+     * Commits of this store wait while a batch of entities is moved. Other applications that share the databases must
+     * not commit changes while the rebalance runs, as changes to entities being moved may be lost. Units of work that
+     * loaded an entity before it was moved fail to commit changes to it with a concurrent modification, as it is no
+     * longer where they found it.
+     * </p>
+     *
+     * @return the number of entities that were moved
+     */
+    int rebalanceShards();
+}
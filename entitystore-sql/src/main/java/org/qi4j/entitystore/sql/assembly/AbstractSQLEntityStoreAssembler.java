@@ -17,18 +17,27 @@ package org.qi4j.entitystore.sql.assembly;
 import org.qi4j.api.common.Visibility;
 import org.qi4j.bootstrap.AssemblyException;
 import org.qi4j.bootstrap.ModuleAssembly;
+import org.qi4j.bootstrap.ServiceDeclaration;
 import org.qi4j.entitystore.sql.SQLEntityStoreService;
 import org.qi4j.entitystore.sql.internal.DatabaseSQLService.DatabaseSQLServiceComposite;
 import org.qi4j.entitystore.sql.internal.DatabaseSQLServiceCoreMixin;
 import org.qi4j.entitystore.sql.internal.DatabaseSQLServiceSpi;
 import org.qi4j.entitystore.sql.internal.DatabaseSQLServiceStatementsMixin;
 import org.qi4j.entitystore.sql.internal.DatabaseSQLStringsBuilder;
+import org.qi4j.entitystore.sql.internal.EntityPKBlockSize;
+import org.qi4j.entitystore.sql.internal.EntityPrefetchOptions;
+import org.qi4j.entitystore.sql.internal.EntityScanOptions;
+import org.qi4j.entitystore.sql.internal.EntityShards;
+import org.qi4j.entitystore.sql.internal.EntityStateFormat;
+import org.qi4j.entitystore.sql.internal.ReadReplicas;
+import org.qi4j.entitystore.sql.internal.StatementCacheSize;
 import org.qi4j.library.sql.common.AbstractSQLAssembler;
 import org.qi4j.library.sql.ds.assembly.DataSourceAssembler;
 import org.qi4j.spi.uuid.UuidIdentityGeneratorService;
 import org.sql.generation.api.vendor.SQLVendor;
 import org.sql.generation.api.vendor.SQLVendorProvider;
 
+import javax.sql.DataSource;
 import java.io.IOException;
 
 abstract class AbstractSQLEntityStoreAssembler extends AbstractSQLAssembler
@@ -36,6 +45,24 @@ abstract class AbstractSQLEntityStoreAssembler extends AbstractSQLAssembler
 
     private static final Visibility DEFAULT_VISIBILITY = Visibility.module;
 
+    private long entityPKBlockSize = EntityPKBlockSize.DEFAULT_BLOCK_SIZE;
+
+    private EntityStateFormat entityStateFormat = EntityStateFormat.TEXT;
+
+    private ReadReplicas readReplicas;
+
+    private EntityShards shards;
+
+    private int scanFetchSize = EntityScanOptions.DEFAULT_FETCH_SIZE;
+
+    private int scanParallelism = EntityScanOptions.DEFAULT_PARALLELISM;
+
+    private StatementCacheSize statementCacheSize;
+
+    private boolean prefetchReferences;
+
+    private int maxPrefetchedChars = EntityPrefetchOptions.DEFAULT_MAX_RETAINED_CHARS;
+
     public AbstractSQLEntityStoreAssembler()
     {
         this( DEFAULT_VISIBILITY, new DataSourceAssembler() );
@@ -56,6 +83,95 @@ abstract class AbstractSQLEntityStoreAssembler extends AbstractSQLAssembler
         super( visibility, assembler );
     }
 
+    /**
+     * Set the number of entity PKs that are reserved in the database at a time. Larger blocks mean fewer round trips
+     * when creating entities, and more unused PKs when the application stops.
+     */
+    public void setEntityPKBlockSize( long entityPKBlockSize )
+    {
+        this.entityPKBlockSize = entityPKBlockSize;
+    }
+
+    /**
+     * Set the format entity states are written in. States written in the other format are still read, so the format
+     * of an existing store can be changed.
+     */
+    public void setEntityStateFormat( EntityStateFormat entityStateFormat )
+    {
+        this.entityStateFormat = entityStateFormat;
+    }
+
+    /**
+     * Load entities from read replicas of the database, instead of the primary database.
+     *
+     * @param maxStaleness milliseconds after a write during which the written entities are loaded from the primary
+     * @param dataSources  the read replicas
+     */
+    public void setReadReplicas( long maxStaleness, DataSource... dataSources )
+    {
+        this.readReplicas = new ReadReplicas( maxStaleness, ReadReplicas.DEFAULT_RETRY_INTERVAL, dataSources );
+    }
+
+    /**
+     * Spread entities over the given databases besides the primary one, by a consistent hash of their identity.
+     * Shards must only be added at the end, and the entities that belong to added shards are moved to them with
+     * {@link org.qi4j.entitystore.sql.ShardedEntityStore#rebalanceShards()}.
+     *
+     * @param dataSources the shards after the primary database
+     */
+    public void setShards( DataSource... dataSources )
+    {
+        this.shards = new EntityShards( dataSources );
+    }
+
+    /**
+     * Set the number of rows that scans over all entities, such as reindexing, fetch from the database at a time.
+     */
+    public void setScanFetchSize( int scanFetchSize )
+    {
+        this.scanFetchSize = scanFetchSize;
+    }
+
+    /**
+     * Set the number of chunks of the entity PK range that scans over all entities read at once, each on its own
+     * connection. The order of the scanned entities is then undefined. It must be lower than the number of connections
+     * each data source hands out, or code that needs a connection while it handles the scanned entities waits forever.
+     */
+    public void setScanParallelism( int scanParallelism )
+    {
+        this.scanParallelism = scanParallelism;
+    }
+
+    /**
+     * Keep connections open between uses along with the statements prepared on them, so that commits and loads do
+     * not prepare their statements again. The idle connections stay taken from the data source.
+     *
+     * @param statementsPerConnection the number of statements kept prepared on each connection
+     * @param idleConnections         the number of connections to each database kept open while not used
+     */
+    public void setStatementCache( int statementsPerConnection, int idleConnections )
+    {
+        this.statementCacheSize = new StatementCacheSize( statementsPerConnection, idleConnections );
+    }
+
+    /**
+     * Fetch the entities referenced by loaded entities along with the next of them that is loaded, instead of one
+     * query per entity. Entities that are referenced but never loaded are fetched for nothing.
+     */
+    public void setPrefetchReferences( boolean prefetchReferences )
+    {
+        this.prefetchReferences = prefetchReferences;
+    }
+
+    /**
+     * Set the number of characters of entity states fetched ahead that each unit of work keeps until they are
+     * loaded. States fetched beyond that are dropped, and loaded again when asked for.
+     */
+    public void setMaxPrefetchedChars( int maxPrefetchedChars )
+    {
+        this.maxPrefetchedChars = maxPrefetchedChars;
+    }
+
     protected abstract String getEntityStoreServiceName();
 
     protected abstract Class<?> getDatabaseSQLServiceSpecializationMixin();
@@ -85,12 +201,32 @@ abstract class AbstractSQLEntityStoreAssembler extends AbstractSQLAssembler
             {
                 throw new AssemblyException("SQL Vendor could not be determined." );
             }
-            module
+            ServiceDeclaration service = module
                 .services( DatabaseSQLServiceComposite.class )
                 .withMixins( DatabaseSQLServiceCoreMixin.class, DatabaseSQLServiceSpi.CommonMixin.class,
                              getDatabaseStringBuilderMixin(), DatabaseSQLServiceStatementsMixin.class,
                              getDatabaseSQLServiceSpecializationMixin() ).identifiedBy( getEntityStoreServiceName() )
-                .visibleIn( Visibility.module ).setMetaInfo( sqlVendor );
+                .visibleIn( Visibility.module ).setMetaInfo( sqlVendor )
+                .setMetaInfo( new EntityPKBlockSize( this.entityPKBlockSize ) )
+                .setMetaInfo( new EntityScanOptions( this.scanFetchSize, this.scanParallelism ) )
+                .setMetaInfo( new EntityPrefetchOptions( this.prefetchReferences, this.maxPrefetchedChars ) )
+                .setMetaInfo( this.entityStateFormat );
+            if( this.readReplicas != null && this.shards != null )
+            {
+                throw new AssemblyException( "Entities can not be both sharded and read from replicas." );
+            }
+            if( this.readReplicas != null )
+            {
+                service.setMetaInfo( this.readReplicas );
+            }
+            if( this.shards != null )
+            {
+                service.setMetaInfo( this.shards );
+            }
+            if( this.statementCacheSize != null )
+            {
+                service.setMetaInfo( this.statementCacheSize );
+            }
         }
         catch( IOException ioe )
         {
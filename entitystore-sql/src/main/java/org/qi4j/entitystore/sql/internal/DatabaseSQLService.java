@@ -22,6 +22,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
 
 @SuppressWarnings( "PublicInnerClass" )
 public interface DatabaseSQLService
@@ -41,11 +42,22 @@ public interface DatabaseSQLService
 
         private final Reader reader;
 
+        private final int shard;
+
         public EntityValueResult( Long entityPK, Long entityOptimisticLock, Reader reader )
+        {
+            this( entityPK, entityOptimisticLock, reader, -1 );
+        }
+
+        /**
+         * @param shard the shard the value was loaded from, or -1 if it is not known
+         */
+        public EntityValueResult( Long entityPK, Long entityOptimisticLock, Reader reader, int shard )
         {
             this.entityPK = entityPK;
             this.entityOptimisticLock = entityOptimisticLock;
             this.reader = reader;
+            this.shard = shard;
         }
 
         /**
@@ -72,6 +84,15 @@ public interface DatabaseSQLService
             return reader;
         }
 
+        /**
+         * @return the shard the value was loaded from, or -1 if it is not known, such as for values loaded from a
+         *         read replica
+         */
+        public int getShard()
+        {
+            return shard;
+        }
+
     }
 
     void startDatabase()
@@ -83,12 +104,89 @@ public interface DatabaseSQLService
     Connection getConnection()
         throws SQLException;
 
+    /**
+     * @return a connection to a read replica, or to the primary database if there is none available
+     */
+    Connection getReadConnection()
+        throws SQLException;
+
+    boolean hasReadReplicas();
+
+    /**
+     * @return milliseconds after a write during which the written entities must be read from the primary database
+     */
+    long getReadStaleness();
+
+    /**
+     * @return the number of databases entities are spread over, 1 if they are not sharded
+     */
+    int getShardCount();
+
+    /**
+     * @return the shard the entity with the given identity belongs to
+     */
+    int getShard( String identity );
+
+    /**
+     * @return a connection to the given shard, shard 0 being the primary database
+     */
+    Connection getConnection( int shard )
+        throws SQLException;
+
+    /**
+     * @return the number of statements prepared on connections that were kept open with them
+     */
+    long getStatementCacheHits();
+
+    /**
+     * @return the number of statements that had to be prepared, while statements were cached
+     */
+    long getStatementCacheMisses();
+
+    /**
+     * @return the number of statements kept prepared
+     */
+    int getStatementCacheSize();
+
+    /**
+     * @return the number of chunks of the entity PK range that scans read at once, in each shard
+     */
+    int getScanParallelism();
+
+    /**
+     * @return whether loading an entity also fetches the entities referenced by those loaded before
+     */
+    boolean isPrefetchingReferences();
+
+    /**
+     * @return the number of characters of entity states fetched ahead that each unit of work keeps
+     */
+    int getMaxPrefetchedChars();
+
+    /**
+     * @return the lowest entity PK and the one after the highest, or null if there are no entities
+     */
+    long[] getEntityPKRange( Connection connection )
+        throws SQLException;
+
     PreparedStatement prepareGetEntityStatement( Connection connection )
         throws SQLException;
 
+    PreparedStatement prepareGetEntitiesStatement( Connection connection )
+        throws SQLException;
+
+    /**
+     * @return a statement that streams the rows, to be executed in a transaction
+     */
     PreparedStatement prepareGetAllEntitiesStatement( Connection connection )
         throws SQLException;
 
+    /**
+     * @return a statement that streams the rows, to be executed in a transaction
+     */
+    PreparedStatement prepareGetEntitiesInPKRangeStatement( Connection connection )
+        throws SQLException;
+
     PreparedStatement prepareInsertEntityStatement( Connection connection )
         throws SQLException;
 
@@ -101,9 +199,22 @@ public interface DatabaseSQLService
     void populateGetEntityStatement( PreparedStatement ps, EntityReference ref )
         throws SQLException;
 
+    /**
+     * @param refs at most {@link SQLs#SELECT_ENTITIES_BATCH_SIZE} references
+     */
+    void populateGetEntitiesStatement( PreparedStatement ps, List<EntityReference> refs )
+        throws SQLException;
+
     void populateGetAllEntitiesStatement( PreparedStatement ps )
         throws SQLException;
 
+    /**
+     * @param from the first PK of the range
+     * @param to   the PK after the range
+     */
+    void populateGetEntitiesInPKRangeStatement( PreparedStatement ps, long from, long to )
+        throws SQLException;
+
     void populateInsertEntityStatement( PreparedStatement ps, Long entityPK, EntityReference ref, String entity, Long lastModified )
         throws SQLException;
 
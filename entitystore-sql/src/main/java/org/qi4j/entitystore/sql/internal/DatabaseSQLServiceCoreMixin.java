@@ -31,9 +31,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sql.generation.api.vendor.SQLVendor;
 
+import javax.sql.DataSource;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 @SuppressWarnings("ProtectedField")
 public abstract class DatabaseSQLServiceCoreMixin
@@ -63,10 +69,137 @@ public abstract class DatabaseSQLServiceCoreMixin
     @This
     private Configuration<SQLConfiguration> configuration;
 
+    private EntityPKAllocator pkAllocator;
+
+    // Null if there are no read replicas
+    private ReadReplicas readReplicas;
+
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    // Times until which failed replicas are skipped
+    private AtomicLongArray replicasDownUntil;
+
+    // Null if entities are not sharded
+    private EntityShards shards;
+
+    private ShardRing shardRing;
+
+    private int scanParallelism = EntityScanOptions.DEFAULT_PARALLELISM;
+
+    private boolean prefetchReferences;
+
+    private int maxPrefetchedChars = EntityPrefetchOptions.DEFAULT_MAX_RETAINED_CHARS;
+
+    // Null if statements are not cached
+    private StatementCache statementCache;
+
     public Connection getConnection()
         throws SQLException
     {
-        return dataSourceService.getDataSource().getConnection();
+        return getConnection( 0 );
+    }
+
+    public Connection getReadConnection()
+        throws SQLException
+    {
+        if( this.readReplicas == null )
+        {
+            return getConnection();
+        }
+
+        List<DataSource> replicas = this.readReplicas.getDataSources();
+        int start = ( this.nextReplica.getAndIncrement() & Integer.MAX_VALUE ) % replicas.size();
+        for( int x = 0; x < replicas.size(); ++x )
+        {
+            int index = ( start + x ) % replicas.size();
+            long now = System.currentTimeMillis();
+            if( this.replicasDownUntil.get( index ) > now )
+            {
+                continue;
+            }
+            try
+            {
+                return replicas.get( index ).getConnection();
+            }
+            catch( SQLException sqle )
+            {
+                LOGGER.warn( "Read replica " + index + " failed, skipping it for "
+                             + this.readReplicas.getRetryInterval() + " ms", sqle );
+                this.replicasDownUntil.set( index, now + this.readReplicas.getRetryInterval() );
+            }
+        }
+        return getConnection();
+    }
+
+    public boolean hasReadReplicas()
+    {
+        return this.readReplicas != null;
+    }
+
+    public long getReadStaleness()
+    {
+        return this.readReplicas == null ? 0 : this.readReplicas.getMaxStaleness();
+    }
+
+    public int getShardCount()
+    {
+        return this.shards == null ? 1 : this.shards.getDataSources().size() + 1;
+    }
+
+    public int getShard( String identity )
+    {
+        return this.shardRing == null ? 0 : this.shardRing.shardOf( identity );
+    }
+
+    public Connection getConnection( int shard )
+        throws SQLException
+    {
+        return this.statementCache == null ? openConnection( shard ) : this.statementCache.getConnection( shard );
+    }
+
+    public long getStatementCacheHits()
+    {
+        return this.statementCache == null ? 0 : this.statementCache.hits();
+    }
+
+    public long getStatementCacheMisses()
+    {
+        return this.statementCache == null ? 0 : this.statementCache.misses();
+    }
+
+    public int getStatementCacheSize()
+    {
+        return this.statementCache == null ? 0 : this.statementCache.size();
+    }
+
+    private Connection openConnection( int shard )
+        throws SQLException
+    {
+        if( shard == 0 )
+        {
+            return dataSourceService.getDataSource().getConnection();
+        }
+        Connection connection = this.shards.getDataSources().get( shard - 1 ).getConnection();
+        if( connection.getAutoCommit() )
+        {
+            connection.setAutoCommit( false );
+        }
+        return connection;
+    }
+
+    public int getScanParallelism()
+    {
+        return this.scanParallelism;
+    }
+
+    public boolean isPrefetchingReferences()
+    {
+        return this.prefetchReferences;
+    }
+
+    public int getMaxPrefetchedChars()
+    {
+        return this.maxPrefetchedChars;
     }
 
     protected String getConfiguredSchemaName( String defaultSchemaName )
@@ -94,55 +227,117 @@ public abstract class DatabaseSQLServiceCoreMixin
             state.schemaName().set( schema );
             state.vendor().set( this.descriptor.metaInfo( SQLVendor.class ) );
 
-            this.sqlStrings.init();
+            this.readReplicas = this.descriptor.metaInfo( ReadReplicas.class );
+            if( this.readReplicas != null )
+            {
+                this.replicasDownUntil = new AtomicLongArray( this.readReplicas.getDataSources().size() );
+            }
 
-            if( !spi.schemaExists( connection ) )
+            this.shards = this.descriptor.metaInfo( EntityShards.class );
+            if( this.shards != null )
             {
-                Statement stmt = null;
-                try
+                if( this.readReplicas != null )
                 {
-                    stmt = connection.createStatement();
-                    for( String sql : sqlStrings.buildSQLForSchemaCreation() )
+                    throw new EntityStoreException( "Entities can not be both sharded and read from replicas." );
+                }
+                this.shardRing = new ShardRing( this.getShardCount() );
+            }
+
+            StatementCacheSize cacheSize = this.descriptor.metaInfo( StatementCacheSize.class );
+            if( cacheSize != null )
+            {
+                this.statementCache = new StatementCache( cacheSize.getStatementsPerConnection(),
+                                                          cacheSize.getIdleConnections(), this.getShardCount() )
+                {
+                    @Override
+                    protected Connection open( int shard )
+                        throws SQLException
                     {
-                        stmt.execute( sql );
+                        return openConnection( shard );
                     }
-                }
-                finally
+                };
+            }
+
+            EntityScanOptions scanOptions = this.descriptor.metaInfo( EntityScanOptions.class );
+            if( scanOptions != null )
+            {
+                state.scanFetchSize().set( scanOptions.getFetchSize() );
+                this.scanParallelism = scanOptions.getParallelism();
+            }
+
+            EntityPrefetchOptions prefetchOptions = this.descriptor.metaInfo( EntityPrefetchOptions.class );
+            if( prefetchOptions != null )
+            {
+                this.prefetchReferences = prefetchOptions.isPrefetchReferences();
+                this.maxPrefetchedChars = prefetchOptions.getMaxRetainedChars();
+            }
+
+            // The statements depend on whether the table has the binary state column, or will get it
+            boolean compress = this.descriptor.metaInfo( EntityStateFormat.class ) == EntityStateFormat.COMPRESSED;
+            boolean tableExists = spi.tableExists( connection );
+            state.compressState().set( compress );
+            state.binaryStateColumn().set( compress || ( tableExists && spi.columnExists(
+                connection, SQLs.TABLE_NAME, SQLs.ENTITY_STATE_DATA_COLUMN_NAME ) ) );
+
+            this.sqlStrings.init();
+
+            this.createTables( connection, tableExists );
+
+            if( this.shards != null )
+            {
+                for( int shard = 1; shard < this.getShardCount(); ++shard )
                 {
-                    SQLUtil.closeQuietly( stmt );
+                    Connection shardConnection = this.getConnection( shard );
+                    try
+                    {
+                        this.createTables( shardConnection, spi.tableExists( shardConnection ) );
+                        shardConnection.commit();
+                    }
+                    finally
+                    {
+                        SQLUtil.closeQuietly( shardConnection );
+                    }
                 }
-                LOGGER.trace( "Schema {} created", schema );
             }
 
-            if( !spi.tableExists( connection ) )
+            if( !spi.tableExists( connection, SQLs.PK_BLOCKS_TABLE_NAME ) )
             {
                 Statement stmt = null;
+                PreparedStatement ps = null;
                 try
                 {
                     stmt = connection.createStatement();
-                    for( String sql : sqlStrings.buildSQLForTableCreation() )
-                    {
-                        stmt.execute( sql );
-                    }
-                    for( String sql : sqlStrings.buildSQLForIndexCreation() )
+                    for( String sql : sqlStrings.buildSQLForPKBlocksTableCreation() )
                     {
                         stmt.execute( sql );
                     }
+
+                    // Blocks start after the entities stored before the table existed
+                    ps = connection.prepareStatement( sqlStrings.buildSQLForInsertPKBlocksStatement() );
+                    ps.setLong( 1, spi.readNextEntityPK( connection ) );
+                    ps.executeUpdate();
                 }
                 finally
                 {
+                    SQLUtil.closeQuietly( ps );
                     SQLUtil.closeQuietly( stmt );
                 }
-                LOGGER.trace( "Table {} created", SQLs.TABLE_NAME );
+                LOGGER.trace( "Table {} created", SQLs.PK_BLOCKS_TABLE_NAME );
             }
 
             connection.setAutoCommit( false );
 
-            state.pkLock().set( new Object() );
-            synchronized( state.pkLock().get() )
+            EntityPKBlockSize blockSize = this.descriptor.metaInfo( EntityPKBlockSize.class );
+            this.pkAllocator = new EntityPKAllocator(
+                blockSize == null ? EntityPKBlockSize.DEFAULT_BLOCK_SIZE : blockSize.getBlockSize() )
             {
-                state.nextEntityPK().set( spi.readNextEntityPK( connection ) );
-            }
+                @Override
+                protected long reserve( long blockSize )
+                    throws SQLException
+                {
+                    return reservePKBlock( blockSize );
+                }
+            };
 
         }
 
@@ -150,6 +345,70 @@ public abstract class DatabaseSQLServiceCoreMixin
 
     }
 
+    /**
+     * Create what is missing of the schema and the entity table in the database of the connection.
+     */
+    private void createTables( Connection connection, boolean tableExists )
+        throws SQLException
+    {
+        if( !spi.schemaExists( connection ) )
+        {
+            Statement stmt = null;
+            try
+            {
+                stmt = connection.createStatement();
+                for( String sql : sqlStrings.buildSQLForSchemaCreation() )
+                {
+                    stmt.execute( sql );
+                }
+            }
+            finally
+            {
+                SQLUtil.closeQuietly( stmt );
+            }
+            LOGGER.trace( "Schema {} created", state.schemaName().get() );
+        }
+
+        if( !tableExists )
+        {
+            Statement stmt = null;
+            try
+            {
+                stmt = connection.createStatement();
+                for( String sql : sqlStrings.buildSQLForTableCreation() )
+                {
+                    stmt.execute( sql );
+                }
+                for( String sql : sqlStrings.buildSQLForIndexCreation() )
+                {
+                    stmt.execute( sql );
+                }
+            }
+            finally
+            {
+                SQLUtil.closeQuietly( stmt );
+            }
+            LOGGER.trace( "Table {} created", SQLs.TABLE_NAME );
+        }
+
+        if( Boolean.TRUE.equals( state.binaryStateColumn().get() )
+            && !spi.columnExists( connection, SQLs.TABLE_NAME, SQLs.ENTITY_STATE_DATA_COLUMN_NAME ) )
+        {
+            // The existing states are converted as they are updated
+            Statement stmt = null;
+            try
+            {
+                stmt = connection.createStatement();
+                stmt.execute( sqlStrings.buildSQLForBinaryStateColumnCreation() );
+            }
+            finally
+            {
+                SQLUtil.closeQuietly( stmt );
+            }
+            LOGGER.trace( "Column {} created", SQLs.ENTITY_STATE_DATA_COLUMN_NAME );
+        }
+    }
+
     public void stopDatabase()
         throws Exception
     {
@@ -157,21 +416,93 @@ public abstract class DatabaseSQLServiceCoreMixin
         {
             // NOOP
         }
+        if( this.statementCache != null )
+        {
+            this.statementCache.close();
+            this.statementCache = null;
+        }
     }
 
     public Long newPKForEntity()
     {
-        if( state.pkLock().get() == null || state.nextEntityPK().get() == null )
+        if( this.pkAllocator == null )
         {
             throw new EntityStoreException(
                 "New PK asked for entity, but database service has not been initialized properly." );
         }
-        synchronized( state.pkLock().get() )
+        try
+        {
+            return this.pkAllocator.next();
+        }
+        catch( SQLException sqle )
+        {
+            throw new EntityStoreException( "Unable to reserve entity PKs", sqle );
+        }
+    }
+
+    /**
+     * Move the next PK in the database past a block, retrying if another node moves it first.
+     */
+    private long reservePKBlock( long blockSize )
+        throws SQLException
+    {
+        Connection connection = null;
+        PreparedStatement selectPS = null;
+        PreparedStatement reservePS = null;
+        try
+        {
+            connection = getConnection();
+            selectPS = connection.prepareStatement( sqlStrings.buildSQLForSelectPKBlockStatement() );
+            reservePS = connection.prepareStatement( sqlStrings.buildSQLForReservePKBlockStatement() );
+            while( true )
+            {
+                long start;
+                ResultSet rs = null;
+                try
+                {
+                    rs = selectPS.executeQuery();
+                    if( !rs.next() )
+                    {
+                        throw new SQLException( "No row in " + SQLs.PK_BLOCKS_TABLE_NAME );
+                    }
+                    start = rs.getLong( 1 );
+                }
+                finally
+                {
+                    SQLUtil.closeQuietly( rs );
+                }
+
+                reservePS.setLong( 1, start + blockSize );
+                reservePS.setLong( 2, start );
+                boolean reserved = reservePS.executeUpdate() == 1;
+                if( !connection.getAutoCommit() )
+                {
+                    if( reserved )
+                    {
+                        connection.commit();
+                    }
+                    else
+                    {
+                        connection.rollback();
+                    }
+                }
+                if( reserved )
+                {
+                    LOGGER.trace( "Reserved entity PKs {} to {}", start, start + blockSize - 1 );
+                    return start;
+                }
+            }
+        }
+        catch( SQLException sqle )
+        {
+            SQLUtil.rollbackQuietly( connection );
+            throw sqle;
+        }
+        finally
         {
-            Long result = state.nextEntityPK().get();
-            Long next = result + 1;
-            state.nextEntityPK().set( next );
-            return result;
+            SQLUtil.closeQuietly( selectPS );
+            SQLUtil.closeQuietly( reservePS );
+            SQLUtil.closeQuietly( connection );
         }
     }
 
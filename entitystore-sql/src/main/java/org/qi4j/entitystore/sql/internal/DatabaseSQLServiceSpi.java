@@ -22,6 +22,7 @@ import org.sql.generation.api.grammar.factories.QueryFactory;
 import org.sql.generation.api.grammar.factories.TableReferenceFactory;
 import org.sql.generation.api.vendor.SQLVendor;
 
+import java.io.Reader;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -38,6 +39,29 @@ public interface DatabaseSQLServiceSpi
     boolean tableExists( Connection connection )
         throws SQLException;
 
+    boolean tableExists( Connection connection, String tableName )
+        throws SQLException;
+
+    boolean columnExists( Connection connection, String tableName, String columnName )
+        throws SQLException;
+
+    /**
+     * @return the name of the vendor type of the binary state column
+     */
+    String getBinaryStateType();
+
+    /**
+     * @param fetchSize the number of rows to fetch at a time
+     * @return the fetch size that makes the driver stream the rows of a scan instead of reading all of them at once
+     */
+    int getScanFetchSize( int fetchSize );
+
+    /**
+     * @return the state in the binary state column, or null if there is none and the text column holds the state
+     */
+    Reader readBinaryState( ResultSet rs )
+        throws SQLException;
+
     long readNextEntityPK( Connection connection )
         throws SQLException;
 
@@ -76,6 +100,23 @@ public interface DatabaseSQLServiceSpi
             }
         }
 
+        public boolean tableExists( Connection connection )
+            throws SQLException
+        {
+            return this.tableExists( connection, SQLs.TABLE_NAME );
+        }
+
+        public Reader readBinaryState( ResultSet rs )
+            throws SQLException
+        {
+            if( !Boolean.TRUE.equals( this.state.binaryStateColumn().get() ) )
+            {
+                return null;
+            }
+            byte[] data = rs.getBytes( SQLs.ENTITY_STATE_DATA_COLUMN_NAME );
+            return data == null ? null : EntityStateFormat.decompress( data );
+        }
+
         public String getCurrentSchemaName()
         {
             return this.state.schemaName().get();
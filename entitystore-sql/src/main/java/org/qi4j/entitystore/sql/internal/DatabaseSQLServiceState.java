@@ -22,15 +22,28 @@ public interface DatabaseSQLServiceState
 {
 
     @Optional
-    public Property<Long> nextEntityPK();
+    public Property<String> schemaName();
 
     @Optional
-    public Property<Object> pkLock();
+    public Property<SQLVendor> vendor();
 
+    /**
+     * Whether states are written compressed to the binary state column.
+     */
     @Optional
-    public Property<String> schemaName();
+    public Property<Boolean> compressState();
 
+    /**
+     * Whether the table has the binary state column, which is read and written even if states are not compressed,
+     * so that the format can be switched back and forth.
+     */
     @Optional
-    public Property<SQLVendor> vendor();
+    public Property<Boolean> binaryStateColumn();
+
+    /**
+     * The number of rows scans fetch at a time.
+     */
+    @Optional
+    public Property<Integer> scanFetchSize();
 
 }
@@ -16,10 +16,13 @@ package org.qi4j.entitystore.sql.internal;
 
 import org.qi4j.api.entity.EntityReference;
 import org.qi4j.api.injection.scope.This;
+import org.qi4j.library.sql.common.SQLUtil;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
 
 public abstract class DatabaseSQLServiceStatementsMixin
         implements DatabaseSQLService
@@ -28,13 +31,25 @@ public abstract class DatabaseSQLServiceStatementsMixin
     @This
     private DatabaseSQLStringsBuilder sqlStrings;
 
+    @This
+    private DatabaseSQLServiceState state;
+
+    @This
+    private DatabaseSQLServiceSpi spi;
+
     //
     // Used by the EntityStore, will probably remain the same even if we support several sql servers
     //
     public PreparedStatement prepareGetAllEntitiesStatement( Connection connection )
             throws SQLException
     {
-        return connection.prepareStatement( sqlStrings.buildSQLForSelectAllEntitiesStatement() );
+        return this.prepareScanStatement( connection, sqlStrings.buildSQLForSelectAllEntitiesStatement() );
+    }
+
+    public PreparedStatement prepareGetEntitiesInPKRangeStatement( Connection connection )
+            throws SQLException
+    {
+        return this.prepareScanStatement( connection, sqlStrings.buildSQLForSelectEntitiesInPKRangeStatement() );
     }
 
     public PreparedStatement prepareGetEntityStatement( Connection connection )
@@ -43,6 +58,12 @@ public abstract class DatabaseSQLServiceStatementsMixin
         return connection.prepareStatement( sqlStrings.buildSQLForSelectEntityStatement() );
     }
 
+    public PreparedStatement prepareGetEntitiesStatement( Connection connection )
+            throws SQLException
+    {
+        return connection.prepareStatement( sqlStrings.buildSQLForSelectEntitiesStatement() );
+    }
+
     public PreparedStatement prepareInsertEntityStatement( Connection connection )
             throws SQLException
     {
@@ -70,19 +91,84 @@ public abstract class DatabaseSQLServiceStatementsMixin
         // Nothing to do.
     }
 
+    public void populateGetEntitiesInPKRangeStatement( PreparedStatement ps, long from, long to )
+            throws SQLException
+    {
+        ps.setLong( 1, from );
+        ps.setLong( 2, to );
+    }
+
+    public long[] getEntityPKRange( Connection connection )
+            throws SQLException
+    {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try
+        {
+            ps = connection.prepareStatement( sqlStrings.buildSQLForSelectEntityPKRangeStatement() );
+            rs = ps.executeQuery();
+            if( !rs.next() )
+            {
+                return null;
+            }
+            long min = rs.getLong( 1 );
+            if( rs.wasNull() )
+            {
+                return null;
+            }
+            return new long[] { min, rs.getLong( 2 ) + 1 };
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( rs );
+            SQLUtil.closeQuietly( ps );
+        }
+    }
+
+    private PreparedStatement prepareScanStatement( Connection connection, String sql )
+            throws SQLException
+    {
+        // Streamed by drivers that would otherwise read all rows before returning the first
+        PreparedStatement ps = connection.prepareStatement( sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY );
+        Integer fetchSize = state.scanFetchSize().get();
+        ps.setFetchSize( spi.getScanFetchSize( fetchSize == null ? EntityScanOptions.DEFAULT_FETCH_SIZE : fetchSize ) );
+        return ps;
+    }
+
     public void populateGetEntityStatement( PreparedStatement ps, EntityReference ref )
             throws SQLException
     {
         ps.setString( 1, ref.identity() );
     }
 
+    public void populateGetEntitiesStatement( PreparedStatement ps, List<EntityReference> refs )
+            throws SQLException
+    {
+        // Pad with the last identity
+        for( int x = 0; x < SQLs.SELECT_ENTITIES_BATCH_SIZE; ++x )
+        {
+            ps.setString( x + 1, refs.get( Math.min( x, refs.size() - 1 ) ).identity() );
+        }
+    }
+
     public void populateInsertEntityStatement( PreparedStatement ps, Long entityPK, EntityReference ref, String entity, Long lastModified )
             throws SQLException
     {
         ps.setLong( 1, entityPK );
         ps.setString( 2, ref.identity() );
-        ps.setString( 3, entity );
-        ps.setLong( 4, lastModified );
+        if( Boolean.TRUE.equals( state.binaryStateColumn().get() ) )
+        {
+            byte[] data = compressedState( entity );
+            ps.setString( 3, data == null ? entity : "" );
+            ps.setLong( 4, lastModified );
+            // Null when written as text
+            ps.setBytes( 5, data );
+        }
+        else
+        {
+            ps.setString( 3, entity );
+            ps.setLong( 4, lastModified );
+        }
     }
 
     public void populateRemoveEntityStatement( PreparedStatement ps, Long entityPK, EntityReference ref )
@@ -95,10 +181,32 @@ public abstract class DatabaseSQLServiceStatementsMixin
             throws SQLException
     {
         ps.setLong( 1, entityOptimisticLock + 1 );
-        ps.setString( 2, entity );
-        ps.setLong( 3, lastModified );
-        ps.setLong( 4, entityPK );
-        ps.setLong( 5, entityOptimisticLock );
+        if( Boolean.TRUE.equals( state.binaryStateColumn().get() ) )
+        {
+            // Also converts states written in the other format
+            byte[] data = compressedState( entity );
+            ps.setString( 2, data == null ? entity : "" );
+            ps.setLong( 3, lastModified );
+            ps.setBytes( 4, data );
+            ps.setLong( 5, entityPK );
+            ps.setLong( 6, entityOptimisticLock );
+        }
+        else
+        {
+            ps.setString( 2, entity );
+            ps.setLong( 3, lastModified );
+            ps.setLong( 4, entityPK );
+            ps.setLong( 5, entityOptimisticLock );
+        }
     }
 
+    /**
+     * @return the compressed state, or null if states are written as text
+     */
+    private byte[] compressedState( String entity )
+    {
+        return Boolean.TRUE.equals( state.compressState().get() ) ? EntityStateFormat.compress( entity ) : null;
+    }
+
+
 }
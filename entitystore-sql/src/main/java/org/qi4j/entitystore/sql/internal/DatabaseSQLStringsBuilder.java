@@ -17,6 +17,7 @@ package org.qi4j.entitystore.sql.internal;
 import org.qi4j.api.injection.scope.This;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sql.generation.api.grammar.builders.booleans.InBuilder;
 import org.sql.generation.api.grammar.builders.modification.DeleteBySearchBuilder;
 import org.sql.generation.api.grammar.builders.modification.UpdateBySearchBuilder;
 import org.sql.generation.api.grammar.common.SQLStatement;
@@ -35,10 +36,26 @@ public interface DatabaseSQLStringsBuilder
 
     String[] buildSQLForTableCreation();
 
+    String buildSQLForBinaryStateColumnCreation();
+
+    String[] buildSQLForPKBlocksTableCreation();
+
+    String buildSQLForInsertPKBlocksStatement();
+
+    String buildSQLForSelectPKBlockStatement();
+
+    String buildSQLForReservePKBlockStatement();
+
     String buildSQLForSelectAllEntitiesStatement();
 
+    String buildSQLForSelectEntityPKRangeStatement();
+
+    String buildSQLForSelectEntitiesInPKRangeStatement();
+
     String buildSQLForSelectEntityStatement();
 
+    String buildSQLForSelectEntitiesStatement();
+
     String buildSQLForInsertEntityStatement();
 
     String buildSQLForUpdateEntityStatement();
@@ -55,6 +72,9 @@ public interface DatabaseSQLStringsBuilder
         @This
         private DatabaseSQLServiceState _state;
 
+        @This
+        private DatabaseSQLServiceSpi _spi;
+
         private SQLVendor vendor;
 
         private String schemaName;
@@ -65,10 +85,26 @@ public interface DatabaseSQLStringsBuilder
 
         private String[] tableCreationSQLs;
 
+        private String binaryStateColumnCreationSQL;
+
+        private String[] pkBlocksTableCreationSQLs;
+
+        private String insertPKBlocksSQL;
+
+        private String selectPKBlockSQL;
+
+        private String reservePKBlockSQL;
+
         private String selectAllEntitiesSQL;
 
+        private String selectEntityPKRangeSQL;
+
+        private String selectEntitiesInPKRangeSQL;
+
         private String selectEntitySQL;
 
+        private String selectEntitiesSQL;
+
         private String insertEntitySQL;
 
         private String updateEntitySQL;
@@ -90,12 +126,39 @@ public interface DatabaseSQLStringsBuilder
             this.tableCreationSQLs = this.toString( this.createTableStatements( this.vendor ) );
             LOGGER.trace( "SQL for table creation: {}", this.tableCreationSQLs );
 
+            // Cheat a little, ALTER TABLE cannot be generated
+            this.binaryStateColumnCreationSQL = "ALTER TABLE " + this.schemaName + "." + SQLs.TABLE_NAME
+                                                + " ADD COLUMN " + SQLs.ENTITY_STATE_DATA_COLUMN_NAME + " "
+                                                + this._spi.getBinaryStateType();
+            LOGGER.trace( "SQL for binary state column creation: {}", this.binaryStateColumnCreationSQL );
+
+            this.pkBlocksTableCreationSQLs = this.toString( this.createPKBlocksTableStatements( this.vendor ) );
+            LOGGER.trace( "SQL for PK blocks table creation: {}", this.pkBlocksTableCreationSQLs );
+
+            this.insertPKBlocksSQL = this.vendor.toString( this.createInsertPKBlocksStatement( this.vendor ) );
+            LOGGER.trace( "SQL for insert PK blocks: {}", this.insertPKBlocksSQL );
+
+            this.selectPKBlockSQL = this.vendor.toString( this.createSelectPKBlockStatement( this.vendor ) );
+            LOGGER.trace( "SQL for select PK block: {}", this.selectPKBlockSQL );
+
+            this.reservePKBlockSQL = this.vendor.toString( this.createReservePKBlockStatement( this.vendor ) );
+            LOGGER.trace( "SQL for reserve PK block: {}", this.reservePKBlockSQL );
+
             this.selectAllEntitiesSQL = this.vendor.toString( this.createSelectAllEntitiesStatement( this.vendor ) );
             LOGGER.trace( "SQL for select all entities: {}", this.selectAllEntitiesSQL );
 
+            this.selectEntityPKRangeSQL = this.vendor.toString( this.createSelectEntityPKRangeStatement( this.vendor ) );
+            LOGGER.trace( "SQL for select entity PK range: {}", this.selectEntityPKRangeSQL );
+
+            this.selectEntitiesInPKRangeSQL = this.vendor.toString( this.createSelectEntitiesInPKRangeStatement( this.vendor ) );
+            LOGGER.trace( "SQL for select entities in PK range: {}", this.selectEntitiesInPKRangeSQL );
+
             this.selectEntitySQL = this.vendor.toString( this.createSelectEntityStatement( this.vendor ) );
             LOGGER.trace( "SQL for select entity: {}", this.selectEntitySQL );
 
+            this.selectEntitiesSQL = this.vendor.toString( this.createSelectEntitiesStatement( this.vendor ) );
+            LOGGER.trace( "SQL for select entities: {}", this.selectEntitiesSQL );
+
             this.insertEntitySQL = this.vendor.toString( this.createInsertEntityStatement( this.vendor ) );
             LOGGER.trace( "SQL for insert entity: {}", this.insertEntitySQL );
 
@@ -120,6 +183,26 @@ public interface DatabaseSQLStringsBuilder
             return result;
         }
 
+        protected boolean hasBinaryStateColumn()
+        {
+            return Boolean.TRUE.equals( this._state.binaryStateColumn().get() );
+        }
+
+        /**
+         * @return the given columns, followed by the binary state column if the table has it
+         */
+        protected String[] withBinaryState( String... columns )
+        {
+            if( !this.hasBinaryStateColumn() )
+            {
+                return columns;
+            }
+            String[] result = new String[columns.length + 1];
+            System.arraycopy( columns, 0, result, 0, columns.length );
+            result[columns.length] = SQLs.ENTITY_STATE_DATA_COLUMN_NAME;
+            return result;
+        }
+
         protected SQLVendor getVendor()
         {
             return this.vendor;
@@ -185,6 +268,78 @@ public interface DatabaseSQLStringsBuilder
             // @formatter:on
         }
 
+        protected SQLStatement[] createPKBlocksTableStatements( SQLVendor vendor )
+        {
+            DefinitionFactory d = vendor.getDefinitionFactory();
+            TableReferenceFactory t = vendor.getTableReferenceFactory();
+
+            // @formatter:off
+            return new SQLStatement[]
+            {
+                d.createTableDefinitionBuilder()
+                    .setTableName( t.tableName( this.getSchemaName(), SQLs.PK_BLOCKS_TABLE_NAME ) )
+                    .setTableContentsSource( d.createTableElementListBuilder()
+                        .addTableElement( d.createColumnDefinition( SQLs.NEXT_ENTITY_PK_COLUMN_NAME, this.getPKType(), false ) )
+                        .createExpression()
+                        )
+                   .createExpression()
+            };
+            // @formatter:on
+        }
+
+        protected SQLStatement createInsertPKBlocksStatement( SQLVendor vendor )
+        {
+            ModificationFactory m = vendor.getModificationFactory();
+            TableReferenceFactory t = vendor.getTableReferenceFactory();
+            LiteralFactory l = vendor.getLiteralFactory();
+
+            // @formatter:off
+            return m.insert()
+                .setTableName( t.tableName( this.schemaName, SQLs.PK_BLOCKS_TABLE_NAME ) )
+                .setColumnSource( m.columnSourceByValues()
+                    .addColumnNames( SQLs.NEXT_ENTITY_PK_COLUMN_NAME )
+                    .addValues( l.param() )
+                    .createExpression()
+                    )
+                 .createExpression();
+            // @formatter:on
+        }
+
+        protected SQLStatement createSelectPKBlockStatement( SQLVendor vendor )
+        {
+            QueryFactory q = vendor.getQueryFactory();
+            TableReferenceFactory t = vendor.getTableReferenceFactory();
+
+            // @formatter:off
+            return q.simpleQueryBuilder()
+                .select( SQLs.NEXT_ENTITY_PK_COLUMN_NAME )
+                .from( t.tableName( this.schemaName, SQLs.PK_BLOCKS_TABLE_NAME ) )
+                .createExpression();
+            // @formatter:on
+        }
+
+        protected SQLStatement createReservePKBlockStatement( SQLVendor vendor )
+        {
+            ModificationFactory m = vendor.getModificationFactory();
+            TableReferenceFactory t = vendor.getTableReferenceFactory();
+            LiteralFactory l = vendor.getLiteralFactory();
+            BooleanFactory b = vendor.getBooleanFactory();
+            ColumnsFactory c = vendor.getColumnsFactory();
+
+            // Compare and set, so that nodes sharing the database never reserve the same block
+            // @formatter:off
+            UpdateBySearchBuilder builder = m.updateBySearch()
+                .setTargetTable( m.createTargetTable( t.tableName( this.schemaName, SQLs.PK_BLOCKS_TABLE_NAME ) ) )
+                .addSetClauses(
+                    m.setClause( SQLs.NEXT_ENTITY_PK_COLUMN_NAME, m.updateSourceByExp( l.param() ) )
+                    );
+            builder
+                .getWhereBuilder()
+                    .reset( b.eq( c.colName( SQLs.NEXT_ENTITY_PK_COLUMN_NAME ), l.param() ) );
+            return builder.createExpression();
+            // @formatter:on
+        }
+
         protected SQLStatement createSelectAllEntitiesStatement( SQLVendor vendor )
         {
             QueryFactory q = vendor.getQueryFactory();
@@ -192,12 +347,45 @@ public interface DatabaseSQLStringsBuilder
 
             // @formatter:off
             return q.simpleQueryBuilder()
-                .select( SQLs.ENTITY_PK_COLUMN_NAME, SQLs.ENTITY_OPTIMISTIC_LOCK_COLUMN_NAME, SQLs.ENTITY_STATE_COLUMN_NAME )
+                .select( this.withBinaryState( SQLs.ENTITY_PK_COLUMN_NAME, SQLs.ENTITY_OPTIMISTIC_LOCK_COLUMN_NAME, SQLs.ENTITY_STATE_COLUMN_NAME, SQLs.ENTITY_IDENTITY_COLUMN_NAME, SQLs.ENTITY_LAST_MODIFIED_COLUMN_NAME ) )
                 .from( t.tableName( this.schemaName, SQLs.TABLE_NAME ) )
                 .createExpression();
             // @formatter:on
         }
 
+        protected SQLStatement createSelectEntityPKRangeStatement( SQLVendor vendor )
+        {
+            QueryFactory q = vendor.getQueryFactory();
+            TableReferenceFactory t = vendor.getTableReferenceFactory();
+
+            // Cheat a little on SQL functions
+            // @formatter:off
+            return q.simpleQueryBuilder()
+                .select( "MIN(" + SQLs.ENTITY_PK_COLUMN_NAME + ")", "MAX(" + SQLs.ENTITY_PK_COLUMN_NAME + ")" )
+                .from( t.tableName( this.schemaName, SQLs.TABLE_NAME ) )
+                .createExpression();
+            // @formatter:on
+        }
+
+        protected SQLStatement createSelectEntitiesInPKRangeStatement( SQLVendor vendor )
+        {
+            QueryFactory q = vendor.getQueryFactory();
+            TableReferenceFactory t = vendor.getTableReferenceFactory();
+            BooleanFactory b = vendor.getBooleanFactory();
+            ColumnsFactory c = vendor.getColumnsFactory();
+            LiteralFactory l = vendor.getLiteralFactory();
+
+            // @formatter:off
+            return q.simpleQueryBuilder()
+                .select( this.withBinaryState( SQLs.ENTITY_PK_COLUMN_NAME, SQLs.ENTITY_OPTIMISTIC_LOCK_COLUMN_NAME, SQLs.ENTITY_STATE_COLUMN_NAME, SQLs.ENTITY_IDENTITY_COLUMN_NAME, SQLs.ENTITY_LAST_MODIFIED_COLUMN_NAME ) )
+                .from( t.tableName( this.schemaName, SQLs.TABLE_NAME ) )
+                .where( b.booleanBuilder( b.geq( c.colName( SQLs.ENTITY_PK_COLUMN_NAME ), l.param() ) )
+                    .and( b.lt( c.colName( SQLs.ENTITY_PK_COLUMN_NAME ), l.param() ) )
+                    .createExpression() )
+                .createExpression();
+            // @formatter:on
+        }
+
         protected SQLStatement createSelectEntityStatement( SQLVendor vendor )
         {
             QueryFactory q = vendor.getQueryFactory();
@@ -208,13 +396,36 @@ public interface DatabaseSQLStringsBuilder
 
             // @formatter:off
             return q.simpleQueryBuilder()
-                .select( SQLs.ENTITY_PK_COLUMN_NAME, SQLs.ENTITY_OPTIMISTIC_LOCK_COLUMN_NAME, SQLs.ENTITY_STATE_COLUMN_NAME )
+                .select( this.withBinaryState( SQLs.ENTITY_PK_COLUMN_NAME, SQLs.ENTITY_OPTIMISTIC_LOCK_COLUMN_NAME, SQLs.ENTITY_STATE_COLUMN_NAME ) )
                 .from( t.tableName( this.schemaName, SQLs.TABLE_NAME ) )
                 .where( b.eq( c.colName( SQLs.ENTITY_IDENTITY_COLUMN_NAME ), l.param() ) )
                 .createExpression();
             // @formatter:on
         }
 
+        protected SQLStatement createSelectEntitiesStatement( SQLVendor vendor )
+        {
+            QueryFactory q = vendor.getQueryFactory();
+            TableReferenceFactory t = vendor.getTableReferenceFactory();
+            BooleanFactory b = vendor.getBooleanFactory();
+            ColumnsFactory c = vendor.getColumnsFactory();
+            LiteralFactory l = vendor.getLiteralFactory();
+
+            InBuilder in = b.inBuilder( c.colName( SQLs.ENTITY_IDENTITY_COLUMN_NAME ) );
+            for( Integer x = 0; x < SQLs.SELECT_ENTITIES_BATCH_SIZE; ++x )
+            {
+                in.addValues( l.param() );
+            }
+
+            // @formatter:off
+            return q.simpleQueryBuilder()
+                .select( this.withBinaryState( SQLs.ENTITY_PK_COLUMN_NAME, SQLs.ENTITY_OPTIMISTIC_LOCK_COLUMN_NAME, SQLs.ENTITY_STATE_COLUMN_NAME, SQLs.ENTITY_IDENTITY_COLUMN_NAME ) )
+                .from( t.tableName( this.schemaName, SQLs.TABLE_NAME ) )
+                .where( in.createExpression() )
+                .createExpression();
+            // @formatter:on
+        }
+
         protected SQLStatement createInsertEntityStatement( SQLVendor vendor )
         {
             ModificationFactory m = vendor.getModificationFactory();
@@ -222,6 +433,31 @@ public interface DatabaseSQLStringsBuilder
             LiteralFactory l = vendor.getLiteralFactory();
 
             // @formatter:off
+            if( this.hasBinaryStateColumn() )
+            {
+                return m.insert()
+                    .setTableName( t.tableName( this.schemaName, SQLs.TABLE_NAME ) )
+                    .setColumnSource( m.columnSourceByValues()
+                        .addColumnNames(
+                            SQLs.ENTITY_PK_COLUMN_NAME,
+                            SQLs.ENTITY_OPTIMISTIC_LOCK_COLUMN_NAME,
+                            SQLs.ENTITY_IDENTITY_COLUMN_NAME,
+                            SQLs.ENTITY_STATE_COLUMN_NAME,
+                            SQLs.ENTITY_LAST_MODIFIED_COLUMN_NAME,
+                            SQLs.ENTITY_STATE_DATA_COLUMN_NAME
+                            )
+                        .addValues(
+                            l.param(),
+                            l.n( 0 ),
+                            l.param(),
+                            l.param(),
+                            l.param(),
+                            l.param()
+                            )
+                        .createExpression()
+                        )
+                     .createExpression();
+            }
             return m.insert()
                 .setTableName( t.tableName( this.schemaName, SQLs.TABLE_NAME ) )
                 .setColumnSource( m.columnSourceByValues()
@@ -261,6 +497,12 @@ public interface DatabaseSQLStringsBuilder
                     m.setClause( SQLs.ENTITY_STATE_COLUMN_NAME, m.updateSourceByExp( l.param() ) ),
                     m.setClause( SQLs.ENTITY_LAST_MODIFIED_COLUMN_NAME, m.updateSourceByExp( l.param() ) )
                     );
+            if( this.hasBinaryStateColumn() )
+            {
+                builder.addSetClauses(
+                    m.setClause( SQLs.ENTITY_STATE_DATA_COLUMN_NAME, m.updateSourceByExp( l.param() ) )
+                    );
+            }
             builder
                 .getWhereBuilder()
                     .reset( b.eq( c.colName( SQLs.ENTITY_PK_COLUMN_NAME ), l.param() ) )
@@ -321,16 +563,51 @@ public interface DatabaseSQLStringsBuilder
             return this.indexCreationSQLs;
         }
 
+        public String[] buildSQLForPKBlocksTableCreation()
+        {
+            return this.pkBlocksTableCreationSQLs;
+        }
+
+        public String buildSQLForInsertPKBlocksStatement()
+        {
+            return this.insertPKBlocksSQL;
+        }
+
+        public String buildSQLForSelectPKBlockStatement()
+        {
+            return this.selectPKBlockSQL;
+        }
+
+        public String buildSQLForReservePKBlockStatement()
+        {
+            return this.reservePKBlockSQL;
+        }
+
         public String buildSQLForSelectAllEntitiesStatement()
         {
             return this.selectAllEntitiesSQL;
         }
 
+        public String buildSQLForSelectEntityPKRangeStatement()
+        {
+            return this.selectEntityPKRangeSQL;
+        }
+
+        public String buildSQLForSelectEntitiesInPKRangeStatement()
+        {
+            return this.selectEntitiesInPKRangeSQL;
+        }
+
         public String buildSQLForSelectEntityStatement()
         {
             return this.selectEntitySQL;
         }
 
+        public String buildSQLForSelectEntitiesStatement()
+        {
+            return this.selectEntitiesSQL;
+        }
+
         public String buildSQLForInsertEntityStatement()
         {
             return this.insertEntitySQL;
@@ -351,6 +628,11 @@ public interface DatabaseSQLStringsBuilder
             return this.tableCreationSQLs;
         }
 
+        public String buildSQLForBinaryStateColumnCreation()
+        {
+            return this.binaryStateColumnCreationSQL;
+        }
+
     }
 
 }
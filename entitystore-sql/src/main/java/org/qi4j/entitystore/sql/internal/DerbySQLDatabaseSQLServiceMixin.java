@@ -19,6 +19,7 @@ import org.qi4j.library.sql.common.SQLUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Reader;
 import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.ResultSet;
@@ -34,13 +35,13 @@ public abstract class DerbySQLDatabaseSQLServiceMixin
     @This
     protected DatabaseSQLServiceSpi spi;
 
-    public boolean tableExists( Connection connection )
+    public boolean tableExists( Connection connection, String tableName )
         throws SQLException
     {
         ResultSet rs = null;
         try
         {
-            String tableNameForQuery = SQLs.TABLE_NAME.toUpperCase();
+            String tableNameForQuery = tableName.toUpperCase();
             rs = connection.getMetaData().getTables( null, null, tableNameForQuery, new String[]
             {
                 "TABLE"
@@ -55,11 +56,39 @@ public abstract class DerbySQLDatabaseSQLServiceMixin
         }
     }
 
+    public boolean columnExists( Connection connection, String tableName, String columnName )
+        throws SQLException
+    {
+        ResultSet rs = null;
+        try
+        {
+            rs = connection.getMetaData().getColumns( null, null, tableName.toUpperCase(), columnName.toUpperCase() );
+            boolean columnExists = rs.next();
+            LOGGER.trace( "Found column {}.{}? {}", new Object[] { tableName, columnName, columnExists } );
+            return columnExists;
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( rs );
+        }
+    }
+
+    public String getBinaryStateType()
+    {
+        return "BLOB";
+    }
+
+    public int getScanFetchSize( int fetchSize )
+    {
+        return fetchSize;
+    }
+
     public EntityValueResult getEntityValue( ResultSet rs )
         throws SQLException
     {
+        Reader state = this.spi.readBinaryState( rs );
         return new EntityValueResult( rs.getLong( SQLs.ENTITY_PK_COLUMN_NAME ),
-            rs.getLong( SQLs.ENTITY_OPTIMISTIC_LOCK_COLUMN_NAME ), new StringReader(
+            rs.getLong( SQLs.ENTITY_OPTIMISTIC_LOCK_COLUMN_NAME ), state != null ? state : new StringReader(
                 rs.getString( SQLs.ENTITY_STATE_COLUMN_NAME ) ) );
     }
 
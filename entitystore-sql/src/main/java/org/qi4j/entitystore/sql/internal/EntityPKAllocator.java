@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql.internal;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands out entity PKs from blocks that are reserved in the database.
+ * <p>
+ * PKs are taken from the current block without locking. Only when a block runs out is a new one reserved, by one
+ * thread while the others wait for it. Since every node sharing the database reserves its blocks there, nodes never
+ * hand out the same PK. The PKs left in the blocks of a node that stops are never used.
+ * </p>
+ */
+abstract class EntityPKAllocator
+{
+
+    private final long blockSize;
+
+    private final AtomicReference<Block> block = new AtomicReference<Block>( new Block( 0, 0 ) );
+
+    EntityPKAllocator( long blockSize )
+    {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Reserve a block of PKs in the database.
+     *
+     * @param blockSize the number of PKs to reserve
+     * @return the first PK of the block
+     * @throws SQLException if the block could not be reserved
+     */
+    protected abstract long reserve( long blockSize )
+        throws SQLException;
+
+    public long next()
+        throws SQLException
+    {
+        while( true )
+        {
+            Block current = this.block.get();
+            long pk = current.next.getAndIncrement();
+            if( pk < current.end )
+            {
+                return pk;
+            }
+
+            synchronized( this )
+            {
+                // Unless another thread has reserved one meanwhile
+                if( this.block.get() == current )
+                {
+                    long start = this.reserve( this.blockSize );
+                    this.block.set( new Block( start, start + this.blockSize ) );
+                }
+            }
+        }
+    }
+
+    private static final class Block
+    {
+        private final AtomicLong next;
+
+        private final long end;
+
+        private Block( long start, long end )
+        {
+            this.next = new AtomicLong( start );
+            this.end = end;
+        }
+    }
+
+}
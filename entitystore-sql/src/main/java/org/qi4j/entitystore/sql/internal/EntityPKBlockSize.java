@@ -0,0 +1,38 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql.internal;
+
+/**
+ * Meta info of the database service, the number of entity PKs that a node reserves in the database at a time.
+ */
+public final class EntityPKBlockSize
+{
+
+    public static final long DEFAULT_BLOCK_SIZE = 100;
+
+    private final long blockSize;
+
+    public EntityPKBlockSize( long blockSize )
+    {
+        if( blockSize < 1 )
+        {
+            throw new IllegalArgumentException( "Entity PK block size must be positive, was " + blockSize );
+        }
+        this.blockSize = blockSize;
+    }
+
+    public long getBlockSize()
+    {
+        return blockSize;
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql.internal;
+
+/**
+ * Meta info of the database service, how entity states are fetched ahead of being loaded.
+ * <p>
+ * States prefetched through {@link org.qi4j.entitystore.sql.EntityStatePrefetch} are kept by their unit of work until
+ * they are loaded, up to the given number of characters. When references are prefetched, loading an entity that
+ * is referenced by an entity loaded before also fetches the other entities referenced so far, on the guess that
+ * they will be loaded too.
+ * </p>
+ */
+public final class EntityPrefetchOptions
+{
+
+    public static final int DEFAULT_MAX_RETAINED_CHARS = 1024 * 1024;
+
+    private final boolean prefetchReferences;
+
+    private final int maxRetainedChars;
+
+    /**
+     * @param prefetchReferences whether the entities referenced by loaded ones are fetched ahead
+     * @param maxRetainedChars   the number of characters of fetched ahead states each unit of work keeps
+     */
+    public EntityPrefetchOptions( boolean prefetchReferences, int maxRetainedChars )
+    {
+        if( maxRetainedChars < 0 )
+        {
+            throw new IllegalArgumentException( "Retained characters must not be negative, was " + maxRetainedChars );
+        }
+        this.prefetchReferences = prefetchReferences;
+        this.maxRetainedChars = maxRetainedChars;
+    }
+
+    public boolean isPrefetchReferences()
+    {
+        return prefetchReferences;
+    }
+
+    public int getMaxRetainedChars()
+    {
+        return maxRetainedChars;
+    }
+
+}
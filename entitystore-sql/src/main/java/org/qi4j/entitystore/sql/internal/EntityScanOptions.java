@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql.internal;
+
+/**
+ * Meta info of the database service, how scans over all entities read the database.
+ * <p>
+ * Scans stream the rows in a read transaction, fetching the given number of rows at a time. With a parallelism
+ * above 1, the entity PK range of each database is split into that many chunks, which are scanned at once on separate
+ * connections.
+ * </p>
+ */
+public final class EntityScanOptions
+{
+
+    public static final int DEFAULT_FETCH_SIZE = 100;
+
+    public static final int DEFAULT_PARALLELISM = 1;
+
+    private final int fetchSize;
+
+    private final int parallelism;
+
+    public EntityScanOptions( int fetchSize, int parallelism )
+    {
+        if( fetchSize < 1 )
+        {
+            throw new IllegalArgumentException( "Scan fetch size must be positive, was " + fetchSize );
+        }
+        if( parallelism < 1 )
+        {
+            throw new IllegalArgumentException( "Scan parallelism must be positive, was " + parallelism );
+        }
+        this.fetchSize = fetchSize;
+        this.parallelism = parallelism;
+    }
+
+    public int getFetchSize()
+    {
+        return fetchSize;
+    }
+
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql.internal;
+
+import javax.sql.DataSource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Meta info of the database service, the databases that entities are spread over besides the primary one.
+ * <p>
+ * The primary database is shard 0, and the given databases are shards 1 to N, in order. Entities are mapped to shards
+ * by a consistent hash of their identity, so shards must only be added at the end. After adding shards, the
+ * entities that now belong to them are moved with {@link org.qi4j.entitystore.sql.ShardedEntityStore#rebalanceShards()},
+ * and until then they are still found where they were.
+ * </p>
+ * <p>
+ * Entity PKs are reserved in the primary database only, so they are unique over all shards. Shards can not be
+ * combined with read replicas.
+ * </p>
+ */
+public final class EntityShards
+{
+
+    private final List<DataSource> dataSources;
+
+    /**
+     * @param dataSources the shards after the primary database
+     */
+    public EntityShards( DataSource... dataSources )
+    {
+        if( dataSources.length == 0 )
+        {
+            throw new IllegalArgumentException( "No shards" );
+        }
+        this.dataSources = Collections.unmodifiableList( Arrays.asList( dataSources ) );
+    }
+
+    public List<DataSource> getDataSources()
+    {
+        return dataSources;
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Meta info of the database service, the format entity states are written in.
+ * <p>
+ * States are read in either format, whatever the format they are written in. A table that only has the text state
+ * column gets the binary one when the COMPRESSED format is first used, and its states are converted as they are
+ * updated. The text column of a compressed state is left empty.
+ * </p>
+ */
+public enum EntityStateFormat
+{
+
+    /**
+     * The JSON text in the {@link SQLs#ENTITY_STATE_COLUMN_NAME} column.
+     */
+    TEXT,
+
+    /**
+     * The deflated UTF-8 bytes of the JSON text in the {@link SQLs#ENTITY_STATE_DATA_COLUMN_NAME} column.
+     */
+    COMPRESSED;
+
+    static byte[] compress( String state )
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( state.length() / 4 + 64 );
+            Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+            DeflaterOutputStream out = new DeflaterOutputStream( bytes, deflater, 4096 );
+            try
+            {
+                out.write( state.getBytes( "UTF-8" ) );
+                out.finish();
+            }
+            finally
+            {
+                deflater.end();
+            }
+            return bytes.toByteArray();
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        catch( IOException e )
+        {
+            // Cannot happen when writing to memory
+            throw new IllegalStateException( e );
+        }
+    }
+
+    static Reader decompress( byte[] data )
+    {
+        try
+        {
+            return new InputStreamReader( new InflaterInputStream( new ByteArrayInputStream( data ) ), "UTF-8" );
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+}
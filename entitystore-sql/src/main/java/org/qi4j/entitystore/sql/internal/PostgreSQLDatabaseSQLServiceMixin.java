@@ -19,6 +19,7 @@ import org.qi4j.library.sql.common.SQLUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Reader;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -33,19 +34,19 @@ public abstract class PostgreSQLDatabaseSQLServiceMixin
     @This
     protected DatabaseSQLServiceSpi spi;
 
-    public boolean tableExists( Connection connection )
+    public boolean tableExists( Connection connection, String tableName )
         throws SQLException
     {
         ResultSet rs = null;
         try
         {
-            rs = connection.getMetaData().getTables( null, this.spi.getCurrentSchemaName(), SQLs.TABLE_NAME,
+            rs = connection.getMetaData().getTables( null, this.spi.getCurrentSchemaName(), tableName,
                 new String[]
                 {
                     "TABLE"
                 } );
             boolean tableExists = rs.next();
-            LOGGER.trace( "Found table {}? {}", SQLs.TABLE_NAME, tableExists );
+            LOGGER.trace( "Found table {}? {}", tableName, tableExists );
             return tableExists;
 
         }
@@ -55,12 +56,41 @@ public abstract class PostgreSQLDatabaseSQLServiceMixin
         }
     }
 
+    public boolean columnExists( Connection connection, String tableName, String columnName )
+        throws SQLException
+    {
+        ResultSet rs = null;
+        try
+        {
+            rs = connection.getMetaData().getColumns( null, this.spi.getCurrentSchemaName(), tableName, columnName );
+            boolean columnExists = rs.next();
+            LOGGER.trace( "Found column {}.{}? {}", new Object[] { tableName, columnName, columnExists } );
+            return columnExists;
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( rs );
+        }
+    }
+
+    public String getBinaryStateType()
+    {
+        return "BYTEA";
+    }
+
+    public int getScanFetchSize( int fetchSize )
+    {
+        // Uses a cursor, in a transaction on a forward only result set
+        return fetchSize;
+    }
+
     public EntityValueResult getEntityValue( ResultSet rs )
         throws SQLException
     {
+        Reader state = this.spi.readBinaryState( rs );
         return new EntityValueResult( rs.getLong( SQLs.ENTITY_PK_COLUMN_NAME ),
             rs.getLong( SQLs.ENTITY_OPTIMISTIC_LOCK_COLUMN_NAME ),
-            rs.getCharacterStream( SQLs.ENTITY_STATE_COLUMN_NAME ) );
+            state != null ? state : rs.getCharacterStream( SQLs.ENTITY_STATE_COLUMN_NAME ) );
     }
 
 }
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql.internal;
+
+import javax.sql.DataSource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Meta info of the database service, the read replicas of the database that entities are loaded from.
+ * <p>
+ * The replicas are used in turn. A replica that cannot give a connection is skipped for the retry interval, and
+ * when no replica can give one, the primary database is used.
+ * </p>
+ * <p>
+ * Replicas lag behind the primary. Entities written by this application are loaded from the primary until the
+ * maximum staleness has passed since they were written, and entities that are not found on a replica are looked up
+ * on the primary. Entities written by other applications may be loaded up to the replication lag out of date.
+ * Committing changes to such an entity fails with a concurrent modification, as the optimistic lock no longer
+ * matches on the primary. Drivers that do not report the rows each batched statement changed cannot tell, so with
+ * them the changes are lost instead, and replicas must not be used.
+ * </p>
+ */
+public final class ReadReplicas
+{
+
+    public static final long DEFAULT_RETRY_INTERVAL = 30000;
+
+    private final List<DataSource> dataSources;
+
+    private final long maxStaleness;
+
+    private final long retryInterval;
+
+    /**
+     * @param maxStaleness  milliseconds after a write during which the written entities are loaded from the primary
+     * @param retryInterval milliseconds a failed replica is skipped
+     * @param dataSources   the replicas
+     */
+    public ReadReplicas( long maxStaleness, long retryInterval, DataSource... dataSources )
+    {
+        if( dataSources.length == 0 )
+        {
+            throw new IllegalArgumentException( "No read replicas" );
+        }
+        this.dataSources = Collections.unmodifiableList( Arrays.asList( dataSources ) );
+        this.maxStaleness = maxStaleness;
+        this.retryInterval = retryInterval;
+    }
+
+    public List<DataSource> getDataSources()
+    {
+        return dataSources;
+    }
+
+    public long getMaxStaleness()
+    {
+        return maxStaleness;
+    }
+
+    public long getRetryInterval()
+    {
+        return retryInterval;
+    }
+
+}
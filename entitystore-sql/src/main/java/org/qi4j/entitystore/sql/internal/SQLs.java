@@ -27,8 +27,20 @@ public interface SQLs
 
     String ENTITY_STATE_COLUMN_NAME = "entity_state";
 
+    String ENTITY_STATE_DATA_COLUMN_NAME = "entity_state_data";
+
     String ENTITY_OPTIMISTIC_LOCK_COLUMN_NAME = "entity_optimistic_lock";
 
     String ENTITY_LAST_MODIFIED_COLUMN_NAME = "entity_last_modified";
 
+    String PK_BLOCKS_TABLE_NAME = "qi4j_entity_pk_blocks";
+
+    String NEXT_ENTITY_PK_COLUMN_NAME = "next_entity_pk";
+
+    /**
+     * Number of identities in the IN list of the select of several entities. Shorter lists are padded, so that
+     * there is only one statement to prepare.
+     */
+    int SELECT_ENTITIES_BATCH_SIZE = 50;
+
 }
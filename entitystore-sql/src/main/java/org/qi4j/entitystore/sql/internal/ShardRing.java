@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql.internal;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Consistent hash of entity identities to shards.
+ * <p>
+ * Each shard owns a number of points on a ring of 64 bit hashes, and an identity belongs to the shard owning the
+ * first point at or after its hash. The points of a shard depend only on its index, so when a shard is added it
+ * takes about its share of the identities from the others, and all other identities stay where they were.
+ * </p>
+ */
+final class ShardRing
+{
+
+    private static final int POINTS_PER_SHARD = 256;
+
+    private final long[] points;
+
+    private final int[] shards;
+
+    ShardRing( int shardCount )
+    {
+        final long[] hashes = new long[ shardCount * POINTS_PER_SHARD ];
+        Integer[] order = new Integer[ hashes.length ];
+        for( int x = 0; x < hashes.length; ++x )
+        {
+            hashes[ x ] = hash( "shard-" + ( x / POINTS_PER_SHARD ) + "-" + ( x % POINTS_PER_SHARD ) );
+            order[ x ] = x;
+        }
+
+        // Equal hashes are kept in index order, so that every node builds the same ring
+        Arrays.sort( order, new Comparator<Integer>()
+        {
+            public int compare( Integer first, Integer second )
+            {
+                long a = hashes[ first ];
+                long b = hashes[ second ];
+                return a < b ? -1 : ( a > b ? 1 : first.compareTo( second ) );
+            }
+        } );
+
+        this.points = new long[ hashes.length ];
+        this.shards = new int[ hashes.length ];
+        for( int x = 0; x < order.length; ++x )
+        {
+            this.points[ x ] = hashes[ order[ x ] ];
+            this.shards[ x ] = order[ x ] / POINTS_PER_SHARD;
+        }
+    }
+
+    int shardOf( String identity )
+    {
+        int index = Arrays.binarySearch( this.points, hash( identity ) );
+        if( index < 0 )
+        {
+            index = -index - 1;
+            if( index == this.points.length )
+            {
+                // Past the last point, wrap around
+                index = 0;
+            }
+        }
+        return this.shards[ index ];
+    }
+
+    /**
+     * FNV-1a over the characters, mixed so that similar identities spread over the whole ring.
+     */
+    static long hash( String value )
+    {
+        long hash = 0xcbf29ce484222325L;
+        for( int x = 0; x < value.length(); ++x )
+        {
+            hash ^= value.charAt( x );
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
@@ -0,0 +1,579 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql.internal;
+
+import org.qi4j.library.sql.common.SQLUtil;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connections taken from the data source and kept open between uses, along with the statements prepared on them.
+ * <p>
+ * Connections are handed out wrapped, so that closing them returns them here, and the statements prepared on them are
+ * handed out wrapped, so that closing them keeps them prepared for the next time the same SQL is prepared on the same
+ * connection. A returned connection is rolled back, its auto commit, read only and transaction isolation settings are
+ * put back as they were when it was opened, and it is kept unless enough connections are idle already. Connections
+ * that fail, connections whose other settings were changed, and connections that were idle too long, are closed, that
+ * is returned to the data source. Idle connections are checked for that in the background as well, so that they are
+ * not held from the data source while there is no load. Statements whose settings were changed are closed when they are
+ * closed, instead of being kept prepared. Connections and statements handed out can not be used after the connection is
+ * closed. Connections returned after the cache is closed are closed as well.
+ * </p>
+ */
+abstract class StatementCache
+{
+
+    // Longer than this and the database or a firewall may have dropped the connection
+    private static final long MAX_IDLE_TIME = 60000;
+
+    // Connection settings put back on check in
+    private static final Set<String> RESTORED_SETTINGS = new HashSet<String>( Arrays.asList(
+        "setAutoCommit", "setReadOnly", "setTransactionIsolation" ) );
+
+    // Connection settings that are not put back, the connection is closed on check in instead
+    private static final Set<String> DISCARDING_SETTINGS = new HashSet<String>( Arrays.asList(
+        "setCatalog", "setHoldability", "setTypeMap", "setSchema", "setClientInfo", "setNetworkTimeout" ) );
+
+    // Statement settings, the statement is not kept prepared once they are changed
+    private static final Set<String> STATEMENT_SETTINGS = new HashSet<String>( Arrays.asList(
+        "setFetchSize", "setFetchDirection", "setMaxRows", "setLargeMaxRows", "setMaxFieldSize", "setQueryTimeout",
+        "setEscapeProcessing", "setCursorName", "setPoolable" ) );
+
+    private final int maxStatements;
+
+    private final int maxIdleConnections;
+
+    private final List<Deque<CachedConnection>> idle = new ArrayList<Deque<CachedConnection>>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final Timer reaper = new Timer( "StatementCache idle reaper", true );
+
+    // Set while holding the idle connections of each shard
+    private volatile boolean closed;
+
+    StatementCache( int maxStatements, int maxIdleConnections, int shardCount )
+    {
+        this.maxStatements = maxStatements;
+        this.maxIdleConnections = maxIdleConnections;
+        for( int shard = 0; shard < shardCount; ++shard )
+        {
+            this.idle.add( new ArrayDeque<CachedConnection>() );
+        }
+        this.reaper.schedule( new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                reapIdle();
+            }
+        }, MAX_IDLE_TIME / 2, MAX_IDLE_TIME / 2 );
+    }
+
+    /**
+     * Get a new connection to a shard from the data source.
+     */
+    protected abstract Connection open( int shard )
+        throws SQLException;
+
+    public Connection getConnection( int shard )
+        throws SQLException
+    {
+        Deque<CachedConnection> shardIdle = this.idle.get( shard );
+        long now = System.currentTimeMillis();
+        while( true )
+        {
+            CachedConnection cached;
+            synchronized( shardIdle )
+            {
+                cached = shardIdle.pollFirst();
+            }
+            if( cached == null )
+            {
+                cached = new CachedConnection( shard, this.open( shard ) );
+            }
+            else if( now - cached.idleSince > MAX_IDLE_TIME || cached.connection.isClosed() )
+            {
+                this.discard( cached );
+                continue;
+            }
+            return cached.checkOut();
+        }
+    }
+
+    public long hits()
+    {
+        return this.hits.get();
+    }
+
+    public long misses()
+    {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of statements prepared on the cached connections
+     */
+    public int size()
+    {
+        return this.size.get();
+    }
+
+    /**
+     * Close the idle connections, and the connections in use once they are returned.
+     */
+    public void close()
+    {
+        this.reaper.cancel();
+        for( Deque<CachedConnection> shardIdle : this.idle )
+        {
+            synchronized( shardIdle )
+            {
+                this.closed = true;
+                for( CachedConnection cached : shardIdle )
+                {
+                    this.discard( cached );
+                }
+                shardIdle.clear();
+            }
+        }
+    }
+
+    /**
+     * Close the connections that were idle too long.
+     */
+    void reapIdle()
+    {
+        long now = System.currentTimeMillis();
+        for( Deque<CachedConnection> shardIdle : this.idle )
+        {
+            List<CachedConnection> expired = new ArrayList<CachedConnection>();
+            synchronized( shardIdle )
+            {
+                // Least recently used last
+                while( !shardIdle.isEmpty() && now - shardIdle.peekLast().idleSince > MAX_IDLE_TIME )
+                {
+                    expired.add( shardIdle.pollLast() );
+                }
+            }
+            for( CachedConnection cached : expired )
+            {
+                this.discard( cached );
+            }
+        }
+    }
+
+    private void checkIn( CachedConnection cached )
+    {
+        // Statements left open by the caller are reused anyway, unless their settings were changed
+        cached.inUse.clear();
+        for( String key : cached.altered )
+        {
+            cached.evict( key );
+        }
+        cached.altered.clear();
+        cached.evictOverflow();
+        boolean keep = !cached.broken;
+        if( keep )
+        {
+            try
+            {
+                // Do not keep a transaction open while idle
+                if( !cached.connection.getAutoCommit() )
+                {
+                    cached.connection.rollback();
+                }
+                if( cached.settingsChanged )
+                {
+                    cached.restoreSettings();
+                }
+            }
+            catch( SQLException sqle )
+            {
+                keep = false;
+            }
+        }
+        if( keep )
+        {
+            Deque<CachedConnection> shardIdle = this.idle.get( cached.shard );
+            synchronized( shardIdle )
+            {
+                if( !this.closed && shardIdle.size() < this.maxIdleConnections )
+                {
+                    cached.idleSince = System.currentTimeMillis();
+                    // Most recently used first, so that the others time out when there is less load
+                    shardIdle.addFirst( cached );
+                    return;
+                }
+            }
+        }
+        this.discard( cached );
+    }
+
+    private void discard( CachedConnection cached )
+    {
+        for( PreparedStatement statement : cached.statements.values() )
+        {
+            SQLUtil.closeQuietly( statement );
+        }
+        this.size.addAndGet( -cached.statements.size() );
+        cached.statements.clear();
+        SQLUtil.closeQuietly( cached.connection );
+    }
+
+    /**
+     * Invoke a method of a connection or statement, marking the connection as broken if the database fails.
+     */
+    private static Object invoke( CachedConnection cached, Object target, Method method, Object[] args )
+        throws Throwable
+    {
+        try
+        {
+            return method.invoke( target, args );
+        }
+        catch( InvocationTargetException ite )
+        {
+            if( ite.getCause() instanceof SQLException )
+            {
+                cached.broken = true;
+            }
+            throw ite.getCause();
+        }
+    }
+
+    private class CachedConnection
+    {
+        private final int shard;
+
+        private final Connection connection;
+
+        // Least recently used first
+        private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>( 16, 0.75f, true );
+
+        // Handed out and not closed yet, so neither evicted nor handed out again
+        private final Set<String> inUse = new HashSet<String>();
+
+        // Handed out and changed from how they were prepared, so not kept
+        private final Set<String> altered = new HashSet<String>();
+
+        // Failed, or has settings that are not put back on check in
+        private boolean broken;
+
+        private long idleSince;
+
+        // As the connection was opened
+        private final boolean autoCommit;
+
+        private final boolean readOnly;
+
+        private final int transactionIsolation;
+
+        private boolean settingsChanged;
+
+        private CachedConnection( int shard, Connection connection )
+            throws SQLException
+        {
+            this.shard = shard;
+            this.connection = connection;
+            try
+            {
+                this.autoCommit = connection.getAutoCommit();
+                this.readOnly = connection.isReadOnly();
+                this.transactionIsolation = connection.getTransactionIsolation();
+            }
+            catch( SQLException sqle )
+            {
+                SQLUtil.closeQuietly( connection );
+                throw sqle;
+            }
+        }
+
+        private Connection checkOut()
+        {
+            return (Connection) Proxy.newProxyInstance( Connection.class.getClassLoader(), new Class<?>[]
+            {
+                Connection.class
+            }, new ConnectionHandler( this ) );
+        }
+
+        private void restoreSettings()
+            throws SQLException
+        {
+            if( this.connection.getTransactionIsolation() != this.transactionIsolation )
+            {
+                this.connection.setTransactionIsolation( this.transactionIsolation );
+            }
+            if( this.connection.isReadOnly() != this.readOnly )
+            {
+                this.connection.setReadOnly( this.readOnly );
+            }
+            if( this.connection.getAutoCommit() != this.autoCommit )
+            {
+                this.connection.setAutoCommit( this.autoCommit );
+            }
+            this.settingsChanged = false;
+        }
+
+        private PreparedStatement prepare( ConnectionHandler owner, Connection proxy, String sql, Object[] args )
+            throws SQLException
+        {
+            String key = args.length == 1 ? sql : sql + '\u0000' + args[ 1 ] + '\u0000' + args[ 2 ];
+            if( this.inUse.contains( key ) )
+            {
+                // Prepared twice at once, the second one is not cached
+                misses.incrementAndGet();
+                return this.prepareUncached( sql, args );
+            }
+
+            PreparedStatement statement = this.statements.get( key );
+            if( statement == null )
+            {
+                misses.incrementAndGet();
+                statement = this.prepareUncached( sql, args );
+                this.statements.put( key, statement );
+                size.incrementAndGet();
+            }
+            else
+            {
+                hits.incrementAndGet();
+            }
+            // In use first, so that it is not the one evicted
+            this.inUse.add( key );
+            this.evictOverflow();
+            return (PreparedStatement) Proxy.newProxyInstance( PreparedStatement.class.getClassLoader(), new Class<?>[]
+            {
+                PreparedStatement.class
+            }, new StatementHandler( this, owner, proxy, key, statement ) );
+        }
+
+        private PreparedStatement prepareUncached( String sql, Object[] args )
+            throws SQLException
+        {
+            try
+            {
+                return args.length == 1 ? this.connection.prepareStatement( sql )
+                                        : this.connection.prepareStatement( sql, (Integer) args[ 1 ], (Integer) args[ 2 ] );
+            }
+            catch( SQLException sqle )
+            {
+                this.broken = true;
+                throw sqle;
+            }
+        }
+
+        private void evict( String key )
+        {
+            PreparedStatement statement = this.statements.remove( key );
+            if( statement != null )
+            {
+                SQLUtil.closeQuietly( statement );
+                size.decrementAndGet();
+            }
+        }
+
+        private void evictOverflow()
+        {
+            Iterator<Map.Entry<String, PreparedStatement>> eldest = this.statements.entrySet().iterator();
+            while( this.statements.size() > maxStatements && eldest.hasNext() )
+            {
+                Map.Entry<String, PreparedStatement> entry = eldest.next();
+                if( !this.inUse.contains( entry.getKey() ) )
+                {
+                    SQLUtil.closeQuietly( entry.getValue() );
+                    eldest.remove();
+                    size.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private class ConnectionHandler
+        implements InvocationHandler
+    {
+        private final CachedConnection cached;
+
+        private boolean closed;
+
+        private ConnectionHandler( CachedConnection cached )
+        {
+            this.cached = cached;
+        }
+
+        public Object invoke( Object proxy, Method method, Object[] args )
+            throws Throwable
+        {
+            String name = method.getName();
+            if( "close".equals( name ) )
+            {
+                if( !this.closed )
+                {
+                    this.closed = true;
+                    checkIn( this.cached );
+                }
+                return null;
+            }
+            else if( "isClosed".equals( name ) )
+            {
+                return this.closed || this.cached.connection.isClosed();
+            }
+            else if( "equals".equals( name ) )
+            {
+                return proxy == args[ 0 ];
+            }
+            else if( "hashCode".equals( name ) )
+            {
+                return System.identityHashCode( proxy );
+            }
+            else if( this.closed )
+            {
+                throw new SQLException( "Connection is closed" );
+            }
+            else if( "prepareStatement".equals( name ) && ( args.length == 1 || ( args.length == 3
+                && method.getParameterTypes()[ 1 ] == int.class && method.getParameterTypes()[ 2 ] == int.class ) ) )
+            {
+                return this.cached.prepare( this, (Connection) proxy, (String) args[ 0 ], args );
+            }
+            else if( RESTORED_SETTINGS.contains( name ) )
+            {
+                this.cached.settingsChanged = true;
+            }
+            else if( DISCARDING_SETTINGS.contains( name ) )
+            {
+                this.cached.broken = true;
+            }
+            return StatementCache.invoke( this.cached, this.cached.connection, method, args );
+        }
+    }
+
+    private static class StatementHandler
+        implements InvocationHandler
+    {
+        private final CachedConnection cached;
+
+        // Once it is closed the connection may be handed out again, and the statement with it
+        private final ConnectionHandler owner;
+
+        private final Connection connection;
+
+        private final String key;
+
+        private final PreparedStatement statement;
+
+        private boolean closed;
+
+        private StatementHandler( CachedConnection cached, ConnectionHandler owner, Connection connection, String key,
+                                  PreparedStatement statement )
+        {
+            this.cached = cached;
+            this.owner = owner;
+            this.connection = connection;
+            this.key = key;
+            this.statement = statement;
+        }
+
+        public Object invoke( Object proxy, Method method, Object[] args )
+            throws Throwable
+        {
+            String name = method.getName();
+            if( "close".equals( name ) )
+            {
+                if( this.closed )
+                {
+                    return null;
+                }
+                this.closed = true;
+                if( this.owner.closed )
+                {
+                    // Checked in already, and maybe in use again
+                    return null;
+                }
+                this.cached.inUse.remove( this.key );
+                if( this.cached.altered.remove( this.key ) )
+                {
+                    this.cached.evict( this.key );
+                    return null;
+                }
+
+                // Kept prepared, ready for the next use
+                try
+                {
+                    ResultSet rs = this.statement.getResultSet();
+                    if( rs != null )
+                    {
+                        rs.close();
+                    }
+                    this.statement.clearParameters();
+                    this.statement.clearBatch();
+                }
+                catch( SQLException sqle )
+                {
+                    this.cached.broken = true;
+                }
+
+                // More were prepared while this one was in use
+                this.cached.evictOverflow();
+                return null;
+            }
+            else if( "isClosed".equals( name ) )
+            {
+                return this.closed || this.owner.closed;
+            }
+            else if( this.closed || this.owner.closed )
+            {
+                throw new SQLException( "Statement is closed" );
+            }
+            else if( STATEMENT_SETTINGS.contains( name ) )
+            {
+                this.cached.altered.add( this.key );
+            }
+            else if( "getConnection".equals( name ) )
+            {
+                return this.connection;
+            }
+            else if( "equals".equals( name ) )
+            {
+                return proxy == args[ 0 ];
+            }
+            else if( "hashCode".equals( name ) )
+            {
+                return System.identityHashCode( proxy );
+            }
+            return StatementCache.invoke( this.cached, this.statement, method, args );
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql.internal;
+
+/**
+ * Meta info of the database service, how many connections are kept open between uses along with their prepared
+ * statements, instead of being returned to the data source.
+ * <p>
+ * The idle connections stay taken from the data source, so a connection pool must allow that many connections more.
+ * </p>
+ */
+public final class StatementCacheSize
+{
+
+    private final int statementsPerConnection;
+
+    private final int idleConnections;
+
+    /**
+     * @param statementsPerConnection the number of statements kept prepared on each connection
+     * @param idleConnections         the number of connections to each shard kept open while not used
+     */
+    public StatementCacheSize( int statementsPerConnection, int idleConnections )
+    {
+        if( statementsPerConnection < 1 )
+        {
+            throw new IllegalArgumentException( "Statements per connection must be positive, was " + statementsPerConnection );
+        }
+        if( idleConnections < 1 )
+        {
+            throw new IllegalArgumentException( "Idle connections must be positive, was " + idleConnections );
+        }
+        this.statementsPerConnection = statementsPerConnection;
+        this.idleConnections = idleConnections;
+    }
+
+    public int getStatementsPerConnection()
+    {
+        return statementsPerConnection;
+    }
+
+    public int getIdleConnections()
+    {
+        return idleConnections;
+    }
+
+}
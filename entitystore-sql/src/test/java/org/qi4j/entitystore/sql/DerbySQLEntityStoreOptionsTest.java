@@ -0,0 +1,278 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql;
+
+import org.junit.Test;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.api.unitofwork.UnitOfWorkCompletionException;
+import org.qi4j.entitystore.sql.assembly.DerbySQLEntityStoreAssembler;
+import org.qi4j.entitystore.sql.internal.EntityStateFormat;
+import org.qi4j.entitystore.sql.internal.SQLs;
+import org.qi4j.library.sql.common.SQLUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the Derby tests with references prefetched, compressed states and the statement cache, and tests those.
+ */
+public class DerbySQLEntityStoreOptionsTest
+    extends DerbySQLEntityStoreTest
+{
+
+    // Fewer than the insert, update and remove statements each commit prepares
+    private static final int STATEMENTS_PER_CONNECTION = 2;
+
+    private static final int IDLE_CONNECTIONS = 2;
+
+    @Override
+    protected void configure( DerbySQLEntityStoreAssembler assembler )
+    {
+        assembler.setPrefetchReferences( true );
+        assembler.setEntityStateFormat( EntityStateFormat.COMPRESSED );
+        assembler.setStatementCache( STATEMENTS_PER_CONNECTION, IDLE_CONNECTIONS );
+    }
+
+    @Test
+    public void givenAssociatedEntitiesWhenNavigatingThenTheyAreLoadedInBatches()
+        throws UnitOfWorkCompletionException
+    {
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        List<String> names = new ArrayList<String>();
+        String identity;
+        try
+        {
+            TestEntity parent = createEntity( unitOfWork );
+            identity = parent.identity().get();
+            for( int i = 0; i < SQLs.SELECT_ENTITIES_BATCH_SIZE + 3; i++ )
+            {
+                TestEntity child = createEntity( unitOfWork );
+                child.name().set( "Child " + i );
+                parent.manyAssociation().add( child );
+                names.add( child.name().get() );
+            }
+            unitOfWork.complete();
+        }
+        finally
+        {
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+
+        SQLEntityStoreStatistics statistics = this.module.findService( SQLEntityStoreService.class ).get();
+        long prepared = statistics.statementCacheHits() + statistics.statementCacheMisses();
+        unitOfWork = this.module.newUnitOfWork();
+        try
+        {
+            TestEntity parent = unitOfWork.get( TestEntity.class, identity );
+            List<String> loaded = new ArrayList<String>();
+            for( TestEntity child : parent.manyAssociation() )
+            {
+                // The created entity may reference itself
+                if( !child.identity().get().equals( identity ) )
+                {
+                    loaded.add( child.name().get() );
+                }
+            }
+            assertEquals( names, loaded );
+        }
+        finally
+        {
+            unitOfWork.discard();
+        }
+
+        // One query for the parent, and one for each batch of children instead of one for each child
+        int batches = ( names.size() + SQLs.SELECT_ENTITIES_BATCH_SIZE - 1 ) / SQLs.SELECT_ENTITIES_BATCH_SIZE;
+        prepared = statistics.statementCacheHits() + statistics.statementCacheMisses() - prepared;
+        assertTrue( "Loaded with " + prepared + " queries", prepared <= 1 + batches );
+    }
+
+    @Test
+    public void givenStateWrittenAsTextWhenUpdatingThenItIsCompressed()
+        throws Exception
+    {
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        String identity;
+        try
+        {
+            TestEntity instance = createEntity( unitOfWork );
+            instance.name().set( "Text" );
+            identity = instance.identity().get();
+            unitOfWork.complete();
+        }
+        finally
+        {
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+
+        // As written before the store was assembled with the COMPRESSED format
+        byte[] data = readStateData( identity );
+        assertNotNull( data );
+        writeState( identity, new String( inflate( data ), "UTF-8" ), null );
+
+        unitOfWork = this.module.newUnitOfWork();
+        try
+        {
+            TestEntity instance = unitOfWork.get( TestEntity.class, identity );
+            assertEquals( "Text", instance.name().get() );
+            instance.name().set( "Compressed" );
+            unitOfWork.complete();
+        }
+        finally
+        {
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+
+        assertTrue( new String( inflate( readStateData( identity ) ), "UTF-8" ).contains( "Compressed" ) );
+        unitOfWork = this.module.newUnitOfWork();
+        try
+        {
+            assertEquals( "Compressed", unitOfWork.get( TestEntity.class, identity ).name().get() );
+        }
+        finally
+        {
+            unitOfWork.discard();
+        }
+    }
+
+    @Test
+    public void givenStatementCacheWhenLoadingAndCommittingThenStatementsAreReusedAndEvicted()
+        throws UnitOfWorkCompletionException
+    {
+        SQLEntityStoreStatistics statistics = this.module.findService( SQLEntityStoreService.class ).get();
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        String identity;
+        String removed;
+        try
+        {
+            identity = createEntity( unitOfWork ).identity().get();
+            removed = createEntity( unitOfWork ).identity().get();
+            unitOfWork.complete();
+        }
+        finally
+        {
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+
+        long hits = statistics.statementCacheHits();
+        for( int i = 0; i < 3; i++ )
+        {
+            unitOfWork = this.module.newUnitOfWork();
+            try
+            {
+                unitOfWork.get( TestEntity.class, identity ).name().set( "Update " + i );
+                if( i == 0 )
+                {
+                    unitOfWork.remove( unitOfWork.get( TestEntity.class, removed ) );
+                }
+                unitOfWork.complete();
+            }
+            finally
+            {
+                if( unitOfWork.isOpen() )
+                {
+                    unitOfWork.discard();
+                }
+            }
+        }
+
+        assertTrue( statistics.statementCacheHits() > hits );
+        assertTrue( statistics.statementCacheSize() <= STATEMENTS_PER_CONNECTION * IDLE_CONNECTIONS );
+        assertTrue( statistics.statementCacheMisses() > statistics.statementCacheSize() );
+    }
+
+    private byte[] readStateData( String identity )
+        throws SQLException
+    {
+        Connection connection = SQLUtil.getConnection( module );
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try
+        {
+            ps = connection.prepareStatement( "SELECT " + SQLs.ENTITY_STATE_DATA_COLUMN_NAME + " FROM "
+                                              + schemaName() + "." + SQLs.TABLE_NAME + " WHERE "
+                                              + SQLs.ENTITY_IDENTITY_COLUMN_NAME + " = ?" );
+            ps.setString( 1, identity );
+            rs = ps.executeQuery();
+            assertTrue( rs.next() );
+            return rs.getBytes( 1 );
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( rs );
+            SQLUtil.closeQuietly( ps );
+            SQLUtil.rollbackQuietly( connection );
+            SQLUtil.closeQuietly( connection );
+        }
+    }
+
+    private void writeState( String identity, String text, byte[] data )
+        throws SQLException
+    {
+        Connection connection = SQLUtil.getConnection( module );
+        PreparedStatement ps = null;
+        try
+        {
+            ps = connection.prepareStatement( "UPDATE " + schemaName() + "." + SQLs.TABLE_NAME + " SET "
+                                              + SQLs.ENTITY_STATE_COLUMN_NAME + " = ?, "
+                                              + SQLs.ENTITY_STATE_DATA_COLUMN_NAME + " = ? WHERE "
+                                              + SQLs.ENTITY_IDENTITY_COLUMN_NAME + " = ?" );
+            ps.setString( 1, text );
+            ps.setBytes( 2, data );
+            ps.setString( 3, identity );
+            assertEquals( 1, ps.executeUpdate() );
+            connection.commit();
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( ps );
+            SQLUtil.closeQuietly( connection );
+        }
+    }
+
+    private static byte[] inflate( byte[] data )
+        throws IOException
+    {
+        InputStream in = new InflaterInputStream( new ByteArrayInputStream( data ) );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ 4096 ];
+        int read;
+        while( ( read = in.read( buffer ) ) != -1 )
+        {
+            out.write( buffer, 0, read );
+        }
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql;
+
+import org.junit.Test;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.entitystore.sql.assembly.DerbySQLEntityStoreAssembler;
+import org.qi4j.entitystore.sql.internal.DatabaseSQLService;
+import org.qi4j.entitystore.sql.internal.SQLs;
+import org.qi4j.library.sql.common.SQLUtil;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the Derby tests with small blocks of entity PKs, and tests how the blocks are reserved in the database.
+ */
+public class DerbySQLEntityStorePKBlocksTest
+    extends DerbySQLEntityStoreTest
+{
+
+    private static final long BLOCK_SIZE = 10;
+
+    private static final int PKS = 1000;
+
+    @Override
+    protected void configure( DerbySQLEntityStoreAssembler assembler )
+    {
+        assembler.setEntityPKBlockSize( BLOCK_SIZE );
+    }
+
+    @Test
+    public void givenAnotherNodeReservingBlocksWhenAllocatingThenNoPKIsHandedOutTwice()
+        throws Exception
+    {
+        final DatabaseSQLService database = this.module.findService( DatabaseSQLService.class ).get();
+        ExecutorService threads = Executors.newFixedThreadPool( 3 );
+        try
+        {
+            List<Future<List<Long>>> results = new ArrayList<Future<List<Long>>>();
+            for( int thread = 0; thread < 2; thread++ )
+            {
+                results.add( threads.submit( new Callable<List<Long>>()
+                {
+                    public List<Long> call()
+                    {
+                        List<Long> pks = new ArrayList<Long>();
+                        for( int i = 0; i < PKS; i++ )
+                        {
+                            pks.add( database.newPKForEntity() );
+                        }
+                        return pks;
+                    }
+                } ) );
+            }
+
+            // The other node reserves its blocks with the same compare and set on the same table
+            Future<List<Long>> otherNode = threads.submit( new Callable<List<Long>>()
+            {
+                public List<Long> call()
+                    throws SQLException
+                {
+                    List<Long> pks = new ArrayList<Long>();
+                    for( int i = 0; i < PKS / BLOCK_SIZE; i++ )
+                    {
+                        long start = reserveBlock();
+                        for( long pk = start; pk < start + BLOCK_SIZE; pk++ )
+                        {
+                            pks.add( pk );
+                        }
+                    }
+                    return pks;
+                }
+            } );
+            results.add( otherNode );
+
+            Set<Long> pks = new HashSet<Long>();
+            for( Future<List<Long>> result : results )
+            {
+                for( Long pk : result.get() )
+                {
+                    assertTrue( "PK " + pk + " handed out twice", pks.add( pk ) );
+                }
+            }
+            assertEquals( 3 * PKS, pks.size() );
+        }
+        finally
+        {
+            threads.shutdown();
+        }
+    }
+
+    @Test
+    public void givenEntitiesStoredBeforeBlocksTableWhenActivatingThenBlocksStartAfterThem()
+        throws Exception
+    {
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        try
+        {
+            for( int i = 0; i < 3 * BLOCK_SIZE; i++ )
+            {
+                createEntity( unitOfWork );
+            }
+            unitOfWork.complete();
+        }
+        finally
+        {
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+
+        // As stored by a version of the store that did not reserve blocks
+        SQLEntityStoreService store = this.module.findService( SQLEntityStoreService.class ).get();
+        store.passivate();
+        execute( "DROP TABLE " + schemaName() + "." + SQLs.PK_BLOCKS_TABLE_NAME );
+        long maxPK = queryLong( "SELECT MAX(" + SQLs.ENTITY_PK_COLUMN_NAME + ") FROM " + schemaName() + "."
+                                + SQLs.TABLE_NAME );
+        store.activate();
+
+        assertTrue( queryLong( "SELECT " + SQLs.NEXT_ENTITY_PK_COLUMN_NAME + " FROM " + schemaName() + "."
+                               + SQLs.PK_BLOCKS_TABLE_NAME ) > maxPK );
+        DatabaseSQLService database = this.module.findService( DatabaseSQLService.class ).get();
+        for( int i = 0; i < 3 * BLOCK_SIZE; i++ )
+        {
+            assertTrue( database.newPKForEntity() > maxPK );
+        }
+    }
+
+    /**
+     * Reserve a block the way another node sharing the database does.
+     *
+     * @return the first PK of the block
+     */
+    private long reserveBlock()
+        throws SQLException
+    {
+        String table = schemaName() + "." + SQLs.PK_BLOCKS_TABLE_NAME;
+        while( true )
+        {
+            long start = queryLong( "SELECT " + SQLs.NEXT_ENTITY_PK_COLUMN_NAME + " FROM " + table );
+            int updated = execute( "UPDATE " + table + " SET " + SQLs.NEXT_ENTITY_PK_COLUMN_NAME + " = "
+                                   + ( start + BLOCK_SIZE ) + " WHERE " + SQLs.NEXT_ENTITY_PK_COLUMN_NAME + " = "
+                                   + start );
+            if( updated == 1 )
+            {
+                return start;
+            }
+        }
+    }
+
+    private long queryLong( String sql )
+        throws SQLException
+    {
+        Connection connection = SQLUtil.getConnection( module );
+        Statement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = connection.createStatement();
+            rs = stmt.executeQuery( sql );
+            assertTrue( rs.next() );
+            return rs.getLong( 1 );
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( rs );
+            SQLUtil.closeQuietly( stmt );
+            SQLUtil.rollbackQuietly( connection );
+            SQLUtil.closeQuietly( connection );
+        }
+    }
+
+    private int execute( String sql )
+        throws SQLException
+    {
+        Connection connection = SQLUtil.getConnection( module );
+        Statement stmt = null;
+        try
+        {
+            stmt = connection.createStatement();
+            int updated = stmt.executeUpdate( sql );
+            connection.commit();
+            return updated;
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( stmt );
+            SQLUtil.closeQuietly( connection );
+        }
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql;
+
+import org.apache.derby.iapi.services.io.FileUtil;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.Test;
+import org.qi4j.api.unitofwork.ConcurrentEntityModificationException;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.api.unitofwork.UnitOfWorkCompletionException;
+import org.qi4j.entitystore.sql.assembly.DerbySQLEntityStoreAssembler;
+import org.qi4j.library.sql.common.SQLUtil;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the Derby tests with a read replica, and tests how loads are routed to it.
+ * <p>
+ * The replica is a second embedded database that does not exist until it is replicated, by restoring a backup of
+ * the primary one.
+ * </p>
+ */
+public class DerbySQLEntityStoreReplicaTest
+    extends DerbySQLEntityStoreTest
+{
+
+    private static final String REPLICA = "build/qi4jdata-replica";
+
+    private static final String BACKUP = "build/qi4jdata-backup";
+
+    private static final long MAX_STALENESS = 200;
+
+    @Override
+    protected void configure( DerbySQLEntityStoreAssembler assembler )
+    {
+        EmbeddedDataSource replica = new EmbeddedDataSource();
+        replica.setDatabaseName( REPLICA );
+        assembler.setReadReplicas( MAX_STALENESS, replica );
+    }
+
+    @Test
+    public void givenReplicatedEntityWhenLoadingThenRecentWritesAreReadFromPrimaryAndOthersFromReplica()
+        throws Exception
+    {
+        String identity = createEntity( "Replicated" );
+        replicate();
+        setName( identity, "Written" );
+
+        // Read after write
+        assertEquals( "Written", getName( identity ) );
+
+        Thread.sleep( MAX_STALENESS * 2 );
+        assertEquals( "Replicated", getName( identity ) );
+    }
+
+    @Test
+    public void givenStaleEntityFromReplicaWhenCommittingChangesThenItFails()
+        throws Exception
+    {
+        String identity = createEntity( "Replicated" );
+        replicate();
+        setName( identity, "Written" );
+        Thread.sleep( MAX_STALENESS * 2 );
+
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        try
+        {
+            TestEntity instance = unitOfWork.get( TestEntity.class, identity );
+            assertEquals( "Replicated", instance.name().get() );
+            instance.name().set( "Stale" );
+            unitOfWork.complete();
+            fail( "Changes to a stale entity were committed" );
+        }
+        catch( ConcurrentEntityModificationException e )
+        {
+            // Expected
+        }
+        finally
+        {
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+
+        // The primary kept the name written before
+        replicate();
+        assertEquals( "Written", getName( identity ) );
+    }
+
+    @Test
+    public void givenEntityNotReplicatedWhenLoadingThenItIsReadFromPrimary()
+        throws Exception
+    {
+        replicate();
+        String identity = createEntity( "Not replicated" );
+        Thread.sleep( MAX_STALENESS * 2 );
+
+        assertEquals( "Not replicated", getName( identity ) );
+    }
+
+    @Test
+    public void givenFailingReplicaWhenLoadingThenEntitiesAreReadFromPrimary()
+        throws Exception
+    {
+        // The replica database does not exist yet, so it gives no connection
+        String identity = createEntity( "Primary" );
+        Thread.sleep( MAX_STALENESS * 2 );
+
+        assertEquals( "Primary", getName( identity ) );
+    }
+
+    private String createEntity( String name )
+        throws UnitOfWorkCompletionException
+    {
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        try
+        {
+            TestEntity instance = createEntity( unitOfWork );
+            instance.name().set( name );
+            String identity = instance.identity().get();
+            unitOfWork.complete();
+            return identity;
+        }
+        finally
+        {
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+    }
+
+    private void setName( String identity, String name )
+        throws UnitOfWorkCompletionException
+    {
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        try
+        {
+            unitOfWork.get( TestEntity.class, identity ).name().set( name );
+            unitOfWork.complete();
+        }
+        finally
+        {
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+    }
+
+    private String getName( String identity )
+    {
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        try
+        {
+            return unitOfWork.get( TestEntity.class, identity ).name().get();
+        }
+        finally
+        {
+            unitOfWork.discard();
+        }
+    }
+
+    /**
+     * Replace the replica with a backup of the primary database.
+     */
+    private void replicate()
+        throws SQLException
+    {
+        Connection connection = SQLUtil.getConnection( module );
+        CallableStatement cs = null;
+        try
+        {
+            cs = connection.prepareCall( "CALL SYSCS_UTIL.SYSCS_BACKUP_DATABASE( ? )" );
+            cs.setString( 1, BACKUP );
+            cs.execute();
+            connection.commit();
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( cs );
+            SQLUtil.closeQuietly( connection );
+        }
+        shutdownReplica();
+        DriverManager.getConnection( "jdbc:derby:" + REPLICA + ";restoreFrom=" + BACKUP + "/qi4jdata" ).close();
+    }
+
+    private static void shutdownReplica()
+    {
+        try
+        {
+            DriverManager.getConnection( "jdbc:derby:" + REPLICA + ";shutdown=true" );
+        }
+        catch( SQLException e )
+        {
+            // Always thrown, also when the replica was not booted
+        }
+    }
+
+    @Override
+    public void tearDown()
+        throws Exception
+    {
+        try
+        {
+            super.tearDown();
+        }
+        finally
+        {
+            shutdownReplica();
+            FileUtil.removeDirectory( REPLICA );
+            FileUtil.removeDirectory( BACKUP );
+        }
+    }
+
+}
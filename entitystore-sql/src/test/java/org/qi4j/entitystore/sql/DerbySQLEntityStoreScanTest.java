@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql;
+
+import org.junit.Test;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.api.unitofwork.UnitOfWorkCompletionException;
+import org.qi4j.entitystore.sql.assembly.DerbySQLEntityStoreAssembler;
+import org.qi4j.io.Output;
+import org.qi4j.io.Receiver;
+import org.qi4j.io.Sender;
+import org.qi4j.spi.entity.EntityState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the Derby tests with entities scanned by chunks of their PK range, and tests the scan.
+ */
+public class DerbySQLEntityStoreScanTest
+    extends DerbySQLEntityStoreTest
+{
+
+    private static final int PARALLELISM = 4;
+
+    @Override
+    protected void configure( DerbySQLEntityStoreAssembler assembler )
+    {
+        assembler.setScanParallelism( PARALLELISM );
+    }
+
+    @Test
+    public void givenNoEntitiesWhenScanningThenNoneAreSent()
+    {
+        assertEquals( Collections.<String>emptyList(), scan() );
+    }
+
+    @Test
+    public void givenOneEntityWhenScanningThenItIsSentOnce()
+        throws UnitOfWorkCompletionException
+    {
+        List<String> identities = createEntities( 1 );
+
+        assertEquals( identities, scan() );
+    }
+
+    @Test
+    public void givenEntitiesNotFillingTheLastChunkWhenScanningThenEachIsSentOnce()
+        throws UnitOfWorkCompletionException
+    {
+        // Fewer than the chunks, then more but not a multiple of them
+        for( int count : new int[]{ PARALLELISM - 1, 5 * PARALLELISM + 3 } )
+        {
+            List<String> identities = createEntities( count );
+
+            List<String> scanned = scan();
+            assertEquals( identities.size(), scanned.size() );
+            assertEquals( new HashSet<String>( identities ), new HashSet<String>( scanned ) );
+
+            removeEntities( identities );
+        }
+    }
+
+    @Test
+    public void givenRemovedEntitiesAtEndsOfRangeWhenScanningThenTheOthersAreSentOnce()
+        throws UnitOfWorkCompletionException
+    {
+        List<String> identities = createEntities( 5 * PARALLELISM );
+
+        // The lowest and highest PKs, and a run in the middle that empties a chunk
+        List<String> removed = new ArrayList<String>();
+        removed.add( identities.remove( 0 ) );
+        removed.add( identities.remove( identities.size() - 1 ) );
+        removed.addAll( identities.subList( PARALLELISM, 3 * PARALLELISM ) );
+        identities.removeAll( removed );
+        removeEntities( removed );
+
+        List<String> scanned = scan();
+        assertEquals( identities.size(), scanned.size() );
+        assertEquals( new HashSet<String>( identities ), new HashSet<String>( scanned ) );
+    }
+
+    /**
+     * Create entities in one unit of work, so that their PKs follow each other.
+     *
+     * @return the identities, in the order of their PKs
+     */
+    private List<String> createEntities( int count )
+        throws UnitOfWorkCompletionException
+    {
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        try
+        {
+            List<String> identities = new ArrayList<String>();
+            for( int i = 0; i < count; i++ )
+            {
+                identities.add( createEntity( unitOfWork ).identity().get() );
+            }
+            unitOfWork.complete();
+            return identities;
+        }
+        finally
+        {
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+    }
+
+    private void removeEntities( List<String> identities )
+        throws UnitOfWorkCompletionException
+    {
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        try
+        {
+            for( String identity : identities )
+            {
+                unitOfWork.remove( unitOfWork.get( TestEntity.class, identity ) );
+            }
+            unitOfWork.complete();
+        }
+        finally
+        {
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+    }
+
+    /**
+     * @return the identities of the scanned entities, in the order they were sent
+     */
+    private List<String> scan()
+    {
+        final List<String> identities = new ArrayList<String>();
+        SQLEntityStoreService store = this.module.findService( SQLEntityStoreService.class ).get();
+        store.entityStates( module ).transferTo( new Output<EntityState, RuntimeException>()
+        {
+            public <SenderThrowableType extends Throwable> void receiveFrom(
+                Sender<? extends EntityState, SenderThrowableType> sender )
+                throws RuntimeException, SenderThrowableType
+            {
+                sender.sendTo( new Receiver<EntityState, RuntimeException>()
+                {
+                    public void receive( EntityState state )
+                    {
+                        identities.add( state.identity().identity() );
+                    }
+                } );
+            }
+        } );
+        return identities;
+    }
+
+}
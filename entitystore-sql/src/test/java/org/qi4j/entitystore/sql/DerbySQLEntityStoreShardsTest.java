@@ -0,0 +1,437 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql;
+
+import org.apache.derby.iapi.services.io.FileUtil;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.Test;
+import org.qi4j.api.unitofwork.ConcurrentEntityModificationException;
+import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.api.unitofwork.UnitOfWorkCompletionException;
+import org.qi4j.entitystore.sql.assembly.DerbySQLEntityStoreAssembler;
+import org.qi4j.entitystore.sql.internal.SQLs;
+import org.qi4j.library.sql.common.SQLUtil;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the Derby tests with the entities spread over the primary database and a second embedded one, and tests the
+ * commits across both and the rebalance after a shard is added.
+ */
+public class DerbySQLEntityStoreShardsTest
+    extends DerbySQLEntityStoreTest
+{
+
+    private static final String SHARD = "build/qi4jdata-shard";
+
+    // Enough entities that both shards get some
+    private static final int ENTITIES = 20;
+
+    private EmbeddedDataSource shard;
+
+    // Set to fail the commits on the shard
+    private volatile boolean failingCommits;
+
+    @Override
+    protected void configure( DerbySQLEntityStoreAssembler assembler )
+    {
+        shard = new EmbeddedDataSource();
+        shard.setDatabaseName( SHARD );
+        shard.setCreateDatabase( "create" );
+        assembler.setShards( (DataSource) Proxy.newProxyInstance( getClass().getClassLoader(),
+                                                                  new Class<?>[]{ DataSource.class },
+                                                                  new FailingCommits( shard ) ) );
+    }
+
+    @Test
+    public void givenEntitiesOfBothShardsWhenCommittingThenEachIsWrittenToItsShard()
+        throws Exception
+    {
+        List<String> identities = createEntities();
+
+        Set<String> primary = identitiesOn( SQLUtil.getConnection( module ) );
+        Set<String> onShard = identitiesOn( shardConnection() );
+        assertFalse( primary.isEmpty() );
+        assertFalse( onShard.isEmpty() );
+        assertEquals( identities.size(), primary.size() + onShard.size() );
+        for( String identity : identities )
+        {
+            assertTrue( identity, primary.contains( identity ) != onShard.contains( identity ) );
+            assertEquals( "Entity " + identity, getName( identity ) );
+        }
+    }
+
+    @Test
+    public void givenConcurrentModificationOnOneShardWhenCommittingThenNoShardIsChanged()
+        throws Exception
+    {
+        createEntities();
+        String first = identitiesOn( SQLUtil.getConnection( module ) ).iterator().next();
+        String second = identitiesOn( shardConnection() ).iterator().next();
+
+        // Written by another application
+        Connection connection = shardConnection();
+        PreparedStatement ps = null;
+        try
+        {
+            ps = connection.prepareStatement( "UPDATE " + schemaName() + "." + SQLs.TABLE_NAME + " SET "
+                                              + SQLs.ENTITY_OPTIMISTIC_LOCK_COLUMN_NAME + " = "
+                                              + SQLs.ENTITY_OPTIMISTIC_LOCK_COLUMN_NAME + " + 1 WHERE "
+                                              + SQLs.ENTITY_IDENTITY_COLUMN_NAME + " = ?" );
+            ps.setString( 1, second );
+            assertEquals( 1, ps.executeUpdate() );
+            connection.commit();
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( ps );
+            SQLUtil.closeQuietly( connection );
+        }
+
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        try
+        {
+            unitOfWork.get( TestEntity.class, first ).name().set( "Changed" );
+            unitOfWork.get( TestEntity.class, second ).name().set( "Changed" );
+            unitOfWork.complete();
+            fail( "Changes to a concurrently modified entity were committed" );
+        }
+        catch( ConcurrentEntityModificationException e )
+        {
+            // Expected
+        }
+        finally
+        {
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+
+        assertEquals( "Entity " + first, getName( first ) );
+        assertEquals( "Entity " + second, getName( second ) );
+    }
+
+    @Test
+    public void givenFailingCommitOnShardWhenCommittingThenChangesToPrimaryStay()
+        throws Exception
+    {
+        failingCommits = true;
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        List<String> identities = new ArrayList<String>();
+        try
+        {
+            for( int i = 0; i < ENTITIES; i++ )
+            {
+                identities.add( createEntity( unitOfWork ).identity().get() );
+            }
+            unitOfWork.complete();
+            fail( "Commit on the shard did not fail" );
+        }
+        catch( UnitOfWorkCompletionException e )
+        {
+            // Expected
+        }
+        finally
+        {
+            failingCommits = false;
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+
+        // The primary is committed first, and is not rolled back
+        Set<String> primary = identitiesOn( SQLUtil.getConnection( module ) );
+        assertFalse( primary.isEmpty() );
+        assertTrue( primary.size() < identities.size() );
+        assertTrue( identities.containsAll( primary ) );
+        assertTrue( identitiesOn( shardConnection() ).isEmpty() );
+    }
+
+    @Test
+    public void givenEntityOnOldShardWhenUpdatingAndRebalancingThenItIsMoved()
+        throws Exception
+    {
+        List<String> identities = createEntities();
+        String misplaced = identitiesOn( shardConnection() ).iterator().next();
+
+        // As if written before the shard was added
+        moveRow( misplaced, shardConnection(), SQLUtil.getConnection( module ) );
+        assertEquals( "Entity " + misplaced, getName( misplaced ) );
+
+        setName( misplaced, "Before rebalance" );
+        assertTrue( identitiesOn( SQLUtil.getConnection( module ) ).contains( misplaced ) );
+        assertFalse( identitiesOn( shardConnection() ).contains( misplaced ) );
+
+        UnitOfWork stale = this.module.newUnitOfWork();
+        try
+        {
+            assertEquals( "Before rebalance", stale.get( TestEntity.class, misplaced ).name().get() );
+
+            ShardedEntityStore store = this.module.findService( SQLEntityStoreService.class ).get();
+            assertEquals( 1, store.rebalanceShards() );
+            assertFalse( identitiesOn( SQLUtil.getConnection( module ) ).contains( misplaced ) );
+            assertTrue( identitiesOn( shardConnection() ).contains( misplaced ) );
+            assertEquals( "Before rebalance", getName( misplaced ) );
+            assertEquals( 0, store.rebalanceShards() );
+
+            // Loaded from where the entity was before it was moved
+            stale.get( TestEntity.class, misplaced ).name().set( "Stale" );
+            stale.complete();
+            fail( "Changes to a moved entity were committed" );
+        }
+        catch( ConcurrentEntityModificationException e )
+        {
+            // Expected
+        }
+        finally
+        {
+            if( stale.isOpen() )
+            {
+                stale.discard();
+            }
+        }
+
+        setName( misplaced, "After rebalance" );
+        assertEquals( "After rebalance", getName( misplaced ) );
+        for( String identity : identities )
+        {
+            if( !identity.equals( misplaced ) )
+            {
+                assertEquals( "Entity " + identity, getName( identity ) );
+            }
+        }
+    }
+
+    private List<String> createEntities()
+        throws UnitOfWorkCompletionException
+    {
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        List<String> identities = new ArrayList<String>();
+        try
+        {
+            for( int i = 0; i < ENTITIES; i++ )
+            {
+                TestEntity instance = createEntity( unitOfWork );
+                instance.name().set( "Entity " + instance.identity().get() );
+                identities.add( instance.identity().get() );
+            }
+            unitOfWork.complete();
+            return identities;
+        }
+        finally
+        {
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+    }
+
+    private void setName( String identity, String name )
+        throws UnitOfWorkCompletionException
+    {
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        try
+        {
+            unitOfWork.get( TestEntity.class, identity ).name().set( name );
+            unitOfWork.complete();
+        }
+        finally
+        {
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+    }
+
+    private String getName( String identity )
+    {
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        try
+        {
+            return unitOfWork.get( TestEntity.class, identity ).name().get();
+        }
+        finally
+        {
+            unitOfWork.discard();
+        }
+    }
+
+    private Connection shardConnection()
+        throws SQLException
+    {
+        Connection connection = shard.getConnection();
+        connection.setAutoCommit( false );
+        return connection;
+    }
+
+    /**
+     * @return the identities of the entities stored in the database, the connection is closed
+     */
+    private Set<String> identitiesOn( Connection connection )
+        throws SQLException
+    {
+        Set<String> identities = new HashSet<String>();
+        Statement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = connection.createStatement();
+            rs = stmt.executeQuery( "SELECT " + SQLs.ENTITY_IDENTITY_COLUMN_NAME + " FROM " + schemaName() + "."
+                                    + SQLs.TABLE_NAME );
+            while( rs.next() )
+            {
+                identities.add( rs.getString( 1 ) );
+            }
+            return identities;
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( rs );
+            SQLUtil.closeQuietly( stmt );
+            SQLUtil.rollbackQuietly( connection );
+            SQLUtil.closeQuietly( connection );
+        }
+    }
+
+    /**
+     * Move the row of an entity to another database, the connections are closed.
+     */
+    private void moveRow( String identity, Connection from, Connection to )
+        throws SQLException
+    {
+        String table = schemaName() + "." + SQLs.TABLE_NAME;
+        PreparedStatement select = null;
+        PreparedStatement insert = null;
+        PreparedStatement delete = null;
+        ResultSet rs = null;
+        try
+        {
+            select = from.prepareStatement( "SELECT * FROM " + table + " WHERE " + SQLs.ENTITY_IDENTITY_COLUMN_NAME
+                                            + " = ?" );
+            select.setString( 1, identity );
+            rs = select.executeQuery();
+            assertTrue( rs.next() );
+            int columns = rs.getMetaData().getColumnCount();
+            StringBuilder names = new StringBuilder();
+            StringBuilder params = new StringBuilder();
+            for( int column = 1; column <= columns; column++ )
+            {
+                names.append( column == 1 ? "" : ", " ).append( rs.getMetaData().getColumnName( column ) );
+                params.append( column == 1 ? "?" : ", ?" );
+            }
+            insert = to.prepareStatement( "INSERT INTO " + table + " ( " + names + " ) VALUES ( " + params + " )" );
+            for( int column = 1; column <= columns; column++ )
+            {
+                insert.setObject( column, rs.getObject( column ), rs.getMetaData().getColumnType( column ) );
+            }
+            assertEquals( 1, insert.executeUpdate() );
+            to.commit();
+
+            delete = from.prepareStatement( "DELETE FROM " + table + " WHERE " + SQLs.ENTITY_IDENTITY_COLUMN_NAME
+                                            + " = ?" );
+            delete.setString( 1, identity );
+            assertEquals( 1, delete.executeUpdate() );
+            from.commit();
+        }
+        finally
+        {
+            SQLUtil.closeQuietly( rs );
+            SQLUtil.closeQuietly( select );
+            SQLUtil.closeQuietly( insert );
+            SQLUtil.closeQuietly( delete );
+            SQLUtil.closeQuietly( from );
+            SQLUtil.closeQuietly( to );
+        }
+    }
+
+    /**
+     * Forwards the calls to a data source or connection, and the calls to the connections it gives. Commits fail
+     * while {@link #failingCommits} is set.
+     */
+    private class FailingCommits
+        implements InvocationHandler
+    {
+        private final Object target;
+
+        private FailingCommits( Object target )
+        {
+            this.target = target;
+        }
+
+        public Object invoke( Object proxy, Method method, Object[] args )
+            throws Throwable
+        {
+            if( failingCommits && target instanceof Connection && "commit".equals( method.getName() ) )
+            {
+                throw new SQLException( "Failing commit" );
+            }
+            Object result;
+            try
+            {
+                result = method.invoke( target, args );
+            }
+            catch( InvocationTargetException e )
+            {
+                throw e.getCause();
+            }
+            if( result instanceof Connection )
+            {
+                return Proxy.newProxyInstance( getClass().getClassLoader(), new Class<?>[]{ Connection.class },
+                                               new FailingCommits( result ) );
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public void tearDown()
+        throws Exception
+    {
+        try
+        {
+            super.tearDown();
+        }
+        finally
+        {
+            try
+            {
+                DriverManager.getConnection( "jdbc:derby:" + SHARD + ";shutdown=true" );
+            }
+            catch( SQLException e )
+            {
+                // Always thrown, also when the shard was not booted
+            }
+            FileUtil.removeDirectory( SHARD );
+        }
+    }
+
+}
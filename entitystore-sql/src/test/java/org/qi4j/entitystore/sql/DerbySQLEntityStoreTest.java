@@ -14,8 +14,10 @@
 package org.qi4j.entitystore.sql;
 
 import org.apache.derby.iapi.services.io.FileUtil;
+import org.junit.Test;
 import org.qi4j.api.common.Visibility;
 import org.qi4j.api.unitofwork.UnitOfWork;
+import org.qi4j.api.unitofwork.UnitOfWorkCompletionException;
 import org.qi4j.bootstrap.AssemblyException;
 import org.qi4j.bootstrap.ModuleAssembly;
 import org.qi4j.entitystore.memory.MemoryEntityStoreService;
@@ -29,6 +31,8 @@ import org.qi4j.test.entity.AbstractEntityStoreTest;
 import java.sql.Connection;
 import java.sql.Statement;
 
+import static org.junit.Assert.*;
+
 /**
  * @author Stanislav Muhametsin
  * @author Paul Merlin
@@ -43,13 +47,71 @@ public class DerbySQLEntityStoreTest extends AbstractEntityStoreTest
     {
         super.assemble( module );
 
-        new DerbySQLEntityStoreAssembler().assemble( module );
+        DerbySQLEntityStoreAssembler assembler = new DerbySQLEntityStoreAssembler();
+        configure( assembler );
+        assembler.assemble( module );
 
         ModuleAssembly config = module.layer().module( "config" );
         config.services( MemoryEntityStoreService.class );
         config.entities( DBCPDataSourceConfiguration.class, SQLConfiguration.class ).visibleIn( Visibility.layer );
     }
 
+    /**
+     * Set the options of the store under test, the defaults here.
+     */
+    protected void configure( DerbySQLEntityStoreAssembler assembler )
+    {
+    }
+
+    @Test
+    public void givenEscapedCharactersInStateWhenLoadingThenTheyAreRead()
+        throws UnitOfWorkCompletionException
+    {
+        String name = "quote \" backslash \\ slash / tab \t newline \n control \u0001 accent \u00e9 han \u4e2d "
+                      + "surrogates \ud83d\ude00 brace } bracket ] comma ,";
+        UnitOfWork unitOfWork = this.module.newUnitOfWork();
+        String identity;
+        try
+        {
+            TestEntity instance = createEntity( unitOfWork );
+            instance.name().set( name );
+            identity = instance.identity().get();
+            unitOfWork.complete();
+        }
+        finally
+        {
+            if( unitOfWork.isOpen() )
+            {
+                unitOfWork.discard();
+            }
+        }
+
+        unitOfWork = this.module.newUnitOfWork();
+        try
+        {
+            assertEquals( name, unitOfWork.get( TestEntity.class, identity ).name().get() );
+        }
+        finally
+        {
+            unitOfWork.discard();
+        }
+    }
+
+    protected String schemaName()
+    {
+        UnitOfWork uow = this.module.newUnitOfWork();
+        try
+        {
+            String schemaName = uow.get( SQLConfiguration.class, DerbySQLEntityStoreAssembler.ENTITYSTORE_SERVICE_NAME )
+                .schemaName().get();
+            return schemaName == null ? SQLs.DEFAULT_SCHEMA_NAME : schemaName;
+        }
+        finally
+        {
+            uow.discard();
+        }
+    }
+
     @Override
     public void tearDown()
         throws Exception
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql.internal;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class EntityPKAllocatorTest
+{
+
+    private static final int BLOCK_SIZE = 10;
+
+    private static final int PKS_PER_THREAD = 1000;
+
+    @Test
+    public void givenOneAllocatorWhenAllocatingThenPKsFollowEachOtherFromTheReservedBlocks()
+        throws SQLException
+    {
+        TestAllocator allocator = new TestAllocator( new AtomicLong( 42 ) );
+        for( long expected = 42; expected < 42 + 3 * BLOCK_SIZE; expected++ )
+        {
+            assertEquals( expected, allocator.next() );
+        }
+        assertEquals( 3, allocator.reserved.get() );
+    }
+
+    @Test
+    public void givenAllocatorsOnOneDatabaseWhenAllocatingConcurrentlyThenNoPKIsHandedOutTwice()
+        throws Exception
+    {
+        AtomicLong database = new AtomicLong( 1 );
+        final TestAllocator[] allocators = { new TestAllocator( database ), new TestAllocator( database ) };
+        ExecutorService threads = Executors.newFixedThreadPool( 8 );
+        try
+        {
+            List<Future<List<Long>>> results = new ArrayList<Future<List<Long>>>();
+            for( int thread = 0; thread < 8; thread++ )
+            {
+                final TestAllocator allocator = allocators[ thread % allocators.length ];
+                results.add( threads.submit( new Callable<List<Long>>()
+                {
+                    public List<Long> call()
+                        throws SQLException
+                    {
+                        List<Long> pks = new ArrayList<Long>();
+                        for( int i = 0; i < PKS_PER_THREAD; i++ )
+                        {
+                            pks.add( allocator.next() );
+                        }
+                        return pks;
+                    }
+                } ) );
+            }
+
+            Set<Long> pks = new HashSet<Long>();
+            for( Future<List<Long>> result : results )
+            {
+                for( Long pk : result.get() )
+                {
+                    assertTrue( "PK " + pk + " handed out twice", pks.add( pk ) );
+                }
+            }
+            assertEquals( 8 * PKS_PER_THREAD, pks.size() );
+            assertTrue( Collections.max( pks ) < database.get() );
+
+            // Blocks are only reserved when the current one runs out
+            int reserved = allocators[ 0 ].reserved.get() + allocators[ 1 ].reserved.get();
+            assertTrue( "Reserved " + reserved + " blocks", reserved <= 8 * PKS_PER_THREAD / BLOCK_SIZE + 2 );
+        }
+        finally
+        {
+            threads.shutdown();
+        }
+    }
+
+    @Test
+    public void givenFailingReservationWhenAllocatingThenItFailsAndLaterOnesSucceed()
+        throws SQLException
+    {
+        final AtomicInteger failures = new AtomicInteger( 1 );
+        TestAllocator allocator = new TestAllocator( new AtomicLong( 0 ) )
+        {
+            @Override
+            protected long reserve( long blockSize )
+                throws SQLException
+            {
+                if( failures.getAndDecrement() > 0 )
+                {
+                    throw new SQLException( "Failing reservation" );
+                }
+                return super.reserve( blockSize );
+            }
+        };
+        try
+        {
+            allocator.next();
+            fail( "Reservation did not fail" );
+        }
+        catch( SQLException e )
+        {
+            // Expected
+        }
+        assertEquals( 0, allocator.next() );
+        assertEquals( 1, allocator.next() );
+    }
+
+    /**
+     * Reserves its blocks from a counter shared with the other allocators, as the database does with its compare and
+     * set.
+     */
+    private static class TestAllocator
+        extends EntityPKAllocator
+    {
+        private final AtomicLong database;
+
+        private final AtomicInteger reserved = new AtomicInteger();
+
+        private TestAllocator( AtomicLong database )
+        {
+            super( BLOCK_SIZE );
+            this.database = database;
+        }
+
+        @Override
+        protected long reserve( long blockSize )
+            throws SQLException
+        {
+            reserved.incrementAndGet();
+            return database.getAndAdd( blockSize );
+        }
+    }
+
+}
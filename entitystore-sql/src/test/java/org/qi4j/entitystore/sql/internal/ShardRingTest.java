@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.qi4j.entitystore.sql.internal;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ShardRingTest
+{
+
+    private static final int IDENTITIES = 30000;
+
+    @Test
+    public void givenSameShardCountWhenMappingThenEveryRingAgrees()
+    {
+        ShardRing ring = new ShardRing( 3 );
+        ShardRing other = new ShardRing( 3 );
+        for( int i = 0; i < IDENTITIES; i++ )
+        {
+            String identity = identity( i );
+            assertEquals( ring.shardOf( identity ), other.shardOf( identity ) );
+        }
+    }
+
+    @Test
+    public void givenOneShardWhenMappingThenAllEntitiesBelongToIt()
+    {
+        ShardRing ring = new ShardRing( 1 );
+        for( int i = 0; i < IDENTITIES; i++ )
+        {
+            assertEquals( 0, ring.shardOf( identity( i ) ) );
+        }
+    }
+
+    @Test
+    public void givenSeveralShardsWhenMappingThenEntitiesAreSpreadEvenly()
+    {
+        ShardRing ring = new ShardRing( 4 );
+        int[] counts = new int[ 4 ];
+        for( int i = 0; i < IDENTITIES; i++ )
+        {
+            counts[ ring.shardOf( identity( i ) ) ]++;
+        }
+        for( int shard = 0; shard < counts.length; shard++ )
+        {
+            // A quarter each, give or take a fifth of that
+            assertTrue( "Shard " + shard + " has " + counts[ shard ],
+                        Math.abs( counts[ shard ] - IDENTITIES / 4 ) < IDENTITIES / 20 );
+        }
+    }
+
+    @Test
+    public void givenAddedShardWhenMappingThenOnlyEntitiesOfTheNewShardMove()
+    {
+        ShardRing before = new ShardRing( 2 );
+        ShardRing after = new ShardRing( 3 );
+        int moved = 0;
+        for( int i = 0; i < IDENTITIES; i++ )
+        {
+            String identity = identity( i );
+            if( before.shardOf( identity ) != after.shardOf( identity ) )
+            {
+                assertEquals( 2, after.shardOf( identity ) );
+                moved++;
+            }
+        }
+        assertTrue( "Moved " + moved, Math.abs( moved - IDENTITIES / 3 ) < IDENTITIES / 15 );
+    }
+
+    private static String identity( int i )
+    {
+        // Both the generated identities and similar ones that only differ at the end
+        return i % 2 == 0 ? UUID.nameUUIDFromBytes( ( "" + i ).getBytes() ).toString() : "entity-" + i;
+    }
+
+}